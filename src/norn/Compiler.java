@@ -0,0 +1,189 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mutable builder that compiles a list expression into a Program. The expression tree is walked with an
+ * explicit stack, and each ListExpression describes the instructions for one level of the tree in compile():
+ * the result of an expression compiled into register r is left in r, its first operand is compiled into r,
+ * and each of its other operands is compiled into r+1, so the registers used grow with the depth of the tree.
+ */
+public class Compiler {
+    private int[] code = new int[48];
+    private int length = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+    private final Deque<List<Integer>> pendingJumps = new ArrayDeque<>();
+    private int registerCount = 1;
+
+    // AF(code, length, constants, constantIndices, pendingJumps, registerCount) = a program being compiled, whose
+    //                              instructions so far are code[0:length] and which uses the recipients and
+    //                              list names in constants and registers 0 to registerCount-1; pendingJumps
+    //                              holds, for each expression being compiled from the innermost out, the
+    //                              positions in code of the jumps to the end of that expression
+    //
+    // RI:
+    //  - length <= code.length, and length is a multiple of 3
+    //  - constantIndices maps each element of constants to its index
+    //
+    // SRE:
+    //  - all fields are private; the arrays and lists are copied into the Program returned
+    //
+    // TSA:
+    //  - Compiler is not threadsafe, and is confined to the thread that calls compile()
+
+    private Compiler() {
+    }
+
+    /**
+     * Compile an expression into a program for the interpreter loop of Program.run().
+     * Requires expr to not define any list names.
+     *
+     * @param expr expression to compile
+     * @return a program whose result is the set of recipients expr evaluates to
+     * @throws IllegalArgumentException if expr defines list names
+     */
+    public static Program compile(ListExpression expr) {
+        final Compiler compiler = new Compiler();
+        final Deque<ListExpression> toVisit = new ArrayDeque<>(List.of(expr));
+        final Deque<Integer> nextOperand = new ArrayDeque<>(List.of(0));
+        final Deque<Integer> registers = new ArrayDeque<>(List.of(0));
+        while (!toVisit.isEmpty()) {
+            final ListExpression current = toVisit.peek();
+            final int index = nextOperand.pop();
+            final int register = registers.peek();
+            final List<ListExpression> operands = current.getOperands();
+            if (index == 0) {
+                compiler.pendingJumps.push(new ArrayList<>());
+            }
+            current.compile(compiler, index, register);
+            if (index < operands.size()) {
+                final int operandRegister = index == 0 ? register : register + 1;
+                compiler.registerCount = Math.max(compiler.registerCount, operandRegister + 1);
+                nextOperand.push(index + 1);
+                toVisit.push(operands.get(index));
+                nextOperand.push(0);
+                registers.push(operandRegister);
+            } else {
+                for (int jump : compiler.pendingJumps.pop()) {
+                    compiler.code[jump] = compiler.length / 3;
+                }
+                toVisit.pop();
+                registers.pop();
+            }
+        }
+        return new Program(Arrays.copyOf(compiler.code, compiler.length), compiler.constants.toArray(),
+                compiler.registerCount);
+    }
+
+    // Append an instruction, and return the position of its last argument
+    private int emit(int op, int a, int b) {
+        if (length + 3 > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        code[length++] = op;
+        code[length++] = a;
+        code[length++] = b;
+        return length - 1;
+    }
+
+    // Get the index of a constant, adding it if needed
+    private int constant(Object value) {
+        return constantIndices.computeIfAbsent(value, v -> {
+            constants.add(v);
+            return constants.size() - 1;
+        });
+    }
+
+    /**
+     * Set a register to the empty set.
+     * @param register register to set
+     */
+    public void loadEmpty(int register) {
+        emit(Program.LOAD_EMPTY, register, 0);
+    }
+
+    /**
+     * Set a register to a single recipient.
+     * @param register register to set
+     * @param recipient recipient (in lowercase)
+     */
+    public void loadRecipient(int register, String recipient) {
+        emit(Program.LOAD_RECIPIENT, register, constant(recipient));
+    }
+
+    /**
+     * Set a register to the recipients of a literal.
+     * @param register register to set
+     * @param literal literal to load
+     */
+    public void loadRecipients(int register, Literal literal) {
+        emit(Program.LOAD_RECIPIENTS, register, constant(literal));
+    }
+
+    /**
+     * Set a register to the recipients of a list name, when the program is run.
+     * @param register register to set
+     * @param listname list name to load
+     */
+    public void loadList(int register, ListName listname) {
+        emit(Program.LOAD_LIST, register, constant(listname));
+    }
+
+    /**
+     * Add the recipients in one register to another.
+     * @param target register to add to
+     * @param source register to add, cleared afterwards
+     */
+    public void unionInto(int target, int source) {
+        emit(Program.UNION_INTO, target, source);
+    }
+
+    /**
+     * Keep only the recipients of a register that are also in another.
+     * @param target register to intersect
+     * @param source register to intersect with, cleared afterwards
+     */
+    public void intersectInto(int target, int source) {
+        emit(Program.INTERSECT_INTO, target, source);
+    }
+
+    /**
+     * Remove the recipients in one register from another.
+     * @param target register to remove from
+     * @param source register to remove, cleared afterwards
+     */
+    public void differenceInto(int target, int source) {
+        emit(Program.DIFFERENCE_INTO, target, source);
+    }
+
+    /**
+     * Move the recipients in one register to another.
+     * @param target register to set
+     * @param source register to move, cleared afterwards
+     */
+    public void move(int target, int source) {
+        emit(Program.MOVE, target, source);
+    }
+
+    /**
+     * Skip the rest of the instructions of the expression being compiled if a register is empty.
+     * @param register register to check
+     */
+    public void skipIfEmpty(int register) {
+        pendingJumps.peek().add(emit(Program.JUMP_IF_EMPTY, register, 0));
+    }
+
+    /**
+     * Skip the rest of the instructions of the expression being compiled.
+     */
+    public void skip() {
+        pendingJumps.peek().add(emit(Program.JUMP, 0, 0) - 1);
+    }
+}
@@ -1,54 +1,263 @@
 package norn;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.text.ParseException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 public class Context {
-    private final Map<ListName, ListExpression> expressionMap = Collections.synchronizedMap(new HashMap<>());
-    private final Map<ListName, Set<ListName>> childMap = Collections.synchronizedMap(new HashMap<>()); // maps a listname to all of the listnames it's dependent on
-
-    // AF(expressionMap, childMap) = a context of already evaluated list definitions, where all of the
-    //                              listnames that have been previously defined are the keys in expressionMap, 
-    //                              and each value is the corresponding listname's most recent definition. The 
-    //                              listnames' dependencies on one another are represented in childMap, where 
-    //                              each key is a listname and the associated value is a set of all of the listnames
-    //                              it is directly dependent on
+    private volatile Snapshot snapshot = new Snapshot();    // the definitions published to readers
+    private Snapshot working = snapshot;                    // ... and as being changed by the current writer
+    private final Map<ListName, Set<ListName>> parentMap = new HashMap<>(); // maps a listname to all of the listnames directly dependent on it
+    private final Map<ListName, Long> order = new HashMap<>();  // numbers the listnames, children before parents
+    private long lowestOrder = 0;                               // ... all of the numbers are above this
+    private long highestOrder = 0;                              // ... and not above this
+    private final Map<ListName, Versioned<Set<String>>> resultCache = new ConcurrentHashMap<>();
+    private final Map<ListName, Set<String>> materializedMap = new HashMap<>();
+    private final Map<ListName, Versioned<Long>> costCache = new ConcurrentHashMap<>();
+    private final Map<ListName, Compiled> programCache = new ConcurrentHashMap<>();
+    private final Map<ListName, Versioned<Set<ListName>>> dependencyCache = new ConcurrentHashMap<>();
+    private final boolean materialized;
+    private long versions = 0;
+    private final ForkJoinPool pool;
+    private final AtomicLong forks = new AtomicLong();          // subexpressions of parallels started on pool
+    private final AtomicLong runByCaller = new AtomicLong();    // ... and then run by the thread that started them
+    private final long parallelThreshold;
+    private volatile Journal journal = null;
+    private final ReentrantLock writer = new ReentrantLock();   // held by the current writer
+
+    private static final ForkJoinPool DEFAULT_POOL = new ForkJoinPool();
+    private static final long DEFAULT_PARALLEL_THRESHOLD = 10_000;
+
+    // AF(snapshot, working, parentMap, order, lowestOrder, highestOrder, resultCache, materializedMap, costCache,
+    //    programCache, dependencyCache, materialized, versions, pool, forks, runByCaller, parallelThreshold,
+    //    journal, writer) = a
+    //                              context of already evaluated list definitions, whose current definitions and
+    //                              dependencies between listnames are those of snapshot (see Snapshot), the latest
+    //                              version published to readers. working is the same definitions with the changes
+    //                              of the writer in progress, if any, and parentMap holds the reverse edges of
+    //                              working's dependency graph. order is a topological order of that graph, kept up
+    //                              to date as edges are added (see addToOrder), in which each listname comes after
+    //                              its children.
+    //                              resultCache maps a listname to the recipients its definition evaluated to in
+    //                              some version, tagged with that version.
+    //                              If materialized, materializedMap maps a listname to the recipients of its
+    //                              current definition, kept up to date as definitions change.
+    //                              Subexpressions of parallels, and independent operands estimated to cost at
+    //                              least parallelThreshold to evaluate, are evaluated on pool; forks of them have
+    //                              been started, and runByCaller of those were run by the thread that started them.
+    //                              costCache maps a listname to the estimated cost of evaluating its definition
+    //                              without any cached recipients (or -1 if evaluating it defines listnames) in
+    //                              some version, tagged with that version.
+    //                              programCache maps a listname to one of its definitions and that definition
+    //                              compiled by Compiler, or null if it defines listnames.
+    //                              dependencyCache maps a listname to the listnames it transitively depends on
+    //                              (see getDependencies) in some version, tagged with that version.
+    //                              A listname redefined in terms of itself uses a prior version of itself
+    //                              instead, a hidden listname (see ListName.getPriorVersion) that keeps the
+    //                              previous definition; versions counts the prior versions created so far.
+    //                              If journal isn't null, each change made to the definitions by a client
+    //                              (updateMap, or an evaluation that defines listnames) is recorded in it.
+    //                              writer is held by the thread whose changes working has, if any.
     //
     // RI:
-    //  - all listnames in expressionMap, including all those found in the expressions at expressionMap.get(key)
-    //      for all keys in expressionMap, should be keys in childMap
-    //  - all listnames found in childMap.get(key) for all keys in childMap should also be keys in childMap
+    //  - snapshot.getVersion() <= working.getVersion()
+    //  - for all listnames p, c in working: working.getChildren(p).contains(c) iff parentMap.get(c).contains(p)
+    //  - order has a distinct number in (lowestOrder, highestOrder] for each listname in working's dependency
+    //      graph, and order.get(c) < order.get(p) whenever p directly depends on another listname c
+    //  - materializedMap is empty if not materialized
+    //  - 0 <= runByCaller <= forks
+    //  - every prior version defined in working has a number below versions, is only used by definitions of
+    //      listnames created after it, and is used by at least one definition in working
+    //  - if materializedMap contains l, then the definition of l does not define any listnames, and
+    //      materializedMap contains every listname in working.getChildren(l)
     //
     // SRE:
-    //  - all fields are private and final
-    //  - none of the methods return references to any fields
+    //  - all fields are private, and all fields except snapshot, working, lowestOrder, highestOrder and
+    //      versions are final
+    //  - none of the methods return references to any fields except snapshot, which is immutable, and pool,
+    //      which is shared with the client that passed it in, or only with other contexts if it is DEFAULT_POOL;
+    //      programs and sets of dependencies returned are unmodifiable, and never modified after they are cached
     //
     // TSA:
-    //  - expressionMap and childMap are both threadsafe datatypes
-    //  - expressionMap and childMap are never exposed to clients, and childMap's mutable values
-    //      are also never exposed to clients
-    //  - Context implements the monitor pattern so no two threads are reading or writing to the same
-    //      context object at the same time -- evaluate() is a wrapper for the ListExpression method evaluate()
-    //  - no two threads modify (e.g. add or change definitions) list definitions that any other thread depends
-    //      on, uses, or defines, so interleaving context operations are still threadsafe.
+    //  - writers (updateMap, evaluations that define listnames, and bulk loads) hold writer from start to
+    //      finish, so they take turns; each change they make to working (including those made by the
+    //      evaluations they fork, which don't hold writer) is made while holding the monitor, and they only
+    //      publish working to snapshot once they have succeeded and been recorded in journal, with a single
+    //      volatile write. A writer that fails restores working before publishing it, so none of its changes
+    //      are ever seen by readers; working, parentMap, order, lowestOrder, highestOrder, materializedMap
+    //      and versions are only accessed while holding the monitor
+    //  - readers (getRelevantExpression, getDependencies, save, saveBinary, and evaluations that don't define
+    //      listnames) read one snapshot and never hold the monitor, so they never wait for writers, except to
+    //      read the recipients kept by a materialized context, which are only used if that snapshot is still
+    //      working, with no writer's changes since; writers read working, since they must see their own changes
+    //  - resultCache, costCache, programCache and dependencyCache are ConcurrentHashMaps whose values are
+    //      immutable, and each entry says which snapshots it is valid in: a cached result, cost or set of
+    //      dependencies tagged with version v is used in a snapshot s only if s.getChanged(l) <= v <=
+    //      s.getVersion(), and a cached program only if it was compiled from s.getDefinition(l); so a reader
+    //      may cache a result computed from an older snapshot at any time, even while a writer changes the
+    //      definitions it was computed from, and values a writer computes from working are tagged with versions
+    //      above the published one, which readers of older snapshots never use
+    //  - none of the maps are exposed to clients, and their mutable values are also never exposed to
+    //      clients (cached recipient sets are copied on the way in and out)
+    //  - materializedMap is only updated inside updateMap, using evaluateMaterialized and containsMaterialized,
+    //      which never start other threads, so no other thread needs the monitor to finish the update
+    //  - pool, forks and runByCaller are threadsafe datatypes; a forked evaluation is run exactly once, by
+    //      whichever of a pool worker and the thread that forked it first claims it with an AtomicBoolean
+    //  - the tasks that parse the statements of a bulk load on pool each write their own range of an array that
+    //      is only read after pool.invoke() returns, once all of them are done
+    //  - a Transaction is only read or written while holding the monitor, so the evaluations forked from one
+    //      call to evaluate() can all record their changes in it
+    //  - journal is volatile, and a change recorded in it is started with journal.startChange() before taking
+    //      writer or the monitor, and recorded before journal.finishChange(), so a checkpoint of the journal
+    //      never happens in the middle of a change
+    //  - iterators returned by evaluateSorted only hold sorted copies of recipients and expressions, which are
+    //      immutable, so they never read this context after they are returned
+
+    // A cached value computed from the snapshot with the given version
+    private static final class Versioned<T> {
+        private final T value;
+        private final long version;
+
+        private Versioned(T value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    // A definition and its compiled program
+    private static final class Compiled {
+        private final ListExpression source;
+        private final Program program;
+
+        private Compiled(ListExpression source, Program program) {
+            this.source = source;
+            this.program = program;
+        }
+    }
 
     /**
-     * Public SequentialContext constructor.
+     * Undo log of one evaluation: the definition and direct dependencies, before the evaluation started, of
+     * every listname whose definition or dependencies it changed, so that a failed evaluation can restore just
+     * those listnames.
+     */
+    static final class Transaction {
+        private final Map<ListName, ListExpression> expressions = new HashMap<>();
+        private final Map<ListName, Set<ListName>> children = new HashMap<>();
+
+        // AF(expressions, children) = the listnames that are keys of children, each of which was defined as
+        //                              expressions.get(l) (or not defined if null) and directly depended on
+        //                              children.get(l) (or wasn't in the dependency graph at all if null)
+        //
+        // RI:
+        //  - expressions.keySet().equals(children.keySet())
+        //  - if children.get(l) is null, then so is expressions.get(l)
+        //
+        // SRE:
+        //  - all fields are private and final, and the sets in children are copies
+        //
+        // TSA:
+        //  - only read or written by a Context while it holds its monitor
+    }
+
+    /**
+     * Public SequentialContext constructor. Recipients of list names are computed when they are evaluated,
+     * and subexpressions of parallels are evaluated on a ForkJoinPool shared by all such contexts.
      */
     public Context() {
+        this(false);
+    }
+
+    /**
+     * Public SequentialContext constructor.
+     *
+     * @param materialized if true, keep the recipients of every list name whose definition doesn't define
+     *                     other list names materialized, updating them by the recipients added and removed
+     *                     each time a definition changes, so that evaluating a list name only copies its
+     *                     recipients. Favors contexts that are evaluated much more often than they are edited.
+     */
+    public Context(boolean materialized) {
+        this(materialized, DEFAULT_POOL);
+    }
+
+    /**
+     * Public SequentialContext constructor.
+     *
+     * @param materialized as defined by Context(boolean)
+     * @param pool pool on which the subexpressions of parallels are evaluated; the thread evaluating
+     *             a parallel evaluates its other subexpression itself, and then runs the forked one too
+     *             if no worker of pool has started it yet
+     */
+    public Context(boolean materialized, ForkJoinPool pool) {
+        this(materialized, pool, DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Public SequentialContext constructor.
+     *
+     * @param materialized as defined by Context(boolean)
+     * @param pool as defined by Context(boolean, ForkJoinPool)
+     * @param parallelThreshold operands of the same operator that don't define any list names are evaluated
+     *                          on pool at the same time if their estimated cost is at least parallelThreshold,
+     *                          where the cost of an expression is roughly the number of subexpressions and
+     *                          recipients it takes to evaluate it; Long.MAX_VALUE to evaluate them one by one
+     */
+    public Context(boolean materialized, ForkJoinPool pool, long parallelThreshold) {
+        this.materialized = materialized;
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
         checkRep();
     }
     
     // check representation invariant
     private synchronized void checkRep() {
-        for (ListName l : expressionMap.keySet()) {
-            assert childMap.containsKey(l); 
-        }
-        for (ListName l : childMap.keySet()) {
-            for (ListName child : childMap.get(l)) {
-                assert childMap.containsKey(child);
+        assert snapshot.getVersion() <= working.getVersion();
+        working.forEachDefinition((l, expr) -> {
+            assert working.getChildren(l) != null;
+        });
+        working.forEachChildren((l, children) -> {
+            for (ListName child : children) {
+                assert working.getChildren(child) != null;
+                assert parentMap.get(child).contains(l);
+                assert child.equals(l) || order.get(child) < order.get(l);
             }
+        });
+        assert order.size() == parentMap.size() && new HashSet<>(order.values()).size() == order.size();
+        for (long number : order.values()) {
+            assert lowestOrder < number && number <= highestOrder;
+        }
+        assert materialized || materializedMap.isEmpty();
+        for (ListName l : materializedMap.keySet()) {
+            assert materializedMap.keySet().containsAll(working.getChildren(l));
+        }
+    }
+
+    // check the part of the representation invariant that a new definition of listname can break; checking
+    // all of it after every definition would make a sequence of n definitions take quadratic time
+    private synchronized void checkRep(ListName listname) {
+        assert working.isDefined(listname);
+        for (ListName child : working.getChildren(listname)) {
+            assert working.getChildren(child) != null;
+            assert parentMap.get(child).contains(listname);
+            assert child.equals(listname) || order.get(child) < order.get(listname);
+        }
+        for (ListName parent : parentMap.get(listname)) {
+            assert working.getChildren(parent).contains(listname);
+            assert parent.equals(listname) || order.get(listname) < order.get(parent);
+        }
+        assert materialized || materializedMap.isEmpty();
+        if (materializedMap.containsKey(listname)) {
+            assert materializedMap.keySet().containsAll(working.getChildren(listname));
         }
     }
 
@@ -56,130 +265,860 @@ public class Context {
      * Get the list expression that listname is currently defined as.
      *
      * @param listname listname to get the expression for
-     * @return expression corresponding to the listname
+     * @return expression corresponding to the listname, with the previous definitions of listnames that were
+     *          redefined in terms of themselves in place of the listnames
      */
-    public synchronized ListExpression getRelevantExpression(ListName listname) {
-        if (expressionMap.containsKey(listname)) {
-            return expressionMap.get(listname);
-        } else {
-            return new Empty();
+    public ListExpression getRelevantExpression(ListName listname) {
+        return snapshot.getRelevantExpression(listname);
+    }
+
+    /**
+     * Get the latest version of the definitions of this context. The snapshot doesn't change when listnames
+     * are defined later, so everything read from it is consistent.
+     *
+     * @return the definitions of this context as of the last completed definition
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the version of the latest snapshot of this context, as defined by Snapshot.getVersion()
+     */
+    public long getVersion() {
+        return snapshot.getVersion();
+    }
+
+    // Get the definitions with the changes of the writer in progress, which only that writer reads
+    synchronized Snapshot getWorking() {
+        return working;
+    }
+
+    // Make the writer's changes visible to readers
+    private synchronized void publish() {
+        snapshot = working;
+    }
+
+    /**
+     * Get an expression that evaluates to the recipients of listname's current definition even after listname
+     * is redefined, to use in place of listname in a definition of listname in terms of itself. If the current
+     * definition isn't a single recipient or listname, it moves to a new prior version of listname, along with
+     * its dependencies and known recipients, so that it is neither copied nor evaluated. The prior version is
+     * only published to readers along with the definition that uses it.
+     *
+     * @param listname listname about to be redefined
+     * @param transaction undo log to record the new prior version in, or null
+     * @return the current definition of listname if it has no operands, or a new prior version of listname
+     */
+    synchronized ListExpression getPriorVersion(ListName listname, Transaction transaction) {
+        final ListExpression expr = working.getDefinition(listname);
+        if (expr.getOperands().isEmpty()) {
+            return expr;
+        }
+        final ListName version = listname.getPriorVersion(versions++);
+        record(transaction, version);
+        working = working.withDefinition(version, expr).withChildren(version, Set.of())
+                .withChanged(version, working.getChanged(listname));
+        parentMap.put(version, new HashSet<>());
+        order.put(version, ++highestOrder);     // after its children, so this can't make a loop
+        setChildren(version, new HashSet<>(working.getChildren(listname)));
+        for (Map<ListName, ?> cache : List.of(resultCache, materializedMap, costCache, programCache)) {
+            copyEntry(cache, listname, version);
+        }
+        checkRep(version);
+        return version;
+    }
+
+    // Copy the value of a key to another key of a map, if it has one
+    private static <V> void copyEntry(Map<ListName, V> map, ListName from, ListName to) {
+        if (map.containsKey(from)) {
+            map.put(to, map.get(from));
+        }
+    }
+
+    // Remove the prior versions of listnames that are no longer used by any definition, starting from some
+    // listnames that were just unused
+    private synchronized void removeUnusedVersions(Collection<ListName> unused, Transaction transaction) {
+        final Deque<ListName> toVisit = new ArrayDeque<>(unused);
+        while (!toVisit.isEmpty()) {
+            final ListName current = toVisit.pop();
+            if (current.getVersion() < 0 || !parentMap.containsKey(current) || !parentMap.get(current).isEmpty()) {
+                continue;
+            }
+            record(transaction, current);
+            final Set<ListName> children = working.getChildren(current);
+            setChildren(current, new HashSet<>());
+            working = working.withDefinition(current, null).withoutNode(current);
+            parentMap.remove(current);
+            order.remove(current);
+            resultCache.remove(current);
+            materializedMap.remove(current);
+            costCache.remove(current);
+            programCache.remove(current);
+            toVisit.addAll(children);
         }
     }
 
     /**
      * Update the list expression for an already defined listname, or add a definition for a listname
-     * that has not been defined yet.
+     * that has not been defined yet, and publish the result as a new snapshot.
      *
      * @param listname to update or add the definition for
      * @param expr     the new list expression definition of listname
      * @throws MailLoopException if there is a mailing loop introduced by evaluating the expression
      */
-    public synchronized void updateMap(ListName listname, ListExpression expr) throws MailLoopException {
-        // add to childMap
-        if (!childMap.containsKey(listname)) {
-            childMap.put(listname, new HashSet<>());
+    public void updateMap(ListName listname, ListExpression expr) throws MailLoopException {
+        final Journal log = journal;
+        if (log != null) {
+            log.startChange();
+        }
+        writer.lock();
+        try {
+            final Transaction transaction = new Transaction();
+            updateMap(listname, expr, transaction);
+            if (log != null) {
+                try {
+                    log.appendUpdate(listname, expr);
+                } catch (IOException e) {
+                    rollback(transaction);
+                    throw new UncheckedIOException(e);
+                }
+            }
+            publish();
+        } finally {
+            writer.unlock();
+            if (log != null) {
+                log.finishChange();
+            }
         }
+    }
 
-        Set<ListName> previousChildren = new HashSet<>(childMap.get(listname)); // copy and store previous children
-        List<ListName> childAdded = new ArrayList<>();                          // in case we need to revert
+    // Check whether transaction recorded any change, which evaluations that read a listname defining other
+    // listnames may not
+    private synchronized boolean isChanged(Transaction transaction) {
+        return !transaction.children.isEmpty();
+    }
 
-        Set<ListName> allListNamesInExpression = expr.getAllListNames();
-        if (allListNamesInExpression.contains(listname)) {
-            childMap.get(listname).addAll(allListNamesInExpression);
-        } else {
-            childMap.put(listname, allListNamesInExpression);
+    /**
+     * Record the changes made to the definitions of this context in journal from now on, or stop recording
+     * them if journal is null.
+     *
+     * @param journal journal to record changes in, or null
+     */
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Update the definition of listname as updateMap(ListName, ListExpression) does, recording the state of the
+     * listnames it changes in transaction first, but only in the definitions being changed by the current
+     * writer, which publishes them once it is done.
+     *
+     * @param listname to update or add the definition for
+     * @param expr     the new list expression definition of listname
+     * @param transaction undo log to record the changes in, or null
+     * @throws MailLoopException if there is a mailing loop introduced by evaluating the expression
+     */
+    synchronized void updateMap(ListName listname, ListExpression expr, Transaction transaction)
+            throws MailLoopException {
+        final long version = working.getVersion() + 1;
+        define(listname, expr, transaction, version);
+        working = working.withVersion(version);
+    }
+
+    // Change the definition of listname in working as updateMap() does, as part of the given version, without
+    // publishing it
+    private synchronized void define(ListName listname, ListExpression expr, Transaction transaction, long version)
+            throws MailLoopException {
+        record(transaction, listname);
+        // add to the dependency graph
+        if (working.getChildren(listname) == null) {
+            addNode(listname, false);
         }
 
-        // add nodes in childMap for list names in allListNamesInExpression that don't exist yet
+        Set<ListName> previousChildren = new HashSet<>(working.getChildren(listname)); // copy and store previous children
+        List<ListName> childAdded = new ArrayList<>();                          // in case we need to revert
+
+        Set<ListName> allListNamesInExpression = new HashSet<>(expr.getAllListNames());
+        // add nodes to the dependency graph for list names in allListNamesInExpression that don't exist yet
         for (ListName l : allListNamesInExpression) {
-            if (!childMap.containsKey(l)) {
-                childMap.put(l, new HashSet<>());       // no children yet
+            if (working.getChildren(l) == null) {
+                record(transaction, l);
+                addNode(l, true);       // no children yet
                 childAdded.add(l);
             }
         }
 
+        if (allListNamesInExpression.contains(listname)) {
+            allListNamesInExpression.addAll(previousChildren);
+        }
+
         // check for mail loop
-        if (findLoop(listname)) {                       // revert back to previous context state
-            childMap.put(listname, previousChildren);
+        if (!setChildren(listname, allListNamesInExpression)) {     // revert back to previous context state
             for (ListName child : childAdded) {
-                childMap.remove(child);
+                working = working.withoutNode(child);
+                parentMap.remove(child);
+                order.remove(child);
+                materializedMap.remove(child);
             }
             throw new MailLoopException("Mailing list expression has a loop.");
         } else {
-            expressionMap.put(listname, expr);
+            assignIds(expr);
+            working = working.withDefinition(listname, expr);
+            programCache.remove(listname);
+            invalidate(listname, version);
+            if (materialized) {
+                propagate(listname);
+            }
+            removeUnusedVersions(previousChildren, transaction);
         }
+        checkRep(listname);
+    }
+
+    // Give each recipient of expr an id in RecipientDictionary, since expr is about to be stored in working;
+    // recipients that only appear in queries never get one (see RecipientSet)
+    private static void assignIds(ListExpression expr) {
+        Traversal.<Void>fold(expr, (node, operands) -> {
+            if (node instanceof Recipient) {
+                RecipientDictionary.idOf(((Recipient) node).getRecipient());
+            }
+            return null;
+        });
+    }
+
+    // Remember the definition and direct dependencies of listname in transaction, unless it is null or
+    // already has them; called before each change to them, so that the first one recorded is the original
+    private synchronized void record(Transaction transaction, ListName listname) {
+        if (transaction == null || transaction.children.containsKey(listname)) {
+            return;
+        }
+        final Set<ListName> children = working.getChildren(listname);
+        transaction.expressions.put(listname, working.isDefined(listname) ? working.getDefinition(listname) : null);
+        transaction.children.put(listname, children == null ? null : new HashSet<>(children));
+    }
+
+    // Restore the definitions and dependencies recorded in transaction, dropping the listnames that weren't in
+    // the dependency graph before, and everything cached about the restored listnames and their dependents,
+    // and publish the result, which has the same definitions as the last published snapshot
+    private synchronized void rollback(Transaction transaction) {
+        final Map<ListName, Set<ListName>> previousChildren = transaction.children;
+        final long version = working.getVersion() + 1;
+        for (ListName l : previousChildren.keySet()) {            // prior versions removed by the transaction
+            if (previousChildren.get(l) != null && working.getChildren(l) == null) {
+                working = working.withChildren(l, new HashSet<>());
+                parentMap.put(l, new HashSet<>());
+                order.put(l, ++highestOrder);
+            }
+        }
+        // drop all of the edges of the restored listnames before adding back the old ones, so that the graph
+        // is always a subgraph of the acyclic one from before the transaction, and adding an edge can't fail
+        for (ListName l : previousChildren.keySet()) {
+            working = working.withDefinition(l, transaction.expressions.get(l));
+            if (working.getChildren(l) != null) {
+                setChildren(l, new HashSet<>());
+            }
+            materializedMap.remove(l);
+            programCache.remove(l);
+        }
+        for (ListName l : previousChildren.keySet()) {
+            if (previousChildren.get(l) != null) {
+                setChildren(l, new HashSet<>(previousChildren.get(l)));
+            }
+        }
+        for (ListName l : previousChildren.keySet()) {
+            if (previousChildren.get(l) == null) {
+                // recipients cached for l while it was in the graph must not be used again
+                working = working.withoutNode(l).withChanged(l, version);
+                parentMap.remove(l);
+                order.remove(l);
+                resultCache.remove(l);
+                costCache.remove(l);
+                dependencyCache.remove(l);
+            } else {
+                invalidate(l, version);
+            }
+        }
+        // every listname that depended on a restored listname is recomputed from scratch, since its
+        // materialized recipients no longer match its children; the order doesn't matter, since a listname
+        // is visited again by propagate() for each of the restored listnames it depends on
+        if (materialized) {
+            for (ListName l : previousChildren.keySet()) {
+                if (previousChildren.get(l) != null) {
+                    propagate(l);
+                }
+            }
+        }
+        working = working.withVersion(version);
+        publish();
         checkRep();
     }
 
+    // Add listname to the dependency graph with no edges, first in order if it is about to be used by another
+    // listname, or last if it is about to be defined, so that neither makes order need fixing
+    private synchronized void addNode(ListName listname, boolean used) {
+        working = working.withChildren(listname, new HashSet<>());
+        parentMap.put(listname, new HashSet<>());
+        order.put(listname, used ? lowestOrder-- : ++highestOrder);
+        if (materialized) {
+            materializedMap.put(listname, new RecipientSet());     // not defined yet, so no recipients
+        }
+    }
+
+    // Bring materializedMap up to date after the definition of listname changed. Each listname that
+    // transitively depends on listname is visited in topological order; if it was materialized and only
+    // some recipients of its children changed, only those recipients are checked against its definition,
+    // otherwise its recipients are computed from scratch, or it stops being materialized if its definition
+    // defines other list names or depends on a list name that isn't materialized.
+    private synchronized void propagate(ListName listname) {
+        final Map<ListName, Set<String>> changed = new HashMap<>(); // recipients added or removed, per listname
+        final Set<ListName> recomputed = new HashSet<>();           // listnames whose changes weren't tracked
+        for (ListName current : getDependentsInTopologicalOrder(listname)) {
+            final ListExpression expr = working.getDefinition(current);
+            final Set<String> previous = materializedMap.remove(current);
+            if (!expr.getDefinedListNames().isEmpty()
+                    || !materializedMap.keySet().containsAll(working.getChildren(current))) {
+                recomputed.add(current);
+                continue;
+            }
+            final Set<ListName> children = working.getChildren(current);
+            if (previous == null || !Collections.disjoint(children, recomputed)) {
+                materializedMap.put(current, expr.evaluateMaterialized(this));
+                recomputed.add(current);
+                continue;
+            }
+            final Set<String> delta = new RecipientSet();
+            if (current.equals(listname)) {
+                final Set<String> recipients = expr.evaluateMaterialized(this);
+                for (String recipient : recipients) {
+                    if (!previous.contains(recipient)) {
+                        delta.add(recipient);
+                    }
+                }
+                for (String recipient : previous) {
+                    if (!recipients.contains(recipient)) {
+                        delta.add(recipient);
+                    }
+                }
+                materializedMap.put(current, recipients);
+                changed.put(current, delta);
+                continue;
+            }
+            for (ListName child : children) {
+                for (String recipient : changed.getOrDefault(child, Set.of())) {
+                    if (previous.contains(recipient) != expr.containsMaterialized(this, recipient)) {
+                        delta.add(recipient);
+                    }
+                }
+            }
+            for (String recipient : delta) {
+                if (!previous.remove(recipient)) {
+                    previous.add(recipient);
+                }
+            }
+            materializedMap.put(current, previous);
+            changed.put(current, delta);
+        }
+    }
+
+    // Get listname and every listname that transitively depends on it, each after all of its children
+    private synchronized List<ListName> getDependentsInTopologicalOrder(ListName listname) {
+        final List<ListName> dependents = new ArrayList<>(List.of(listname));
+        final Set<ListName> visited = new HashSet<>(dependents);
+        for (int i = 0; i < dependents.size(); i++) {
+            for (ListName parent : parentMap.get(dependents.get(i))) {
+                if (visited.add(parent)) {
+                    dependents.add(parent);
+                }
+            }
+        }
+        dependents.sort(Comparator.comparing(order::get));
+        return dependents;
+    }
+
+    /**
+     * Get the recipients of listname kept by a materialized context.
+     *
+     * @param listname listname to get the recipients of
+     * @return a new set of the recipients of listname's current definition, or an empty set if
+     *         listname's recipients are not materialized
+     */
+    public synchronized Set<String> getMaterialized(ListName listname) {
+        return new RecipientSet(materializedMap.getOrDefault(listname, Set.of()));
+    }
+
     /**
-     * Find a mailing loop if it exists in the currently evaluated expressions.
+     * Check whether recipient is one of the recipients of listname kept by a materialized context.
      *
-     * @param listname listname to find loop for
-     * @return true if there is a loop, false otherwise
+     * @param listname listname to check
+     * @param recipient recipient to look for
+     * @return true if listname's recipients are materialized and include recipient, false otherwise
      */
-    private synchronized boolean findLoop(ListName listname) {
-        Set<ListName> visited = new HashSet<>();
-        for (ListName child : childMap.get(listname)) {
-            if (child.equals(listname)) {
-                continue;       // listname is redefined with itself, which is ok
+    public synchronized boolean containsMaterialized(ListName listname, String recipient) {
+        return materializedMap.getOrDefault(listname, Set.of()).contains(recipient);
+    }
+
+    // Replace the direct dependencies of listname in working, keeping parentMap the reverse of them and order
+    // topological; if that would make a listname transitively depend on itself (other than listname directly
+    // depending on itself, which a recursive redefinition does), leave them unchanged and return false
+    private synchronized boolean setChildren(ListName listname, Set<ListName> children) {
+        final Set<ListName> previous = working.getChildren(listname);
+        for (ListName child : previous) {
+            if (!children.contains(child)) {
+                parentMap.get(child).remove(listname);
+            }
+        }
+        final List<ListName> added = new ArrayList<>();
+        for (ListName child : children) {
+            if (previous.contains(child)) {
+                continue;
+            } else if (!addToOrder(listname, child)) {
+                for (ListName l : added) {
+                    parentMap.get(l).remove(listname);
+                }
+                for (ListName l : previous) {       // these edges were in the graph already, so can't fail
+                    if (!children.contains(l) && addToOrder(listname, l)) {
+                        parentMap.get(l).add(listname);
+                    }
+                }
+                return false;
+            }
+            parentMap.get(child).add(listname);
+            added.add(child);
+        }
+        working = working.withChildren(listname, children);
+        return true;
+    }
+
+    // Fix order before listname starts to directly depend on child, as in Pearce and Kelly's dynamic topological
+    // sort: if child comes after listname, only the listnames numbered between them can end up out of order, so
+    // the dependents of listname and the dependencies of child in that range are found, and given the same
+    // numbers again, the dependencies first. This takes time proportional to those listnames and their edges,
+    // rather than to the whole graph, and none at all for most edges. Returns false, without changing order, if
+    // child transitively depends on listname, so that the edge would make a mailing loop.
+    private synchronized boolean addToOrder(ListName listname, ListName child) {
+        final long lower = order.get(listname);
+        final long upper = order.get(child);
+        if (upper <= lower) {
+            return true;
+        }
+        final List<ListName> dependents = new ArrayList<>(List.of(listname));
+        final Set<ListName> visited = new HashSet<>(dependents);
+        for (int i = 0; i < dependents.size(); i++) {
+            for (ListName parent : parentMap.get(dependents.get(i))) {
+                if (parent.equals(child)) {
+                    return false;
+                } else if (order.get(parent) < upper && visited.add(parent)) {
+                    dependents.add(parent);
+                }
             }
-            if (findLoopHelper(listname, child, visited)) {
-                return true;
+        }
+        final List<ListName> dependencies = new ArrayList<>(List.of(child));
+        visited.add(child);
+        for (int i = 0; i < dependencies.size(); i++) {
+            for (ListName grandchild : working.getChildren(dependencies.get(i))) {
+                if (order.get(grandchild) > lower && visited.add(grandchild)) {
+                    dependencies.add(grandchild);
+                }
             }
+        }
+        final Comparator<ListName> byOrder = Comparator.comparing(order::get);
+        dependents.sort(byOrder);
+        dependencies.sort(byOrder);
+        final List<Long> numbers = new ArrayList<>();
+        for (ListName l : dependencies) {
+            numbers.add(order.get(l));
+        }
+        for (ListName l : dependents) {
+            numbers.add(order.get(l));
+        }
+        Collections.sort(numbers);
+        int i = 0;
+        for (ListName l : dependencies) {
+            order.put(l, numbers.get(i++));
+        }
+        for (ListName l : dependents) {
+            order.put(l, numbers.get(i++));
+        }
+        return true;
+    }
 
+    // Mark listname and every listname that transitively depends on it as changed at version, so that their
+    // cached recipients and costs are no longer used by snapshots from that version on, and drop them
+    private synchronized void invalidate(ListName listname, long version) {
+        final Deque<ListName> toVisit = new ArrayDeque<>(List.of(listname));
+        final Set<ListName> visited = new HashSet<>();
+        while (!toVisit.isEmpty()) {
+            final ListName current = toVisit.pop();
+            if (visited.add(current)) {
+                working = working.withChanged(current, version);
+                resultCache.remove(current);
+                costCache.remove(current);
+                dependencyCache.remove(current);
+                toVisit.addAll(parentMap.getOrDefault(current, Set.of()));
+            }
         }
-        return false;
     }
 
-    // Helper function for updateMap DFS
-    private synchronized boolean findLoopHelper(ListName root, ListName listname, Set<ListName> visited) {
-        visited.add(listname);
-        for (ListName child : childMap.get(listname)) {
-            if (child.equals(root)) {
-                return true;
-            } else {
-                if (!visited.contains(child)) {
-                    if (findLoopHelper(root, child, visited)) {
-                        return true;
-                    }
+    /**
+     * Evaluate the current definition of listname. The recipients are remembered, and reused by later
+     * calls until listname or any listname it transitively depends on is redefined. Definitions that
+     * themselves define other listnames are evaluated every time, since evaluating them modifies this context.
+     * Unless some definition defines other listnames, the definitions are all read from the latest snapshot;
+     * otherwise listname is evaluated with evaluate(), which records and publishes the definitions it makes.
+     *
+     * @param listname listname to evaluate
+     * @return a new set of the recipients of listname's current definition
+     * @throws EvaluationException if evaluating the definition of listname throws an EvaluationException
+     */
+    public Set<String> evaluateListName(ListName listname) throws EvaluationException {
+        final Snapshot current = snapshot;
+        if (current.getNestedDefinitions() > 0) {
+            return evaluate(listname);
+        }
+        return new Evaluator(this, null, current).evaluate(listname);
+    }
+
+    // Evaluate listname on evaluator's stack, as described by evaluateListName(), in evaluator's snapshot.
+    // Definitions too cheap to be split up on the pool are evaluated by running their compiled program instead
+    // of walking their trees, unless a listname they use defines other listnames, which must be recorded in
+    // evaluator's transaction.
+    void scheduleListName(ListName listname, Evaluator evaluator) throws EvaluationException {
+        final Snapshot current = evaluator.getSnapshot();
+        final Set<String> known = getKnownRecipients(listname, current);
+        if (known != null) {
+            evaluator.returnResult(known);
+            return;
+        }
+        final ListExpression expr = current.getDefinition(listname);
+        final Program program = getProgram(listname, current);
+        if (program == null) {
+            evaluator.returnResultOf(expr);
+            return;
+        }
+        final long cost = estimateCost(listname, current);
+        if (cost >= 0 && cost < parallelThreshold) {
+            final Set<String> result = program.run(this, current);
+            cacheRecipients(listname, result, current);
+            evaluator.returnResult(result);
+            return;
+        }
+        evaluator.evaluateThen(List.of(expr), results -> {
+            // a writer's evaluator may have read later definitions than current's
+            if (evaluator.getSnapshot() == current) {
+                cacheRecipients(listname, results.get(0), current);
+            }
+            evaluator.returnResult(results.get(0));
+        });
+    }
+
+    // Remember a copy of the recipients of listname, computed entirely from the given snapshot, unless
+    // recipients computed from a later snapshot are already remembered
+    void cacheRecipients(ListName listname, Set<String> recipients, Snapshot from) {
+        final Versioned<Set<String>> entry = new Versioned<>(new RecipientSet(recipients), from.getVersion());
+        resultCache.merge(listname, entry, (old, latest) -> old.version > latest.version ? old : latest);
+    }
+
+    // Get the value of listname in cache if it is valid in the given snapshot, or null
+    private static <T> Versioned<T> lookup(Map<ListName, Versioned<T>> cache, ListName listname, Snapshot in) {
+        final Versioned<T> entry = cache.get(listname);
+        return entry != null && in.getChanged(listname) <= entry.version && entry.version <= in.getVersion()
+                ? entry
+                : null;
+    }
+
+    /**
+     * Get the current definition of listname compiled by Compiler.compile(). Programs are compiled the first
+     * time they are needed, and reused until listname is redefined.
+     *
+     * @param listname listname to get the program of
+     * @return the compiled program of listname's current definition, or null if it defines other listnames
+     */
+    public Program getProgram(ListName listname) {
+        return getProgram(listname, snapshot);
+    }
+
+    // Get the definition of listname in the given snapshot compiled, as defined by getProgram(ListName)
+    Program getProgram(ListName listname, Snapshot in) {
+        final ListExpression expr = in.getDefinition(listname);
+        final Compiled compiled = programCache.get(listname);
+        if (compiled != null && compiled.source == expr) {
+            return compiled.program;
+        }
+        final Program program = expr.getDefinedListNames().isEmpty() ? Compiler.compile(expr) : null;
+        programCache.put(listname, new Compiled(expr, program));
+        return program;
+    }
+
+    // Get a new set of the recipients of listname in the given snapshot that this context already knows, because
+    // they are materialized or cached, or null if they would have to be evaluated
+    Set<String> getKnownRecipients(ListName listname, Snapshot in) {
+        final Set<String> known = peekKnownRecipients(listname, in);
+        return known == null ? null : new RecipientSet(known);
+    }
+
+    // Get the recipients of listname that getKnownRecipients() would copy
+    private Set<String> peekKnownRecipients(ListName listname, Snapshot in) {
+        if (materialized) {
+            synchronized (this) {
+                if (working == in && materializedMap.containsKey(listname)) {
+                    return materializedMap.get(listname);
                 }
             }
         }
-        return false;
+        final Versioned<Set<String>> cached = lookup(resultCache, listname, in);
+        return cached == null ? null : cached.value;
+    }
+
+    // A subexpression of a parallel, evaluated by whichever thread claims it first
+    private final class ForkedEvaluation extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ListExpression expr;
+        private final Evaluator evaluator;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private Set<String> result;
+        private EvaluationException failure;
+
+        private ForkedEvaluation(ListExpression expr, Evaluator evaluator) {
+            this.expr = expr;
+            this.evaluator = evaluator;
+        }
+
+        @Override
+        protected void compute() {
+            if (claimed.compareAndSet(false, true)) {
+                run();
+            }
+        }
+
+        private void run() {
+            try {
+                result = evaluator.evaluate(expr);
+            } catch (EvaluationException e) {
+                failure = e;
+            }
+        }
     }
 
     /**
-     * Get the listnames that listname depends on.
+     * Start evaluating a subexpression of a parallel on this context's pool.
      *
-     * @param listname listname to get dependencies for
-     * @return set of listnames that listname depends on
+     * @param expr expression to evaluate in this context
+     * @param evaluator new evaluator to evaluate expr with, which is then confined to the thread that runs it
+     * @return the started evaluation, to pass to joinEvaluation()
+     */
+    ForkJoinTask<?> forkEvaluation(ListExpression expr, Evaluator evaluator) {
+        final ForkedEvaluation task = new ForkedEvaluation(expr, evaluator);
+        forks.incrementAndGet();
+        if (ForkJoinTask.getPool() == pool) {
+            task.fork();                // a worker of pool queues it locally, where other workers can steal it
+        } else {
+            pool.execute(task);
+        }
+        return task;
+    }
+
+    /**
+     * Finish an evaluation started by forkEvaluation() on the calling thread, which must be the thread that
+     * started it. If no worker has claimed it yet, the calling thread evaluates it itself; otherwise it
+     * waits for the worker, helping with other tasks of the pool if it is a worker of the pool itself.
+     *
+     * @param task evaluation returned by forkEvaluation()
+     * @return the recipients of the forked expression
+     * @throws EvaluationException if evaluating the forked expression threw an EvaluationException
+     */
+    Set<String> joinEvaluation(ForkJoinTask<?> task) throws EvaluationException {
+        final ForkedEvaluation evaluation = (ForkedEvaluation) task;
+        if (evaluation.claimed.compareAndSet(false, true)) {
+            runByCaller.incrementAndGet();
+            evaluation.run();
+        } else {
+            evaluation.join();
+        }
+        if (evaluation.failure != null) {
+            throw evaluation.failure;
+        }
+        return evaluation.result;
+    }
+
+    /**
+     * Give up an evaluation started by forkEvaluation(), on the thread that started it: if no worker has
+     * claimed it yet it is never run, and otherwise the calling thread waits for the worker to finish it, so
+     * that the changes it makes to this context can be rolled back. Its result or failure is discarded.
+     *
+     * @param task evaluation returned by forkEvaluation()
+     */
+    void cancelEvaluation(ForkJoinTask<?> task) {
+        final ForkedEvaluation evaluation = (ForkedEvaluation) task;
+        if (!evaluation.claimed.compareAndSet(false, true)) {
+            evaluation.quietlyJoin();
+        }
+    }
+
+    /**
+     * @return the cost at which operands that don't define any list names are evaluated on this context's pool,
+     *         as defined by Context(boolean, ForkJoinPool, long)
+     */
+    long getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Estimate the cost of evaluating listname: the number of its recipients if they are cached or materialized,
+     * or else the number of subexpressions in its definition plus the estimated costs of the listnames it uses.
+     *
+     * @param listname listname to estimate
+     * @param in snapshot whose definitions are estimated
+     * @return the estimated cost of evaluating listname, at least 1, or -1 if evaluating it defines listnames
      */
-    public synchronized Set<ListName> getDependencies(ListName listname) {
-        Set<ListName> dependencies = new HashSet<>();
-        if (!childMap.containsKey(listname)) {
-            return dependencies;
+    long estimateCost(ListName listname, Snapshot in) {
+        final Set<String> known = peekKnownRecipients(listname, in);
+        if (known != null) {
+            return Math.max(1, known.size());
         }
-        for (ListName dependency : childMap.get(listname)) {
-            getDependenciesHelper(dependency, dependencies);
+        // find the cost of listname and its dependencies, each after all of its children
+        final Map<ListName, Long> costs = new HashMap<>();
+        final Deque<ListName> toVisit = new ArrayDeque<>(List.of(listname));
+        while (!toVisit.isEmpty()) {
+            final ListName current = toVisit.peek();
+            if (costs.containsKey(current)) {
+                toVisit.pop();
+                continue;
+            }
+            final Versioned<Long> cached = lookup(costCache, current, in);
+            if (cached != null) {
+                costs.put(current, cached.value);
+                toVisit.pop();
+                continue;
+            }
+            final Set<ListName> children = in.getChildren(current) == null ? Set.of() : in.getChildren(current);
+            final List<ListName> missing = new ArrayList<>();
+            for (ListName child : children) {
+                if (!child.equals(current) && !costs.containsKey(child)) {
+                    missing.add(child);
+                }
+            }
+            if (!missing.isEmpty()) {
+                for (ListName child : missing) {
+                    toVisit.push(child);
+                }
+                continue;
+            }
+            toVisit.pop();
+            final ListExpression expr = in.getDefinition(current);
+            long cost = -1;
+            if (expr.getDefinedListNames().isEmpty()) {
+                cost = Traversal.<Long>fold(expr, (node, operands) -> 1 + operands.stream().mapToLong(x -> x).sum());
+                for (ListName child : children) {
+                    final long childCost = child.equals(current) ? 0 : costs.get(child);
+                    if (childCost < 0) {
+                        cost = -1;
+                        break;
+                    }
+                    cost = Math.min(cost + childCost, Long.MAX_VALUE / 2);     // sharing can make it blow up
+                }
+            }
+            costs.put(current, cost);
+            costCache.merge(current, new Versioned<>(cost, in.getVersion()),
+                    (old, latest) -> old.version > latest.version ? old : latest);
         }
-        return dependencies;
+        return costs.get(listname);
+    }
+
+    /**
+     * Get statistics about the evaluation of parallels in this context.
+     *
+     * @return a map from statistic names to values:
+     *         "forks": number of subexpressions started on the pool by this context (subexpressions of
+     *         parallels, and independent operands whose estimated cost reached the parallel threshold),
+     *         "runByCaller": how many of those the thread that started them ended up evaluating itself,
+     *         "parallelism", "poolSize", "activeThreads", "steals" and "queuedTasks": the pool's current
+     *         target parallelism, number of worker threads, number of busy workers, total number of tasks
+     *         stolen between workers, and number of tasks waiting (shared with other users of the pool)
+     */
+    public Map<String, Long> getParallelStats() {
+        final Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("forks", forks.get());
+        stats.put("runByCaller", runByCaller.get());
+        stats.put("parallelism", (long) pool.getParallelism());
+        stats.put("poolSize", (long) pool.getPoolSize());
+        stats.put("activeThreads", (long) pool.getActiveThreadCount());
+        stats.put("steals", pool.getStealCount());
+        stats.put("queuedTasks", pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount());
+        return stats;
+    }
+
+    /**
+     * @return the pool on which this context runs parallel work, for loaders that split their input up on it
+     */
+    ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Get the listnames that listname depends on, in the latest snapshot. The set is computed the first time
+     * it is needed, and reused until listname or a listname it depends on is redefined, so checking whether
+     * listname depends on another listname usually takes constant time.
+     *
+     * @param listname listname to get dependencies for
+     * @return unmodifiable set of listnames that listname depends on, directly or through its previous
+     *         definitions
+     */
+    public Set<ListName> getDependencies(ListName listname) {
+        return getDependencies(listname, snapshot);
     }
 
-    // Helper method for getDependencies
-    private synchronized void getDependenciesHelper(ListName listname, Set<ListName> visited) {
-        visited.add(listname);
-        for (ListName child : childMap.get(listname)) {
-            if (!visited.contains(child)) {
-                getDependenciesHelper(child, visited);
+    /**
+     * Get the listnames that listname depends on in a given snapshot, as getDependencies(ListName) does. The
+     * dependencies of listnames it depends on whose dependencies are already known are added without visiting
+     * them again.
+     *
+     * @param listname listname to get dependencies for
+     * @param in snapshot to read the dependency graph from
+     * @return unmodifiable set of listnames that listname depends on in snapshot in
+     */
+    Set<ListName> getDependencies(ListName listname, Snapshot in) {
+        final Versioned<Set<ListName>> cached = lookup(dependencyCache, listname, in);
+        if (cached != null) {
+            return cached.value;
+        }
+        final Set<ListName> dependencies = new HashSet<>();
+        final Set<ListName> visited = new HashSet<>();
+        final Deque<ListName> toVisit = new ArrayDeque<>(in.getChildren(listname) == null
+                ? Set.of()
+                : in.getChildren(listname));
+        while (!toVisit.isEmpty()) {
+            final ListName current = toVisit.pop();
+            if (!visited.add(current)) {
+                continue;
+            } else if (current.getVersion() < 0) {
+                dependencies.add(current);
+            }
+            final Versioned<Set<ListName>> known = lookup(dependencyCache, current, in);
+            if (known != null && !current.equals(listname)) {
+                dependencies.addAll(known.value);
+            } else {
+                toVisit.addAll(in.getChildren(current));
             }
         }
+        final Versioned<Set<ListName>> entry = new Versioned<>(Collections.unmodifiableSet(dependencies),
+                in.getVersion());
+        dependencyCache.merge(listname, entry, (old, latest) -> old.version > latest.version ? old : latest);
+        return entry.value;
     }
 
     /**
      * Returns a set of recipients that expr evaluates to as defined in the spec of the evaluate() method in
      * ListExpression.java. If an EvaluationException occurs while evaluating expr, this method will ensure
      * that the Context object associated with expr will still contain all past succesfully evaluated expressions,
-     * and none of the expressions evaluated in the expression that caused the EvaluationException.
+     * and none of the expressions evaluated in the expression that caused the EvaluationException. Only the
+     * listnames that expr changed are restored, so a failed evaluation costs time proportional to the
+     * definitions it made rather than to the size of this context.
+     * Unless a current definition defines other listnames, expr is optimized with ListExpression.optimize()
+     * before it is evaluated, and if it then doesn't define any listnames either, all of the definitions it
+     * uses are read from the latest snapshot, so definitions made while it is evaluated don't affect it.
+     * Otherwise, expr is evaluated after any other evaluation that defines listnames finishes, and the
+     * definitions it makes are published together once it succeeds.
      * @param expr list expression to evaluate
      * @return set of recipients that expr evaluates to as defined in the spec of the evaluate()
      *      method in ListExpression.java
@@ -187,51 +1126,492 @@ public class Context {
      *      or something wrong with the parallel definition)
      */
     public Set<String> evaluate(ListExpression expr) throws EvaluationException {
-        String prevState = save();
+        final Snapshot current = snapshot;
+        final ListExpression optimized = current.getNestedDefinitions() == 0 ? expr.optimize() : expr;
+        if (current.getNestedDefinitions() == 0 && optimized.getDefinedListNames().isEmpty()) {
+            return new Evaluator(this, null, current).evaluate(optimized);
+        }
+        final Journal log = journal;
+        if (log != null) {
+            log.startChange();
+        }
+        writer.lock();
+        final Transaction transaction = new Transaction();
         try {
-            return expr.evaluate(this);
-        } catch (EvaluationException e) {
-            // If EvaluationException occurs, we load our previous state
-            expressionMap.clear();
-            childMap.clear();
-            try {
-                load(prevState);
-            } catch (UnableToLoadException ex) {
-                throw new AssertionError("Load failed on saved state; load/save not consistent.");
+            final Set<String> recipients = new Evaluator(this, transaction, null).evaluate(optimized);
+            if (isChanged(transaction)) {
+                if (log != null) {
+                    log.appendEvaluation(expr);
+                }
+                publish();
             }
+            return recipients;
+        } catch (EvaluationException e) {
+            // If EvaluationException occurs, we undo the definitions made so far
+            rollback(transaction);
             throw e;
+        } catch (IOException e) {
+            // ... and also if they can't be recorded
+            rollback(transaction);
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.unlock();
+            if (log != null) {
+                log.finishChange();
+            }
+        }
+    }
+
+    /**
+     * Returns an iterator over the recipients that expr evaluates to, as defined in the spec of the evaluate()
+     * method, in increasing order. If expr doesn't define any listnames and no current definition defines
+     * other listnames, expr is optimized and evaluated lazily with a SortedEvaluator, which merges the
+     * recipients of its subexpressions as the iterator is consumed, so they can be output before all of them
+     * have been produced; the list names expr uses are read from the snapshot as of this call. Otherwise, expr is evaluated
+     * with evaluate(), which keeps this context unmodified if an EvaluationException occurs.
+     * @param expr list expression to evaluate
+     * @return iterator over the recipients that expr evaluates to, in increasing order without duplicates
+     * @throws EvaluationException if evaluating expr throws an EvaluationException (i.e. if there's a mail loop
+     *      or something wrong with the parallel definition)
+     */
+    public Iterator<String> evaluateSorted(ListExpression expr) throws EvaluationException {
+        final Snapshot current = snapshot;
+        if (current.getNestedDefinitions() > 0 || !expr.getDefinedListNames().isEmpty()) {
+            return SortedMerge.of(evaluate(expr));
         }
+        return new SortedEvaluator(this, current).stream(expr.optimize());
     }
 
     /**
      * Saves defined listName definitions to a String
      *
-     * @return a String containing all defined ListNames as a parseable expression
+     * @return a String containing all defined ListNames as a parseable expression, where the previous
+     *          definitions of listnames that were redefined in terms of themselves are written out
      */
-    public synchronized String save() {
-        return expressionMap.entrySet().stream().map(
-                entry -> entry.getKey() + "=" + entry.getValue()
-        ).collect(Collectors.joining(";"));
+    public String save() {
+        return snapshot.save();
     }
 
     /**
      * Generates a new Context containing listName definitions to the console
      *
      * @param loader a string containing defined listNames
-     * @throws UnableToLoadException if string is not parseable or cannot be evaluated properly.
+     * @throws UnableToLoadException if string is not parseable or cannot be evaluated properly, in which case
+     *          this context is unmodified
      */
-    public synchronized void load(String loader) throws UnableToLoadException {
+    public void load(String loader) throws UnableToLoadException {
         try {
             ListExpression expr = ListExpression.parse(loader);
-            expr.evaluate(this);
+            evaluate(expr);
         } catch (EvaluationException | IllegalArgumentException e) {
             throw new UnableToLoadException(e);
         }
     }
     
+    /**
+     * Loads many statements at once, with the same effect as load() of the statements each in parentheses and
+     * joined by ';', all or nothing. The statements are parsed in parallel on this context's pool. If every one
+     * of them that defines listnames is a definition of a listname that no other statement defines, whose
+     * expression doesn't define listnames, and no current definition defines listnames either, the definitions
+     * are installed in one step without evaluating them: the current dependency graph, together with the
+     * dependencies of the new definitions, is checked for loops once, by finding its strongly connected
+     * components, and all of the definitions are then published as one new snapshot. Otherwise, or if that
+     * graph has a loop, the statements are evaluated one after the other, as load() evaluates them.
+     *
+     * @param statements list expressions to load, in order
+     * @return a map from statistic names to values:
+     *         "statements": the number of statements,
+     *         "installed": the number of definitions installed in one step, or -1 if the statements were
+     *         evaluated one after the other instead,
+     *         "parseNanos", "checkNanos" and "installNanos": the time taken to parse the statements, to check
+     *         the dependency graph for loops, and to install or evaluate the statements
+     * @throws UnableToLoadException if a statement can't be parsed, or evaluating the statements throws an
+     *         EvaluationException, in which case this context is unmodified
+     */
+    public Map<String, Long> bulkLoad(List<String> statements) throws UnableToLoadException {
+        final long start = System.nanoTime();
+        final ListExpression[] parsed = new ListExpression[statements.size()];
+        try {
+            pool.invoke(new ParseStatements(statements, parsed, 0, parsed.length));
+        } catch (IllegalArgumentException e) {
+            throw new UnableToLoadException(e);
+        }
+        return bulkLoadParsed(Arrays.asList(parsed), System.nanoTime() - start);
+    }
+
+    /**
+     * Loads many statements that are already parsed at once, as bulkLoad() loads them once they are parsed.
+     *
+     * @param statements list expressions to load, in order
+     * @param parseNanos the time taken to parse or build statements, reported as "parseNanos"
+     * @return a map from statistic names to values, as defined by bulkLoad()
+     * @throws UnableToLoadException if evaluating the statements throws an EvaluationException, in which case
+     *         this context is unmodified
+     */
+    Map<String, Long> bulkLoadParsed(List<ListExpression> statements, long parseNanos)
+            throws UnableToLoadException {
+        final Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("statements", (long) statements.size());
+        stats.put("installed", -1L);
+        stats.put("parseNanos", parseNanos);
+        stats.put("checkNanos", 0L);
+        stats.put("installNanos", 0L);
+        loadAll(statements, stats);
+        return stats;
+    }
+
+    // Statements parsed at a time by one task of bulkLoad()
+    private static final int PARSE_GRAIN = 256;
+
+    // Parser of the statements in [from, to) of a bulk load, into the same indexes of parsed
+    private static final class ParseStatements extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> statements;
+        private final ListExpression[] parsed;
+        private final int from;
+        private final int to;
+
+        private ParseStatements(List<String> statements, ListExpression[] parsed, int from, int to) {
+            this.statements = statements;
+            this.parsed = parsed;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARSE_GRAIN) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ParseStatements(statements, parsed, from, middle),
+                        new ParseStatements(statements, parsed, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                try {
+                    parsed[i] = ListExpressionParser.parse(statements.get(i));
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    // Load parsed statements as bulkLoad() does, adding the time taken by each phase to stats. Either way, the
+    // statements are recorded in journal in bounded records, and published together once they are recorded.
+    private void loadAll(List<ListExpression> statements, Map<String, Long> stats) throws UnableToLoadException {
+        if (statements.isEmpty()) {
+            return;
+        }
+        final Journal log = journal;
+        if (log != null) {
+            log.startChange();
+        }
+        writer.lock();
+        final Transaction transaction = new Transaction();
+        try {
+            if (!install(statements, transaction, stats)) {
+                final long start = System.nanoTime();
+                try {
+                    final ListExpression sequence = inSequence(statements);
+                    new Evaluator(this, transaction, null).evaluate(getWorking().getNestedDefinitions() == 0
+                            ? sequence.optimize()
+                            : sequence);
+                } finally {
+                    stats.merge("installNanos", System.nanoTime() - start, Long::sum);
+                }
+            }
+            if (isChanged(transaction)) {
+                if (log != null) {
+                    log.appendEvaluations(statements);
+                }
+                publish();
+            }
+        } catch (EvaluationException e) {
+            rollback(transaction);
+            throw new UnableToLoadException(e);
+        } catch (IOException e) {
+            rollback(transaction);
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.unlock();
+            if (log != null) {
+                log.finishChange();
+            }
+        }
+    }
+
+    // Install the definitions made by statements in one step as bulkLoad() describes, recording the changes in
+    // transaction, and return true; or return false without changing anything if they can't be
+    private synchronized boolean install(List<ListExpression> statements, Transaction transaction,
+            Map<String, Long> stats) {
+        final long start = System.nanoTime();
+        if (working.getNestedDefinitions() > 0) {
+            return false;
+        }
+        final Map<ListName, ListExpression> definitions = new HashMap<>();
+        for (ListExpression statement : statements) {
+            if (statement.getDefinedListNames().isEmpty()) {
+                continue;       // evaluating it changes nothing
+            }
+            if (!(statement instanceof Definition)) {
+                return false;
+            }
+            final ListName listname = ((Definition) statement).getListName();
+            final ListExpression expr = statement.getOperands().get(0);
+            if (!expr.getDefinedListNames().isEmpty() || definitions.put(listname, expr) != null) {
+                return false;
+            }
+        }
+        final List<ListName> installOrder = getComponentsInOrder(definitions);
+        final long checked = System.nanoTime();
+        stats.merge("checkNanos", checked - start, Long::sum);
+        if (installOrder == null) {
+            return false;
+        }
+        // each definition only adds edges of the graph just checked, so none of them can make a loop, and
+        // with their dependencies installed first, they rarely need order fixed
+        final long version = working.getVersion() + 1;
+        for (ListName listname : installOrder) {
+            ListExpression expr = definitions.get(listname);
+            if (expr.getListNamesNotDefined().contains(listname)) {
+                final ListExpression previous = getPriorVersion(listname, transaction);
+                expr = Traversal.replaceLeaves(expr, leaf -> leaf.equals(listname) ? previous : leaf);
+            }
+            try {
+                define(listname, expr, transaction, version);
+            } catch (MailLoopException e) {
+                throw new AssertionError("checked graph has a loop", e);
+            }
+        }
+        working = working.withVersion(version);
+        stats.put("installed", (long) installOrder.size());
+        stats.merge("installNanos", System.nanoTime() - checked, Long::sum);
+        return true;
+    }
+
+    // Find the strongly connected components of the graph with the current dependencies of each listname and,
+    // for the listnames that are keys of definitions, the dependencies of their new definitions too, with
+    // Tarjan's algorithm; get the keys of definitions with each after its dependencies, or null if a component
+    // has more than one listname, which means the graph has a loop. A listname depending on itself is not a
+    // loop, since its new definition uses a prior version of it instead.
+    private synchronized List<ListName> getComponentsInOrder(Map<ListName, ListExpression> definitions) {
+        final Map<ListName, Integer> index = new HashMap<>();
+        final Map<ListName, Integer> lowLink = new HashMap<>();
+        final Deque<ListName> component = new ArrayDeque<>();
+        final Set<ListName> onComponent = new HashSet<>();
+        final List<ListName> installOrder = new ArrayList<>();
+        for (ListName root : definitions.keySet()) {
+            if (index.containsKey(root)) {
+                continue;
+            }
+            final Deque<ListName> path = new ArrayDeque<>();
+            final Deque<Iterator<ListName>> next = new ArrayDeque<>();
+            index.put(root, index.size());
+            lowLink.put(root, index.get(root));
+            component.push(root);
+            onComponent.add(root);
+            path.push(root);
+            next.push(getCombinedChildren(root, definitions).iterator());
+            while (!path.isEmpty()) {
+                final ListName current = path.peek();
+                if (next.peek().hasNext()) {
+                    final ListName child = next.peek().next();
+                    if (child.equals(current)) {
+                        continue;
+                    } else if (!index.containsKey(child)) {
+                        index.put(child, index.size());
+                        lowLink.put(child, index.get(child));
+                        component.push(child);
+                        onComponent.add(child);
+                        path.push(child);
+                        next.push(getCombinedChildren(child, definitions).iterator());
+                    } else if (onComponent.contains(child)) {
+                        lowLink.put(current, Math.min(lowLink.get(current), index.get(child)));
+                    }
+                    continue;
+                }
+                path.pop();
+                next.pop();
+                if (!path.isEmpty()) {
+                    lowLink.put(path.peek(), Math.min(lowLink.get(path.peek()), lowLink.get(current)));
+                }
+                if (lowLink.get(current).equals(index.get(current))) {
+                    if (!component.pop().equals(current)) {
+                        return null;
+                    }
+                    onComponent.remove(current);
+                    if (definitions.containsKey(current)) {
+                        installOrder.add(current);
+                    }
+                }
+            }
+        }
+        return installOrder;
+    }
+
+    // Get the current dependencies of listname in working, and those of its new definition if it has one
+    private synchronized Set<ListName> getCombinedChildren(ListName listname,
+            Map<ListName, ListExpression> definitions) {
+        final Set<ListName> current = working.getChildren(listname);
+        if (!definitions.containsKey(listname)) {
+            return current == null ? Set.of() : current;
+        }
+        final Set<ListName> combined = new HashSet<>(definitions.get(listname).getAllListNames());
+        if (current != null) {
+            combined.addAll(current);
+        }
+        return combined;
+    }
+
+    /**
+     * Writes the definitions and dependencies of this context in the binary format of SnapshotFormat, which
+     * loadBinary() reads back without parsing.
+     *
+     * @param out stream to write to, which is flushed but not closed
+     * @throws IOException if out can't be written
+     */
+    public void saveBinary(OutputStream out) throws IOException {
+        SnapshotFormat.write(snapshot, out);
+    }
+
+    /**
+     * Loads definitions written by saveBinary(). If this context has no listnames yet, the definitions and
+     * dependencies are installed as they were saved, without parsing, checking for mailing loops or
+     * evaluating anything; otherwise the saved definitions are loaded as bulkLoad() loads them, without
+     * parsing them.
+     *
+     * @param in stream to read from, which is not closed
+     * @throws UnableToLoadException if in can't be read, doesn't hold a saved snapshot, or its definitions
+     *          can't be evaluated properly, in which case this context is unmodified
+     */
+    public void loadBinary(InputStream in) throws UnableToLoadException {
+        final Snapshot saved;
+        try {
+            saved = SnapshotFormat.read(in);
+        } catch (IOException e) {
+            throw new UnableToLoadException(e);
+        }
+        final Journal log = journal;
+        if (log != null) {
+            log.startChange();
+        }
+        writer.lock();
+        final Transaction transaction = new Transaction();
+        try {
+            synchronized (this) {
+                if (order.isEmpty()) {
+                    restore(saved, transaction);
+                    if (log != null) {
+                        log.appendEvaluations(getDefinitions(saved));
+                    }
+                    publish();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the restored definitions are undone if they can't be recorded
+            rollback(transaction);
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.unlock();
+            if (log != null) {
+                log.finishChange();
+            }
+        }
+        loadAll(getDefinitions(saved), new HashMap<>());
+    }
+
+    // Get definitions of the listnames defined in saved as they are there, with their prior versions written out
+    private static List<ListExpression> getDefinitions(Snapshot saved) {
+        final List<ListExpression> definitions = new ArrayList<>();
+        saved.forEachDefinition((l, expr) -> {
+            if (l.getVersion() < 0) {
+                definitions.add(new Definition(l, saved.getRelevantExpression(l)));
+            }
+        });
+        return definitions;
+    }
+
+    // Get an expression that evaluates statements one after the other
+    private static ListExpression inSequence(List<ListExpression> statements) {
+        final List<ListExpression> sequence = new ArrayList<>(List.of(new Empty()));
+        sequence.addAll(statements);
+        return sequence.size() == 1 ? sequence.get(0) : new Sequence(sequence);
+    }
+
+    // Install the definitions and dependency graph of saved in this context, which has no listnames, numbering
+    // the listnames children first with a depth-first search, and recording the installed listnames in
+    // transaction
+    private synchronized void restore(Snapshot saved, Transaction transaction) throws UnableToLoadException {
+        final Set<ListName> finished = new HashSet<>();
+        final Set<ListName> visiting = new HashSet<>();
+        final List<ListName> postOrder = new ArrayList<>();
+        final List<ListName> roots = new ArrayList<>();
+        saved.forEachChildren((l, children) -> roots.add(l));
+        for (ListName root : roots) {
+            final Deque<ListName> toVisit = new ArrayDeque<>(List.of(root));
+            final Deque<Iterator<ListName>> next = new ArrayDeque<>();
+            while (!toVisit.isEmpty()) {
+                final ListName current = toVisit.peek();
+                if (next.size() < toVisit.size()) {
+                    if (finished.contains(current) || !visiting.add(current)) {
+                        toVisit.pop();
+                        continue;
+                    }
+                    next.push(saved.getChildren(current).iterator());
+                }
+                if (next.peek().hasNext()) {
+                    final ListName child = next.peek().next();
+                    if (visiting.contains(child) && !child.equals(current)) {
+                        throw new UnableToLoadException(new MailLoopException("Saved definitions have a loop."));
+                    }
+                    toVisit.push(child);
+                } else {
+                    next.pop();
+                    toVisit.pop();
+                    visiting.remove(current);
+                    finished.add(current);
+                    postOrder.add(current);
+                }
+            }
+        }
+        for (ListName l : postOrder) {
+            record(transaction, l);
+            assignIds(saved.getDefinition(l));
+            parentMap.put(l, new HashSet<>());
+            order.put(l, ++highestOrder);
+            if (l.getVersion() >= versions) {
+                versions = l.getVersion() + 1;
+            }
+        }
+        for (ListName l : postOrder) {
+            for (ListName child : saved.getChildren(l)) {
+                parentMap.get(child).add(l);
+            }
+        }
+        // everything cached about listnames this context had before is stale, so they all change now
+        final long version = working.getVersion() + 1;
+        working = saved.withVersion(working.getVersion());
+        for (ListName l : postOrder) {
+            working = working.withChanged(l, version);
+        }
+        if (materialized) {
+            for (ListName l : postOrder) {
+                final ListExpression expr = working.getDefinition(l);
+                if (expr.getDefinedListNames().isEmpty()
+                        && materializedMap.keySet().containsAll(working.getChildren(l))) {
+                    materializedMap.put(l, expr.evaluateMaterialized(this));
+                }
+            }
+        }
+        working = working.withVersion(version);
+        checkRep();
+    }
+
     @Override
-    public synchronized String toString() {
-        return "expressionMap: " + expressionMap.toString() + ", childMap: " + childMap.toString();
+    public String toString() {
+        return snapshot.toString();
     }
 
 }
\ No newline at end of file
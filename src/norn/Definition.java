@@ -1,20 +1,28 @@
 package norn;
 
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 public class Definition implements ListExpression {
     private final ListName listName;
     private final ListExpression expr;
+    private final Set<ListName> definedListNames;
+    private final Set<ListName> usedListNames;
+    private final Set<ListName> allListNames;
+    private final int hash;
     
     // AF(listName, expr) = a definition operation, with listName being defined as the set
     //                          of recipients that the list expression expr evaluates to.
     //
-    // RI: true
+    // RI:
+    //  - definedListNames, usedListNames and allListNames are the list names defined, used, and defined or
+    //      used in this definition, each an immutable set
+    //  - hash is Interner.hash(6, [listName, expr]), where each variant of ListExpression uses its own number
     //
     // SRE:
     //  - all fields are private, final, and immutable
-    //  - none of the methods return references to any fields
+    //  - the methods only return references to the sets of list names, which are immutable
     //
     // TSA:
     //  - all fields are final and immutable
@@ -27,45 +35,105 @@ public class Definition implements ListExpression {
     public Definition(ListName listName, ListExpression expr) {
         this.listName = listName;
         this.expr = expr;
+        this.hash = Interner.hash(6, List.of(listName, expr));
+        this.definedListNames = ListNameSet.union(expr.getDefinedListNames(), listName.getAllListNames());
+        this.usedListNames = expr.getListNamesNotDefined();
+        this.allListNames = ListNameSet.union(expr.getAllListNames(), listName.getAllListNames());
     }
 
+    /**
+     * @return the list name this definition defines
+     */
+    ListName getListName() {
+        return listName;
+    }
+
+    // A definition that uses its own list name refers to the list's current definition through a prior version
+    // of the list, instead of a copy of that definition, so redefining a list costs the same however many
+    // times it has been redefined before
     @Override
-    public Set<String> evaluate(Context context) throws EvaluationException {
-        ListExpression newExpr = expr.getUpdatedExpression(context, listName);
-        context.updateMap(listName, newExpr);
-        return listName.evaluate(context);
+    public void schedule(Evaluator evaluator) throws EvaluationException {
+        final Context context = evaluator.getContext();
+        ListExpression newExpr = expr;
+        if (expr.getListNamesNotDefined().contains(listName)) {
+            final ListExpression previous = context.getPriorVersion(listName, evaluator.getTransaction());
+            newExpr = Traversal.replaceLeaves(expr, leaf -> leaf.equals(listName) ? previous : leaf);
+        }
+        context.updateMap(listName, newExpr, evaluator.getTransaction());
+        evaluator.returnResultOf(listName);
+    }
+    
+    // A definition is kept as written, so that it is checked for mailing loops and stored in the context with
+    // all of the list names it uses
+    @Override
+    public ListExpression optimize() {
+        return this;
+    }
+
+    @Override
+    public ListExpression optimize(List<ListExpression> operands) {
+        return this;
+    }
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        return operands.get(0);
+    }
+
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return operands.get(0);
+    }
+
+    @Override
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) throws EvaluationException {
+        return evaluator.stream(expr);
+    }
+
+    @Override
+    public void compile(Compiler compiler, int index, int register) {
+        throw new IllegalArgumentException("definitions can't be compiled");
     }
     
     @Override
     public ListExpression getUpdatedExpression(Context context, ListName listname) {
-        return new Definition(listName, expr.getUpdatedExpression(context, listname));
+        return Traversal.getUpdatedExpression(this, context, listname);
     }
     
     @Override
     public Set<ListName> getDefinedListNames() {
-        Set<ListName> s1 = new HashSet<>(Set.of(listName));
-        Set<ListName> s2 = expr.getDefinedListNames();
-        s1.addAll(s2);
-        return s1;
+        return definedListNames;
     }
     
     @Override
     public Set<ListName> getAllListNames() {
-        Set<ListName> s1 = new HashSet<>(Set.of(listName));
-        Set<ListName> s2 = expr.getAllListNames();
-        s1.addAll(s2);
-        return s1;
+        return allListNames;
     }
     
     @Override
     public Set<ListName> getListNamesNotDefined() {
-        return expr.getListNamesNotDefined();
+        return usedListNames;
+    }
+
+    @Override
+    public List<ListExpression> getOperands() {
+        return List.of(expr);
     }
 
     @Override
-    public VisualizerTree getVisualizerTree() {
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return new Definition(listName, operands.get(0));
+    }
+
+    @Override
+    public String getDelimiter(int index) {
+        return index == 0 ? "(" + listName + "=" : ")";
+    }
+
+    @Override
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
         final VisualizerTree tree = new VisualizerTree(this.listName + " = ");
-        tree.addChild(expr.getVisualizerTree());
+        tree.addChild(operands.get(0));
         return tree;
     }
 
@@ -73,20 +141,17 @@ public class Definition implements ListExpression {
     
     @Override
     public boolean equals(Object that) {
-        return that instanceof Definition && sameValue((Definition) that);
-    }
-    
-    private boolean sameValue(Definition that) {
-        return this.expr.equals(that.expr) && this.listName.equals(that.listName);
+        return this == that
+                || that instanceof Definition && Traversal.equal(this, (Definition) that);
     }
     
     @Override
     public int hashCode() {
-        return listName.hashCode() + expr.hashCode();
+        return hash;
     }
     
     @Override
     public String toString() {
-        return "(" + listName.toString() + "=" + expr.toString() + ")";
+        return Traversal.toString(this);
     }
 }
@@ -1,5 +1,7 @@
 package norn;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -8,14 +10,21 @@ import java.util.Set;
 public class Difference implements ListExpression {
     private final ListExpression expr1;
     private final ListExpression expr2;
+    private final Set<ListName> definedListNames;
+    private final Set<ListName> usedListNames;
+    private final Set<ListName> allListNames;
+    private final int hash;
     
     // AF(expr1, expr2) = the difference operation applied on expr1 and expr2
     //
-    // RI: true
+    // RI:
+    //  - definedListNames, usedListNames and allListNames are the list names defined, used, and defined or
+    //      used in expr1 and expr2, each an immutable set
+    //  - hash is Interner.hash(3, [expr1, expr2]), where each variant of ListExpression uses its own number
     //
     // SRE:
     //  - all fields are private, final, and immutable
-    //  - none of the methods return references to any fields
+    //  - the methods only return references to the sets of list names, which are immutable
     //
     // TSA:
     //  - all fields are final and immutable
@@ -29,50 +38,125 @@ public class Difference implements ListExpression {
     public Difference(ListExpression expr1, ListExpression expr2) {
         this.expr1 = expr1;
         this.expr2 = expr2;
+        this.hash = Interner.hash(3, List.of(expr1, expr2));
+        this.definedListNames = ListNameSet.union(expr1.getDefinedListNames(), expr2.getDefinedListNames());
+        this.usedListNames = ListNameSet.union(expr1.getListNamesNotDefined(), expr2.getListNamesNotDefined());
+        this.allListNames = ListNameSet.union(expr1.getAllListNames(), expr2.getAllListNames());
     }
 
+    // When neither operand defines list names, the order of evaluation doesn't matter: evaluate expr1 first,
+    // unless both are expensive enough to be evaluated on the pool at the same time, and skip expr2 if expr1
+    // has no recipients
     @Override
-    public Set<String> evaluate(Context context) throws EvaluationException {
-        Set<String> s1 = expr1.evaluate(context);
-        Set<String> s2 = expr2.evaluate(context);
+    public void schedule(Evaluator evaluator) {
+        final long cost1 = evaluator.getCost(expr1);
+        final long cost2 = evaluator.getCost(expr2);
+        if (cost1 < 0 || cost2 < 0 || !(evaluator.isCheap(expr1) || evaluator.isCheap(expr2))) {
+            evaluator.evaluateThen(List.of(expr1, expr2), results -> {
+                final Set<String> s1 = results.get(0);
+                s1.removeAll(results.get(1));
+                evaluator.returnResult(s1);
+            });
+            return;
+        }
+        evaluator.evaluateThen(List.of(expr1), first -> {
+            final Set<String> s1 = first.get(0);
+            if (s1.isEmpty()) {
+                evaluator.returnResult(s1);
+                return;
+            }
+            evaluator.evaluateThen(List.of(expr2), second -> {
+                s1.removeAll(second.get(0));
+                evaluator.returnResult(s1);
+            });
+        });
+    }
+    
+    @Override
+    public ListExpression optimize(List<ListExpression> operands) {
+        final ListExpression left = operands.get(0);
+        final ListExpression right = operands.get(1);
+        if (right instanceof Empty) {
+            return left;
+        } else if (left instanceof Empty) {
+            return right.getDefinedListNames().isEmpty() ? new Empty() : new Sequence(right, new Empty());
+        } else if (left.equals(right) && left.getDefinedListNames().isEmpty()) {
+            return new Empty();
+        } else if (left instanceof Difference) {
+            final Difference difference = (Difference) left;
+            final List<ListExpression> removed = List.of(difference.expr2, right);
+            return new Difference(difference.expr1, new Union(removed).optimize(removed));
+        }
+        return new Difference(left, right);
+    }
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        Set<String> s1 = operands.get(0);
+        Set<String> s2 = operands.get(1);
         s1.removeAll(s2);
         return s1;
     }
+
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return operands.get(0) && !operands.get(1);
+    }
+
+    @Override
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) throws EvaluationException {
+        return SortedMerge.difference(evaluator.stream(expr1), evaluator.stream(expr2));
+    }
+
+    @Override
+    public void compile(Compiler compiler, int index, int register) {
+        if (index == 1) {
+            compiler.skipIfEmpty(register);
+        } else if (index == 2) {
+            compiler.differenceInto(register, register + 1);
+        }
+    }
     
     @Override
     public ListExpression getUpdatedExpression(Context context, ListName listname) {
-        return new Difference(expr1.getUpdatedExpression(context, listname), expr2.getUpdatedExpression(context, listname));
+        return Traversal.getUpdatedExpression(this, context, listname);
     }
     
     @Override
     public Set<ListName> getDefinedListNames() {
-        Set<ListName> s1 = expr1.getDefinedListNames();
-        Set<ListName> s2 = expr2.getDefinedListNames();
-        s1.addAll(s2);
-        return s1;
+        return definedListNames;
     }
     
     @Override
     public Set<ListName> getAllListNames() {
-        Set<ListName> s1 = expr1.getAllListNames();
-        Set<ListName> s2 = expr2.getAllListNames();
-        s1.addAll(s2);
-        return s1;
+        return allListNames;
     }
     
     @Override
     public Set<ListName> getListNamesNotDefined() {
-        Set<ListName> s1 = expr1.getListNamesNotDefined();
-        Set<ListName> s2 = expr2.getListNamesNotDefined();
-        s1.addAll(s2);
-        return s1;
+        return usedListNames;
+    }
+
+    @Override
+    public List<ListExpression> getOperands() {
+        return List.of(expr1, expr2);
+    }
+
+    @Override
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return new Difference(operands.get(0), operands.get(1));
     }
 
     @Override
-    public VisualizerTree getVisualizerTree() {
+    public String getDelimiter(int index) {
+        return List.of("(", "!", ")").get(index);
+    }
+
+    @Override
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
         final VisualizerTree tree = new VisualizerTree("-");
-        tree.addChild(expr1.getVisualizerTree());
-        tree.addChild(expr2.getVisualizerTree());
+        tree.addChild(operands.get(0));
+        tree.addChild(operands.get(1));
         return tree;
     }
 
@@ -80,20 +164,17 @@ public class Difference implements ListExpression {
     
     @Override
     public boolean equals(Object that) {
-        return that instanceof Difference && sameValue((Difference) that);
-    }
-    
-    private boolean sameValue(Difference that) {
-        return this.expr1.equals(that.expr1) && this.expr2.equals(that.expr2);
+        return this == that
+                || that instanceof Difference && Traversal.equal(this, (Difference) that);
     }
     
     @Override
     public int hashCode() {
-        return expr1.hashCode() + expr2.hashCode();
+        return hash;
     }
     
     @Override
     public String toString() {
-        return "(" + expr1.toString() + "!" + expr2.toString() + ")";
+        return Traversal.toString(this);
     }
 }
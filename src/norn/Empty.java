@@ -1,6 +1,8 @@
 package norn;
 
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -28,8 +30,33 @@ public class Empty implements ListExpression {
     }
 
     @Override
-    public Set<String> evaluate(Context conext) {
-        return new HashSet<>();
+    public void schedule(Evaluator evaluator) {
+        evaluator.returnResult(new RecipientSet());
+    }
+    
+    @Override
+    public ListExpression optimize(List<ListExpression> operands) {
+        return this;
+    }
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        return new RecipientSet();
+    }
+
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return false;
+    }
+
+    @Override
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) {
+        return Collections.emptyIterator();
+    }
+
+    @Override
+    public void compile(Compiler compiler, int index, int register) {
+        compiler.loadEmpty(register);
     }
     
     @Override
@@ -39,21 +66,36 @@ public class Empty implements ListExpression {
     
     @Override
     public Set<ListName> getDefinedListNames() {
-        return new HashSet<>();
+        return Set.of();
     }
     
     @Override
     public Set<ListName> getAllListNames() {
-        return new HashSet<>();
+        return Set.of();
     }
     
     @Override
     public Set<ListName> getListNamesNotDefined() {
-        return new HashSet<>();
+        return Set.of();
+    }
+
+    @Override
+    public List<ListExpression> getOperands() {
+        return List.of();
+    }
+
+    @Override
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return this;
+    }
+
+    @Override
+    public String getDelimiter(int index) {
+        return toString();
     }
 
     @Override
-    public VisualizerTree getVisualizerTree() {
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
         return new VisualizerTree("∅");
     }
 
@@ -0,0 +1,313 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Mutable engine that evaluates list expressions with an explicit stack instead of recursion, so that
+ * arbitrarily deep expressions and arbitrarily long chains of list definitions can be evaluated using
+ * a bounded amount of the thread's own stack.
+ *
+ * Each ListExpression describes how to evaluate one level of the tree in schedule(), by calling exactly
+ * one of returnResult, returnResultOf or evaluateThen on the evaluator. A continuation passed to
+ * evaluateThen must in turn call exactly one of these methods.
+ */
+public class Evaluator {
+    private final Context context;
+    private final Context.Transaction transaction;
+    private final Snapshot snapshot;
+    private final Deque<Task> tasks = new ArrayDeque<>();
+    private final List<Set<String>> results = new ArrayList<>();
+    private final Deque<ForkJoinTask<?>> forks = new ArrayDeque<>();
+    private final Map<ListExpression, Long> costs = new IdentityHashMap<>();
+    private long costsVersion = -1;
+
+    // AF(context, transaction, snapshot, tasks, results, forks, costs, costsVersion) = an evaluation in progress in
+    //                              context, reading the definitions of snapshot, or the definitions being changed
+    //                              by context's current writer at each read if it is null, and whose changes to
+    //                              the context are recorded in transaction unless it is null, where tasks is the
+    //                              stack of work left to do, from the top, and results is the stack of
+    //                              recipients of the expressions that have been evaluated but whose results
+    //                              haven't been used yet, with the most recent result last, and forks are the
+    //                              evaluations this one started on the context's pool and hasn't joined yet,
+    //                              with the most recent on top. costs maps
+    //                              expressions to their estimated cost of evaluation (see getCost), as of the
+    //                              context's snapshot version costsVersion.
+    //
+    // RI:
+    //  - if costs contains an expression, it contains all of its operands
+    //  - each evaluation in forks is joined by a task in tasks
+    //
+    // SRE:
+    //  - all fields are private, and all fields except costsVersion are final
+    //  - transaction is shared with the context and the evaluations forked from this one, and only read or
+    //      written by the context while holding its monitor
+    //  - results are handed to continuations and callers, but are removed from results first
+    //
+    // TSA:
+    //  - Evaluator is not threadsafe, and is confined to the thread that calls evaluate(); expressions
+    //      that evaluate subexpressions on other threads use a separate Evaluator on each thread
+
+    /**
+     * Continuation of the evaluation of an expression, after some of its subexpressions have been evaluated.
+     */
+    @FunctionalInterface
+    public interface Continuation {
+        /**
+         * Continue the evaluation of an expression.
+         *
+         * @param results the recipients of the subexpressions passed to evaluateThen, in the same order
+         * @throws EvaluationException if the evaluation fails
+         */
+        void accept(List<Set<String>> results) throws EvaluationException;
+    }
+
+    // One unit of work on the explicit stack
+    @FunctionalInterface
+    private interface Task {
+        void run() throws EvaluationException;
+    }
+
+    /**
+     * Constructor for an Evaluator whose definitions can be undone, or that reads a fixed snapshot.
+     *
+     * @param context context in which expressions are evaluated
+     * @param transaction undo log that records the changes this evaluation makes to context, or null
+     * @param snapshot snapshot of context to read all definitions from, which requires the expressions
+     *                 evaluated to not define any list names; or null to read the definitions being changed
+     *                 by the current writer of context each time, which is then this evaluation
+     */
+    Evaluator(Context context, Context.Transaction transaction, Snapshot snapshot) {
+        this.context = context;
+        this.transaction = transaction;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the context in which expressions are evaluated
+     */
+    public Context getContext() {
+        return context;
+    }
+
+    /**
+     * @return the undo log that records the changes this evaluation makes to the context, or null if they
+     *         aren't recorded
+     */
+    Context.Transaction getTransaction() {
+        return transaction;
+    }
+
+    /**
+     * @return the snapshot of the context that this evaluation reads all definitions from, or else the
+     *         definitions as changed so far by the writer this evaluation belongs to
+     */
+    Snapshot getSnapshot() {
+        return snapshot != null ? snapshot : context.getWorking();
+    }
+
+    /**
+     * @return a new Evaluator for evaluating a subexpression of the current expression on another thread, which
+     *         records its changes in the same transaction and reads the same snapshot as this one
+     */
+    Evaluator forkEvaluator() {
+        return new Evaluator(context, transaction, snapshot);
+    }
+
+    /**
+     * Evaluate an expression, as defined by ListExpression.evaluate().
+     *
+     * @param expr expression to evaluate
+     * @return the set of recipients expr evaluates to
+     * @throws EvaluationException if evaluating expr throws an EvaluationException
+     */
+    public Set<String> evaluate(ListExpression expr) throws EvaluationException {
+        final int depth = tasks.size();
+        final int resultCount = results.size();
+        final int forkCount = forks.size();
+        returnResultOf(expr);
+        try {
+            while (tasks.size() > depth) {
+                tasks.pop().run();
+            }
+        } catch (EvaluationException | RuntimeException e) {
+            while (tasks.size() > depth) {
+                tasks.pop();
+            }
+            results.subList(resultCount, results.size()).clear();
+            // the forked evaluations must be finished before the caller rolls back their changes
+            while (forks.size() > forkCount) {
+                context.cancelEvaluation(forks.pop());
+            }
+            throw e;
+        }
+        assert results.size() == resultCount + 1;
+        return results.remove(resultCount);
+    }
+
+    /**
+     * Start evaluating a subexpression of the current expression on the context's pool, with a new evaluator
+     * that records its changes in the same transaction and reads the same snapshot as this one. The
+     * evaluation must be finished with join() by a continuation of the current expression; if this evaluation
+     * fails first, evaluate() cancels it, or waits for it to finish, before it throws.
+     *
+     * @param expr expression to evaluate
+     * @return the started evaluation, to pass to join()
+     */
+    ForkJoinTask<?> fork(ListExpression expr) {
+        final ForkJoinTask<?> task = context.forkEvaluation(expr, forkEvaluator());
+        forks.push(task);
+        return task;
+    }
+
+    /**
+     * Finish an evaluation started by fork(), as defined by Context.joinEvaluation().
+     *
+     * @param task evaluation returned by fork()
+     * @return the recipients of the forked expression
+     * @throws EvaluationException if evaluating the forked expression threw an EvaluationException
+     */
+    Set<String> join(ForkJoinTask<?> task) throws EvaluationException {
+        forks.removeFirstOccurrence(task);
+        return context.joinEvaluation(task);
+    }
+
+    /**
+     * Finish the evaluation of the current expression.
+     *
+     * @param recipients the recipients that the current expression evaluates to
+     */
+    public void returnResult(Set<String> recipients) {
+        results.add(recipients);
+    }
+
+    /**
+     * Finish the evaluation of the current expression by evaluating another expression, whose recipients
+     * the current expression evaluates to.
+     *
+     * @param expr expression to evaluate in place of the current expression
+     */
+    public void returnResultOf(ListExpression expr) {
+        tasks.push(() -> expr.schedule(this));
+    }
+
+    /**
+     * @param expr expression to estimate
+     * @return true if and only if evaluating expr doesn't define list names and its estimated cost (see getCost)
+     *          is below the context's parallel threshold, i.e. it is never evaluated on the context's pool
+     */
+    boolean isCheap(ListExpression expr) {
+        final long cost = getCost(expr);
+        return cost >= 0 && cost < context.getParallelThreshold();
+    }
+
+    /**
+     * Evaluate some expressions from left to right, and then continue the evaluation of the current expression.
+     * If none of exprs define list names (directly, or through the definitions of the list names they use),
+     * those whose estimated cost reaches the context's parallel threshold are evaluated at the same time on the
+     * context's pool, except for the first of them, which is evaluated on this thread along with the cheap ones.
+     *
+     * @param exprs expressions to evaluate
+     * @param then continuation called with the recipients of exprs once they have all been evaluated
+     */
+    public void evaluateThen(List<ListExpression> exprs, Continuation then) {
+        final List<ForkJoinTask<?>> forked = forkExpensive(exprs);
+        final int local = Collections.frequency(forked, null);
+        tasks.push(() -> {
+            final List<Set<String>> localResults = results.subList(results.size() - local, results.size());
+            final List<Set<String>> operands = new ArrayList<>();
+            int next = 0;
+            for (ForkJoinTask<?> task : forked) {
+                operands.add(task == null ? localResults.get(next++) : join(task));
+            }
+            localResults.clear();
+            then.accept(operands);
+        });
+        for (int i = exprs.size() - 1; i >= 0; i--) {
+            if (forked.get(i) == null) {
+                returnResultOf(exprs.get(i));
+            }
+        }
+    }
+
+    // Start evaluating the expensive expressions of exprs on the context's pool, if they are independent; return
+    // the started evaluation of each expression, or null for the expressions left to evaluate on this thread
+    private List<ForkJoinTask<?>> forkExpensive(List<ListExpression> exprs) {
+        final List<ForkJoinTask<?>> forked = new ArrayList<>(Collections.nCopies(exprs.size(), null));
+        if (exprs.size() < 2) {
+            return forked;
+        }
+        final long[] exprCosts = new long[exprs.size()];
+        for (int i = 0; i < exprs.size(); i++) {
+            exprCosts[i] = getCost(exprs.get(i));
+            if (exprCosts[i] < 0) {
+                return forked;      // evaluating it modifies the context, so the order of evaluation matters
+            }
+        }
+        boolean keptOne = false;
+        for (int i = 0; i < exprs.size(); i++) {
+            if (exprCosts[i] >= context.getParallelThreshold()) {
+                if (keptOne) {
+                    forked.set(i, fork(exprs.get(i)));
+                }
+                keptOne = true;
+            }
+        }
+        return forked;
+    }
+
+    /**
+     * Estimate the cost of evaluating an expression: the number of its subexpressions, plus the estimated costs
+     * of the list names it uses (the number of their recipients, if they are already known). Costs are remembered
+     * until the next definition in the context.
+     *
+     * @param expr expression to estimate
+     * @return the estimated cost of evaluating expr, or -1 if evaluating it defines list names
+     */
+    long getCost(ListExpression expr) {
+        final Snapshot read = getSnapshot();
+        if (read.getVersion() != costsVersion) {
+            costs.clear();
+            costsVersion = read.getVersion();
+        }
+        final Deque<ListExpression> toVisit = new ArrayDeque<>(List.of(expr));
+        while (!toVisit.isEmpty()) {
+            final ListExpression current = toVisit.peek();
+            if (costs.containsKey(current)) {
+                toVisit.pop();
+                continue;
+            }
+            final List<ListExpression> operands = current.getOperands();
+            boolean ready = true;
+            for (ListExpression operand : operands) {
+                if (!costs.containsKey(operand)) {
+                    toVisit.push(operand);
+                    ready = false;
+                }
+            }
+            if (!ready) {
+                continue;
+            }
+            toVisit.pop();
+            long cost = 1;
+            if (current instanceof Definition) {
+                cost = -1;
+            } else if (current instanceof ListName) {
+                cost = context.estimateCost((ListName) current, read);
+            }
+            for (ListExpression operand : operands) {
+                final long operandCost = costs.get(operand);
+                cost = cost < 0 || operandCost < 0 ? -1 : Math.min(cost + operandCost, Long.MAX_VALUE / 2);
+            }
+            costs.put(current, cost);
+        }
+        return costs.get(expr);
+    }
+}
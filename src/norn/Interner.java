@@ -0,0 +1,107 @@
+package norn;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Table of canonical list expressions. Interning an expression replaces each of its subtrees with the first
+ * structurally equal subtree interned before, so equal subexpressions of all of the parsed expressions share
+ * one instance, and comparing two interned subtrees for equality usually takes a reference comparison.
+ * Expressions are held weakly, so interning never keeps an expression that is no longer used alive.
+ * The table is split into stripes by hash code, each with its own lock, so that threads parsing at the same
+ * time rarely wait for each other.
+ */
+final class Interner {
+    private static final int STRIPE_COUNT = 64;
+    private static final List<Map<ListExpression, WeakReference<ListExpression>>> STRIPES = new ArrayList<>();
+
+    static {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            STRIPES.add(new WeakHashMap<>());
+        }
+    }
+
+    // AF(STRIPES) = the canonical instance of each interned expression that is still reachable, kept in the
+    //              stripe stripeOf(expr)
+    //
+    // RI:
+    //  - STRIPES has STRIPE_COUNT maps, which is a power of 2
+    //  - each value of a stripe refers to its key, or was cleared, and the operands of each key are canonical
+    //  - each key of STRIPES[i] has stripeOf(key) == i
+    //
+    // SRE:
+    //  - STRIPES and its maps are private and never returned; expressions are immutable
+    //
+    // TSA:
+    //  - STRIPES is never modified after the class is initialized, and each stripe is only accessed in
+    //      canonical(), while holding the stripe's own lock
+
+    private Interner() {
+        throw new AssertionError("Interner should not be instantiated");
+    }
+
+    /**
+     * Get the canonical instance of an expression, built from the leaves up without recursion.
+     *
+     * @param expr expression to intern
+     * @return an expression equal to expr, in which every subtree (including the expression itself) is the
+     *         same instance as every other interned subtree it is equal to
+     */
+    static ListExpression intern(ListExpression expr) {
+        return Traversal.<ListExpression>fold(expr, (node, operands) -> {
+            final List<ListExpression> previous = node.getOperands();
+            for (int i = 0; i < operands.size(); i++) {
+                if (operands.get(i) != previous.get(i)) {
+                    return canonical(node.withOperands(operands));
+                }
+            }
+            return canonical(node);
+        });
+    }
+
+    // Get the interned expression equal to expr, whose operands are canonical, interning expr if there is none
+    private static ListExpression canonical(ListExpression expr) {
+        final Map<ListExpression, WeakReference<ListExpression>> stripe = STRIPES.get(stripeOf(expr));
+        synchronized (stripe) {
+            final WeakReference<ListExpression> interned = stripe.get(expr);
+            final ListExpression existing = interned == null ? null : interned.get();
+            if (existing != null) {
+                return existing;
+            }
+            stripe.put(expr, new WeakReference<>(expr));
+            return expr;
+        }
+    }
+
+    // Get the index of the stripe that holds expressions equal to expr
+    private static int stripeOf(ListExpression expr) {
+        final int hash = expr.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1);
+    }
+
+    /**
+     * Combine the hash codes of the operands of an operator into a hash code for the operator's expression,
+     * which depends on the operator and on the order of the operands, and spreads similar inputs over all of
+     * the bits of the result.
+     *
+     * @param operator number that is different for each variant of ListExpression
+     * @param operands operands of the expression, in order
+     * @return hash code of the expression
+     */
+    static int hash(int operator, List<?> operands) {
+        int hash = operator;
+        for (Object operand : operands) {
+            hash = 31 * hash + operand.hashCode();
+        }
+        // finalizer of MurmurHash3
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -1,98 +1,266 @@
 package norn;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Immutable Intersection class.
  */
 public class Intersection implements ListExpression {
-    private final ListExpression expr1;
-    private final ListExpression expr2;
+    private final List<ListExpression> exprs;
+    private final Set<ListName> definedListNames;
+    private final Set<ListName> usedListNames;
+    private final Set<ListName> allListNames;
+    private final int hash;
 
-    // AF(expr1, expr2) = the set intersect operation applied on expr1 and expr2
+    // AF(exprs) = the set intersect operation applied on exprs, grouped from left to right,
+    //              i.e. (((exprs[0] * exprs[1]) * exprs[2]) * ...)
     //
-    // RI: true
+    // RI:
+    //  - exprs has at least 2 expressions
+    //  - exprs[0] is not a Intersection, since a left-nested intersection is the same grouping as a longer flat one
+    //  - definedListNames, usedListNames and allListNames are the list names defined, used, and defined or
+    //      used in exprs, each an immutable set
+    //  - hash is Interner.hash(2, exprs), where each variant of ListExpression uses its own number
     //
     // SRE:
     //  - all fields are private, final, and immutable
-    //  - none of the methods return references to any fields
+    //  - getOperands() returns exprs, which is an immutable list, and the methods that get list names return
+    //      the sets of list names, which are immutable; no other method returns references to fields
     //
     // TSA:
     //  - all fields are final and immutable
-    
+
     /**
      * Public constructor for Intersection.
      * @param expr1 first expression in intersection operation
      * @param expr2 second expression in intersection operation
      */
     public Intersection(ListExpression expr1, ListExpression expr2) {
-        this.expr1 = expr1;
-        this.expr2 = expr2;
+        this(List.of(expr1, expr2));
+    }
+
+    /**
+     * Public constructor for an intersection of several expressions, grouped from left to right.
+     * @param exprs expressions in intersection operation, at least 2
+     */
+    public Intersection(List<ListExpression> exprs) {
+        if (exprs.get(0) instanceof Intersection) {
+            final List<ListExpression> flattened = new ArrayList<>(((Intersection) exprs.get(0)).exprs);
+            flattened.addAll(exprs.subList(1, exprs.size()));
+            this.exprs = List.copyOf(flattened);
+        } else {
+            this.exprs = List.copyOf(exprs);
+        }
+        this.hash = Interner.hash(2, this.exprs);
+        this.definedListNames = ListNameSet.union(this.exprs, ListExpression::getDefinedListNames);
+        this.usedListNames = ListNameSet.union(this.exprs, ListExpression::getListNamesNotDefined);
+        this.allListNames = ListNameSet.union(this.exprs, ListExpression::getAllListNames);
+        checkRep();
+    }
+
+    // check rep invariant
+    private void checkRep() {
+        assert exprs.size() >= 2;
+        assert !(exprs.get(0) instanceof Intersection);
+    }
+
+    // When no operand defines list names, the order of evaluation doesn't matter: evaluate the operands that
+    // are too cheap to be evaluated on the pool one at a time, cheapest first, and skip the rest as soon as the
+    // intersection so far is empty; then evaluate the expensive operands together
+    @Override
+    public void schedule(Evaluator evaluator) {
+        for (ListExpression expr : exprs) {
+            if (evaluator.getCost(expr) < 0) {
+                evaluator.evaluateThen(exprs, results -> intersect(evaluator, results.get(0), results, 1));
+                return;
+            }
+        }
+        final List<ListExpression> byCost = new ArrayList<>(exprs);
+        byCost.sort(Comparator.comparingLong(evaluator::getCost));
+        int cheap = 0;
+        while (cheap < byCost.size() && evaluator.isCheap(byCost.get(cheap))) {
+            cheap++;
+        }
+        scheduleFrom(evaluator, byCost, cheap, 0, null);
+    }
+
+    // Intersect result (or null, for all recipients) with operands[index:], where the first cheap operands
+    // are evaluated one at a time
+    private static void scheduleFrom(Evaluator evaluator, List<ListExpression> operands, int cheap, int index,
+            Set<String> result) {
+        if (index >= cheap) {
+            final List<ListExpression> expensive = operands.subList(index, operands.size());
+            if (expensive.isEmpty()) {
+                evaluator.returnResult(result);
+            } else if (result == null) {
+                evaluator.evaluateThen(expensive, results -> intersect(evaluator, results.get(0), results, 1));
+            } else {
+                evaluator.evaluateThen(expensive, results -> intersect(evaluator, result, results, 0));
+            }
+            return;
+        }
+        evaluator.evaluateThen(List.of(operands.get(index)), results -> {
+            final Set<String> intersection = result == null ? results.get(0) : result;
+            if (result != null) {
+                intersection.retainAll(results.get(0));
+            }
+            if (intersection.isEmpty()) {
+                evaluator.returnResult(intersection);
+            } else {
+                scheduleFrom(evaluator, operands, cheap, index + 1, intersection);
+            }
+        });
+    }
+
+    // Return result intersected with operands[from:]
+    private static void intersect(Evaluator evaluator, Set<String> result, List<Set<String>> operands, int from) {
+        for (Set<String> operand : operands.subList(from, operands.size())) {
+            result.retainAll(operand);
+        }
+        evaluator.returnResult(result);
     }
 
     @Override
-    public Set<String> evaluate(Context context) throws EvaluationException {
-        Set<String> s1 = expr1.evaluate(context);
-        Set<String> s2 = expr2.evaluate(context);
-        s1.retainAll(s2);
-        return s1;
+    public ListExpression optimize(List<ListExpression> optimizedOperands) {
+        final List<ListExpression> operands = new ArrayList<>();
+        final Set<ListExpression> pureOperands = new HashSet<>();
+        boolean hasEmpty = false;
+        for (ListExpression optimized : optimizedOperands) {
+            final List<ListExpression> flattened = optimized instanceof Intersection
+                    ? ((Intersection) optimized).exprs
+                    : List.of(optimized);
+            for (ListExpression operand : flattened) {
+                final boolean pure = operand.getDefinedListNames().isEmpty();
+                hasEmpty |= operand instanceof Empty;
+                if (!(pure && pureOperands.contains(operand))) {
+                    operands.add(operand);
+                }
+                if (pure) {
+                    pureOperands.add(operand);
+                } else {
+                    // the list names that later copies use, directly or through the context, may be redefined
+                    pureOperands.removeIf(seen -> !seen.getAllListNames().isEmpty());
+                }
+            }
+        }
+        if (hasEmpty) {
+            // the intersection is empty, but the definitions in its operands must still be made
+            final List<ListExpression> definitions = new ArrayList<>();
+            for (ListExpression operand : operands) {
+                if (!operand.getDefinedListNames().isEmpty()) {
+                    definitions.add(operand);
+                }
+            }
+            definitions.add(new Empty());
+            return definitions.size() == 1 ? new Empty() : new Sequence(definitions);
+        } else if (operands.size() == 1) {
+            return operands.get(0);
+        }
+        return new Intersection(operands);
     }
-    
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        final Set<String> result = operands.get(0);
+        for (Set<String> operand : operands.subList(1, operands.size())) {
+            result.retainAll(operand);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return !operands.contains(false);
+    }
+
+    @Override
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) throws EvaluationException {
+        final List<Iterator<String>> operands = new ArrayList<>();
+        for (ListExpression expr : exprs) {
+            operands.add(evaluator.stream(expr));
+        }
+        return SortedMerge.intersection(operands);
+    }
+
+    @Override
+    public void compile(Compiler compiler, int index, int register) {
+        if (index >= 2) {
+            compiler.intersectInto(register, register + 1);
+        }
+        if (index >= 1 && index < exprs.size()) {
+            compiler.skipIfEmpty(register);
+        }
+    }
+
     @Override
     public ListExpression getUpdatedExpression(Context context, ListName listname) {
-        return new Intersection(expr1.getUpdatedExpression(context, listname), expr2.getUpdatedExpression(context, listname));
+        return Traversal.getUpdatedExpression(this, context, listname);
     }
-    
+
     @Override
     public Set<ListName> getDefinedListNames() {
-        Set<ListName> s1 = expr1.getDefinedListNames();
-        Set<ListName> s2 = expr2.getDefinedListNames();
-        s1.addAll(s2);
-        return s1;
+        return definedListNames;
     }
-    
+
     @Override
     public Set<ListName> getAllListNames() {
-        Set<ListName> s1 = expr1.getAllListNames();
-        Set<ListName> s2 = expr2.getAllListNames();
-        s1.addAll(s2);
-        return s1;
+        return allListNames;
     }
-    
+
     @Override
     public Set<ListName> getListNamesNotDefined() {
-        Set<ListName> s1 = expr1.getListNamesNotDefined();
-        Set<ListName> s2 = expr2.getListNamesNotDefined();
-        s1.addAll(s2);
-        return s1;
+        return usedListNames;
+    }
+
+    @Override
+    public List<ListExpression> getOperands() {
+        return exprs;
     }
 
     @Override
-    public VisualizerTree getVisualizerTree() {
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return new Intersection(operands);
+    }
+
+    @Override
+    public String getDelimiter(int index) {
+        if (index == 0) {
+            return "(";
+        } else if (index == exprs.size()) {
+            return ")";
+        }
+        return "*";
+    }
+
+    @Override
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
         final VisualizerTree tree = new VisualizerTree("∩");
-        tree.addChild(expr1.getVisualizerTree());
-        tree.addChild(expr2.getVisualizerTree());
+        for (VisualizerTree operand : operands) {
+            tree.addChild(operand);
+        }
         return tree;
     }
 
     ///////////////////// Equality and toString() methods //////////////////////
-    
+
     @Override
     public boolean equals(Object that) {
-        return that instanceof Intersection && sameValue((Intersection) that);
-    }
-    
-    private boolean sameValue(Intersection that) {
-        return this.expr1.equals(that.expr1) && this.expr2.equals(that.expr2);
+        return this == that
+                || that instanceof Intersection && Traversal.equal(this, (Intersection) that);
     }
-    
+
     @Override
     public int hashCode() {
-        return expr1.hashCode() + expr2.hashCode();
+        return hash;
     }
-    
+
     @Override
     public String toString() {
-        return "(" + expr1.toString() + "*" + expr2.toString() + ")";
+        return Traversal.toString(this);
     }
 }
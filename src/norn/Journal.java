@@ -0,0 +1,425 @@
+package norn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal of the changes made to the definitions of a Context, kept in a directory
+ * together with the snapshot the changes were made to. Each successful change (a call to updateMap, or an
+ * evaluation that defines listnames) appends one record holding the change, so writing it costs O(size of the
+ * change); a bulk load appends its statements in records of up to RECORD_CHARS characters instead, so a crash
+ * while it is written may keep only its first statements. Records are forced to disk in batches, at most
+ * syncMillis after they are written. Every checkpointRecords records, the current definitions are saved as a
+ * new snapshot (in the format of SnapshotFormat) and the journal starts over empty.
+ *
+ * The files of generation g are snapshot-g.nsnap, the definitions at the start of the generation (missing for
+ * generation 0, which starts with no definitions), and journal-g.log, the changes made since. A record is the
+ * length of its payload and the CRC32 of its payload, as ints, then the payload: a kind byte, the defined
+ * listname for an updateMap, and the expression, in UTF-8 text. Opening a journal loads the latest snapshot and
+ * replays its journal up to the first incomplete or corrupt record, which a crash may have left at its end.
+ */
+public final class Journal implements AutoCloseable {
+    static final int DEFAULT_SYNC_MILLIS = 100;
+    static final int DEFAULT_CHECKPOINT_RECORDS = 100_000;
+    static final int RECORD_CHARS = 1 << 20;
+
+    private static final byte UPDATE = 0;
+    private static final byte EVALUATE = 1;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+    private static final Pattern FILE_NAME = Pattern.compile("(snapshot|journal)-([0-9]{1,18})\\.(nsnap|log)");
+
+    private final Path directory;
+    private final Context context;
+    private final int checkpointRecords;
+    private final ReadWriteLock changes = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService background;
+    private FileChannel channel;
+    private long generation;
+    private long records;
+    private boolean dirty = false;
+    private boolean checkpointScheduled = false;
+    private boolean closed = false;
+
+    // AF(directory, context, checkpointRecords, changes, background, channel, generation, records, dirty,
+    //    checkpointScheduled, closed) = the journal in directory of the changes made to context since the
+    //                              snapshot of generation, appended to channel, which holds records records;
+    //                              dirty if some of them may not be on disk yet. A checkpoint is started on
+    //                              background once checkpointRecords records are written, if checkpointScheduled
+    //                              isn't already set. changes is held for reading while a change is made and
+    //                              written, and for writing while a checkpoint starts a new generation.
+    //
+    // RI:
+    //  - checkpointRecords > 0, records >= 0
+    //  - channel is the open journal of generation, positioned at its end, unless closed
+    //
+    // SRE:
+    //  - all fields are private, and none of them are returned
+    //
+    // TSA:
+    //  - channel, generation, records, dirty, checkpointScheduled and closed are only accessed while holding this
+    //      object's lock
+    //  - every change to context made while the journal is attached holds changes for reading from before it
+    //      starts until its record is appended, and a checkpoint holds changes for writing, so the snapshot
+    //      of a checkpoint includes exactly the changes written to the journals of earlier generations
+    //  - background only runs sync() and checkpoint(), which are threadsafe
+
+    private Journal(Path directory, Context context, long generation, FileChannel channel, long records,
+            int syncMillis, int checkpointRecords) {
+        this.directory = directory;
+        this.context = context;
+        this.generation = generation;
+        this.channel = channel;
+        this.records = records;
+        this.checkpointRecords = checkpointRecords;
+        this.background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "norn-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        background.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (IOException e) {
+                // the next sync tries again, and close() reports the error
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        checkRep();
+    }
+
+    private synchronized void checkRep() {
+        assert checkpointRecords > 0 && records >= 0;
+        assert closed || channel.isOpen();
+    }
+
+    /**
+     * Open the journal in a directory with DEFAULT_SYNC_MILLIS and DEFAULT_CHECKPOINT_RECORDS, as defined by
+     * open(Path, Context, int, int).
+     *
+     * @param directory directory of the journal, created if it doesn't exist
+     * @param context context with no listnames, which gets the definitions recorded in the journal
+     * @return the journal, attached to context
+     * @throws IOException if the files of the journal can't be read or written
+     * @throws UnableToLoadException if the snapshot is invalid, or a record can't be replayed
+     */
+    public static Journal open(Path directory, Context context) throws IOException, UnableToLoadException {
+        return open(directory, context, DEFAULT_SYNC_MILLIS, DEFAULT_CHECKPOINT_RECORDS);
+    }
+
+    /**
+     * Open the journal in a directory: load the latest snapshot in it into context, replay the changes
+     * recorded since, and then record every change made to context in the directory, until the journal is
+     * closed. An incomplete or corrupt record at the end of the journal, and all records after it, are
+     * dropped.
+     *
+     * @param directory directory of the journal, created if it doesn't exist
+     * @param context context with no listnames, which gets the definitions recorded in the journal
+     * @param syncMillis longest time a record stays in memory before it is forced to disk, at least 1
+     * @param checkpointRecords number of records after which a new snapshot is saved, at least 1
+     * @return the journal, attached to context
+     * @throws IOException if the files of the journal can't be read or written
+     * @throws UnableToLoadException if the snapshot is invalid, or a record can't be replayed
+     */
+    public static Journal open(Path directory, Context context, int syncMillis, int checkpointRecords)
+            throws IOException, UnableToLoadException {
+        Files.createDirectories(directory);
+        long generation = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final Matcher name = FILE_NAME.matcher(file.getFileName().toString());
+                if (name.matches() && name.group(1).equals("snapshot")) {
+                    generation = Math.max(generation, Long.parseLong(name.group(2)));
+                }
+            }
+        }
+        final Path snapshot = snapshotFile(directory, generation);
+        if (Files.exists(snapshot)) {
+            try (InputStream in = Files.newInputStream(snapshot)) {
+                context.loadBinary(in);
+            }
+        }
+        final FileChannel channel = FileChannel.open(journalFile(directory, generation), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long records;
+        try {
+            records = replay(channel, context);
+        } catch (IOException | UnableToLoadException e) {
+            channel.close();
+            throw e;
+        }
+        deleteOtherGenerations(directory, generation);
+        final Journal journal = new Journal(directory, context, generation, channel, records, syncMillis,
+                checkpointRecords);
+        context.setJournal(journal);
+        return journal;
+    }
+
+    // Apply the records of the journal read from channel to context, cut the journal after the last complete
+    // and uncorrupted record, leaving channel positioned there, and get the number of records applied
+    private static long replay(FileChannel channel, Context context) throws IOException, UnableToLoadException {
+        final InputStream in = Channels.newInputStream(channel.position(0));
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long position = 0;
+        long records = 0;
+        while (true) {
+            header.clear();
+            if (in.readNBytes(header.array(), 0, HEADER_BYTES) < HEADER_BYTES) {
+                break;
+            }
+            final int length = header.getInt(0);
+            final int checksum = header.getInt(Integer.BYTES);
+            if (length < 1 || length > channel.size() - position - HEADER_BYTES) {
+                break;
+            }
+            final byte[] payload = in.readNBytes(length);
+            if (payload.length < length || (int) checksum(payload) != checksum) {
+                break;
+            }
+            apply(payload, context);
+            position += HEADER_BYTES + length;
+            records++;
+        }
+        channel.truncate(position);
+        channel.position(position);
+        channel.force(false);
+        return records;
+    }
+
+    // Make the change recorded in payload to context
+    private static void apply(byte[] payload, Context context) throws UnableToLoadException {
+        final String text = new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8);
+        try {
+            if (payload[0] == UPDATE) {
+                final int separator = text.indexOf('=');
+                context.updateMap(new ListName(text.substring(0, separator)),
+                        ListExpression.parse(text.substring(separator + 1)));
+            } else {
+                context.evaluate(ListExpression.parse(text));
+            }
+        } catch (EvaluationException | IllegalArgumentException e) {
+            throw new UnableToLoadException(e);
+        }
+    }
+
+    private static long checksum(byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static Path snapshotFile(Path directory, long generation) {
+        return directory.resolve("snapshot-" + generation + SnapshotFormat.EXTENSION);
+    }
+
+    private static Path journalFile(Path directory, long generation) {
+        return directory.resolve("journal-" + generation + ".log");
+    }
+
+    // Delete the snapshots and journals of generations other than generation, which are all out of date
+    private static void deleteOtherGenerations(Path directory, long generation) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final Matcher name = FILE_NAME.matcher(file.getFileName().toString());
+                if (name.matches() && Long.parseLong(name.group(2)) != generation) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a change to the definitions of the context, which must be followed by finishChange().
+     */
+    void startChange() {
+        changes.readLock().lock();
+    }
+
+    /**
+     * Finish a change started by startChange().
+     */
+    void finishChange() {
+        changes.readLock().unlock();
+    }
+
+    /**
+     * Record a call to context.updateMap() that succeeded. Requires a change to be started.
+     *
+     * @param listname listname that was defined, which isn't a prior version
+     * @param expr its new definition, which doesn't use prior versions
+     * @throws IOException if the record can't be written
+     */
+    void appendUpdate(ListName listname, ListExpression expr) throws IOException {
+        append(UPDATE, listname + "=" + expr);
+    }
+
+    /**
+     * Record an evaluation in context that defined listnames and succeeded. Requires a change to be started.
+     *
+     * @param expr expression that was evaluated, which doesn't use prior versions
+     * @throws IOException if the record can't be written
+     */
+    void appendEvaluation(ListExpression expr) throws IOException {
+        append(EVALUATE, expr.toString());
+    }
+
+    /**
+     * Record a bulk load in context of statements that defined listnames and succeeded, as evaluations of
+     * runs of consecutive statements that take up to RECORD_CHARS characters, or of one longer statement, so
+     * that no record holds the whole load. Requires a change to be started.
+     *
+     * @param statements statements that were loaded, in order, which don't use prior versions
+     * @throws IOException if a record can't be written
+     */
+    void appendEvaluations(List<ListExpression> statements) throws IOException {
+        final StringBuilder run = new StringBuilder();
+        for (ListExpression statement : statements) {
+            final String text = statement.toString();
+            if (run.length() > 0 && run.length() + 1 + text.length() > RECORD_CHARS) {
+                append(EVALUATE, run.toString());
+                run.setLength(0);
+            }
+            run.append(run.length() > 0 ? ";" : "").append(text);
+        }
+        if (run.length() > 0) {
+            append(EVALUATE, run.toString());
+        }
+    }
+
+    private synchronized void append(byte kind, String text) throws IOException {
+        if (closed) {
+            throw new IOException("journal is closed");
+        }
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        final CRC32 crc = new CRC32();
+        crc.update(kind);
+        crc.update(bytes);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 1);
+        header.putInt(bytes.length + 1).putInt((int) crc.getValue()).put(kind).flip();
+        final ByteBuffer body = ByteBuffer.wrap(bytes);
+        final ByteBuffer[] record = { header, body };
+        while (header.hasRemaining() || body.hasRemaining()) {
+            channel.write(record);
+        }
+        dirty = true;
+        records++;
+        if (records >= checkpointRecords && !checkpointScheduled) {
+            checkpointScheduled = true;
+            background.execute(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    // the next record schedules another checkpoint
+                }
+            });
+        }
+    }
+
+    /**
+     * Force the records written so far to disk.
+     *
+     * @throws IOException if the journal can't be written
+     */
+    public synchronized void sync() throws IOException {
+        if (dirty && !closed) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Save the current definitions of the context as the snapshot of a new generation, and start its journal
+     * empty, deleting the files of the previous generation. Changes to the context wait until it is done.
+     *
+     * @throws IOException if the files of the journal can't be written
+     */
+    public void checkpoint() throws IOException {
+        changes.writeLock().lock();
+        try {
+            synchronized (this) {
+                checkpointScheduled = false;
+                if (closed) {
+                    return;
+                }
+                final long next = generation + 1;
+                final Path snapshot = snapshotFile(directory, next);
+                final Path temporary = directory.resolve(snapshot.getFileName() + ".tmp");
+                try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    final OutputStream stream = Channels.newOutputStream(out);
+                    context.saveBinary(stream);
+                    out.force(true);
+                }
+                // once the snapshot has its final name, it is the latest generation, and the journals of earlier
+                // generations are never replayed again
+                Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE);
+                final FileChannel journal = FileChannel.open(journalFile(directory, next),
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                channel.close();
+                channel = journal;
+                generation = next;
+                records = 0;
+                dirty = false;
+                deleteOtherGenerations(directory, generation);
+                checkRep();
+            }
+        } finally {
+            changes.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of the current generation, which increases with each checkpoint
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the number of records in the journal of the current generation
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Force the records written so far to disk, stop recording the changes made to the context, and close
+     * the journal's files.
+     *
+     * @throws IOException if the journal can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        context.setJournal(null);
+        background.shutdown();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                channel.force(false);
+            } finally {
+                closed = true;
+                channel.close();
+            }
+        }
+    }
+}
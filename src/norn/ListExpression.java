@@ -1,23 +1,26 @@
 package norn;
 
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
-import edu.mit.eecs.parserlib.UnableToParseException;
-
 public interface ListExpression {
     //  Datatype definition:
     //  ListExpression = Recipient(recipient: String)
     //                   + ListName(listName: String)
     //                   + Empty()
-    //                   + Union(expr1: ListExpression, expr2: ListExpression)
-    //                   + Intersection(expr1: ListExpression, expr2: ListExpression)
+    //                   + Union(exprs: List<ListExpression>)
+    //                   + Intersection(exprs: List<ListExpression>)
     //                   + Difference(expr1: ListExpression, expr2: ListExpression)
     //                   + Parallel(expr1: ListExpression, expr2: ListExpression)
-    //                   + Sequence(expr1: ListExpression, expr2: ListExpression)
+    //                   + Sequence(exprs: List<ListExpression>)
     //                   + Definition(listName: ListName, expr: ListExpression)
+    //                   + Literal(recipients: Set<String>)
 
     /**
-     * Parse a list expression.
+     * Parse a list expression. Recently parsed inputs are cached, so parsing the same input again usually
+     * returns the same expression without parsing it.
      *
      * @param input expression to parse, as defined in the Norn handout
      * @return expression AST for the input
@@ -25,15 +28,16 @@ public interface ListExpression {
      */
     static ListExpression parse(String input)  {
         try {
-            return ListExpressionParser.parse(input);
-        } catch (UnableToParseException e) {
-            throw new IllegalArgumentException(e);
+            return ParseCache.SHARED.parse(input);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
         }
     }
 
     /**
      * @return a parsable representation of this expression, such that
-     * for all e:ListExpression, e.equals(ListExpression.parse(e.toString())).
+     * for all e:ListExpression, e.equals(ListExpression.parse(e.toString())),
+     * except that a Literal is written, and so parsed back, as the Union of its recipients in alphabetical order.
      * Furthermore, the repeated application of parse and toString is idempotent:
      * e.toString().equals(ListExpression.parse(e.toString()).toString())
      */
@@ -47,6 +51,8 @@ public interface ListExpression {
      *     1. the expressions contain the same recipients and operators
      *     2. the recipients and operators are in the same order, read left-to-right
      *     3. they are grouped in the same way
+     * Expressions are compared with an explicit stack (see Traversal.equal), so arbitrarily deep expressions
+     * don't overflow the thread's stack.
      */
     @Override
     boolean equals(Object that);
@@ -75,9 +81,11 @@ public interface ListExpression {
      *      elsewhere and returns the empty set of recipients
      *
      *  If a definition exists within this ListExpression, the context will be modified.
-     *  To ensure that if errors occur during the evaluation of this exception that the
-     *  context will remain unmodified, context.evaluate should be called instead with this
-     *  expression.
+     *  The expression is evaluated with context.evaluate(), so the definitions it makes are
+     *  recorded in the context's journal, and if an error occurs the context remains unmodified.
+     *
+     *  Expressions are evaluated by an Evaluator, which uses an explicit stack, so arbitrarily
+     *  deep expressions and long chains of list definitions don't overflow the thread's stack.
      *      
      * @param context context with previously defined list names
      * @return the set of all recipients (in lowercase) which this mailing list would email.
@@ -85,8 +93,141 @@ public interface ListExpression {
      *          error in defining parallel when a subexpression defines a listname that appears
      *          directly or indirectly in the other subexpression)
      */
-    Set<String> evaluate(Context context) throws EvaluationException;
+    default Set<String> evaluate(Context context) throws EvaluationException {
+        return context.evaluate(this);
+    }
+
+    /**
+     * Evaluate one level of this list expression: either return its recipients to evaluator, or ask evaluator
+     * to evaluate its subexpressions (or the definitions of the list names it uses) and continue once they have
+     * been evaluated. Must call exactly one of evaluator.returnResult(), evaluator.returnResultOf() or
+     * evaluator.evaluateThen(). Clients should call evaluate() instead.
+     *
+     * @param evaluator evaluator in charge of evaluating this expression
+     * @throws EvaluationException if there is an error while evaluating, as defined by evaluate()
+     */
+    void schedule(Evaluator evaluator) throws EvaluationException;
     
+    /**
+     * Get an equivalent list expression that is cheaper to evaluate. These identities are applied from
+     * the leaves up, where "e is pure" means e doesn't define any list names:
+     *  - empty operands: e,() and (),e and e!() become e; e*() and ()*e and ()!e become () if e is pure,
+     *      or e;() if it isn't
+     *  - idempotence: e,e and e*e become e, and e!e becomes (), if e is pure; a pure operand that already
+     *      appears in the same chain of unions or intersections is dropped
+     *  - associativity: e,(f,g) becomes (e,f),g, and likewise for * and ;, and (e!f)!g becomes e!(f,g)
+     *  - discarded results: e;f becomes f if e is pure, and e|f becomes e;() if f uses no list names
+     *      (and f;() if e uses no list names)
+     *  - dead definitions: a definition of a list name as an expression that uses no list names is dropped
+     *      from a sequence if the next expression in the sequence redefines that list name without using it
+     * A repeated operand that uses list names is only dropped if no operand between the two copies defines
+     * list names, since those may be list names it depends on. Definitions are kept as written, so that they
+     * are checked for mailing loops and stored with every list name they use, and so are the operands of a
+     * parallel, unless optimizing one doesn't change the list names it uses or defines, so that it is checked
+     * for parallel definitions as written.
+     * The returned expression evaluates to the same recipients, makes the same definitions in the same order,
+     * and throws the same EvaluationExceptions as this expression. The tree is walked with an explicit stack,
+     * so arbitrarily deep expressions don't overflow the thread's stack.
+     * Requires that evaluating the list names used in this expression doesn't define any list names.
+     *
+     * @return an equivalent list expression with the identities above applied
+     */
+    default ListExpression optimize() {
+        return Traversal.fold(this, ListExpression::optimize);
+    }
+
+    /**
+     * Optimize one level of this list expression, as defined by optimize(), given its operands already
+     * optimized. Clients should call optimize() instead.
+     *
+     * @param operands the operands of this expression, in the order getOperands() returns them, each optimized
+     * @return an equivalent list expression with the identities of optimize() applied to this level
+     */
+    ListExpression optimize(List<ListExpression> operands);
+
+    /**
+     * Evaluate this list expression using the recipients that a materialized context keeps for each list name,
+     * instead of evaluating the definitions of the list names it uses. Never modifies the context and never
+     * evaluates anything on another thread. The tree is walked with an explicit stack, so arbitrarily deep
+     * expressions don't overflow the thread's stack.
+     * Requires this expression to not define any list names.
+     *
+     * @param context materialized context with the recipients of the list names used in this expression
+     * @return the set of all recipients (in lowercase) which this expression evaluates to
+     */
+    default Set<String> evaluateMaterialized(Context context) {
+        return Traversal.<Set<String>>fold(this, (expr, operands) -> expr.evaluateMaterialized(context, operands));
+    }
+
+    /**
+     * Evaluate one level of this list expression as defined by evaluateMaterialized(Context), given the
+     * recipients of its operands. Clients should call evaluateMaterialized(Context) instead.
+     *
+     * @param context materialized context with the recipients of the list names used in this expression
+     * @param operands new sets of the recipients of the operands of this expression, in the order getOperands()
+     *                 returns them, which may be modified and returned
+     * @return the set of all recipients (in lowercase) which this expression evaluates to
+     */
+    Set<String> evaluateMaterialized(Context context, List<Set<String>> operands);
+
+    /**
+     * Check whether recipient is one of the recipients of this list expression, using the recipients that a
+     * materialized context keeps for each list name. This is the rule for updating a materialized list when
+     * recipients are added to or removed from the lists its definition uses: only those recipients need to
+     * be checked again.
+     * Requires this expression to not define any list names.
+     *
+     * @param context materialized context with the recipients of the list names used in this expression
+     * @param recipient recipient (in lowercase) to look for
+     * @return true if and only if evaluateMaterialized(context) contains recipient
+     */
+    default boolean containsMaterialized(Context context, String recipient) {
+        return Traversal.<Boolean>fold(this,
+                (expr, operands) -> expr.containsMaterialized(context, recipient, operands));
+    }
+
+    /**
+     * Check one level of this list expression as defined by containsMaterialized(Context, String), given
+     * whether each of its operands contains recipient. Clients should call containsMaterialized(Context,
+     * String) instead.
+     *
+     * @param context materialized context with the recipients of the list names used in this expression
+     * @param recipient recipient (in lowercase) to look for
+     * @param operands whether each operand of this expression, in the order getOperands() returns them,
+     *                 contains recipient
+     * @return true if and only if evaluateMaterialized(context) contains recipient
+     */
+    boolean containsMaterialized(Context context, String recipient, List<Boolean> operands);
+
+    /**
+     * Evaluate one level of this list expression lazily: get an iterator over its recipients in increasing
+     * order, built from the iterators that evaluator.stream() gives for its subexpressions, so that recipients
+     * are produced one at a time while holding only one pending recipient per subexpression instead of whole
+     * sets of recipients. Clients should call context.evaluateSorted() instead.
+     * Requires this expression to not define any list names.
+     *
+     * @param evaluator evaluator in charge of evaluating this expression
+     * @return iterator over the recipients (in lowercase) of this expression, in increasing order without
+     *          duplicates, which doesn't read the context
+     * @throws EvaluationException if there is an error while evaluating the list names this expression uses
+     */
+    Iterator<String> evaluateSorted(SortedEvaluator evaluator) throws EvaluationException;
+
+    /**
+     * Emit the instructions for one level of this list expression, so that its recipients end up in register
+     * once they are run. Called by Compiler.compile() before each operand is compiled (with index 0 to the
+     * number of operands - 1) and once after the last one (with index equal to the number of operands);
+     * the first operand is compiled into register, and each other operand into register + 1.
+     * Clients should call Compiler.compile() instead.
+     * Requires this expression to not define any list names.
+     *
+     * @param compiler compiler to emit the instructions to
+     * @param index index between 0 and the number of operands, inclusive
+     * @param register register that the recipients of this expression must be left in
+     * @throws IllegalArgumentException if this expression defines list names
+     */
+    void compile(Compiler compiler, int index, int register);
+
     /**
      * Get a new updated ListExpression object, which is a copy of the original ListExpression
      * but with the most recent definition of listname (pulled from the context) plugged into
@@ -100,27 +241,63 @@ public interface ListExpression {
     
     /**
      * Get the list names defined in the list expression (does not include list names
-     * that are not defined in but are used in the list expression)
-     * @return the set of listnames that are defined in the list expression
+     * that are not defined in but are used in the list expression). The set is computed once,
+     * when the expression is built, so this method doesn't allocate.
+     * @return the immutable set of listnames that are defined in the list expression
      */
     Set<ListName> getDefinedListNames();
     
     /**
-     * Get all list names that are defined or used in the list expression.
-     * @return the set of listnames that are defined or used in the list expression
+     * Get all list names that are defined or used in the list expression, computed once as
+     * getDefinedListNames() is.
+     * @return the immutable set of listnames that are defined or used in the list expression
      */
     Set<ListName> getAllListNames();
     
     /**
      * Get the list names that are in the right hand side of a definition (used but not
-     * defined in a list expression)
-     * @return the set of listnames that are used but not defined in a list expression
+     * defined in a list expression), computed once as getDefinedListNames() is.
+     * @return the immutable set of listnames that are used but not defined in a list expression
      */
     Set<ListName> getListNamesNotDefined();
 
     /**
-     * Create a VisualizerTree of the given Expression
+     * @return the subexpressions of this list expression, from left to right (the list name of a
+     *         definition is not one of its subexpressions)
+     */
+    List<ListExpression> getOperands();
+
+    /**
+     * @param operands new subexpressions, as many as getOperands() returns
+     * @return a list expression with the same operator as this one, applied on operands instead
+     */
+    ListExpression withOperands(List<ListExpression> operands);
+
+    /**
+     * Get part of the parsable representation of this list expression, such that toString() is
+     * getDelimiter(0) + operands[0] + getDelimiter(1) + ... + operands[n-1] + getDelimiter(n),
+     * where operands = getOperands() and n is the number of operands.
+     *
+     * @param index index between 0 and the number of operands, inclusive
+     * @return the text before the operand at index, or after the last operand if index is the number of operands
+     */
+    String getDelimiter(int index);
+
+    /**
+     * Create a VisualizerTree of the given Expression. The tree is walked with an explicit stack, so
+     * arbitrarily deep expressions don't overflow the thread's stack.
      * @return a VisualizerTree of the given Expression
      */
-    VisualizerTree getVisualizerTree();
+    default VisualizerTree getVisualizerTree() {
+        return Traversal.fold(this, ListExpression::getVisualizerTree);
+    }
+
+    /**
+     * Create the node of a VisualizerTree for one level of this expression. Clients should call
+     * getVisualizerTree() instead.
+     * @param operands the VisualizerTrees of the operands of this expression, in the order getOperands()
+     *                 returns them
+     * @return a VisualizerTree of this expression with operands as its children
+     */
+    VisualizerTree getVisualizerTree(List<VisualizerTree> operands);
 }
@@ -1,168 +1,285 @@
 package norn;
 
-import java.io.File;
-import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
-import edu.mit.eecs.parserlib.ParseTree;
-import edu.mit.eecs.parserlib.Parser;
-import edu.mit.eecs.parserlib.UnableToParseException;
-
+/**
+ * Parser for list expressions, as defined by the grammar in ListExpression.g. The parser reads its input once,
+ * from left to right, and builds the expression directly, keeping the operators whose operands are not complete
+ * yet on an explicit stack instead of the call stack, so deeply parenthesized input can't overflow the thread's
+ * stack. Operators bind, from loosest to tightest: '|', ';', ',', definition, '!', '*'; the body of a definition
+ * extends over the ',' that follow it, and a definition can only start an operand of '|', ';', ',' or '='.
+ */
 public class ListExpressionParser {
     /**
      * Main method. Parses and then reprints an example expression.
-     * 
+     *
      * @param args command line arguments, not used
-     * @throws UnableToParseException if example expression can't be parsed
-     * @throws EvaluationException 
+     * @throws ParseException if example expression can't be parsed
+     * @throws EvaluationException
      */
-    public static void main(final String[] args) throws UnableToParseException, EvaluationException {
-        
+    public static void main(final String[] args) throws ParseException, EvaluationException {
+
         final String input = "c=a;c=d;(a=a@mit | b=c,b@mit);a,b";
         System.out.println(input);
-//        ParseTree<ExpressionGrammar> tree = PARSER.parse(input);
-//        System.out.println(tree.toString());
         final ListExpression expression = ListExpressionParser.parse(input);
         System.out.println(expression.toString());
         Context context = new Context();
         System.out.println(expression.evaluate(context).toString());
         System.out.println(context.toString());
-        }
-    
-    
-    // the nonterminals of the grammar
-    private enum ExpressionGrammar {
-        PARALLEL, SEQUENCE, UNION, DEFINITION, DIFFERENCE, INTERSECTION, BASE, LISTNAME, RECIPIENT, 
-            WHITESPACE, EMPTY,
     }
-    
-    private static final Parser<ExpressionGrammar> PARSER = makeParser();
 
-    /**
-     * Compile the grammar into a parser.
-     * @return parser for the grammar
-     * @throws RuntimeException if grammar file can't be read or has syntax errors
-     */
-    private static Parser<ExpressionGrammar> makeParser() {
-        try {
-            // read the grammar as a file, relative to the project root.
-            final File grammarFile = new File("src/norn/ListExpression.g");
-            return Parser.compile(grammarFile, ExpressionGrammar.PARALLEL);
-
-            // Parser.compile() throws two checked exceptions.
-            // Translate these checked exceptions into unchecked RuntimeExceptions,
-            // because these failures indicate internal bugs rather than client errors
-        } catch (IOException e) {
-            throw new RuntimeException("can't read the grammar file", e);
-        } catch (UnableToParseException e) {
-            throw new RuntimeException("the grammar has a syntax error", e);
+    // An operator whose right operand is being parsed, binding tighter than the operators below it on the stack
+    private enum Operator {
+        PAREN(0), PARALLEL(1), SEQUENCE(2), UNION(3), DEFINITION(3), DIFFERENCE(4), INTERSECTION(5);
+
+        private final int precedence;
+
+        private Operator(int precedence) {
+            this.precedence = precedence;
         }
     }
 
-    /**
-     * Parse a string into a list expression.
-     *
-     * @param string string to parse
-     * @return ListExpression parsed from the string
-     * @throws UnableToParseException if the string doesn't match the MailingList grammar
-     */
-    public static ListExpression parse(final String string) throws UnableToParseException {
-        // parse the example into a parse tree
-        final ParseTree<ExpressionGrammar> parseTree = PARSER.parse(string);
+    // An operator on the stack, with the operands to its left (or the listname it defines)
+    private static final class Pending {
+        private final Operator operator;
+        private final List<ListExpression> operands = new ArrayList<>();
+        private final ListName listName;
 
-        // display the parse tree in various ways, for debugging only
-        // System.out.println("parse tree " + parseTree);
-        // Visualizer.showInBrowser(parseTree);
+        private Pending(Operator operator, ListName listName) {
+            this.operator = operator;
+            this.listName = listName;
+        }
+    }
 
-        // make an AST from the parse tree
-        final ListExpression expression = makeAbstractSyntaxTree(parseTree);
-        // System.out.println("AST " + expression);
+    private final CharSequence input;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private int position = 0;
 
-        return expression;
+    // AF(input, pending, position) = the parse of input up to position, where pending holds the operators whose
+    //                                right operand starts before position, innermost first
+    //
+    // RI:
+    //  - 0 <= position <= input.length()
+    //  - above each parenthesis in pending, the precedences of the operators never decrease from the bottom of
+    //      the stack to the top, and two adjacent operators only have equal precedences if one is a definition
+    //  - a pending binary operator (difference, parallel) has one left operand, an n-ary one at least one,
+    //      a definition or parenthesis none
+    //
+    // SRE:
+    //  - all fields are private, pending is never returned, and the parser is only used inside parse()
+    //
+    // TSA:
+    //  - each call to parse() uses its own parser, confined to the calling thread
+
+    private ListExpressionParser(CharSequence input) {
+        this.input = input;
     }
 
     /**
-     * Convert a parse tree into an abstract syntax tree.
+     * Parse a string into a list expression.
      *
-     * @param parseTree constructed according to the grammar in Exression.g
-     * @return abstract syntax tree corresponding to parseTree
-     * @throws ParallelDefinitionException if error in parallel definition
+     * @param input string to parse
+     * @return ListExpression parsed from the string, interned as defined by Interner.intern()
+     * @throws ParseException if the string doesn't match the grammar in ListExpression.g; its error offset is
+     *         the index in input of the first character that can't be parsed, or input.length() if the input
+     *         ended too early
      */
-    private static ListExpression makeAbstractSyntaxTree(final ParseTree<ExpressionGrammar> parseTree) {
-        switch (parseTree.name()) {
-        case PARALLEL:
-            {
-                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
-                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
-                for (int i = 1; i < children.size(); i++) {
-                    expression = new Parallel(expression, makeAbstractSyntaxTree(children.get(i)));
-                }
-                return expression;
+    public static ListExpression parse(final CharSequence input) throws ParseException {
+        // share subtrees equal to ones parsed before
+        return Interner.intern(new ListExpressionParser(input).parseParallel());
+    }
+
+    private void checkRep() {
+        assert 0 <= position && position <= input.length();
+        Pending above = null;
+        for (Pending below : pending) {
+            if (above != null && above.operator != Operator.PAREN) {
+                assert below.operator.precedence < above.operator.precedence
+                        || below.operator.precedence == above.operator.precedence
+                            && (below.operator == Operator.DEFINITION || above.operator == Operator.DEFINITION);
             }
-        case SEQUENCE:
-            {
-                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
-                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
-                for (int i = 1; i < children.size(); i++) {
-                    expression = new Sequence(expression, makeAbstractSyntaxTree(children.get(i)));
-                }
-                return expression;
+            above = below;
+        }
+    }
+
+    // Parse all of the input as a parallel expression
+    private ListExpression parseParallel() throws ParseException {
+        boolean canDefine = true;
+        while (true) {
+            // an operand: a parenthesized expression, the start of a definition, or a base expression
+            skipWhitespace();
+            final char first = peek();
+            if (first == '(') {
+                pending.push(new Pending(Operator.PAREN, null));
+                position++;
+                canDefine = true;
+                continue;
             }
-        case UNION:
-            {
-                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
-                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
-                for (int i = 1; i < children.size(); i++) {
-                    expression = new Union(expression, makeAbstractSyntaxTree(children.get(i)));
+            ListExpression operand = new Empty();
+            if (isRecipientCharacter(first)) {
+                final int start = position;
+                final ListExpression word = parseWord();
+                final int end = position;
+                skipWhitespace();
+                if (peek() == '=' && word instanceof ListName && canDefine) {
+                    pending.push(new Pending(Operator.DEFINITION, (ListName) word));
+                    position++;
+                    continue;
+                } else if (peek() == '=') {
+                    throw error(word instanceof ListName ? "'" + input.subSequence(start, end)
+                            + "' can't be defined here" : "a recipient can't be defined");
                 }
-                return expression;
+                operand = word;
             }
-        case DEFINITION:
-            {
-                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
-                if (children.get(0).name() == ExpressionGrammar.DIFFERENCE) {
-                    return makeAbstractSyntaxTree(children.get(0));
+
+            // the operators that follow it, each of which completes the operators that bind tighter
+            while (true) {
+                skipWhitespace();
+                if (position == input.length()) {
+                    operand = reduce(operand, Operator.PAREN.precedence);
+                    if (!pending.isEmpty()) {
+                        throw error("expected ')'");
+                    }
+                    checkRep();
+                    return operand;
+                } else if (peek() == ')') {
+                    operand = reduce(operand, Operator.PAREN.precedence);
+                    if (pending.isEmpty()) {
+                        throw error("unmatched ')'");
+                    }
+                    pending.pop();
+                    position++;
+                    continue;
+                }
+                final Operator operator = toOperator(peek());
+                if (operator == null) {
+                    throw error("expected an operator, but found '" + peek() + "'");
+                }
+                operand = reduce(operand, operator.precedence);
+                final Pending top = pending.peek();
+                if (top != null && top.operator == operator) {
+                    if (operator == Operator.DIFFERENCE || operator == Operator.PARALLEL) {
+                        operand = build(top, operand);
+                        top.operands.clear();
+                    }
+                    top.operands.add(operand);
                 } else {
-                    return new Definition(new ListName(children.get(0).text()), makeAbstractSyntaxTree(children.get(1)));
+                    final Pending next = new Pending(operator, null);
+                    next.operands.add(operand);
+                    pending.push(next);
                 }
+                position++;
+                canDefine = operator.precedence <= Operator.UNION.precedence;
+                checkRep();
+                break;
             }
+        }
+    }
+
+    // Complete the pending operators that bind tighter than precedence, innermost first, given the operand
+    // that ends them, and get the result
+    private ListExpression reduce(ListExpression operand, int precedence) {
+        ListExpression result = operand;
+        while (!pending.isEmpty() && pending.peek().operator.precedence > precedence) {
+            result = build(pending.pop(), result);
+        }
+        return result;
+    }
+
+    // Get the expression of a pending operator, given its last operand
+    private static ListExpression build(Pending top, ListExpression last) {
+        final List<ListExpression> operands = new ArrayList<>(top.operands);
+        operands.add(last);
+        switch (top.operator) {
+        case PARALLEL:
+            return new Parallel(operands.get(0), last);
+        case SEQUENCE:
+            return new Sequence(operands);
+        case UNION:
+            return new Union(operands);
+        case DEFINITION:
+            return new Definition(top.listName, last);
         case DIFFERENCE:
-            {
-                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
-                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
-                for (int i = 1; i < children.size(); ++i) {
-                    expression = new Difference(expression, makeAbstractSyntaxTree(children.get(i)));
-                }
-                return expression;
-            }
+            return new Difference(operands.get(0), last);
         case INTERSECTION:
-            {
-                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
-                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
-                for (int i = 1; i < children.size(); ++i) {
-                    expression = new Intersection(expression, makeAbstractSyntaxTree(children.get(i)));
+            return new Intersection(operands);
+        default:
+            throw new AssertionError("should never get here");
+        }
+    }
+
+    // Parse a recipient or a listname, in lowercase, starting at position
+    private ListExpression parseWord() throws ParseException {
+        final int start = position;
+        while (position < input.length() && isRecipientCharacter(input.charAt(position))) {
+            position++;
+        }
+        if (peek() != '@') {
+            for (int i = start; i < position; i++) {
+                if (input.charAt(i) == '+') {
+                    position = i;
+                    throw error("'+' is only allowed in recipients");
                 }
-                return expression;
-            }
-        case BASE:
-            {
-                final ParseTree<ExpressionGrammar> child = parseTree.children().get(0);
-                return makeAbstractSyntaxTree(child);
-            }
-        case RECIPIENT:
-            {
-                return new Recipient(parseTree.text().toLowerCase());
-            }
-        case LISTNAME:
-            {
-                return new ListName(parseTree.text().toLowerCase());
-            }
-        case EMPTY:
-            {
-                return new Empty();
             }
+            return new ListName(input.subSequence(start, position).toString().toLowerCase());
+        }
+        position++;
+        final int domain = position;
+        while (position < input.length() && isNameCharacter(input.charAt(position))) {
+            position++;
+        }
+        if (position == domain) {
+            throw error("expected the domain of a recipient");
+        }
+        return new Recipient(input.subSequence(start, position).toString().toLowerCase());
+    }
+
+    private void skipWhitespace() {
+        while (position < input.length() && isWhitespace(input.charAt(position))) {
+            position++;
+        }
+    }
+
+    // Get the character at position, or 0 at the end of the input
+    private char peek() {
+        return position < input.length() ? input.charAt(position) : 0;
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message + " at position " + position, position);
+    }
+
+    private static Operator toOperator(char c) {
+        switch (c) {
+        case '|':
+            return Operator.PARALLEL;
+        case ';':
+            return Operator.SEQUENCE;
+        case ',':
+            return Operator.UNION;
+        case '!':
+            return Operator.DIFFERENCE;
+        case '*':
+            return Operator.INTERSECTION;
         default:
-            throw new AssertionError("should never get here");
+            return null;
         }
     }
+
+    private static boolean isNameCharacter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '.'
+                || c == '-';
+    }
+
+    private static boolean isRecipientCharacter(char c) {
+        return isNameCharacter(c) || c == '+';
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
 }
@@ -1,22 +1,29 @@
 package norn;
 
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 
 public class ListName implements ListExpression {
     private final String listName;
+    private final Set<ListName> listNames;
+    private final long version;
     
-    // AF(listName) = the case-insensitive name of a mailing list, where
-    //                  listName is the name of the mailing list in all lowercase
+    // AF(listName, version) = the case-insensitive name of a mailing list, where
+    //                  listName is the name of the mailing list in all lowercase; or, if listName
+    //                  is name#n, the n-th prior version of a list created by a context, which is the
+    //                  definition that list name had when it was redefined in terms of itself
     //
     // RI: 
-    //  - listName has to follow this grammar: [A-Za-z0-9_.-]+
+    //  - listName has to follow this grammar: [A-Za-z0-9_.-]+ ('#' [0-9]+)?
     //  - listName is lowercase
+    //  - listNames is the immutable set containing just this list name
+    //  - version is n if listName is name#n, and -1 otherwise
     //
     // SRE:
     //  - all fields are private, final, and immutable
-    //  - none of the methods return references to any fields
+    //  - the methods only return references to listNames, which is immutable
     //
     // TSA:
     //  - all fields are final and immutable
@@ -27,19 +34,73 @@ public class ListName implements ListExpression {
      */
     public ListName(String listName) {
         this.listName = listName.toLowerCase();
+        this.listNames = Set.of(this);
+        this.version = -1;
         checkRep();
     }
+
+    // Constructor for a prior version of a list name
+    private ListName(ListName listName, long version) {
+        this.listName = listName.listName + "#" + version;
+        this.listNames = Set.of(this);
+        this.version = version;
+        checkRep();
+    }
+
+    /**
+     * Get a prior version of this list name. A prior version can't be parsed, so it never appears in the
+     * expressions that clients write, and it is only defined by Context.
+     *
+     * @param version unique number of the version, at least 0
+     * @return the list name this#version
+     */
+    ListName getPriorVersion(long version) {
+        return new ListName(this, version);
+    }
+
+    /**
+     * @return the number of this prior version of a list name, or -1 if this is not a prior version
+     */
+    long getVersion() {
+        return version;
+    }
     
     // check rep invariant
     private void checkRep() {
-        assert listName.matches("[A-Za-z0-9_.-]+");
+        assert listName.matches("[A-Za-z0-9_.-]+(#[0-9]+)?");
         assert listName.toLowerCase().equals(listName);
+        final int separator = listName.indexOf('#');
+        assert version == (separator < 0 ? -1 : Long.parseLong(listName.substring(separator + 1)));
+    }
+
+    @Override
+    public void schedule(Evaluator evaluator) throws EvaluationException {
+        evaluator.getContext().scheduleListName(this, evaluator);
+    }
+    
+    @Override
+    public ListExpression optimize(List<ListExpression> operands) {
+        return this;
+    }
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        return context.getMaterialized(this);
+    }
+
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return context.containsMaterialized(this, recipient);
     }
 
     @Override
-    public Set<String> evaluate(Context context) throws EvaluationException  {
-        ListExpression expression = context.getRelevantExpression(this);
-        return expression.evaluate(context);
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) throws EvaluationException {
+        return evaluator.streamListName(this);
+    }
+
+    @Override
+    public void compile(Compiler compiler, int index, int register) {
+        compiler.loadList(register, this);
     }
     
     @Override
@@ -53,21 +114,36 @@ public class ListName implements ListExpression {
     
     @Override
     public Set<ListName> getDefinedListNames() {
-        return new HashSet<>();
+        return Set.of();
     }
     
     @Override
     public Set<ListName> getAllListNames() {
-        return new HashSet<>(Set.of(this));
+        return listNames;
     }
     
     @Override
     public Set<ListName> getListNamesNotDefined() {
-        return new HashSet<>(Set.of(this));
+        return listNames;
+    }
+
+    @Override
+    public List<ListExpression> getOperands() {
+        return List.of();
+    }
+
+    @Override
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return this;
+    }
+
+    @Override
+    public String getDelimiter(int index) {
+        return listName;
     }
 
     @Override
-    public VisualizerTree getVisualizerTree() {
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
         return new VisualizerTree(listName);
     }
 
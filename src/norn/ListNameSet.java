@@ -0,0 +1,102 @@
+package norn;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Immutable set of list names, as kept by each node of a list expression for the list names its subtree
+ * defines and uses. The union of two sets is built by adding the smaller one to the larger one, sharing all of
+ * the larger one's structure, so the sets of all of the nodes of a tree with n list names take O(n log n)
+ * additions to build and O(n log n) space, even if the tree is very deep.
+ */
+final class ListNameSet extends AbstractSet<ListName> {
+    private final PersistentMap<ListName, Boolean> names;
+
+    // AF(names) = the set of keys of names
+    //
+    // RI:
+    //  - names has at least 2 keys (smaller sets are represented by Set.of())
+    //
+    // SRE:
+    //  - names is private, final and immutable, and iterators don't support remove()
+    //
+    // TSA:
+    //  - ListNameSet is immutable, so it is threadsafe
+
+    private ListNameSet(PersistentMap<ListName, Boolean> names) {
+        this.names = names;
+        checkRep();
+    }
+
+    // check rep invariant
+    private void checkRep() {
+        assert names.size() >= 2;
+    }
+
+    /**
+     * Get the union of two immutable sets of list names, sharing one of them if it has all of the list names.
+     *
+     * @param first immutable set of list names
+     * @param second immutable set of list names
+     * @return an immutable set of the list names in first or second
+     */
+    static Set<ListName> union(Set<ListName> first, Set<ListName> second) {
+        if (second.isEmpty() || first == second) {
+            return first;
+        } else if (first.isEmpty()) {
+            return second;
+        }
+        final Set<ListName> larger = first.size() >= second.size() ? first : second;
+        final Set<ListName> smaller = larger == first ? second : first;
+        if (larger.containsAll(smaller)) {
+            return larger;
+        }
+        PersistentMap<ListName, Boolean> union = PersistentMap.empty();
+        if (larger instanceof ListNameSet) {
+            union = ((ListNameSet) larger).names;
+        } else {
+            for (ListName listname : larger) {
+                union = union.plus(listname, true);
+            }
+        }
+        for (ListName listname : smaller) {
+            if (!union.containsKey(listname)) {
+                union = union.plus(listname, true);
+            }
+        }
+        return new ListNameSet(union);
+    }
+
+    /**
+     * Get the union of one kind of set of list names of some expressions.
+     *
+     * @param exprs expressions to get the list names of
+     * @param names function from an expression to one of its immutable sets of list names
+     * @return an immutable set of the list names in names.apply(expr) for some expr in exprs
+     */
+    static Set<ListName> union(List<ListExpression> exprs, Function<ListExpression, Set<ListName>> names) {
+        Set<ListName> union = Set.of();
+        for (ListExpression expr : exprs) {
+            union = union(union, names.apply(expr));
+        }
+        return union;
+    }
+
+    @Override
+    public int size() {
+        return names.size();
+    }
+
+    @Override
+    public boolean contains(Object listname) {
+        return listname != null && names.containsKey(listname);
+    }
+
+    @Override
+    public Iterator<ListName> iterator() {
+        return names.keyIterator();
+    }
+}
@@ -0,0 +1,160 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable Literal class: a literal set of recipients, such as the members of a list imported by
+ * MembershipImporter, kept as one RecipientSet instead of a Union with a Recipient node per member.
+ * It is written as that Union, which is what parsing its string gives back.
+ */
+public class Literal implements ListExpression {
+    private final RecipientSet recipients;
+    private final int hash;
+
+    // AF(recipients, hash) = the union of the recipients in recipients, in alphabetical order
+    //
+    // RI:
+    //  - recipients has at least 2 recipients, each of which follows username@domain in lowercase, as for
+    //      Recipient, and has an id in RecipientDictionary, since a literal is only made to be defined
+    //  - hash is Interner.hash(7, [recipients]), where each variant of ListExpression uses its own number
+    //
+    // SRE:
+    //  - all fields are private and final
+    //  - recipients is a copy made by the constructor, and getRecipients() returns a copy of it
+    //
+    // TSA:
+    //  - all fields are final, and recipients is never mutated after construction; the methods only read it,
+    //      which several threads may do at once
+
+    // check rep invariant
+    private void checkRep() {
+        assert recipients.size() >= 2;
+        for (String recipient : recipients) {
+            assert recipient.matches("[a-z0-9_.+-]+@[a-z0-9_.-]+");
+            assert RecipientDictionary.findId(recipient) >= 0;
+        }
+    }
+
+    /**
+     * Public constructor for Literal.
+     * @param recipients recipients (in lowercase), at least 2
+     */
+    public Literal(Set<String> recipients) {
+        this.recipients = RecipientSet.assigningIds(recipients);
+        this.hash = Interner.hash(7, List.of(this.recipients));
+        checkRep();
+    }
+
+    /**
+     * @return a new mutable set of the recipients of this literal
+     */
+    RecipientSet getRecipients() {
+        return new RecipientSet(recipients);
+    }
+
+    @Override
+    public void schedule(Evaluator evaluator) {
+        evaluator.returnResult(getRecipients());
+    }
+
+    @Override
+    public ListExpression optimize(List<ListExpression> operands) {
+        return this;
+    }
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        return getRecipients();
+    }
+
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return recipients.contains(recipient);
+    }
+
+    @Override
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) {
+        return SortedMerge.of(recipients);
+    }
+
+    @Override
+    public void compile(Compiler compiler, int index, int register) {
+        compiler.loadRecipients(register, this);
+    }
+
+    @Override
+    public ListExpression getUpdatedExpression(Context context, ListName listname) {
+        return this;
+    }
+
+    @Override
+    public Set<ListName> getDefinedListNames() {
+        return Set.of();
+    }
+
+    @Override
+    public Set<ListName> getAllListNames() {
+        return Set.of();
+    }
+
+    @Override
+    public Set<ListName> getListNamesNotDefined() {
+        return Set.of();
+    }
+
+    @Override
+    public List<ListExpression> getOperands() {
+        return List.of();
+    }
+
+    @Override
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return this;
+    }
+
+    @Override
+    public String getDelimiter(int index) {
+        return "(" + String.join(",", sorted()) + ")";
+    }
+
+    @Override
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
+        final VisualizerTree tree = new VisualizerTree("∪");
+        for (String recipient : sorted()) {
+            tree.addChild(new VisualizerTree(recipient));
+        }
+        return tree;
+    }
+
+    // Get the recipients in alphabetical order
+    private List<String> sorted() {
+        final List<String> sorted = new ArrayList<>(recipients);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    ///////////////////// Equality and toString() methods //////////////////////
+
+    @Override
+    public boolean equals(Object that) {
+        return that instanceof Literal && sameValue((Literal) that);
+    }
+
+    private boolean sameValue(Literal that) {
+        return this.hash == that.hash && this.recipients.equals(that.recipients);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Traversal.toString(this);
+    }
+}
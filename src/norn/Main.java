@@ -3,13 +3,20 @@
  */
 package norn;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Set;
+import java.util.Map;
+import java.util.StringJoiner;
 
 /**
  * Start the Norn mailing list system console interface and web server.
@@ -54,19 +61,33 @@ public class Main {
      * Read expression and command inputs from the console and output results,
      * and start a web server to handle requests from remote clients.
      * An empty console input terminates the program.
-     * @param args unused
-     * @throws IOException if there is an error reading the input
+     * @param args optionally, the directory of a Journal, from which the list definitions are recovered and in
+     *             which every change to them is recorded
+     * @throws IOException if there is an error reading the input, or reading or recovering the journal
      */
     public static void main(String[] args) throws IOException {
         final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        final PrintWriter out = new PrintWriter(System.out);
         final Main m = new Main(DEFAULT_PORT);
+        final Journal journal;
+        try {
+            journal = args.length > 0 ? Journal.open(Paths.get(args[0]), m.context) : null;
+        } catch (UnableToLoadException e) {
+            throw new IOException("unable to recover the journal in " + args[0], e);
+        }
 
         while (true) {
-            System.out.print("> ");
+            out.print("> ");
+            out.flush();
             final String input = in.readLine();
             try {
-                System.out.println(m.getReturn(input));
+                m.printReturn(input, out);
+                out.println();
+                out.flush();
             } catch (EndOfProgram endOfProgram) {
+                if (journal != null) {
+                    journal.close();
+                }
                 return;
             }
         }
@@ -74,45 +95,93 @@ public class Main {
 
     /**
      * Handles the different input of the console:
-     * - /load: loads the file of the corresponding path and updates the console with listname definitions
-     * - /save: saves the listname definitions to a corresponding filepath
+     * - /load: loads the file of the corresponding path and updates the console with listname definitions, from
+     *   either the text format or the binary format of SnapshotFormat, which the file's first bytes identify; a
+     *   file in the text format is read and loaded a batch of definitions at a time by StreamingLoader
+     * - /import: defines the lists named in a flat file of memberships, one "listname,recipient" or
+     *   "listname<tab>recipient" line each, as the sets of their members, read by MembershipImporter
+     * - /save: saves the listname definitions to a corresponding filepath, in the binary format of
+     *   SnapshotFormat if the path ends with SnapshotFormat.EXTENSION, and as a parsable expression otherwise
+     * - /optimize: shows a list expression before and after ListExpression.optimize(), without evaluating it
+     * - /stats: shows the statistics of the cache of parsed expressions (see ParseCache.getStats()) and of the
+     *   evaluation of parallels (see Context.getParallelStats())
      * - listExpression grammar: parses and generates a mailing list
      * - else: nothing, as it is an invalid command
      * @param input the different input that can be parsed in the console as decribed above
      * @return the output of the console based on the input:
      * - /load: "File loaded."
+     * - /import: "File imported."
      * - /save: "File saved."
+     * - /optimize: the expression, " => ", and the optimized expression
+     * - /stats: a line "parse cache: " and a line "parallel: ", each followed by "name: value" pairs separated by
+     *   ", "
      * - ListExpression grammar: the corresponding mailing list
      * - else: "INVALID COMMAND"
      * @throws EndOfProgram if input is empty
      */
     String getReturn(String input) throws EndOfProgram {
+        return getReturn(input, null);
+    }
+
+    // Get the output of the console for an input, as defined by getReturn(String), printing the progress of a
+    // /load of a file in the text format that takes more than one batch to progress, unless it is null
+    private String getReturn(String input, PrintWriter progress) throws EndOfProgram {
         if (input.isEmpty()) {
             web.stop();
             throw new EndOfProgram(); // exits the program
+        } else if (input.equals("/stats")) {
+            return "parse cache: " + formatStats(ParseCache.SHARED.getStats()) + "\n"
+                    + "parallel: " + formatStats(context.getParallelStats());
         } else if (input.startsWith("/")) {
             final String[] split = input.split("\\s+", 2);
             assert split.length == 2;
             final String command = split[0];
+            if (command.equals("/optimize")) {
+                try {
+                    final ListExpression expr = ListExpression.parse(split[1]);
+                    return expr + " => " + expr.optimize();
+                } catch (IllegalArgumentException e) {
+                    return "Unable to parse input.";
+                }
+            }
             final Path path = Paths.get(split[1]);
             switch (command) {
                 case "/load":
-                    String load;
-                    try {
-                        load = Files.readString(path);
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+                        if (SnapshotFormat.isSnapshot(in)) {
+                            context.loadBinary(in);
+                        } else {
+                            StreamingLoader.load(context, Channels.newChannel(in), Files.size(path), loaded -> {
+                                if (progress != null && loaded.getBytesRead() < loaded.getSize()) {
+                                    progress.println(loaded);
+                                    progress.flush();
+                                }
+                            });
+                        }
                     } catch (IOException e) {
                         return "Unable to load file.";
+                    } catch (UnableToLoadException e) {
+                        return "Unable to parse file.";
                     }
+                    return "File loaded.";
+                case "/import":
                     try {
-                        context.load(load);
+                        MembershipImporter.importFile(context, path);
+                    } catch (IOException e) {
+                        return "Unable to load file.";
                     } catch (UnableToLoadException e) {
                         return "Unable to parse file.";
                     }
-                    return "File loaded.";
+                    return "File imported.";
                 case "/save":
-                    String save = context.save();
                     try {
-                        Files.write(path, save.getBytes());
+                        if (path.toString().endsWith(SnapshotFormat.EXTENSION)) {
+                            try (OutputStream out = Files.newOutputStream(path)) {
+                                context.saveBinary(out);
+                            }
+                        } else {
+                            Files.write(path, context.save().getBytes());
+                        }
                     } catch (IOException e) {
                         return "Unable to write file.";
                     }
@@ -120,22 +189,48 @@ public class Main {
                 default:
                     return "INVALID COMMAND";
             }
+        } else {
+            final StringWriter result = new StringWriter();
+            printReturn(input, new PrintWriter(result));
+            return result.toString();
+        }
+    }
+
+    // Format statistics as "name: value" pairs separated by ", ", in the order of the map
+    private static String formatStats(Map<String, Long> stats) {
+        final StringJoiner joined = new StringJoiner(", ");
+        stats.forEach((name, value) -> joined.add(name + ": " + value));
+        return joined.toString();
+    }
+
+    /**
+     * Prints the output of the console for an input, as defined by getReturn(). The recipients of a list
+     * expression are printed as they are produced by Context.evaluateSorted(), so that the output of a large
+     * mailing list starts before all of its recipients have been evaluated.
+     * @param input the different input that can be parsed in the console, as described by getReturn()
+     * @param out writer to print the output of the console to, as described by getReturn(); it is flushed
+     *        before returning
+     * @throws EndOfProgram if input is empty
+     */
+    void printReturn(String input, PrintWriter out) throws EndOfProgram {
+        if (input.isEmpty() || input.startsWith("/")) {
+            out.print(getReturn(input, out));
         } else {
             try {
-                Set<String> result = context.evaluate(ListExpression.parse(input));
-                return Util.setToOrderedString(result);
+                Util.printJoined(context.evaluateSorted(ListExpression.parse(input)), out);
             } catch (EvaluationException e) {
                 if (e instanceof MailLoopException) {
-                    return "Expression creates mailing loop.";
+                    out.print("Expression creates mailing loop.");
                 } else if (e instanceof ParallelDefinitionException) {
-                    return "Invalid parallel definition.";
+                    out.print("Invalid parallel definition.");
                 } else {
-                    return "Unexpected exception in evaluation";
+                    out.print("Unexpected exception in evaluation");
                 }
             } catch (IllegalArgumentException e) {
-                return "Unable to parse input.";
+                out.print("Unable to parse input.");
             }
         }
+        out.flush();
     }
 
     static class EndOfProgram extends Exception {
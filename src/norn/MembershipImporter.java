@@ -0,0 +1,343 @@
+package norn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Importer of mailing list memberships from flat files, such as the exports of a directory of people, that
+ * defines each list as the literal set of its members without going through ListExpressionParser.
+ *
+ * The file holds one membership per line, as a listname and a recipient separated by ',' or a tab (so CSV and
+ * TSV exports both work), with optional spaces around either of them and an optional '\r' before the '\n'.
+ * Blank lines and lines starting with '#' are skipped, and so is a first line whose second field isn't a
+ * recipient, which is taken to be a header. Every list named in the file is defined as the union of all of
+ * its members, in place of its current definition.
+ *
+ * The file is memory-mapped and split at line boundaries into chunks of about chunkBytes bytes, which are
+ * parsed in parallel on the context's pool straight into a RecipientSet per list, and then merged. Only one
+ * short-lived String is made per line, for its recipient, plus one per run of lines of the same list, so the
+ * garbage made doesn't depend on how the members are grouped into lists. Each list is then defined as a
+ * Literal of its RecipientSet, rather than a Union of a Recipient per member, and the definitions are loaded
+ * all or nothing with Context.bulkLoadParsed().
+ */
+final class MembershipImporter {
+    static final int DEFAULT_CHUNK_BYTES = 8 << 20;
+
+    // Bytes read at a time while looking for the end of the line a chunk ends in
+    private static final int BOUNDARY_SCAN_BYTES = 4096;
+
+    private MembershipImporter() {
+        throw new AssertionError("MembershipImporter should not be instantiated");
+    }
+
+    /**
+     * Import the memberships in a file into a context with DEFAULT_CHUNK_BYTES, as defined by
+     * importFile(Context, Path, int).
+     *
+     * @param context context to define the lists in
+     * @param path file of memberships to read
+     * @return a map from statistic names to values, as defined by importFile(Context, Path, int)
+     * @throws IOException if the file can't be read
+     * @throws UnableToLoadException if a line of the file isn't a membership, or defining the lists throws an
+     *         EvaluationException, in which case context is unmodified
+     */
+    static Map<String, Long> importFile(Context context, Path path) throws IOException, UnableToLoadException {
+        return importFile(context, path, DEFAULT_CHUNK_BYTES);
+    }
+
+    /**
+     * Import the memberships in a file into a context, defining each list named in the file as the union of
+     * its members.
+     *
+     * @param context context to define the lists in
+     * @param path file of memberships to read
+     * @param chunkBytes the number of bytes of the file that one task parses, at least 1; a chunk is extended
+     *        to the end of the line it ends in
+     * @return a map from statistic names to values: those returned by Context.bulkLoadParsed() for the
+     *         definitions of the lists, where "parseNanos" is the time taken to read the file and build them,
+     *         and "bytes", "chunks", "rows" and "lists": the number of bytes in the file, chunks it was split
+     *         into, memberships read (counting duplicates), and lists defined
+     * @throws IOException if the file can't be read
+     * @throws UnableToLoadException if a line of the file isn't a membership, or defining the lists throws an
+     *         EvaluationException, in which case context is unmodified
+     */
+    static Map<String, Long> importFile(Context context, Path path, int chunkBytes)
+            throws IOException, UnableToLoadException {
+        final long start = System.nanoTime();
+        final long size;
+        final Chunk merged;
+        final List<Long> boundaries;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            size = channel.size();
+            boundaries = findBoundaries(channel, size, chunkBytes);
+            try {
+                merged = context.getPool().invoke(new ParseChunks(channel, boundaries, 0, boundaries.size() - 1));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (IllegalArgumentException e) {
+                throw new UnableToLoadException(e);
+            }
+        }
+        final List<ListExpression> definitions = new ArrayList<>();
+        for (Map.Entry<String, RecipientSet> list : new TreeMap<>(merged.lists).entrySet()) {
+            final RecipientSet members = list.getValue();
+            definitions.add(new Definition(new ListName(list.getKey()),
+                    members.size() == 1 ? new Recipient(members.iterator().next()) : new Literal(members)));
+        }
+        final Map<String, Long> stats = context.bulkLoadParsed(definitions, System.nanoTime() - start);
+        stats.put("bytes", size);
+        stats.put("chunks", (long) boundaries.size() - 1);
+        stats.put("rows", merged.rows);
+        stats.put("lists", (long) definitions.size());
+        return stats;
+    }
+
+    // Get the offsets at which the chunks of a file of size bytes start, followed by size: each chunk after
+    // the first starts at least chunkBytes bytes after the one before it, just after a '\n'
+    private static List<Long> findBoundaries(FileChannel channel, long size, int chunkBytes) throws IOException {
+        final List<Long> boundaries = new ArrayList<>(List.of(0L));
+        final ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_BYTES);
+        long position = chunkBytes;
+        while (position < size) {
+            scan.clear();
+            final int read = channel.read(scan, position);
+            if (read < 0) {
+                break;
+            }
+            int newline = -1;
+            for (int i = 0; i < read && newline < 0; i++) {
+                if (scan.get(i) == '\n') {
+                    newline = i;
+                }
+            }
+            if (newline < 0) {
+                position += read;       // the line is longer than what was read, so keep looking
+                continue;
+            }
+            final long boundary = position + newline + 1;
+            if (boundary < size) {
+                boundaries.add(boundary);
+            }
+            position = boundary + chunkBytes;
+        }
+        boundaries.add(size);
+        return boundaries;
+    }
+
+    // Memberships read from part of a file
+    private static final class Chunk {
+        private final Map<String, RecipientSet> lists = new HashMap<>();
+        private long rows = 0;
+
+        // AF(lists, rows) = rows memberships, where the members of list l are lists.get(l)
+        //
+        // RI:
+        //  - every listname in lists is lowercase and every set in lists is non-empty
+        //  - rows >= the total size of the sets in lists
+        //
+        // SRE:
+        //  - private class, whose fields are only used by MembershipImporter
+        //
+        // TSA:
+        //  - confined to the task that parses it until that task returns it, and then to the task that
+        //      merges it
+
+        // Add the memberships in that to this chunk
+        private Chunk merge(Chunk that) {
+            for (Map.Entry<String, RecipientSet> list : that.lists.entrySet()) {
+                final RecipientSet members = lists.putIfAbsent(list.getKey(), list.getValue());
+                if (members != null) {
+                    members.addAll(list.getValue());
+                }
+            }
+            rows += that.rows;
+            return this;
+        }
+    }
+
+    // Parser of the chunks in [from, to) of a file, whose offsets are given by boundaries
+    private static final class ParseChunks extends RecursiveTask<Chunk> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final List<Long> boundaries;
+        private final int from;
+        private final int to;
+
+        private ParseChunks(FileChannel channel, List<Long> boundaries, int from, int to) {
+            this.channel = channel;
+            this.boundaries = boundaries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Chunk compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                final ParseChunks right = new ParseChunks(channel, boundaries, middle, to);
+                right.fork();
+                final Chunk left = new ParseChunks(channel, boundaries, from, middle).compute();
+                return left.merge(right.join());
+            }
+            final Chunk chunk = new Chunk();
+            if (from == to) {
+                return chunk;
+            }
+            final long start = boundaries.get(from);
+            final MappedByteBuffer bytes;
+            try {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, boundaries.get(to) - start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            try {
+                parse(bytes, start, chunk);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            return chunk;
+        }
+    }
+
+    // Parse the lines in bytes, which start at offset in the file, into chunk
+    private static void parse(ByteBuffer bytes, long offset, Chunk chunk) throws ParseException {
+        final byte[] recipient = new byte[256];
+        byte[] listname = new byte[64];
+        int listnameLength = -1;
+        RecipientSet members = null;
+        boolean first = offset == 0;
+        int lineStart = 0;
+        final int limit = bytes.limit();
+        for (int i = 0; i <= limit; i++) {
+            if (i < limit && bytes.get(i) != '\n') {
+                continue;
+            }
+            final int end = trim(bytes, lineStart, i, -1);
+            final int begin = trim(bytes, lineStart, end, 1);
+            final long lineOffset = offset + lineStart;
+            lineStart = i + 1;
+            if (begin == end || bytes.get(begin) == '#') {
+                continue;
+            }
+            int separator = begin;
+            while (separator < end && bytes.get(separator) != ',' && bytes.get(separator) != '\t') {
+                separator++;
+            }
+            final int nameEnd = trim(bytes, begin, separator, -1);
+            final int recipientStart = separator == end ? end : trim(bytes, separator + 1, end, 1);
+            final boolean header = first;
+            first = false;
+            if (!isRecipient(bytes, recipientStart, end) || !isListName(bytes, begin, nameEnd)) {
+                if (header) {
+                    continue;
+                }
+                throw new ParseException("Not a membership on the line at byte " + lineOffset,
+                        (int) Math.min(lineOffset, Integer.MAX_VALUE));
+            }
+            if (!sameBytes(bytes, begin, nameEnd, listname, listnameLength)) {
+                listnameLength = nameEnd - begin;
+                if (listnameLength > listname.length) {
+                    listname = new byte[Math.max(listnameLength, 2 * listname.length)];
+                }
+                lowercase(bytes, begin, nameEnd, listname);
+                members = chunk.lists.computeIfAbsent(
+                        new String(listname, 0, listnameLength, StandardCharsets.US_ASCII),
+                        l -> new RecipientSet());
+            }
+            final int recipientLength = end - recipientStart;
+            final byte[] scratch = recipientLength <= recipient.length ? recipient : new byte[recipientLength];
+            lowercase(bytes, recipientStart, end, scratch);
+            members.addAssigningId(new String(scratch, 0, recipientLength, StandardCharsets.US_ASCII));
+            chunk.rows++;
+        }
+    }
+
+    // Get the end (if direction < 0) or start (if direction > 0) of bytes[from, to) without the spaces, tabs
+    // and '\r' on that side
+    private static int trim(ByteBuffer bytes, int from, int to, int direction) {
+        if (direction < 0) {
+            while (to > from && isBlank(bytes.get(to - 1))) {
+                to--;
+            }
+            return to;
+        }
+        while (from < to && isBlank(bytes.get(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    // Check whether bytes[from, to) follows the grammar of a listname defined by the user, [A-Za-z0-9_.-]+
+    private static boolean isListName(ByteBuffer bytes, int from, int to) {
+        if (from == to) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (!isNameByte(bytes.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Check whether bytes[from, to) follows the grammar of a recipient, [A-Za-z0-9_.+-]+ '@' [A-Za-z0-9_.-]+
+    private static boolean isRecipient(ByteBuffer bytes, int from, int to) {
+        int at = -1;
+        for (int i = from; i < to; i++) {
+            final byte b = bytes.get(i);
+            if (b == '@' && at < 0) {
+                at = i;
+            } else if (!isNameByte(b) && (b != '+' || at >= 0)) {
+                return false;
+            }
+        }
+        return at > from && at < to - 1;
+    }
+
+    private static boolean isNameByte(byte b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9'
+                || b == '_' || b == '.' || b == '-';
+    }
+
+    // Check whether bytes[from, to), in lowercase, is the same as name[0, length)
+    private static boolean sameBytes(ByteBuffer bytes, int from, int to, byte[] name, int length) {
+        if (to - from != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (toLowerCase(bytes.get(from + i)) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Copy bytes[from, to), in lowercase, into the start of into
+    private static void lowercase(ByteBuffer bytes, int from, int to, byte[] into) {
+        for (int i = from; i < to; i++) {
+            into[i - from] = toLowerCase(bytes.get(i));
+        }
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -1,17 +1,19 @@
 package norn;
 
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinTask;
 
 
 public class Parallel implements ListExpression {
     private ListExpression expr1;
     private ListExpression expr2;
+    private final Set<ListName> definedListNames;
+    private final Set<ListName> usedListNames;
+    private final Set<ListName> allListNames;
+    private final int hash;
     
     // AF(expr1, expr2) = a parallel operation, where expr1 and expr2 are list expressions 
     //                      evaluated in parallel, and the parallel operation itself evaluates
@@ -19,11 +21,13 @@ public class Parallel implements ListExpression {
     //                      in later parts of the list expression.
     //
     // RI: 
-    //  - true
+    //  - definedListNames, usedListNames and allListNames are the list names defined, used, and defined or
+    //      used in expr1 and expr2, each an immutable set
+    //  - hash is Interner.hash(5, [expr1, expr2]), where each variant of ListExpression uses its own number
     //
     // SRE:
     //  - all fields are private, final, and immutable
-    //  - none of the methods return references to any fields
+    //  - the methods only return references to the sets of list names, which are immutable
     //
     // TSA:
     //  - all fields are final and immutable
@@ -37,88 +41,134 @@ public class Parallel implements ListExpression {
     public Parallel(ListExpression expr1, ListExpression expr2) {
         this.expr1 = expr1;
         this.expr2 = expr2;
+        this.hash = Interner.hash(5, List.of(expr1, expr2));
+        this.definedListNames = ListNameSet.union(expr1.getDefinedListNames(), expr2.getDefinedListNames());
+        this.usedListNames = ListNameSet.union(expr1.getListNamesNotDefined(), expr2.getListNamesNotDefined());
+        this.allListNames = ListNameSet.union(expr1.getAllListNames(), expr2.getAllListNames());
     }
     
     @Override
-    public Set<String> evaluate(Context context) throws EvaluationException {
+    public void schedule(Evaluator evaluator) throws EvaluationException {
+        final Context context = evaluator.getContext();
+        final Snapshot snapshot = evaluator.getSnapshot();
         // check for parallel condition
-        // check for expr1:
-        Set<ListName> allListNames1 = new HashSet<>();
-        Set<ListName> allDirectListNames1 = expr1.getAllListNames();
-        for (ListName listname : allDirectListNames1) {
-            allListNames1.add(listname);
-            allListNames1.addAll(context.getDependencies(listname));
-        }
-        Set<ListName> definedListNames2 = expr2.getDefinedListNames();
-        if (!Collections.disjoint(allListNames1, definedListNames2)) {
+        if (usesAny(context, snapshot, expr1.getAllListNames(), expr2.getDefinedListNames())
+                || usesAny(context, snapshot, expr2.getAllListNames(), expr1.getDefinedListNames())) {
             throw new ParallelDefinitionException("Parallel subexpressions must not define any "
                     + "list names that also appear directly or indirectly in the other subexpression.");
         }
-        // check for expr2:
-        Set<ListName> allListNames2 = new HashSet<>();
-        Set<ListName> allDirectListNames2 = expr2.getAllListNames();
-        for (ListName listname : allDirectListNames2) {
-            allListNames2.add(listname);
-            allListNames2.addAll(context.getDependencies(listname));
+
+        final ForkJoinTask<?> forked = evaluator.fork(expr2);
+        evaluator.evaluateThen(List.of(expr1), results -> {
+            evaluator.join(forked);
+            evaluator.returnResult(new RecipientSet());
+        });
+    }
+    
+    // Check whether one of listnames is in defined, or depends on a listname in defined in snapshot, using
+    // the dependencies the context caches for each listname
+    private static boolean usesAny(Context context, Snapshot snapshot, Set<ListName> listnames,
+            Set<ListName> defined) {
+        if (defined.isEmpty()) {
+            return false;
         }
-        Set<ListName> definedListNames1 = expr1.getDefinedListNames();
-        if (!Collections.disjoint(allListNames2, definedListNames1)) {
-            throw new ParallelDefinitionException("Parallel subexpressions must not define any "
-                    + "list names that also appear directly or indirectly in the other subexpression.");
+        for (ListName listname : listnames) {
+            if (defined.contains(listname)
+                    || !Collections.disjoint(context.getDependencies(listname, snapshot), defined)) {
+                return true;
+            }
         }
+        return false;
+    }
+    
+    // The check for parallel definitions is made on the operands as written: a side is only replaced by its
+    // optimized form if that uses and defines the same list names, and the parallel is only dropped if a side
+    // as written uses no list names, so that no check can fail
+    @Override
+    public ListExpression optimize(List<ListExpression> operands) {
+        if (expr2.getAllListNames().isEmpty()) {
+            return discardResult(operands.get(0));
+        } else if (expr1.getAllListNames().isEmpty()) {
+            return discardResult(operands.get(1));
+        }
+        return new Parallel(sameListNames(expr1, operands.get(0)), sameListNames(expr2, operands.get(1)));
+    }
+
+    // Get the optimized form of (optimized ; ∅), given optimized already optimized
+    private static ListExpression discardResult(ListExpression optimized) {
+        final List<ListExpression> statements = List.of(optimized, new Empty());
+        return new Sequence(statements).optimize(statements);
+    }
 
+    // Get optimized if it uses and defines the same list names as expr, or expr otherwise
+    private static ListExpression sameListNames(ListExpression expr, ListExpression optimized) {
+        return optimized.getAllListNames().equals(expr.getAllListNames())
+                && optimized.getDefinedListNames().equals(expr.getDefinedListNames()) ? optimized : expr;
+    }
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        return new RecipientSet();
+    }
 
-        ExecutorService threadExecutor = Executors.newSingleThreadExecutor();
-        final Future<Set<String>> result = threadExecutor.submit(() -> expr2.evaluate(context));
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return false;
+    }
 
-        expr1.evaluate(context);
+    @Override
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) {
+        return Collections.emptyIterator();
+    }
 
-        try {
-            result.get();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } catch (ExecutionException e) {
-            assert e.getCause() instanceof EvaluationException;
-            throw (EvaluationException) e.getCause();
+    @Override
+    public void compile(Compiler compiler, int index, int register) {
+        if (index == 0) {
+            compiler.loadEmpty(register);
+            compiler.skip();
         }
-        
-        return new HashSet<>();
     }
     
     @Override
     public ListExpression getUpdatedExpression(Context context, ListName listname) {
-        return new Parallel(expr1.getUpdatedExpression(context, listname), expr2.getUpdatedExpression(context, listname));
+        return Traversal.getUpdatedExpression(this, context, listname);
     }
     
     @Override
     public Set<ListName> getDefinedListNames() {
-        Set<ListName> s1 = expr1.getDefinedListNames();
-        Set<ListName> s2 = expr2.getDefinedListNames();
-        s1.addAll(s2);
-        return s1;
+        return definedListNames;
     }
     
     @Override
     public Set<ListName> getAllListNames() {
-        Set<ListName> s1 = expr1.getAllListNames();
-        Set<ListName> s2 = expr2.getAllListNames();
-        s1.addAll(s2);
-        return s1;
+        return allListNames;
     }
     
     @Override
     public Set<ListName> getListNamesNotDefined() {
-        Set<ListName> s1 = expr1.getListNamesNotDefined();
-        Set<ListName> s2 = expr2.getListNamesNotDefined();
-        s1.addAll(s2);
-        return s1;
+        return usedListNames;
+    }
+
+    @Override
+    public List<ListExpression> getOperands() {
+        return List.of(expr1, expr2);
     }
 
     @Override
-    public VisualizerTree getVisualizerTree() {
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return new Parallel(operands.get(0), operands.get(1));
+    }
+
+    @Override
+    public String getDelimiter(int index) {
+        return List.of("(", " | ", ")").get(index);
+    }
+
+    @Override
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
         final VisualizerTree tree = new VisualizerTree("parallel");
-        tree.addChild(expr1.getVisualizerTree());
-        tree.addChild(expr2.getVisualizerTree());
+        tree.addChild(operands.get(0));
+        tree.addChild(operands.get(1));
         return tree;
     }
 
@@ -126,21 +176,18 @@ public class Parallel implements ListExpression {
         
     @Override
     public boolean equals(Object that) {
-        return that instanceof Parallel && sameValue((Parallel) that);
-    }
-    
-    private boolean sameValue(Parallel that) {
-        return this.expr1.equals(that.expr1) && this.expr2.equals(that.expr2);
+        return this == that
+                || that instanceof Parallel && Traversal.equal(this, (Parallel) that);
     }
     
     @Override
     public int hashCode() {
-        return expr1.hashCode() + expr2.hashCode();
+        return hash;
     }
     
     @Override
     public String toString() {
-        return "(" + expr1.toString() + " | " + expr2.toString() + ")";
+        return Traversal.toString(this);
     }
 
 }
\ No newline at end of file
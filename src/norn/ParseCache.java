@@ -0,0 +1,215 @@
+package norn;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Threadsafe, size-bounded cache of parsed list expressions, keyed by the input string. Expressions are
+ * immutable, so the same parsed expression can be returned for every request with the same input. Inputs that
+ * fail to parse are not cached, and neither are inputs longer than a maximum length (like saved files), so the
+ * cache never holds large strings alive.
+ * The cache is split into segments by the hash code of the input, each with its own lock, that evict their own
+ * least recently used entry when they are full, so that threads parsing at the same time rarely wait for each
+ * other. A cache too small to split keeps one segment, and evicts its least recently used entry.
+ */
+final class ParseCache {
+    static final int DEFAULT_CAPACITY = 1024;
+    static final int DEFAULT_MAX_LENGTH = 4096;
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+
+    /**
+     * The cache used by ListExpression.parse().
+     */
+    static final ParseCache SHARED = new ParseCache(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+
+    private final int capacity;
+    private final int maxLength;
+    private final List<Segment> segments = new ArrayList<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // AF(capacity, maxLength, segments, hits, misses, evictions) = a cache mapping each input in the segments to
+    //                              the expression it parses to, that holds at most capacity inputs of at most
+    //                              maxLength characters each, each in segment segmentOf(input), which orders
+    //                              its inputs from least to most recently used; hits, misses and evictions
+    //                              count the lookups that found their input, the lookups that didn't (including
+    //                              inputs too long to cache), and the entries evicted
+    //
+    // RI:
+    //  - capacity > 0, maxLength >= 0
+    //  - segments has a power of 2 segments, at most MAX_SEGMENTS, whose capacities are each at least 1 and
+    //      add up to capacity
+    //  - each segment holds at most its capacity inputs, each of at most maxLength characters and with
+    //      segmentOf(input) == the index of the segment
+    //  - hits, misses, evictions >= 0
+    //
+    // SRE:
+    //  - all fields are private, and segments and their maps are never returned; expressions are immutable
+    //
+    // TSA:
+    //  - segments is never modified after construction, and each segment's map is only accessed while holding
+    //      that segment's lock; hits, misses and evictions are LongAdders, which threads add to without waiting
+    //      for each other
+    //  - inputs are parsed without any lock, so threads never wait for each other's parses, and two threads that
+    //      miss the same input at once may both parse it, which is harmless since their results are equal
+
+    // One segment of the cache, whose map is ordered from least to most recently used input
+    private final class Segment {
+        private final int capacity;
+        private final Map<String, ListExpression> parsed;
+
+        private Segment(int capacity) {
+            this.capacity = capacity;
+            this.parsed = new LinkedHashMap<>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ListExpression> eldest) {
+                    if (size() > Segment.this.capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    /**
+     * Constructor for an empty cache.
+     *
+     * @param capacity maximum number of inputs to cache, at least 1
+     * @param maxLength maximum length of an input to cache
+     */
+    ParseCache(int capacity, int maxLength) {
+        this.capacity = capacity;
+        this.maxLength = maxLength;
+        int count = 1;
+        while (count < MAX_SEGMENTS && capacity / (2 * count) >= MIN_SEGMENT_CAPACITY) {
+            count *= 2;
+        }
+        for (int i = 0; i < count; i++) {
+            segments.add(new Segment(capacity / count + (i < capacity % count ? 1 : 0)));
+        }
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert capacity > 0 && maxLength >= 0;
+        assert Integer.bitCount(segments.size()) == 1 && segments.size() <= MAX_SEGMENTS;
+        int total = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            final Segment segment = segments.get(i);
+            assert segment.capacity >= 1;
+            total += segment.capacity;
+            synchronized (segment) {
+                assert segment.parsed.size() <= segment.capacity;
+                for (String input : segment.parsed.keySet()) {
+                    assert input.length() <= maxLength;
+                    assert segmentOf(input) == i;
+                }
+            }
+        }
+        assert total == capacity;
+        assert hits.sum() >= 0 && misses.sum() >= 0 && evictions.sum() >= 0;
+    }
+
+    // Get the index of the segment that holds input
+    private int segmentOf(String input) {
+        final int hash = input.hashCode();
+        return (hash ^ (hash >>> 16)) & (segments.size() - 1);
+    }
+
+    /**
+     * Parse an input, or get the expression it was parsed to before.
+     *
+     * @param input string to parse
+     * @return ListExpression parsed from input, as defined by ListExpressionParser.parse()
+     * @throws ParseException if input doesn't match the grammar, as defined by ListExpressionParser.parse()
+     */
+    ListExpression parse(String input) throws ParseException {
+        final Segment segment = input.length() <= maxLength ? segments.get(segmentOf(input)) : null;
+        if (segment != null) {
+            final ListExpression cached;
+            synchronized (segment) {
+                cached = segment.parsed.get(input);
+            }
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+        final ListExpression expr = ListExpressionParser.parse(input);
+        if (segment != null) {
+            synchronized (segment) {
+                segment.parsed.put(input, expr);
+            }
+        }
+        return expr;
+    }
+
+    /**
+     * @return the number of inputs in this cache
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.parsed.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of calls to parse() that found their input in this cache
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of calls to parse() that didn't find their input in this cache
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of inputs evicted from this cache to stay within its capacity
+     */
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get statistics about this cache. Each one is read separately, so while other threads are parsing they
+     * may not add up exactly.
+     *
+     * @return a map from statistic names to values:
+     *         "size": the number of inputs in this cache, out of "capacity",
+     *         "hits", "misses" and "evictions": as defined by getHits(), getMisses() and getEvictions()
+     */
+    Map<String, Long> getStats() {
+        final Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("size", (long) size());
+        stats.put("capacity", (long) capacity);
+        stats.put("hits", getHits());
+        stats.put("misses", getMisses());
+        stats.put("evictions", getEvictions());
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "size: " + size() + ", hits: " + getHits() + ", misses: " + getMisses()
+                + ", evictions: " + getEvictions();
+    }
+}
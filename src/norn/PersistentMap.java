@@ -0,0 +1,350 @@
+package norn;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable map implemented as a hash array mapped trie (HAMT). Adding or removing a key returns a new map that
+ * shares all of the trie with this one except the O(log n) nodes on the path to the key, so old versions stay
+ * valid and cheap to keep while new versions are built from them. Null keys are not allowed; null values are.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+final class PersistentMap<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int HASH_BITS = 32;
+    private static final int MAX_DEPTH = HASH_BITS / BITS + 2;     // branching levels, and a collision node
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(new Node(0, new Object[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    // AF(root, size) = the map from the key of each Entry in the trie under root to its value. Each node at
+    //                  depth d branches on bits [BITS*d, BITS*d + BITS) of the hash of the keys below it; a node
+    //                  deeper than the hash has bits is a collision node, holding entries whose hashes are equal
+    //
+    // RI:
+    //  - size is the number of entries in the trie
+    //  - in a branching node, slots has one element per bit set in bitmap, in order of the bits, each an Entry
+    //      or a non-empty Node whose keys all have that bit's value at the node's depth
+    //  - no two entries in the trie have equal keys
+    //
+    // SRE:
+    //  - all fields are private and final, and nodes are never modified after they are built
+    //
+    // TSA:
+    //  - PersistentMap is immutable, so it is threadsafe
+
+    // A key with its value and its hash
+    private static final class Entry {
+        private final Object key;
+        private final Object value;
+        private final int hash;
+
+        private Entry(Object key, Object value, int hash) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+        }
+    }
+
+    // A branching node, or a collision node if it is deeper than the hash has bits (then bitmap is unused)
+    private static final class Node {
+        private final int bitmap;
+        private final Object[] slots;
+
+        private Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param <K> type of the keys
+     * @param <V> type of the values
+     * @return the empty map
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * @return the number of keys in this map
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param key key to look for
+     * @return true if and only if this map has key
+     */
+    boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    /**
+     * @param key key to look up
+     * @return the value of key, or null if this map doesn't have key
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        final Entry entry = find(key);
+        return entry == null ? null : (V) entry.value;
+    }
+
+    /**
+     * @param key key to look up
+     * @param defaultValue value to return if this map doesn't have key
+     * @return the value of key, or defaultValue if this map doesn't have key
+     */
+    @SuppressWarnings("unchecked")
+    V getOrDefault(Object key, V defaultValue) {
+        final Entry entry = find(key);
+        return entry == null ? defaultValue : (V) entry.value;
+    }
+
+    /**
+     * @param key key to add or replace, not null
+     * @param value value of key
+     * @return a map with the same keys and values as this one, except that key has value
+     */
+    PersistentMap<K, V> plus(K key, V value) {
+        final Entry entry = new Entry(Objects.requireNonNull(key), value, hash(key));
+        final boolean present = containsKey(key);
+        return new PersistentMap<>(put(root, 0, entry), present ? size : size + 1);
+    }
+
+    /**
+     * @param key key to remove
+     * @return a map with the same keys and values as this one, except that it doesn't have key
+     */
+    PersistentMap<K, V> minus(Object key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+        final Object removed = remove(root, 0, key, hash(key));
+        final Node newRoot = removed instanceof Node ? (Node) removed : removed == null
+                ? new Node(0, new Object[0])
+                : new Node(bit(((Entry) removed).hash, 0), new Object[] { removed });
+        return new PersistentMap<>(newRoot, size - 1);
+    }
+
+    /**
+     * Call action on each key and its value, in no particular order.
+     *
+     * @param action action to call
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        forEach(root, (BiConsumer<Object, Object>) action);
+    }
+
+    /**
+     * @return an iterator over the keys of this map, in no particular order, that doesn't support remove()
+     */
+    Iterator<K> keyIterator() {
+        return new Iterator<>() {
+            private final Object[][] path = new Object[MAX_DEPTH][];    // slots of the nodes above the next key
+            private final int[] next = new int[MAX_DEPTH];              // ... and the next slot to visit in each
+            private int depth = 0;
+            private Entry entry;                                        // the next key's entry, or null
+
+            {
+                path[0] = root.slots;
+                entry = advance();
+            }
+
+            // Get the next entry in the trie, or null if there are no more
+            private Entry advance() {
+                while (depth >= 0) {
+                    if (next[depth] == path[depth].length) {
+                        depth--;
+                        continue;
+                    }
+                    final Object slot = path[depth][next[depth]++];
+                    if (slot instanceof Entry) {
+                        return (Entry) slot;
+                    }
+                    depth++;
+                    path[depth] = ((Node) slot).slots;
+                    next[depth] = 0;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return entry != null;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public K next() {
+                if (entry == null) {
+                    throw new NoSuchElementException();
+                }
+                final K key = (K) entry.key;
+                entry = advance();
+                return key;
+            }
+        };
+    }
+
+    private static void forEach(Node node, BiConsumer<Object, Object> action) {
+        for (Object slot : node.slots) {
+            if (slot instanceof Entry) {
+                action.accept(((Entry) slot).key, ((Entry) slot).value);
+            } else {
+                forEach((Node) slot, action);
+            }
+        }
+    }
+
+    private static int hash(Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    // Find the entry with key, or null
+    private Entry find(Object key) {
+        final int hash = hash(key);
+        Node node = root;
+        for (int shift = 0; ; shift += BITS) {
+            if (shift >= HASH_BITS) {
+                for (Object slot : node.slots) {
+                    if (((Entry) slot).key.equals(key)) {
+                        return (Entry) slot;
+                    }
+                }
+                return null;
+            }
+            final int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            final Object slot = node.slots[index(node.bitmap, bit)];
+            if (slot instanceof Entry) {
+                final Entry entry = (Entry) slot;
+                return entry.hash == hash && entry.key.equals(key) ? entry : null;
+            }
+            node = (Node) slot;
+        }
+    }
+
+    // Get a copy of node with entry added, or replacing the entry with the same key
+    private static Node put(Node node, int shift, Entry entry) {
+        if (shift >= HASH_BITS) {
+            for (int i = 0; i < node.slots.length; i++) {
+                if (((Entry) node.slots[i]).key.equals(entry.key)) {
+                    return new Node(0, replaced(node.slots, i, entry));
+                }
+            }
+            return new Node(0, inserted(node.slots, node.slots.length, entry));
+        }
+        final int bit = bit(entry.hash, shift);
+        final int i = index(node.bitmap, bit);
+        if ((node.bitmap & bit) == 0) {
+            return new Node(node.bitmap | bit, inserted(node.slots, i, entry));
+        }
+        final Object slot = node.slots[i];
+        if (slot instanceof Node) {
+            return new Node(node.bitmap, replaced(node.slots, i, put((Node) slot, shift + BITS, entry)));
+        }
+        final Entry existing = (Entry) slot;
+        if (existing.hash == entry.hash && existing.key.equals(entry.key)) {
+            return new Node(node.bitmap, replaced(node.slots, i, entry));
+        }
+        return new Node(node.bitmap, replaced(node.slots, i, merge(existing, entry, shift + BITS)));
+    }
+
+    // Get a node holding two entries with different keys that share a path down to shift
+    private static Node merge(Entry first, Entry second, int shift) {
+        if (shift >= HASH_BITS) {
+            return new Node(0, new Object[] { first, second });
+        }
+        final int firstBit = bit(first.hash, shift);
+        final int secondBit = bit(second.hash, shift);
+        if (firstBit == secondBit) {
+            return new Node(firstBit, new Object[] { merge(first, second, shift + BITS) });
+        }
+        return new Node(firstBit | secondBit, Integer.compareUnsigned(firstBit, secondBit) < 0
+                ? new Object[] { first, second }
+                : new Object[] { second, first });
+    }
+
+    // Get a copy of node without key, which it must contain: a Node, a single Entry if that is all that is left
+    // (so that it can move up into its parent), or null if nothing is left
+    private static Object remove(Node node, int shift, Object key, int hash) {
+        if (shift >= HASH_BITS) {
+            int i = 0;
+            while (!((Entry) node.slots[i]).key.equals(key)) {
+                i++;
+            }
+            return node.slots.length == 2 ? node.slots[1 - i] : new Node(0, removed(node.slots, i));
+        }
+        final int bit = bit(hash, shift);
+        final int i = index(node.bitmap, bit);
+        final Object slot = node.slots[i];
+        final Object replacement = slot instanceof Entry ? null : remove((Node) slot, shift + BITS, key, hash);
+        if (replacement == null) {
+            if (node.slots.length == 1) {
+                return null;
+            }
+            if (node.slots.length == 2 && node.slots[1 - i] instanceof Entry) {
+                return node.slots[1 - i];
+            }
+            return new Node(node.bitmap & ~bit, removed(node.slots, i));
+        }
+        if (node.slots.length == 1 && replacement instanceof Entry) {
+            return replacement;
+        }
+        return new Node(node.bitmap, replaced(node.slots, i, replacement));
+    }
+
+    private static Object[] replaced(Object[] slots, int i, Object value) {
+        final Object[] copy = slots.clone();
+        copy[i] = value;
+        return copy;
+    }
+
+    private static Object[] inserted(Object[] slots, int i, Object value) {
+        final Object[] copy = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, copy, 0, i);
+        copy[i] = value;
+        System.arraycopy(slots, i, copy, i + 1, slots.length - i);
+        return copy;
+    }
+
+    private static Object[] removed(Object[] slots, int i) {
+        final Object[] copy = Arrays.copyOf(slots, slots.length - 1);
+        System.arraycopy(slots, i + 1, copy, i, slots.length - i - 1);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("{");
+        forEach((key, value) -> builder.append(builder.length() > 1 ? ", " : "").append(key).append("=").append(value));
+        return builder.append("}").toString();
+    }
+}
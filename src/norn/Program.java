@@ -0,0 +1,263 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable list expression compiled by Compiler into a flat array of instructions on set registers, which
+ * are executed by a single interpreter loop instead of walking the expression tree. The instructions are:
+ *  - load-empty r: r = {}
+ *  - load-recipient r c: r = {constant c}
+ *  - load-list r c: r = the recipients of list name constant c in the context
+ *  - union-into r s, intersect-into r s, difference-into r s: r = r op s, and s is cleared
+ *  - move r s: r = s, and s is cleared
+ *  - jump-if-empty r i: continue at instruction i if r is empty
+ *  - jump i: continue at instruction i
+ *  - load-recipients r c: r = the recipients of literal constant c
+ * The result of a program is register 0 once its last instruction has been executed.
+ */
+public final class Program {
+    static final int LOAD_EMPTY = 0;
+    static final int LOAD_RECIPIENT = 1;
+    static final int LOAD_LIST = 2;
+    static final int UNION_INTO = 3;
+    static final int INTERSECT_INTO = 4;
+    static final int DIFFERENCE_INTO = 5;
+    static final int MOVE = 6;
+    static final int JUMP_IF_EMPTY = 7;
+    static final int JUMP = 8;
+    static final int LOAD_RECIPIENTS = 9;
+
+    private static final List<String> NAMES = List.of("load-empty", "load-recipient", "load-list", "union-into",
+            "intersect-into", "difference-into", "move", "jump-if-empty", "jump", "load-recipients");
+    private static final int WIDTH = 3;
+
+    private final int[] code;
+    private final Object[] constants;
+    private final int registerCount;
+
+    // AF(code, constants, registerCount) = the program whose instruction i is the operation code[3i] applied on
+    //                              the arguments code[3i+1] and code[3i+2], which are register numbers,
+    //                              constant indices into constants, or instruction numbers, as listed above;
+    //                              it uses registers 0 to registerCount-1
+    //
+    // RI:
+    //  - code.length is a multiple of 3, and registerCount >= 1
+    //  - every opcode is one of the constants above, every register is in [0, registerCount), every jump
+    //      target is in [0, code.length / 3], and the constant of load-recipient is a String, of
+    //      load-recipients a Literal, and of load-list a ListName
+    //
+    // SRE:
+    //  - all fields are private and final; code and constants are copied by Compiler and never returned
+    //
+    // TSA:
+    //  - all fields are final and never mutated after construction; each call to run() uses its own registers
+
+    /**
+     * Create a program. Clients should call Compiler.compile() instead.
+     *
+     * @param code instructions, 3 ints each, as described by the abstraction function
+     * @param constants recipients, literals and list names that the instructions refer to
+     * @param registerCount number of registers used by the instructions
+     */
+    Program(int[] code, Object[] constants, int registerCount) {
+        this.code = code;
+        this.constants = constants;
+        this.registerCount = registerCount;
+        checkRep();
+    }
+
+    // check rep invariant
+    private void checkRep() {
+        assert code.length % WIDTH == 0;
+        assert registerCount >= 1;
+        for (int pc = 0; pc < code.length; pc += WIDTH) {
+            assert code[pc] >= LOAD_EMPTY && code[pc] <= LOAD_RECIPIENTS;
+            if (code[pc] == LOAD_RECIPIENT) {
+                assert constants[code[pc + 2]] instanceof String;
+            } else if (code[pc] == LOAD_RECIPIENTS) {
+                assert constants[code[pc + 2]] instanceof Literal;
+            } else if (code[pc] == LOAD_LIST) {
+                assert constants[code[pc + 2]] instanceof ListName;
+            }
+        }
+    }
+
+    /**
+     * @return the number of instructions in this program
+     */
+    public int size() {
+        return code.length / WIDTH;
+    }
+
+    // One program being run by the interpreter loop
+    private static final class Frame {
+        private final Program program;
+        private final List<Set<String>> registers;
+        private final ListName listname;        // list name whose definition this program is, or null
+        private final int returnRegister;       // register of the calling frame that receives the result
+        private int pc = 0;
+
+        Frame(Program program, ListName listname, int returnRegister) {
+            this.program = program;
+            this.registers = new ArrayList<>(Collections.nCopies(program.registerCount, null));
+            this.listname = listname;
+            this.returnRegister = returnRegister;
+        }
+    }
+
+    /**
+     * Run this program. A list name whose recipients the context already knows is loaded from the context;
+     * otherwise its definition's compiled program (see Context.getProgram) is run by the same loop, on an
+     * explicit stack of frames, and its recipients are remembered by the context; definitions that define
+     * other list names are evaluated with context.evaluateListName().
+     *
+     * @param context context with the definitions of the list names this program loads, which are read from
+     *                its latest snapshot
+     * @return a new set of the recipients of the compiled expression
+     * @throws EvaluationException if evaluating a definition that defines other list names throws
+     */
+    public Set<String> run(Context context) throws EvaluationException {
+        return run(context, context.getSnapshot());
+    }
+
+    /**
+     * Run this program, as defined by run(Context), reading the definitions of the list names it loads from
+     * one snapshot of context.
+     *
+     * @param context context with the definitions of the list names this program loads
+     * @param snapshot snapshot of context to read definitions from
+     * @return a new set of the recipients of the compiled expression
+     * @throws EvaluationException if evaluating a definition that defines other list names throws
+     */
+    Set<String> run(Context context, Snapshot snapshot) throws EvaluationException {
+        final Deque<Frame> frames = new ArrayDeque<>();
+        frames.push(new Frame(this, null, 0));
+        while (true) {
+            final Frame frame = frames.peek();
+            final int[] code = frame.program.code;
+            final List<Set<String>> registers = frame.registers;
+            if (frame.pc == code.length) {
+                frames.pop();
+                final Set<String> result = registers.get(0);
+                if (frame.listname != null) {
+                    context.cacheRecipients(frame.listname, result, snapshot);
+                }
+                if (frames.isEmpty()) {
+                    return result;
+                }
+                frames.peek().registers.set(frame.returnRegister, result);
+                continue;
+            }
+            final int op = code[frame.pc];
+            final int a = code[frame.pc + 1];
+            final int b = code[frame.pc + 2];
+            frame.pc += WIDTH;
+            switch (op) {
+                case LOAD_EMPTY:
+                    registers.set(a, new RecipientSet());
+                    break;
+                case LOAD_RECIPIENT:
+                    registers.set(a, RecipientSet.of((String) frame.program.constants[b]));
+                    break;
+                case LOAD_RECIPIENTS:
+                    registers.set(a, ((Literal) frame.program.constants[b]).getRecipients());
+                    break;
+                case LOAD_LIST:
+                    final ListName listname = (ListName) frame.program.constants[b];
+                    final Set<String> known = context.getKnownRecipients(listname, snapshot);
+                    if (known != null) {
+                        registers.set(a, known);
+                        break;
+                    }
+                    final Program program = context.getProgram(listname, snapshot);
+                    if (program == null) {
+                        registers.set(a, context.evaluateListName(listname));
+                    } else {
+                        frames.push(new Frame(program, listname, a));
+                    }
+                    break;
+                case UNION_INTO:
+                    registers.get(a).addAll(registers.get(b));
+                    registers.set(b, null);
+                    break;
+                case INTERSECT_INTO:
+                    registers.get(a).retainAll(registers.get(b));
+                    registers.set(b, null);
+                    break;
+                case DIFFERENCE_INTO:
+                    registers.get(a).removeAll(registers.get(b));
+                    registers.set(b, null);
+                    break;
+                case MOVE:
+                    registers.set(a, registers.get(b));
+                    registers.set(b, null);
+                    break;
+                case JUMP_IF_EMPTY:
+                    if (registers.get(a).isEmpty()) {
+                        frame.pc = b * WIDTH;
+                    }
+                    break;
+                case JUMP:
+                    frame.pc = a * WIDTH;
+                    break;
+                default:
+                    throw new AssertionError("unknown opcode " + op);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return that instanceof Program && sameValue((Program) that);
+    }
+
+    private boolean sameValue(Program that) {
+        return Arrays.equals(this.code, that.code) && Arrays.equals(this.constants, that.constants)
+                && this.registerCount == that.registerCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(code) + Arrays.hashCode(constants);
+    }
+
+    /**
+     * @return the instructions of this program, one per line, as "index: name arguments", where registers
+     *          are written r0, r1, ..., constants as the recipient, literal or list name, and jump targets as
+     *          indices
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc += WIDTH) {
+            final int op = code[pc];
+            builder.append(pc / WIDTH).append(": ").append(NAMES.get(op));
+            switch (op) {
+                case LOAD_EMPTY:
+                    builder.append(" r").append(code[pc + 1]);
+                    break;
+                case LOAD_RECIPIENT:
+                case LOAD_RECIPIENTS:
+                case LOAD_LIST:
+                    builder.append(" r").append(code[pc + 1]).append(' ').append(constants[code[pc + 2]]);
+                    break;
+                case JUMP_IF_EMPTY:
+                    builder.append(" r").append(code[pc + 1]).append(' ').append(code[pc + 2]);
+                    break;
+                case JUMP:
+                    builder.append(' ').append(code[pc + 1]);
+                    break;
+                default:
+                    builder.append(" r").append(code[pc + 1]).append(" r").append(code[pc + 2]);
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
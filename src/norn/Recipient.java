@@ -1,7 +1,7 @@
 package norn;
 
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -41,9 +41,41 @@ public class Recipient implements ListExpression {
         checkRep();
     }
 
+    /**
+     * @return the recipient (in lowercase)
+     */
+    String getRecipient() {
+        return recipient;
+    }
+
+    @Override
+    public void schedule(Evaluator evaluator) {
+        evaluator.returnResult(RecipientSet.of(recipient));
+    }
+    
+    @Override
+    public ListExpression optimize(List<ListExpression> operands) {
+        return this;
+    }
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        return RecipientSet.of(recipient);
+    }
+
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return this.recipient.equals(recipient);
+    }
+
+    @Override
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) {
+        return List.of(recipient).iterator();
+    }
+
     @Override
-    public Set<String> evaluate(Context context) {
-        return new HashSet<>(Collections.singleton(recipient));
+    public void compile(Compiler compiler, int index, int register) {
+        compiler.loadRecipient(register, recipient);
     }
     
     @Override
@@ -53,21 +85,36 @@ public class Recipient implements ListExpression {
     
     @Override
     public Set<ListName> getDefinedListNames() {
-        return new HashSet<>();
+        return Set.of();
     }
     
     @Override
     public Set<ListName> getAllListNames() {
-        return new HashSet<>();
+        return Set.of();
     }
     
     @Override
     public Set<ListName> getListNamesNotDefined() {
-        return new HashSet<>();
+        return Set.of();
+    }
+
+    @Override
+    public List<ListExpression> getOperands() {
+        return List.of();
+    }
+
+    @Override
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return this;
+    }
+
+    @Override
+    public String getDelimiter(int index) {
+        return recipient;
     }
 
     @Override
-    public VisualizerTree getVisualizerTree() {
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
         return new VisualizerTree(recipient);
     }
 
@@ -0,0 +1,81 @@
+package norn;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global dictionary that gives recipients a small integer id, so that sets of recipients can be stored as
+ * sets of ids (see RecipientSet). Ids are assigned in the order recipients are first given one, starting at 0,
+ * and are never reused or forgotten. Only recipients stored in a context's definitions (by a definition or an
+ * import, even one that fails afterwards) are given ids; recipients that only appear in queries are not, so
+ * the dictionary grows with the recipients that have been defined, not with the queries evaluated.
+ */
+public final class RecipientDictionary {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] recipients = new String[1024];
+    private static int size = 0;
+
+    // AF(ids, recipients, size) = the mapping from recipient r to id ids.get(r), where recipients[id] is
+    //                              the recipient with that id, for 0 <= id < size
+    //
+    // RI:
+    //  - ids.size() == size <= recipients.length
+    //  - for all r in ids.keySet(): recipients[ids.get(r)].equals(r)
+    //
+    // SRE:
+    //  - all fields are private, and neither the map nor the array are ever returned
+    //
+    // TSA:
+    //  - new ids are only assigned while holding the class lock, and a recipient is stored in recipients
+    //      before its id is published through the threadsafe ids map
+    //  - recipients is volatile and only replaced by a larger copy, so any thread that got an id from ids
+    //      (or from a set of ids built from it) reads an array that already contains that id's recipient
+
+    private RecipientDictionary() {
+        throw new AssertionError("RecipientDictionary should not be instantiated");
+    }
+
+    /**
+     * Get the id of a recipient, assigning it a new id if it has none yet. Only for recipients about to be
+     * stored in a context's definitions.
+     *
+     * @param recipient recipient (in lowercase)
+     * @return the id of recipient
+     */
+    public static int idOf(String recipient) {
+        final Integer id = ids.get(recipient);
+        if (id != null) {
+            return id;
+        }
+        synchronized (RecipientDictionary.class) {
+            return ids.computeIfAbsent(recipient, r -> {
+                if (size == recipients.length) {
+                    recipients = Arrays.copyOf(recipients, size * 2);
+                }
+                recipients[size] = r;
+                return size++;
+            });
+        }
+    }
+
+    /**
+     * Get the id of a recipient, without assigning it an id if it has never been seen before.
+     *
+     * @param recipient recipient (in lowercase)
+     * @return the id of recipient, or -1 if recipient has no id
+     */
+    public static int findId(String recipient) {
+        return ids.getOrDefault(recipient, -1);
+    }
+
+    /**
+     * Get the recipient with a given id.
+     *
+     * @param id id previously returned by idOf
+     * @return the recipient whose id is id
+     */
+    public static String recipientOf(int id) {
+        return recipients[id];
+    }
+}
@@ -0,0 +1,696 @@
+package norn;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Mutable set of recipients, stored as a compressed bitmap of their ids in RecipientDictionary.
+ *
+ * Ids are split into a 16-bit high part and a 16-bit low part. For every high part that occurs in the set
+ * there is one container holding the low parts: a sorted array while it holds at most 4096 values, and a
+ * 65536-bit bitmap when it holds more. addAll, retainAll and removeAll with another RecipientSet work
+ * container by container (merging sorted arrays, or combining bitmaps a 64-bit word at a time) without
+ * looking at any recipient strings.
+ *
+ * add() never gives a recipient an id: a recipient without one, which only queries have used, is kept in a
+ * plain hash set next to the bitmap instead, so that evaluating queries never grows RecipientDictionary.
+ * Recipients about to be stored in a context's definitions are added with addAssigningId() instead.
+ * Iteration is in order of id, followed by the recipients without ids, not in alphabetical order.
+ */
+public class RecipientSet extends AbstractSet<String> {
+    private static final int MAX_ARRAY_CONTAINER = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private char[] keys;
+    private Container[] containers;
+    private int count;
+    private Set<String> withoutIds = null;
+
+    // AF(keys, containers, count, withoutIds) = the set of recipients whose ids are (keys[i] << 16) | v, for
+    //                                all 0 <= i < count and all low parts v in containers[i], and the
+    //                                recipients in withoutIds, if it isn't null
+    //
+    // RI:
+    //  - 0 <= count <= keys.length == containers.length
+    //  - keys[0..count) is strictly increasing
+    //  - containers[0..count) are all non-empty
+    //  - an ArrayContainer holds at most MAX_ARRAY_CONTAINER values, in strictly increasing order
+    //  - no recipient in withoutIds has an id in the containers; it had no id when it was added, but may have
+    //      been given one since
+    //
+    // SRE:
+    //  - all fields are private, and containers and withoutIds are never shared between two sets
+    //
+    // TSA:
+    //  - not threadsafe; like HashSet, a RecipientSet must be confined to one thread at a time
+
+    /**
+     * Make a new empty set of recipients.
+     */
+    public RecipientSet() {
+        keys = new char[4];
+        containers = new Container[4];
+        count = 0;
+    }
+
+    /**
+     * Make a new set with the same recipients as recipients.
+     *
+     * @param recipients recipients (in lowercase) to copy
+     */
+    public RecipientSet(Collection<String> recipients) {
+        this();
+        addAll(recipients);
+    }
+
+    /**
+     * Make a new set with a single recipient.
+     *
+     * @param recipient recipient (in lowercase)
+     * @return a new mutable set containing only recipient
+     */
+    public static RecipientSet of(String recipient) {
+        final RecipientSet set = new RecipientSet();
+        set.add(recipient);
+        return set;
+    }
+
+    // check rep invariant
+    private void checkRep() {
+        assert count <= keys.length && keys.length == containers.length;
+        for (int i = 0; i < count; i++) {
+            assert i == 0 || keys[i - 1] < keys[i];
+            assert containers[i].cardinality() > 0;
+        }
+        if (withoutIds != null) {
+            for (String recipient : withoutIds) {
+                assert !containsId(RecipientDictionary.findId(recipient));
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = withoutIds == null ? 0 : withoutIds.size();
+        for (int i = 0; i < count; i++) {
+            size += containers[i].cardinality();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0 && (withoutIds == null || withoutIds.isEmpty());
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        return containsId(RecipientDictionary.findId((String) o)) || (withoutIds != null && withoutIds.contains(o));
+    }
+
+    @Override
+    public boolean add(String recipient) {
+        final int id = RecipientDictionary.findId(recipient);
+        if (id < 0) {
+            if (withoutIds == null) {
+                withoutIds = new HashSet<>();
+            }
+            return withoutIds.add(recipient);
+        }
+        return !(withoutIds != null && withoutIds.contains(recipient)) && addId(id);
+    }
+
+    /**
+     * Add a recipient as add() does, giving it an id in RecipientDictionary first if it has none, for a
+     * recipient about to be stored in a context's definitions.
+     *
+     * @param recipient recipient (in lowercase)
+     * @return true if and only if recipient wasn't in this set already
+     */
+    boolean addAssigningId(String recipient) {
+        final boolean moved = withoutIds != null && withoutIds.remove(recipient);
+        return addId(RecipientDictionary.idOf(recipient)) && !moved;
+    }
+
+    /**
+     * Make a new set with the same recipients as recipients, each added with addAssigningId().
+     *
+     * @param recipients recipients (in lowercase) to copy
+     * @return a new mutable set of recipients, all of which have ids
+     */
+    static RecipientSet assigningIds(Collection<String> recipients) {
+        final RecipientSet set = new RecipientSet();
+        if (recipients instanceof RecipientSet) {
+            set.addAll(recipients);
+            final Set<String> rest = set.withoutIds;
+            set.withoutIds = null;
+            if (rest != null) {
+                rest.forEach(set::addAssigningId);
+            }
+        } else {
+            recipients.forEach(set::addAssigningId);
+        }
+        return set;
+    }
+
+    // Add the recipient with an id to this set, returning true if it wasn't in it already
+    private boolean addId(int id) {
+        int i = indexOf(high(id));
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, high(id), new ArrayContainer());
+        }
+        final int before = containers[i].cardinality();
+        containers[i] = containers[i].add(low(id));
+        return containers[i].cardinality() != before;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        final int id = RecipientDictionary.findId((String) o);
+        return (id >= 0 && removeId(id)) || (withoutIds != null && withoutIds.remove(o));
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(containers, 0, count, null);
+        count = 0;
+        withoutIds = null;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends String> c) {
+        if (!(c instanceof RecipientSet)) {
+            return super.addAll(c);
+        }
+        final RecipientSet that = (RecipientSet) c;
+        final int before = size();
+        final char[] newKeys = new char[count + that.count];
+        final Container[] newContainers = new Container[count + that.count];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < count || j < that.count) {
+            if (j == that.count || (i < count && keys[i] < that.keys[j])) {
+                newKeys[k] = keys[i];
+                newContainers[k++] = containers[i++];
+            } else if (i == count || that.keys[j] < keys[i]) {
+                newKeys[k] = that.keys[j];
+                newContainers[k++] = that.containers[j++].copy();
+            } else {
+                newKeys[k] = keys[i];
+                newContainers[k++] = containers[i++].or(that.containers[j++]);
+            }
+        }
+        // recipients without ids here may have been given ids since, and be in that's containers
+        final Set<String> mine = withoutIds;
+        withoutIds = null;
+        replace(newKeys, newContainers, k);
+        if (mine != null) {
+            mine.removeIf(recipient -> containsId(RecipientDictionary.findId(recipient)));
+            withoutIds = mine;
+        }
+        if (that.withoutIds != null) {
+            for (String recipient : that.withoutIds) {
+                add(recipient);
+            }
+        }
+        return size() != before;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        final RecipientSet that = c instanceof RecipientSet ? (RecipientSet) c : recipientsOf(c);
+        final int before = size();
+        // recipients without ids in that may have been given ids since, and be in these containers
+        final List<Integer> kept = new ArrayList<>();
+        if (that.withoutIds != null) {
+            for (String recipient : that.withoutIds) {
+                final int id = RecipientDictionary.findId(recipient);
+                if (containsId(id)) {
+                    kept.add(id);
+                }
+            }
+        }
+        if (withoutIds != null) {
+            withoutIds.removeIf(recipient -> !that.contains(recipient));
+        }
+        final char[] newKeys = new char[count];
+        final Container[] newContainers = new Container[count];
+        int j = 0;
+        int k = 0;
+        for (int i = 0; i < count; i++) {
+            while (j < that.count && that.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < that.count && that.keys[j] == keys[i]) {
+                final Container container = containers[i].and(that.containers[j]);
+                if (container.cardinality() > 0) {
+                    newKeys[k] = keys[i];
+                    newContainers[k++] = container;
+                }
+            }
+        }
+        replace(newKeys, newContainers, k);
+        for (int id : kept) {
+            addId(id);
+        }
+        return size() != before;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        if (!(c instanceof RecipientSet)) {
+            boolean changed = false;
+            for (Object o : c) {
+                changed |= remove(o);
+            }
+            return changed;
+        }
+        final RecipientSet that = (RecipientSet) c;
+        final int before = size();
+        if (withoutIds != null) {
+            withoutIds.removeIf(that::contains);
+        }
+        final char[] newKeys = new char[count];
+        final Container[] newContainers = new Container[count];
+        int j = 0;
+        int k = 0;
+        for (int i = 0; i < count; i++) {
+            while (j < that.count && that.keys[j] < keys[i]) {
+                j++;
+            }
+            final Container container = j < that.count && that.keys[j] == keys[i]
+                    ? containers[i].andNot(that.containers[j])
+                    : containers[i];
+            if (container.cardinality() > 0) {
+                newKeys[k] = keys[i];
+                newContainers[k++] = container;
+            }
+        }
+        replace(newKeys, newContainers, k);
+        // recipients without ids in that may have been given ids since, and be in these containers
+        if (that.withoutIds != null) {
+            for (String recipient : that.withoutIds) {
+                final int id = RecipientDictionary.findId(recipient);
+                if (id >= 0) {
+                    removeId(id);
+                }
+            }
+        }
+        return size() != before;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<>() {
+            private int next = nextId(0);
+            private int last = -1;
+            private final Iterator<String> rest = withoutIds == null
+                    ? Collections.emptyIterator()
+                    : withoutIds.iterator();
+            private boolean lastWithoutId = false;
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0 || rest.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (next < 0) {
+                    final String recipient = rest.next();
+                    last = -1;
+                    lastWithoutId = true;
+                    return recipient;
+                }
+                last = next;
+                next = next == Integer.MAX_VALUE ? -1 : nextId(next + 1);
+                return RecipientDictionary.recipientOf(last);
+            }
+
+            @Override
+            public void remove() {
+                if (lastWithoutId) {
+                    rest.remove();
+                    lastWithoutId = false;
+                    return;
+                }
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                removeId(last);
+                last = -1;
+            }
+        };
+    }
+
+    // Check whether this set has a recipient with the given id, which is -1 for a recipient without one
+    private boolean containsId(int id) {
+        if (id < 0) {
+            return false;
+        }
+        final int i = indexOf(high(id));
+        return i >= 0 && containers[i].contains(low(id));
+    }
+
+    // Get the smallest id in this set that is at least from, or -1 if there is none
+    private int nextId(int from) {
+        int i = indexOf(high(from));
+        int lowFrom = low(from);
+        if (i < 0) {
+            i = -i - 1;
+            lowFrom = 0;
+        }
+        for (; i < count; i++, lowFrom = 0) {
+            final int value = containers[i].nextValue(lowFrom);
+            if (value >= 0) {
+                return (keys[i] << 16) | value;
+            }
+        }
+        return -1;
+    }
+
+    private boolean removeId(int id) {
+        final int i = indexOf(high(id));
+        if (i < 0 || !containers[i].contains(low(id))) {
+            return false;
+        }
+        containers[i] = containers[i].remove(low(id));
+        if (containers[i].cardinality() == 0) {
+            System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, count - i - 1);
+            containers[--count] = null;
+        }
+        return true;
+    }
+
+    // Binary search for key, returning its index or (-(insertion point) - 1)
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, count, key);
+    }
+
+    private void insertContainer(int i, char key, Container container) {
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            containers = Arrays.copyOf(containers, count * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, count - i);
+        System.arraycopy(containers, i, containers, i + 1, count - i);
+        keys[i] = key;
+        containers[i] = container;
+        count++;
+    }
+
+    private void replace(char[] newKeys, Container[] newContainers, int newCount) {
+        keys = newKeys.length == 0 ? new char[4] : newKeys;
+        containers = newContainers.length == 0 ? new Container[4] : newContainers;
+        count = newCount;
+        checkRep();
+    }
+
+    private static RecipientSet recipientsOf(Collection<?> c) {
+        final RecipientSet set = new RecipientSet();
+        for (Object o : c) {
+            if (o instanceof String) {
+                set.add((String) o);
+            }
+        }
+        return set;
+    }
+
+    private static char high(int id) {
+        return (char) (id >>> 16);
+    }
+
+    private static char low(int id) {
+        return (char) id;
+    }
+
+    ///////////////////////////////// Containers ///////////////////////////////////
+
+    /*
+     * Mutable set of 16-bit low parts of ids. add and remove may return a different container to use
+     * instead of this one; or, and and andNot return new containers and leave this and that unchanged.
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+        abstract boolean contains(char value);
+        abstract Container add(char value);
+        abstract Container remove(char value);
+        abstract int nextValue(int from);
+        abstract Container copy();
+        abstract BitmapContainer toBitmap();
+
+        Container or(Container that) {
+            if (this instanceof ArrayContainer && that instanceof ArrayContainer
+                    && cardinality() + that.cardinality() <= MAX_ARRAY_CONTAINER) {
+                return ((ArrayContainer) this).merge((ArrayContainer) that);
+            }
+            final BitmapContainer result = toBitmap();
+            final BitmapContainer other = that.toBitmap();
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                result.words[w] |= other.words[w];
+            }
+            return result.recount();
+        }
+
+        Container and(Container that) {
+            if (this instanceof ArrayContainer) {
+                return ((ArrayContainer) this).filter(that, true);
+            } else if (that instanceof ArrayContainer) {
+                return ((ArrayContainer) that).filter(this, true);
+            }
+            final BitmapContainer result = toBitmap();
+            final BitmapContainer other = (BitmapContainer) that;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                result.words[w] &= other.words[w];
+            }
+            return result.recount();
+        }
+
+        Container andNot(Container that) {
+            if (this instanceof ArrayContainer) {
+                return ((ArrayContainer) this).filter(that, false);
+            }
+            final BitmapContainer result = toBitmap();
+            final BitmapContainer other = that.toBitmap();
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                result.words[w] &= ~other.words[w];
+            }
+            return result.recount();
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        Container add(char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                return this;
+            }
+            if (cardinality == MAX_ARRAY_CONTAINER) {
+                return toBitmap().add(value);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(cardinality * 2, MAX_ARRAY_CONTAINER));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            final int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        int nextValue(int from) {
+            int i = Arrays.binarySearch(values, 0, cardinality, (char) from);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i < cardinality ? values[i] : -1;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            final BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.words[values[i] >>> 6] |= 1L << values[i];
+            }
+            bitmap.cardinality = cardinality;
+            return bitmap;
+        }
+
+        // Merge two sorted arrays whose union fits in an array container
+        ArrayContainer merge(ArrayContainer that) {
+            final char[] merged = new char[cardinality + that.cardinality];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < cardinality && j < that.cardinality) {
+                if (values[i] < that.values[j]) {
+                    merged[k++] = values[i++];
+                } else if (that.values[j] < values[i]) {
+                    merged[k++] = that.values[j++];
+                } else {
+                    merged[k++] = values[i++];
+                    j++;
+                }
+            }
+            while (i < cardinality) {
+                merged[k++] = values[i++];
+            }
+            while (j < that.cardinality) {
+                merged[k++] = that.values[j++];
+            }
+            return new ArrayContainer(merged, k);
+        }
+
+        // Keep the values that are (if keep) or are not (if !keep) in that
+        ArrayContainer filter(Container that, boolean keep) {
+            final char[] filtered = new char[Math.max(cardinality, 1)];
+            int k = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (that.contains(values[i]) == keep) {
+                    filtered[k++] = values[i];
+                }
+            }
+            return new ArrayContainer(filtered, k);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words = new long[BITMAP_WORDS];
+        private int cardinality;
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(char value) {
+            if (!contains(value)) {
+                words[value >>> 6] |= 1L << value;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            if (contains(value)) {
+                words[value >>> 6] &= ~(1L << value);
+                cardinality--;
+            }
+            return cardinality <= MAX_ARRAY_CONTAINER ? toArray() : this;
+        }
+
+        @Override
+        int nextValue(int from) {
+            int w = from >>> 6;
+            if (w >= BITMAP_WORDS) {
+                return -1;
+            }
+            long word = words[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == BITMAP_WORDS) {
+                    return -1;
+                }
+                word = words[w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        Container copy() {
+            final BitmapContainer copy = new BitmapContainer();
+            System.arraycopy(words, 0, copy.words, 0, BITMAP_WORDS);
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return (BitmapContainer) copy();
+        }
+
+        // Recompute the cardinality after word-level operations, shrinking to an array if it's small enough
+        Container recount() {
+            cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            return cardinality <= MAX_ARRAY_CONTAINER ? toArray() : this;
+        }
+
+        private ArrayContainer toArray() {
+            final char[] values = new char[Math.max(cardinality, 1)];
+            int k = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    values[k++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, k);
+        }
+    }
+}
@@ -1,96 +1,208 @@
 package norn;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 public class Sequence implements ListExpression {
-    private final ListExpression expr1;
-    private final ListExpression expr2;
-    
-    // AF(expr1, expr2) = a sequence operation that represents recipients produced by
-    //                      expr2 after substituting the expressions of all named list 
-    //                      definitions found in expr1
+    private final List<ListExpression> exprs;
+    private final Set<ListName> definedListNames;
+    private final Set<ListName> usedListNames;
+    private final Set<ListName> allListNames;
+    private final int hash;
+
+    // AF(exprs) = a sequence operation that represents recipients produced by the last
+    //              expression in exprs after substituting the expressions of all named list
+    //              definitions found in the expressions before it, grouped from left to right,
+    //              i.e. (((exprs[0] ; exprs[1]) ; exprs[2]) ; ...)
     //
-    // RI: true
+    // RI:
+    //  - exprs has at least 2 expressions
+    //  - exprs[0] is not a Sequence, since a left-nested sequence is the same grouping as a longer flat one
+    //  - definedListNames, usedListNames and allListNames are the list names defined, used, and defined or
+    //      used in exprs, each an immutable set
+    //  - hash is Interner.hash(4, exprs), where each variant of ListExpression uses its own number
     //
     // SRE:
     //  - all fields are private, final, and immutable
-    //  - none of the methods return references to any fields
+    //  - getOperands() returns exprs, which is an immutable list, and the methods that get list names return
+    //      the sets of list names, which are immutable; no other method returns references to fields
     //
     // TSA:
     //  - all fields are final and immutable
-    
-    
+
     /**
      * Public constructor for Sequence.
      * @param expr1 first expression in sequence
      * @param expr2 second expression in sequence
      */
     public Sequence(ListExpression expr1, ListExpression expr2) {
-        this.expr1 = expr1;
-        this.expr2 = expr2;
+        this(List.of(expr1, expr2));
+    }
+
+    /**
+     * Public constructor for a sequence of several expressions, grouped from left to right.
+     * @param exprs expressions in sequence, at least 2
+     */
+    public Sequence(List<ListExpression> exprs) {
+        if (exprs.get(0) instanceof Sequence) {
+            final List<ListExpression> flattened = new ArrayList<>(((Sequence) exprs.get(0)).exprs);
+            flattened.addAll(exprs.subList(1, exprs.size()));
+            this.exprs = List.copyOf(flattened);
+        } else {
+            this.exprs = List.copyOf(exprs);
+        }
+        this.hash = Interner.hash(4, this.exprs);
+        this.definedListNames = ListNameSet.union(this.exprs, ListExpression::getDefinedListNames);
+        this.usedListNames = ListNameSet.union(this.exprs, ListExpression::getListNamesNotDefined);
+        this.allListNames = ListNameSet.union(this.exprs, ListExpression::getAllListNames);
+        checkRep();
     }
-    
+
+    // check rep invariant
+    private void checkRep() {
+        assert exprs.size() >= 2;
+        assert !(exprs.get(0) instanceof Sequence);
+    }
+
     @Override
-    public Set<String> evaluate(Context context) throws EvaluationException  {
-        expr1.evaluate(context);
-        return expr2.evaluate(context);
+    public void schedule(Evaluator evaluator) {
+        schedule(evaluator, 0);
     }
-    
+
+    // Evaluate the statements from index on, one at a time
+    private void schedule(Evaluator evaluator, int index) {
+        if (index == exprs.size() - 1) {
+            evaluator.returnResultOf(exprs.get(index));
+        } else {
+            evaluator.evaluateThen(List.of(exprs.get(index)), results -> schedule(evaluator, index + 1));
+        }
+    }
+
+    @Override
+    public ListExpression optimize(List<ListExpression> operands) {
+        final List<ListExpression> statements = new ArrayList<>();
+        for (ListExpression optimized : operands) {
+            statements.addAll(optimized instanceof Sequence ? ((Sequence) optimized).exprs : List.of(optimized));
+        }
+        // the results of all statements but the last are discarded, so pure ones can be skipped
+        final List<ListExpression> effects = new ArrayList<>();
+        for (ListExpression statement : statements.subList(0, statements.size() - 1)) {
+            if (!statement.getDefinedListNames().isEmpty()) {
+                effects.add(statement);
+            }
+        }
+        effects.add(statements.get(statements.size() - 1));
+        final List<ListExpression> kept = new ArrayList<>();
+        for (int i = 0; i < effects.size() - 1; i++) {
+            if (!isOverwritten(effects.get(i), effects.get(i + 1))) {
+                kept.add(effects.get(i));
+            }
+        }
+        kept.add(effects.get(effects.size() - 1));
+        return kept.size() == 1 ? kept.get(0) : new Sequence(kept);
+    }
+
+    // Check whether statement is a definition of a list name as an expression that uses no list names,
+    // and next is a definition of that list name (and no others) that doesn't use it
+    private static boolean isOverwritten(ListExpression statement, ListExpression next) {
+        if (!(statement instanceof Definition) || statement.getAllListNames().size() != 1
+                || !(next instanceof Definition)) {
+            return false;
+        }
+        final ListName listName = ((Definition) next).getListName();
+        return statement.getDefinedListNames().contains(listName)
+                && next.getDefinedListNames().size() == 1
+                && !next.getListNamesNotDefined().contains(listName);
+    }
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        return operands.get(operands.size() - 1);
+    }
+
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return operands.get(operands.size() - 1);
+    }
+
+    @Override
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) throws EvaluationException {
+        return evaluator.stream(exprs.get(exprs.size() - 1));
+    }
+
+    @Override
+    public void compile(Compiler compiler, int index, int register) {
+        if (index == exprs.size()) {
+            compiler.move(register, register + 1);     // only the last statement's recipients are kept
+        }
+    }
+
     @Override
     public ListExpression getUpdatedExpression(Context context, ListName listname) {
-        return new Sequence(expr1.getUpdatedExpression(context, listname), expr2.getUpdatedExpression(context, listname));
+        return Traversal.getUpdatedExpression(this, context, listname);
     }
-    
+
     @Override
     public Set<ListName> getDefinedListNames() {
-        Set<ListName> s1 = expr1.getDefinedListNames();
-        Set<ListName> s2 = expr2.getDefinedListNames();
-        s1.addAll(s2);
-        return s1;
+        return definedListNames;
     }
-    
+
     @Override
     public Set<ListName> getAllListNames() {
-        Set<ListName> s1 = expr1.getAllListNames();
-        Set<ListName> s2 = expr2.getAllListNames();
-        s1.addAll(s2);
-        return s1;
+        return allListNames;
     }
-    
+
     @Override
     public Set<ListName> getListNamesNotDefined() {
-        Set<ListName> s1 = expr1.getListNamesNotDefined();
-        Set<ListName> s2 = expr2.getListNamesNotDefined();
-        s1.addAll(s2);
-        return s1;
+        return usedListNames;
+    }
+
+    @Override
+    public List<ListExpression> getOperands() {
+        return exprs;
+    }
+
+    @Override
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return new Sequence(operands);
     }
 
     @Override
-    public VisualizerTree getVisualizerTree() {
+    public String getDelimiter(int index) {
+        if (index == 0) {
+            return "(";
+        } else if (index == exprs.size()) {
+            return ")";
+        }
+        return ";";
+    }
+
+    @Override
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
         final VisualizerTree tree = new VisualizerTree("sequence");
-        tree.addChild(expr1.getVisualizerTree());
-        tree.addChild(expr2.getVisualizerTree());
+        for (VisualizerTree operand : operands) {
+            tree.addChild(operand);
+        }
         return tree;
     }
 
-    ///////////////////// Equality and toString methods ///////////////////////
-            
+    ///////////////////// Equality and toString() methods //////////////////////
+
     @Override
     public boolean equals(Object that) {
-        return that instanceof Sequence && sameValue((Sequence) that);
-    }
-    
-    private boolean sameValue(Sequence that) {
-        return this.expr1.equals(that.expr1) && this.expr2.equals(that.expr2);
+        return this == that
+                || that instanceof Sequence && Traversal.equal(this, (Sequence) that);
     }
-    
+
     @Override
     public int hashCode() {
-        return expr1.hashCode() + expr2.hashCode();
+        return hash;
     }
-    
+
     @Override
     public String toString() {
-        return "(" + expr1.toString() + ";" + expr2.toString() + ")";
+        return Traversal.toString(this);
     }
 }
@@ -0,0 +1,265 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Immutable version of the list definitions of a Context. A context publishes a new snapshot each time a
+ * definition is made or undone, built from the previous one in O(log n) time with persistent maps, so clients
+ * can read and evaluate a consistent set of definitions without locking the context while it keeps changing.
+ */
+public final class Snapshot {
+    private static final ListExpression UNDEFINED = new Empty();
+
+    private final long version;
+    private final PersistentMap<ListName, ListExpression> definitions;
+    private final PersistentMap<ListName, Set<ListName>> children;
+    private final PersistentMap<ListName, Long> changed;
+    private final int nestedDefinitions;
+
+    // AF(version, definitions, children, changed, nestedDefinitions) = the definitions of a context as of its
+    //                              version-th change, where definitions maps each defined listname to its most
+    //                              recent definition, children maps each listname in the dependency graph to
+    //                              the listnames it directly depends on, and changed maps a listname to the last
+    //                              version at which it or a listname it transitively depends on changed (0 if
+    //                              never). nestedDefinitions counts the definitions that define other listnames.
+    //
+    // RI:
+    //  - version >= 0, and every value of changed is at most version
+    //  - every key of definitions, and every listname used by a definition or in a set of children, is a key
+    //      of children
+    //  - nestedDefinitions is the number of values in definitions that define listnames
+    //
+    // SRE:
+    //  - all fields are private and final; the sets in children are unmodifiable, and expressions are immutable
+    //
+    // TSA:
+    //  - Snapshot is immutable, so it is threadsafe
+
+    /**
+     * Constructor for the snapshot of a context with no definitions.
+     */
+    Snapshot() {
+        this(0, PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(), 0);
+    }
+
+    private Snapshot(long version, PersistentMap<ListName, ListExpression> definitions,
+            PersistentMap<ListName, Set<ListName>> children, PersistentMap<ListName, Long> changed,
+            int nestedDefinitions) {
+        this.version = version;
+        this.definitions = definitions;
+        this.children = children;
+        this.changed = changed;
+        this.nestedDefinitions = nestedDefinitions;
+    }
+
+    /**
+     * @return the number of changes made to the context's definitions before this snapshot, which increases
+     *         each time a listname is defined or a failed evaluation is undone
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the list expression that listname is defined as in this snapshot.
+     *
+     * @param listname listname to get the expression for
+     * @return expression corresponding to the listname, with the previous definitions of listnames that were
+     *          redefined in terms of themselves in place of the listnames
+     */
+    public ListExpression getRelevantExpression(ListName listname) {
+        return expandPriorVersions(getDefinition(listname), new HashMap<>());
+    }
+
+    /**
+     * Get the listnames that listname depends on in this snapshot.
+     *
+     * @param listname listname to get dependencies for
+     * @return set of listnames that listname depends on, directly or through its previous definitions
+     */
+    public Set<ListName> getDependencies(ListName listname) {
+        final Set<ListName> dependencies = new HashSet<>();
+        final Deque<ListName> toVisit = new ArrayDeque<>(children.getOrDefault(listname, Set.of()));
+        while (!toVisit.isEmpty()) {
+            final ListName current = toVisit.pop();
+            if (dependencies.add(current)) {
+                toVisit.addAll(children.get(current));
+            }
+        }
+        dependencies.removeIf(dependency -> dependency.getVersion() >= 0);
+        return dependencies;
+    }
+
+    /**
+     * Write the definitions of this snapshot as one parsable expression.
+     *
+     * @return a String containing all defined ListNames as a parseable expression, where the previous
+     *          definitions of listnames that were redefined in terms of themselves are written out
+     */
+    public String save() {
+        final UnaryOperator<ListExpression> expand = leaf -> leaf instanceof ListName
+                && ((ListName) leaf).getVersion() >= 0 ? definitions.get(leaf) : leaf;
+        final List<String> saved = new ArrayList<>();
+        definitions.forEach((listname, expr) -> {
+            if (listname.getVersion() < 0) {
+                saved.add(listname + "=" + Traversal.toString(expr, expand));
+            }
+        });
+        return String.join(";", saved);
+    }
+
+    // Get expr with every prior version it uses replaced by the expression that version stands for, given
+    // the expansions of some prior versions already computed, which are added to
+    private ListExpression expandPriorVersions(ListExpression expr, Map<ListName, ListExpression> expanded) {
+        final List<ListName> used = new ArrayList<>();
+        final Deque<ListName> toVisit = new ArrayDeque<>(expr.getListNamesNotDefined());
+        while (!toVisit.isEmpty()) {
+            final ListName current = toVisit.pop();
+            if (current.getVersion() >= 0 && !expanded.containsKey(current)) {
+                expanded.put(current, null);
+                used.add(current);
+                toVisit.addAll(children.get(current));
+            }
+        }
+        // a prior version only uses prior versions created before it, so expand them in order of creation
+        used.sort(Comparator.comparingLong(ListName::getVersion));
+        final UnaryOperator<ListExpression> expand = leaf -> leaf instanceof ListName && expanded.get(leaf) != null
+                ? expanded.get(leaf)
+                : leaf;
+        for (ListName version : used) {
+            expanded.put(version, Traversal.replaceLeaves(definitions.get(version), expand));
+        }
+        return Traversal.replaceLeaves(expr, expand);
+    }
+
+    /**
+     * @param listname listname to look up
+     * @return the expression that listname is defined as, which may use prior versions of listnames, or the
+     *         same Empty expression for every listname that isn't defined
+     */
+    ListExpression getDefinition(ListName listname) {
+        return definitions.getOrDefault(listname, UNDEFINED);
+    }
+
+    /**
+     * @param listname listname to look up
+     * @return true if and only if listname is defined
+     */
+    boolean isDefined(ListName listname) {
+        return definitions.containsKey(listname);
+    }
+
+    /**
+     * @param listname listname to look up
+     * @return the unmodifiable set of listnames that listname directly depends on, or null if listname is not
+     *         in the dependency graph
+     */
+    Set<ListName> getChildren(ListName listname) {
+        return children.get(listname);
+    }
+
+    /**
+     * @param listname listname to look up
+     * @return the last version at which the definition of listname or of a listname it transitively depends
+     *         on changed, or 0 if none did; recipients of listname computed in a snapshot whose version is
+     *         between this and this snapshot's version, inclusive, are still its recipients in this snapshot
+     */
+    long getChanged(ListName listname) {
+        return changed.getOrDefault(listname, 0L);
+    }
+
+    /**
+     * @return the number of definitions that define other listnames
+     */
+    int getNestedDefinitions() {
+        return nestedDefinitions;
+    }
+
+    /**
+     * Call action on each defined listname and its definition, in no particular order.
+     *
+     * @param action action to call
+     */
+    void forEachDefinition(BiConsumer<ListName, ListExpression> action) {
+        definitions.forEach(action);
+    }
+
+    /**
+     * Call action on each listname in the dependency graph and its children, in no particular order.
+     *
+     * @param action action to call
+     */
+    void forEachChildren(BiConsumer<ListName, Set<ListName>> action) {
+        children.forEach(action);
+    }
+
+    /**
+     * @param listname listname to define or undefine
+     * @param expr new definition of listname, or null to remove its definition
+     * @return a snapshot like this one, except for the definition of listname
+     */
+    Snapshot withDefinition(ListName listname, ListExpression expr) {
+        final ListExpression previous = definitions.get(listname);
+        int nested = nestedDefinitions;
+        if (previous != null && !previous.getDefinedListNames().isEmpty()) {
+            nested--;
+        }
+        if (expr != null && !expr.getDefinedListNames().isEmpty()) {
+            nested++;
+        }
+        return new Snapshot(version, expr == null ? definitions.minus(listname) : definitions.plus(listname, expr),
+                children, changed, nested);
+    }
+
+    /**
+     * @param listname listname to add to or keep in the dependency graph
+     * @param listnames listnames that listname now directly depends on, not modified afterwards
+     * @return a snapshot like this one, except for the children of listname
+     */
+    Snapshot withChildren(ListName listname, Set<ListName> listnames) {
+        return new Snapshot(version, definitions, children.plus(listname, Collections.unmodifiableSet(listnames)),
+                changed, nestedDefinitions);
+    }
+
+    /**
+     * @param listname listname to remove from the dependency graph, which must not be defined or used
+     * @return a snapshot like this one, without listname's children or last change
+     */
+    Snapshot withoutNode(ListName listname) {
+        return new Snapshot(version, definitions, children.minus(listname), changed.minus(listname),
+                nestedDefinitions);
+    }
+
+    /**
+     * @param listname listname that changed
+     * @param at version at which it changed
+     * @return a snapshot like this one, except that listname last changed at version at
+     */
+    Snapshot withChanged(ListName listname, long at) {
+        return new Snapshot(version, definitions, children, changed.plus(listname, at), nestedDefinitions);
+    }
+
+    /**
+     * @param newVersion version of the new snapshot
+     * @return a snapshot with the same definitions as this one, and version newVersion
+     */
+    Snapshot withVersion(long newVersion) {
+        return new Snapshot(newVersion, definitions, children, changed, nestedDefinitions);
+    }
+
+    @Override
+    public String toString() {
+        return "version: " + version + ", expressionMap: " + definitions + ", childMap: " + children;
+    }
+}
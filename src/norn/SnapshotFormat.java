@@ -0,0 +1,363 @@
+package norn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Binary format of the definitions of a Snapshot, which can be read back without parsing any expression.
+ *
+ * A snapshot file is the magic number MAGIC and the format VERSION, followed by
+ *  - a symbol table: the names of the listnames in the dependency graph (prior versions included), and the
+ *    distinct recipients used by the definitions, each written once and referred to by its index afterwards
+ *  - the definitions: for each defined listname, its index and the nodes of its expression in post-order,
+ *    each a tag followed by the indexes or number of operands it needs (for a Literal, the number of its
+ *    recipients and their indexes)
+ *  - the dependency edges: for each listname in the dependency graph, the indexes of its children
+ * where all counts and indexes are written as variable-length unsigned integers. Version 1 is the same format
+ * without Literal nodes, so it is still read.
+ */
+final class SnapshotFormat {
+    static final int MAGIC = 0x4e524e53;    // "NRNS"
+    static final int VERSION = 2;
+    static final String EXTENSION = ".nsnap";
+
+    private static final int RECIPIENT = 0;
+    private static final int LIST_NAME = 1;
+    private static final int EMPTY = 2;
+    private static final int UNION = 3;
+    private static final int INTERSECTION = 4;
+    private static final int DIFFERENCE = 5;
+    private static final int SEQUENCE = 6;
+    private static final int PARALLEL = 7;
+    private static final int DEFINITION = 8;
+    private static final int LITERAL = 9;
+
+    private static final Pattern LIST_NAME_PATTERN = Pattern.compile("[a-z0-9_.-]+(#[0-9]{1,18})?");
+    private static final Pattern RECIPIENT_PATTERN = Pattern.compile("[a-z0-9_.+-]+@[a-z0-9_.-]+");
+
+    private SnapshotFormat() {
+        throw new AssertionError("SnapshotFormat should not be instantiated");
+    }
+
+    /**
+     * Convert between the text format written by Context.save() and this format.
+     *
+     * @param args "to-text" or "from-text", then the file to read, then the file to write
+     * @throws IOException if a file can't be read or written, or isn't in the format expected
+     * @throws UnableToLoadException if the text file can't be parsed or evaluated
+     */
+    public static void main(String[] args) throws IOException, UnableToLoadException {
+        if (args.length != 3 || !args[0].equals("to-text") && !args[0].equals("from-text")) {
+            System.err.println("usage: SnapshotFormat (to-text | from-text) input output");
+            return;
+        }
+        final Path input = Paths.get(args[1]);
+        final Path output = Paths.get(args[2]);
+        if (args[0].equals("to-text")) {
+            try (InputStream in = Files.newInputStream(input)) {
+                Files.write(output, read(in).save().getBytes(StandardCharsets.UTF_8));
+            }
+        } else {
+            final Context context = new Context();
+            context.load(Files.readString(input));
+            try (OutputStream out = Files.newOutputStream(output)) {
+                write(context.getSnapshot(), out);
+            }
+        }
+    }
+
+    /**
+     * @param in stream to look at, which supports mark() and reset()
+     * @return true if and only if in starts with MAGIC; in is left at the same position
+     * @throws IOException if in can't be read
+     */
+    static boolean isSnapshot(InputStream in) throws IOException {
+        in.mark(Integer.BYTES);
+        try {
+            return new DataInputStream(in).readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Write the definitions and dependency graph of a snapshot.
+     *
+     * @param snapshot snapshot to write
+     * @param out stream to write to, which is flushed but not closed
+     * @throws IOException if out can't be written
+     */
+    static void write(Snapshot snapshot, OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        final Map<ListName, Integer> listNames = new HashMap<>();
+        final Map<String, Integer> recipients = new HashMap<>();
+        final List<ListName> nodes = new ArrayList<>();
+        final List<String> addresses = new ArrayList<>();
+        snapshot.forEachChildren((l, children) -> {
+            listNames.put(l, nodes.size());
+            nodes.add(l);
+        });
+        snapshot.forEachDefinition((l, expr) -> Traversal.<Void>fold(expr, (node, operands) -> {
+            final Iterable<String> used = node instanceof Recipient ? List.of(node.toString())
+                    : node instanceof Literal ? ((Literal) node).getRecipients()
+                    : List.of();
+            for (String address : used) {
+                if (!recipients.containsKey(address)) {
+                    recipients.put(address, addresses.size());
+                    addresses.add(address);
+                }
+            }
+            return null;
+        }));
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        writeCount(data, nodes.size());
+        for (ListName l : nodes) {
+            data.writeUTF(l.toString());
+        }
+        writeCount(data, addresses.size());
+        for (String address : addresses) {
+            data.writeUTF(address);
+        }
+
+        final List<ListName> defined = new ArrayList<>();
+        snapshot.forEachDefinition((l, expr) -> defined.add(l));
+        writeCount(data, defined.size());
+        for (ListName l : defined) {
+            writeCount(data, listNames.get(l));
+            writeExpression(data, snapshot.getDefinition(l), listNames, recipients);
+        }
+        for (ListName l : nodes) {
+            final Set<ListName> children = snapshot.getChildren(l);
+            writeCount(data, children.size());
+            for (ListName child : children) {
+                writeCount(data, listNames.get(child));
+            }
+        }
+        data.flush();
+    }
+
+    // Write the nodes of expr in post-order, with the number of nodes first
+    private static void writeExpression(DataOutputStream data, ListExpression expr, Map<ListName, Integer> listNames,
+            Map<String, Integer> recipients) throws IOException {
+        final List<ListExpression> postOrder = new ArrayList<>();
+        Traversal.<Void>fold(expr, (node, operands) -> {
+            postOrder.add(node);
+            return null;
+        });
+        writeCount(data, postOrder.size());
+        for (ListExpression node : postOrder) {
+            if (node instanceof Recipient) {
+                data.writeByte(RECIPIENT);
+                writeCount(data, recipients.get(node.toString()));
+            } else if (node instanceof Literal) {
+                final Set<String> members = ((Literal) node).getRecipients();
+                data.writeByte(LITERAL);
+                writeCount(data, members.size());
+                for (String address : members) {
+                    writeCount(data, recipients.get(address));
+                }
+            } else if (node instanceof ListName) {
+                data.writeByte(LIST_NAME);
+                writeCount(data, listNames.get(node));
+            } else if (node instanceof Empty) {
+                data.writeByte(EMPTY);
+            } else if (node instanceof Union) {
+                data.writeByte(UNION);
+                writeCount(data, node.getOperands().size());
+            } else if (node instanceof Intersection) {
+                data.writeByte(INTERSECTION);
+                writeCount(data, node.getOperands().size());
+            } else if (node instanceof Sequence) {
+                data.writeByte(SEQUENCE);
+                writeCount(data, node.getOperands().size());
+            } else if (node instanceof Difference) {
+                data.writeByte(DIFFERENCE);
+            } else if (node instanceof Parallel) {
+                data.writeByte(PARALLEL);
+            } else {
+                data.writeByte(DEFINITION);
+                writeCount(data, listNames.get(((Definition) node).getListName()));
+            }
+        }
+    }
+
+    /**
+     * Read the definitions and dependency graph written by write().
+     *
+     * @param in stream to read from, which is not closed
+     * @return a snapshot with the definitions and dependency graph read from in, with version 0 and no
+     *         recorded changes, whose expressions are interned as defined by Interner.intern()
+     * @throws IOException if in can't be read, or doesn't hold a snapshot in this format
+     */
+    static Snapshot read(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not a snapshot");
+        }
+        final int version = data.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("unsupported snapshot format version " + version);
+        }
+        final List<ListName> nodes = new ArrayList<>();
+        for (int i = readCount(data); i > 0; i--) {
+            final String name = data.readUTF();
+            if (!LIST_NAME_PATTERN.matcher(name).matches()) {
+                throw new IOException("invalid listname " + name);
+            }
+            final int separator = name.indexOf('#');
+            nodes.add(separator < 0 ? new ListName(name) : new ListName(name.substring(0, separator))
+                    .getPriorVersion(Long.parseLong(name.substring(separator + 1))));
+        }
+        final List<Recipient> addresses = new ArrayList<>();
+        for (int i = readCount(data); i > 0; i--) {
+            final String address = data.readUTF();
+            if (!RECIPIENT_PATTERN.matcher(address).matches()) {
+                throw new IOException("invalid recipient " + address);
+            }
+            addresses.add(new Recipient(address));
+        }
+
+        Snapshot snapshot = new Snapshot();
+        final List<ListName> defined = new ArrayList<>();
+        for (int i = readCount(data); i > 0; i--) {
+            final ListName l = get(nodes, readCount(data));
+            defined.add(l);
+            snapshot = snapshot.withDefinition(l, Interner.intern(readExpression(data, nodes, addresses)));
+        }
+        for (ListName l : nodes) {
+            final Set<ListName> children = new HashSet<>();
+            for (int i = readCount(data); i > 0; i--) {
+                children.add(get(nodes, readCount(data)));
+            }
+            snapshot = snapshot.withChildren(l, children);
+        }
+        for (ListName l : defined) {
+            if (!snapshot.getChildren(l).containsAll(snapshot.getDefinition(l).getAllListNames())) {
+                throw new IOException("missing dependencies of " + l);
+            }
+        }
+        return snapshot;
+    }
+
+    // Read the nodes of an expression written by writeExpression(), and build it from the leaves up
+    private static ListExpression readExpression(DataInputStream data, List<ListName> nodes,
+            List<Recipient> addresses) throws IOException {
+        final List<ListExpression> stack = new ArrayList<>();
+        for (int i = readCount(data); i > 0; i--) {
+            final int tag = data.readUnsignedByte();
+            switch (tag) {
+            case RECIPIENT:
+                stack.add(get(addresses, readCount(data)));
+                break;
+            case LIST_NAME:
+                stack.add(get(nodes, readCount(data)));
+                break;
+            case LITERAL:
+                final int size = readCount(data);
+                final RecipientSet members = new RecipientSet();
+                for (int j = 0; j < size; j++) {
+                    members.addAssigningId(get(addresses, readCount(data)).toString());
+                }
+                if (members.size() < 2) {
+                    throw new IOException("invalid literal");
+                }
+                stack.add(new Literal(members));
+                break;
+            case EMPTY:
+                stack.add(new Empty());
+                break;
+            case UNION:
+                stack.add(new Union(pop(stack, readCount(data), 2)));
+                break;
+            case INTERSECTION:
+                stack.add(new Intersection(pop(stack, readCount(data), 2)));
+                break;
+            case SEQUENCE:
+                stack.add(new Sequence(pop(stack, readCount(data), 2)));
+                break;
+            case DIFFERENCE:
+                final List<ListExpression> difference = pop(stack, 2, 2);
+                stack.add(new Difference(difference.get(0), difference.get(1)));
+                break;
+            case PARALLEL:
+                final List<ListExpression> parallel = pop(stack, 2, 2);
+                stack.add(new Parallel(parallel.get(0), parallel.get(1)));
+                break;
+            case DEFINITION:
+                final ListName listName = get(nodes, readCount(data));
+                stack.add(new Definition(listName, pop(stack, 1, 1).get(0)));
+                break;
+            default:
+                throw new IOException("invalid node " + tag);
+            }
+        }
+        if (stack.size() != 1) {
+            throw new IOException("invalid expression");
+        }
+        return stack.get(0);
+    }
+
+    // Remove the last count expressions from stack, at least min of them, and get them in order
+    private static List<ListExpression> pop(List<ListExpression> stack, int count, int min) throws IOException {
+        if (count < min || count > stack.size()) {
+            throw new IOException("invalid expression");
+        }
+        final List<ListExpression> top = stack.subList(stack.size() - count, stack.size());
+        final List<ListExpression> operands = new ArrayList<>(top);
+        top.clear();
+        return operands;
+    }
+
+    private static <T> T get(List<T> table, int index) throws IOException {
+        if (index >= table.size()) {
+            throw new IOException("invalid symbol " + index);
+        }
+        return table.get(index);
+    }
+
+    // Write a nonnegative int in 7-bit groups, least significant first, with the high bit set on all but the last
+    private static void writeCount(DataOutputStream data, int count) throws IOException {
+        int rest = count;
+        while ((rest & ~0x7f) != 0) {
+            data.writeByte((rest & 0x7f) | 0x80);
+            rest >>>= 7;
+        }
+        data.writeByte(rest);
+    }
+
+    private static int readCount(DataInputStream data) throws IOException {
+        int count = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            final int b = data.readUnsignedByte();
+            count |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (count < 0) {
+                    throw new IOException("invalid count");
+                }
+                return count;
+            }
+        }
+        throw new IOException("invalid count");
+    }
+}
@@ -0,0 +1,111 @@
+package norn;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Mutable engine that evaluates list expressions lazily, as iterators over their recipients in increasing order.
+ * Each node of an expression becomes a streaming merge of the iterators of its operands, so recipients are
+ * produced one at a time while holding one pending recipient per node instead of whole sets of recipients.
+ *
+ * Each ListExpression describes how to build the iterator for one level of the tree in evaluateSorted(), by
+ * calling stream() on its subexpressions and streamListName() on the list names it uses.
+ */
+public class SortedEvaluator {
+    static final int MAX_STREAM_DEPTH = 1000;
+
+    private final Context context;
+    private final Snapshot snapshot;
+    private final Set<ListName> streamed = new HashSet<>();
+    private int depth = 0;
+
+    // AF(context, snapshot, streamed, depth) = an evaluation in context that is building iterators from the
+    //                              definitions of snapshot, where depth is the number of nested calls to stream()
+    //                              in progress, and streamed is the set of list names whose definitions have
+    //                              already been streamed by this evaluation
+    //
+    // RI:
+    //  - 0 <= depth <= MAX_STREAM_DEPTH + 1
+    //
+    // SRE:
+    //  - all fields are private, and context, snapshot and streamed are final; snapshot is immutable
+    //  - streamed is never returned; iterators returned only refer to sorted copies of sets of recipients
+    //
+    // TSA:
+    //  - SortedEvaluator is not threadsafe, and is confined to the thread that builds the iterators; the
+    //      iterators it returns don't read the context, so they can be consumed while the context changes
+
+    /**
+     * Public constructor for SortedEvaluator, which reads the definitions of the latest snapshot of context.
+     *
+     * @param context context in which expressions are evaluated
+     */
+    public SortedEvaluator(Context context) {
+        this(context, context.getSnapshot());
+    }
+
+    /**
+     * Constructor for a SortedEvaluator that reads the definitions of a given snapshot.
+     *
+     * @param context context in which expressions are evaluated
+     * @param snapshot snapshot of context to read definitions from
+     */
+    SortedEvaluator(Context context, Snapshot snapshot) {
+        this.context = context;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the context in which expressions are evaluated
+     */
+    public Context getContext() {
+        return context;
+    }
+
+    /**
+     * Evaluate an expression lazily, as defined by ListExpression.evaluateSorted(). Expressions nested more than
+     * MAX_STREAM_DEPTH levels deep are evaluated eagerly with an Evaluator instead, so that building the
+     * iterator doesn't overflow the thread's stack.
+     * Requires expr to not define any list names.
+     *
+     * @param expr expression to evaluate
+     * @return iterator over the recipients (in lowercase) of expr, in increasing order without duplicates
+     * @throws EvaluationException if evaluating a list name used in expr throws an EvaluationException
+     */
+    public Iterator<String> stream(ListExpression expr) throws EvaluationException {
+        if (depth >= MAX_STREAM_DEPTH) {
+            return SortedMerge.of(new Evaluator(context, null, snapshot).evaluate(expr));
+        }
+        depth++;
+        try {
+            return expr.evaluateSorted(this);
+        } finally {
+            depth--;
+        }
+    }
+
+    /**
+     * Evaluate a list name lazily. Recipients that the context already knows (materialized or cached) are
+     * streamed from a sorted copy; otherwise the current definition of listname is streamed, unless this
+     * evaluation already streamed it, or evaluating it defines other list names, in which case it is evaluated
+     * eagerly with context.evaluateListName(), so that the result is remembered for later uses.
+     *
+     * @param listname list name to evaluate
+     * @return iterator over the recipients (in lowercase) of listname, in increasing order without duplicates
+     * @throws EvaluationException if evaluating the definition of listname throws an EvaluationException
+     */
+    public Iterator<String> streamListName(ListName listname) throws EvaluationException {
+        final Set<String> known = context.getKnownRecipients(listname, snapshot);
+        if (known != null) {
+            return SortedMerge.of(known);
+        }
+        final ListExpression definition = snapshot.getDefinition(listname);
+        if (!definition.getDefinedListNames().isEmpty()) {
+            return SortedMerge.of(context.evaluateListName(listname));
+        } else if (!streamed.add(listname)) {
+            return SortedMerge.of(new Evaluator(context, null, snapshot).evaluate(listname));
+        }
+        return stream(definition);
+    }
+}
@@ -0,0 +1,189 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Set operations on iterators over strings in strictly increasing order, which produce their results lazily,
+ * also in strictly increasing order. Each operation only holds one pending string per input iterator.
+ */
+final class SortedMerge {
+
+    private SortedMerge() {
+        throw new AssertionError("SortedMerge should not be instantiated");
+    }
+
+    /**
+     * @param strings set of strings
+     * @return iterator over a sorted copy of strings
+     */
+    static Iterator<String> of(Set<String> strings) {
+        final List<String> sorted = new ArrayList<>(strings);
+        Collections.sort(sorted);
+        return sorted.iterator();
+    }
+
+    /**
+     * @param iterators iterators over strings in strictly increasing order
+     * @return iterator over the strings produced by any of iterators, in strictly increasing order
+     */
+    static Iterator<String> union(List<Iterator<String>> iterators) {
+        final PriorityQueue<PeekingIterator> heads =
+                new PriorityQueue<>(Math.max(1, iterators.size()), Comparator.comparing(PeekingIterator::peek));
+        for (Iterator<String> iterator : iterators) {
+            if (iterator.hasNext()) {
+                heads.add(new PeekingIterator(iterator));
+            }
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                if (heads.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                final String next = heads.peek().peek();
+                while (!heads.isEmpty() && heads.peek().peek().equals(next)) {
+                    final PeekingIterator head = heads.poll();
+                    head.next();
+                    if (head.hasNext()) {
+                        heads.add(head);
+                    }
+                }
+                return next;
+            }
+        };
+    }
+
+    /**
+     * @param iterators at least one iterator over strings in strictly increasing order
+     * @return iterator over the strings produced by all of iterators, in strictly increasing order
+     */
+    static Iterator<String> intersection(List<Iterator<String>> iterators) {
+        final List<PeekingIterator> inputs = new ArrayList<>();
+        for (Iterator<String> iterator : iterators) {
+            inputs.add(new PeekingIterator(iterator));
+        }
+        return new LookaheadIterator() {
+            @Override
+            String computeNext() {
+                String candidate = null;
+                int agreeing = 0;       // number of inputs in a row whose head is candidate
+                while (agreeing < inputs.size()) {
+                    for (PeekingIterator input : inputs) {
+                        while (input.hasNext() && candidate != null && input.peek().compareTo(candidate) < 0) {
+                            input.next();
+                        }
+                        if (!input.hasNext()) {
+                            return null;
+                        }
+                        if (input.peek().equals(candidate)) {
+                            agreeing++;
+                        } else {
+                            candidate = input.peek();
+                            agreeing = 1;
+                        }
+                        if (agreeing == inputs.size()) {
+                            break;
+                        }
+                    }
+                }
+                for (PeekingIterator input : inputs) {
+                    input.next();
+                }
+                return candidate;
+            }
+        };
+    }
+
+    /**
+     * @param included iterator over strings in strictly increasing order
+     * @param excluded iterator over strings in strictly increasing order
+     * @return iterator over the strings produced by included but not by excluded, in strictly increasing order
+     */
+    static Iterator<String> difference(Iterator<String> included, Iterator<String> excluded) {
+        final PeekingIterator excludedHeads = new PeekingIterator(excluded);
+        return new LookaheadIterator() {
+            @Override
+            String computeNext() {
+                while (included.hasNext()) {
+                    final String candidate = included.next();
+                    while (excludedHeads.hasNext() && excludedHeads.peek().compareTo(candidate) < 0) {
+                        excludedHeads.next();
+                    }
+                    if (!excludedHeads.hasNext() || !excludedHeads.peek().equals(candidate)) {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    // Iterator that can look at its next string without consuming it
+    private static final class PeekingIterator implements Iterator<String> {
+        private final Iterator<String> iterator;
+        private String head;
+
+        PeekingIterator(Iterator<String> iterator) {
+            this.iterator = iterator;
+            this.head = iterator.hasNext() ? iterator.next() : null;
+        }
+
+        String peek() {
+            return head;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return head != null;
+        }
+
+        @Override
+        public String next() {
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            final String next = head;
+            head = iterator.hasNext() ? iterator.next() : null;
+            return next;
+        }
+    }
+
+    // Iterator whose next string is computed ahead of time, when hasNext() is called
+    private abstract static class LookaheadIterator implements Iterator<String> {
+        private String next;
+        private boolean computed = false;
+
+        // compute the next string, or null if there are no more strings
+        abstract String computeNext();
+
+        @Override
+        public boolean hasNext() {
+            if (!computed) {
+                next = computeNext();
+                computed = true;
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            computed = false;
+            return next;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package norn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Loader of list definitions in the text format of Context.save() that reads its input in chunks, and loads it
+ * into a context in batches as it goes, so the memory it needs doesn't grow with the size of the input.
+ *
+ * The input is split at the ';' outside of any parentheses into its top-level statements, usually one
+ * definition each. Consecutive statements are gathered into a batch until they hold at least batchChars
+ * characters, and each batch is then loaded with Context.bulkLoad(). An input that fits in one batch is
+ * therefore loaded all or nothing; a larger one keeps the batches loaded before the one that fails. At most
+ * batchChars characters plus one statement are held at a time, besides the chunk being read.
+ *
+ * Since '|' binds more loosely than ';', an input with a '|' outside of any parentheses is one parallel of
+ * the statements on either side of it rather than a sequence of statements, and can't be split into batches;
+ * it is rejected when the '|' is read, as Context.save() never writes one.
+ */
+final class StreamingLoader {
+    static final int DEFAULT_CHUNK_BYTES = 64 * 1024;
+    static final int DEFAULT_BATCH_CHARS = 1 << 20;
+
+    /**
+     * Progress of a load, reported after each batch is loaded. Progress objects are immutable.
+     */
+    static final class Progress {
+        private final long bytesRead;
+        private final long size;
+        private final long statements;
+        private final long batches;
+        private final long parseNanos;
+        private final long checkNanos;
+        private final long installNanos;
+
+        // AF(bytesRead, size, statements, batches, parseNanos, checkNanos, installNanos) = a load that has read
+        //                              bytesRead bytes of an input of size bytes (or of unknown size if
+        //                              size < 0), and loaded statements top-level statements in batches batches,
+        //                              spending parseNanos, checkNanos and installNanos in the phases of
+        //                              Context.bulkLoad() with the same names
+        //
+        // RI:
+        //  - bytesRead, statements, batches, parseNanos, checkNanos, installNanos >= 0, and bytesRead <= size
+        //      unless size < 0
+        //
+        // SRE:
+        //  - all fields are private, final and immutable
+        //
+        // TSA:
+        //  - immutable
+
+        private Progress(long bytesRead, long size, long statements, long batches, long parseNanos,
+                long checkNanos, long installNanos) {
+            this.bytesRead = bytesRead;
+            this.size = size;
+            this.statements = statements;
+            this.batches = batches;
+            this.parseNanos = parseNanos;
+            this.checkNanos = checkNanos;
+            this.installNanos = installNanos;
+            checkRep();
+        }
+
+        private void checkRep() {
+            assert bytesRead >= 0 && statements >= 0 && batches >= 0;
+            assert parseNanos >= 0 && checkNanos >= 0 && installNanos >= 0;
+            assert size < 0 || bytesRead <= size;
+        }
+
+        /**
+         * @return the number of bytes of the input read so far
+         */
+        long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * @return the size of the input in bytes, or -1 if it isn't known
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the number of top-level statements loaded so far
+         */
+        long getStatements() {
+            return statements;
+        }
+
+        /**
+         * @return the number of batches loaded so far
+         */
+        long getBatches() {
+            return batches;
+        }
+
+        /**
+         * @return the total time spent parsing statements so far, in nanoseconds
+         */
+        long getParseNanos() {
+            return parseNanos;
+        }
+
+        /**
+         * @return the total time spent checking the statements for mailing loops so far, in nanoseconds
+         */
+        long getCheckNanos() {
+            return checkNanos;
+        }
+
+        /**
+         * @return the total time spent installing or evaluating the statements so far, in nanoseconds
+         */
+        long getInstallNanos() {
+            return installNanos;
+        }
+
+        // Get this progress after one more batch, loaded as described by stats from Context.bulkLoad(), when
+        // bytesRead bytes have been read
+        private Progress plus(long bytesRead, Map<String, Long> stats) {
+            return new Progress(bytesRead, size, statements + stats.get("statements"), batches + 1,
+                    parseNanos + stats.get("parseNanos"), checkNanos + stats.get("checkNanos"),
+                    installNanos + stats.get("installNanos"));
+        }
+
+        @Override
+        public String toString() {
+            return "Loaded " + statements + " definitions, " + bytesRead + (size < 0 ? "" : " of " + size)
+                    + " bytes (parse " + parseNanos / 1_000_000 + " ms, check " + checkNanos / 1_000_000
+                    + " ms, install " + installNanos / 1_000_000 + " ms).";
+        }
+    }
+
+    private StreamingLoader() {
+        throw new AssertionError("StreamingLoader should not be instantiated");
+    }
+
+    /**
+     * Load the definitions read from a channel into a context with DEFAULT_CHUNK_BYTES and
+     * DEFAULT_BATCH_CHARS, as defined by load(Context, ReadableByteChannel, long, int, int, Consumer).
+     *
+     * @param context context to load the definitions into
+     * @param in channel to read UTF-8 text from, until its end; it is not closed
+     * @param size the number of bytes in, or -1 if it isn't known
+     * @param progress called after each batch is loaded
+     * @return the progress of the load when it is done
+     * @throws IOException if in can't be read
+     * @throws UnableToLoadException if a batch can't be parsed or evaluated
+     */
+    static Progress load(Context context, ReadableByteChannel in, long size, Consumer<Progress> progress)
+            throws IOException, UnableToLoadException {
+        return load(context, in, size, DEFAULT_CHUNK_BYTES, DEFAULT_BATCH_CHARS, progress);
+    }
+
+    /**
+     * Load the definitions read from a channel into a context, one batch of top-level statements at a time.
+     *
+     * @param context context to load the definitions into
+     * @param in channel to read UTF-8 text from, until its end; it is not closed
+     * @param size the number of bytes in, or -1 if it isn't known
+     * @param chunkBytes the number of bytes to read from in at a time, at least 1
+     * @param batchChars the number of characters of statements to gather before loading them, at least 1
+     * @param progress called after each batch is loaded
+     * @return the progress of the load when it is done
+     * @throws IOException if in can't be read
+     * @throws UnableToLoadException if a batch can't be parsed or evaluated, or the input has a '|' outside of
+     *         any parentheses, in which case the batches before it stay loaded and the statements after it are
+     *         not read
+     */
+    static Progress load(Context context, ReadableByteChannel in, long size, int chunkBytes, int batchChars,
+            Consumer<Progress> progress) throws IOException, UnableToLoadException {
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer bytes = ByteBuffer.allocate(chunkBytes);
+        final CharBuffer chars = CharBuffer.allocate(chunkBytes);
+        final StringBuilder statement = new StringBuilder();
+        final List<String> batch = new ArrayList<>();
+        long batchLength = 0;
+        Progress loaded = new Progress(0, size, 0, 0, 0, 0, 0);
+        long bytesRead = 0;
+        int depth = 0;
+        boolean endOfInput = false;
+        boolean flushed = false;
+        while (!flushed) {
+            if (!endOfInput) {
+                final int read = in.read(bytes);
+                if (read < 0) {
+                    endOfInput = true;
+                } else {
+                    bytesRead += read;
+                }
+            }
+            bytes.flip();
+            final CoderResult result = decoder.decode(bytes, chars, endOfInput);
+            if (endOfInput && result.isUnderflow()) {
+                flushed = decoder.flush(chars).isUnderflow();
+            }
+            bytes.compact();
+            chars.flip();
+            while (chars.hasRemaining()) {
+                final char c = chars.get();
+                if (c == '|' && depth == 0) {
+                    throw new UnableToLoadException(
+                            new IllegalArgumentException("A '|' outside of parentheses can't be loaded in batches."));
+                }
+                if (c != ';' || depth != 0) {
+                    if (c == '(') {
+                        depth++;
+                    } else if (c == ')') {
+                        depth--;
+                    }
+                    statement.append(c);
+                    continue;
+                }
+                batchLength += addStatement(batch, statement);
+                if (batchLength >= batchChars) {
+                    loaded = loaded.plus(bytesRead, context.bulkLoad(batch));
+                    batch.clear();
+                    batchLength = 0;
+                    progress.accept(loaded);
+                }
+            }
+            chars.clear();
+        }
+        addStatement(batch, statement);
+        if (!batch.isEmpty()) {
+            loaded = loaded.plus(bytesRead, context.bulkLoad(batch));
+            progress.accept(loaded);
+        }
+        return new Progress(bytesRead, size, loaded.statements, loaded.batches, loaded.parseNanos,
+                loaded.checkNanos, loaded.installNanos);
+    }
+
+    // Add the statement in statement to batch unless it is blank, clear statement, and get its length
+    private static int addStatement(List<String> batch, StringBuilder statement) {
+        final String text = statement.toString();
+        statement.setLength(0);
+        if (text.isBlank()) {
+            return 0;
+        }
+        batch.add(text);
+        return text.length();
+    }
+}
@@ -0,0 +1,181 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Traversals of list expression trees that use an explicit stack instead of recursion, so that they work on
+ * arbitrarily deep expressions (e.g. a list that has been redefined in terms of itself many times).
+ * Each variant of ListExpression only describes one level of the tree, through getOperands(),
+ * withOperands() and getDelimiter().
+ */
+final class Traversal {
+
+    private Traversal() {
+        throw new AssertionError("Traversal should not be instantiated");
+    }
+
+    /**
+     * Combine the nodes of an expression tree from the leaves up.
+     *
+     * @param <T> type of the value computed for each node
+     * @param root expression to traverse
+     * @param combine function from a node and the values computed for its operands (in order) to the value
+     *                for that node
+     * @return the value computed for root
+     */
+    static <T> T fold(ListExpression root, BiFunction<ListExpression, List<T>, T> combine) {
+        final Deque<ListExpression> toVisit = new ArrayDeque<>(List.of(root));
+        final Deque<Boolean> expanded = new ArrayDeque<>(List.of(false));
+        final List<T> values = new ArrayList<>();
+        while (!toVisit.isEmpty()) {
+            final ListExpression expr = toVisit.peek();
+            final List<ListExpression> operands = expr.getOperands();
+            if (expanded.pop()) {
+                toVisit.pop();
+                final List<T> operandValues = values.subList(values.size() - operands.size(), values.size());
+                final T value = combine.apply(expr, new ArrayList<>(operandValues));
+                operandValues.clear();
+                values.add(value);
+            } else {
+                expanded.push(true);
+                for (int i = operands.size() - 1; i >= 0; i--) {
+                    toVisit.push(operands.get(i));
+                    expanded.push(false);
+                }
+            }
+        }
+        assert values.size() == 1;
+        return values.get(0);
+    }
+
+    /**
+     * Check whether two expressions are equal, as defined by ListExpression.equals(), comparing the trees
+     * level by level.
+     *
+     * @param left expression to compare
+     * @param right expression to compare with left
+     * @return true if and only if left and right are equal expressions
+     */
+    static boolean equal(ListExpression left, ListExpression right) {
+        final Deque<ListExpression> leftToVisit = new ArrayDeque<>(List.of(left));
+        final Deque<ListExpression> rightToVisit = new ArrayDeque<>(List.of(right));
+        while (!leftToVisit.isEmpty()) {
+            final ListExpression expr1 = leftToVisit.pop();
+            final ListExpression expr2 = rightToVisit.pop();
+            if (expr1 == expr2) {
+                continue;
+            }
+            final List<ListExpression> operands1 = expr1.getOperands();
+            final List<ListExpression> operands2 = expr2.getOperands();
+            if (expr1.getClass() != expr2.getClass() || expr1.hashCode() != expr2.hashCode()
+                    || operands1.size() != operands2.size()) {
+                return false;
+            }
+            if (operands1.isEmpty()) {
+                if (!expr1.equals(expr2)) {
+                    return false;
+                }
+                continue;
+            }
+            for (int i = 0; i <= operands1.size(); i++) {
+                if (!expr1.getDelimiter(i).equals(expr2.getDelimiter(i))) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < operands1.size(); i++) {
+                leftToVisit.push(operands1.get(i));
+                rightToVisit.push(operands2.get(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get a copy of an expression with each leaf (expression without operands) replaced. Subtrees in which
+     * no leaf is replaced are shared with the original expression.
+     *
+     * @param root expression to copy
+     * @param replace function from a leaf to the expression that replaces it
+     * @return root with each leaf replaced by replace.apply(leaf)
+     */
+    static ListExpression replaceLeaves(ListExpression root, UnaryOperator<ListExpression> replace) {
+        return Traversal.<ListExpression>fold(root, (expr, operands) -> {
+            if (operands.isEmpty()) {
+                return replace.apply(expr);
+            }
+            final List<ListExpression> previous = expr.getOperands();
+            for (int i = 0; i < operands.size(); i++) {
+                if (operands.get(i) != previous.get(i)) {
+                    return expr.withOperands(operands);
+                }
+            }
+            return expr;
+        });
+    }
+
+    /**
+     * Get a copy of an expression with each leaf replaced as defined by getUpdatedExpression(). Subtrees in
+     * which no leaf is replaced are shared with the original expression.
+     *
+     * @param root expression to copy
+     * @param context context passed to getUpdatedExpression
+     * @param listname listname passed to getUpdatedExpression
+     * @return root with each leaf replaced by leaf.getUpdatedExpression(context, listname)
+     */
+    static ListExpression getUpdatedExpression(ListExpression root, Context context, ListName listname) {
+        return replaceLeaves(root, leaf -> leaf.getUpdatedExpression(context, listname));
+    }
+
+    /**
+     * Get the parsable representation of an expression, as defined by ListExpression.toString().
+     *
+     * @param root expression to represent
+     * @return root as a string
+     */
+    static String toString(ListExpression root) {
+        return toString(root, UnaryOperator.identity());
+    }
+
+    /**
+     * Get the parsable representation of an expression in which some leaves are written as other expressions,
+     * without building the expression with the leaves replaced.
+     *
+     * @param root expression to represent
+     * @param substitute function from a leaf to the expression to write in its place, or the leaf itself;
+     *                   the expressions written in place of leaves are substituted in turn
+     * @return root, with leaves substituted, as a string
+     */
+    static String toString(ListExpression root, UnaryOperator<ListExpression> substitute) {
+        final StringBuilder builder = new StringBuilder();
+        final Deque<ListExpression> toVisit = new ArrayDeque<>(List.of(substituted(root, substitute)));
+        final Deque<Integer> nextOperand = new ArrayDeque<>(List.of(0));
+        while (!toVisit.isEmpty()) {
+            final ListExpression expr = toVisit.peek();
+            final int index = nextOperand.pop();
+            final List<ListExpression> operands = expr.getOperands();
+            builder.append(expr.getDelimiter(index));
+            if (index < operands.size()) {
+                nextOperand.push(index + 1);
+                toVisit.push(substituted(operands.get(index), substitute));
+                nextOperand.push(0);
+            } else {
+                toVisit.pop();
+            }
+        }
+        return builder.toString();
+    }
+
+    // Apply substitute to expr until it no longer changes
+    private static ListExpression substituted(ListExpression expr, UnaryOperator<ListExpression> substitute) {
+        ListExpression current = expr;
+        for (ListExpression next = substitute.apply(current); next != current; next = substitute.apply(current)) {
+            current = next;
+        }
+        return current;
+    }
+}
@@ -1,21 +1,35 @@
 package norn;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Immutable Union class.
  */
 public class Union implements ListExpression {
-    private final ListExpression expr1;
-    private final ListExpression expr2;
-    
-    // AF(expr1, expr2) = the set union operation applied on expr1 and expr2
+    private final List<ListExpression> exprs;
+    private final Set<ListName> definedListNames;
+    private final Set<ListName> usedListNames;
+    private final Set<ListName> allListNames;
+    private final int hash;
+
+    // AF(exprs) = the set union operation applied on exprs, grouped from left to right,
+    //              i.e. (((exprs[0] , exprs[1]) , exprs[2]) , ...)
     //
-    // RI: true
+    // RI:
+    //  - exprs has at least 2 expressions
+    //  - exprs[0] is not a Union, since a left-nested union is the same grouping as a longer flat one
+    //  - definedListNames, usedListNames and allListNames are the list names defined, used, and defined or
+    //      used in exprs, each an immutable set
+    //  - hash is Interner.hash(1, exprs), where each variant of ListExpression uses its own number
     //
     // SRE:
     //  - all fields are private, final, and immutable
-    //  - none of the methods return references to any fields
+    //  - getOperands() returns exprs, which is an immutable list, and the methods that get list names return
+    //      the sets of list names, which are immutable; no other method returns references to fields
     //
     // TSA:
     //  - all fields are final and immutable
@@ -26,73 +40,168 @@ public class Union implements ListExpression {
      * @param expr2 second expression in union operation
      */
     public Union(ListExpression expr1, ListExpression expr2) {
-        this.expr1 = expr1;
-        this.expr2 = expr2;
+        this(List.of(expr1, expr2));
+    }
+
+    /**
+     * Public constructor for a union of several expressions, grouped from left to right.
+     * @param exprs expressions in union operation, at least 2
+     */
+    public Union(List<ListExpression> exprs) {
+        if (exprs.get(0) instanceof Union) {
+            final List<ListExpression> flattened = new ArrayList<>(((Union) exprs.get(0)).exprs);
+            flattened.addAll(exprs.subList(1, exprs.size()));
+            this.exprs = List.copyOf(flattened);
+        } else {
+            this.exprs = List.copyOf(exprs);
+        }
+        this.hash = Interner.hash(1, this.exprs);
+        this.definedListNames = ListNameSet.union(this.exprs, ListExpression::getDefinedListNames);
+        this.usedListNames = ListNameSet.union(this.exprs, ListExpression::getListNamesNotDefined);
+        this.allListNames = ListNameSet.union(this.exprs, ListExpression::getAllListNames);
+        checkRep();
+    }
+
+    // check rep invariant
+    private void checkRep() {
+        assert exprs.size() >= 2;
+        assert !(exprs.get(0) instanceof Union);
+    }
+
+    @Override
+    public void schedule(Evaluator evaluator) {
+        evaluator.evaluateThen(exprs, results -> {
+            final Set<String> result = results.get(0);
+            for (Set<String> operand : results.subList(1, results.size())) {
+                result.addAll(operand);
+            }
+            evaluator.returnResult(result);
+        });
     }
 
     @Override
-    public Set<String> evaluate(Context context) throws EvaluationException  {
-        Set<String> s1 = expr1.evaluate(context);
-        Set<String> s2 = expr2.evaluate(context);
-        s1.addAll(s2);
-        return s1;
+    public ListExpression optimize(List<ListExpression> optimizedOperands) {
+        final List<ListExpression> operands = new ArrayList<>();
+        final Set<ListExpression> pureOperands = new HashSet<>();
+        for (ListExpression optimized : optimizedOperands) {
+            final List<ListExpression> flattened = optimized instanceof Union
+                    ? ((Union) optimized).exprs
+                    : List.of(optimized);
+            for (ListExpression operand : flattened) {
+                final boolean pure = operand.getDefinedListNames().isEmpty();
+                if (!(operand instanceof Empty) && !(pure && pureOperands.contains(operand))) {
+                    operands.add(operand);
+                }
+                if (pure) {
+                    pureOperands.add(operand);
+                } else {
+                    // the list names that later copies use, directly or through the context, may be redefined
+                    pureOperands.removeIf(seen -> !seen.getAllListNames().isEmpty());
+                }
+            }
+        }
+        if (operands.isEmpty()) {
+            return new Empty();
+        } else if (operands.size() == 1) {
+            return operands.get(0);
+        }
+        return new Union(operands);
     }
-    
+
+    @Override
+    public Set<String> evaluateMaterialized(Context context, List<Set<String>> operands) {
+        final Set<String> result = operands.get(0);
+        for (Set<String> operand : operands.subList(1, operands.size())) {
+            result.addAll(operand);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean containsMaterialized(Context context, String recipient, List<Boolean> operands) {
+        return operands.contains(true);
+    }
+
+    @Override
+    public Iterator<String> evaluateSorted(SortedEvaluator evaluator) throws EvaluationException {
+        final List<Iterator<String>> operands = new ArrayList<>();
+        for (ListExpression expr : exprs) {
+            operands.add(evaluator.stream(expr));
+        }
+        return SortedMerge.union(operands);
+    }
+
+    @Override
+    public void compile(Compiler compiler, int index, int register) {
+        if (index >= 2) {
+            compiler.unionInto(register, register + 1);
+        }
+    }
+
     @Override
     public ListExpression getUpdatedExpression(Context context, ListName listname) {
-        return new Union(expr1.getUpdatedExpression(context, listname), expr2.getUpdatedExpression(context, listname));
+        return Traversal.getUpdatedExpression(this, context, listname);
     }
-    
+
     @Override
     public Set<ListName> getDefinedListNames() {
-        Set<ListName> s1 = expr1.getDefinedListNames();
-        Set<ListName> s2 = expr2.getDefinedListNames();
-        s1.addAll(s2);
-        return s1;
+        return definedListNames;
     }
-    
+
     @Override
     public Set<ListName> getAllListNames() {
-        Set<ListName> s1 = expr1.getAllListNames();
-        Set<ListName> s2 = expr2.getAllListNames();
-        s1.addAll(s2);
-        return s1;
+        return allListNames;
     }
-    
+
     @Override
     public Set<ListName> getListNamesNotDefined() {
-        Set<ListName> s1 = expr1.getListNamesNotDefined();
-        Set<ListName> s2 = expr2.getListNamesNotDefined();
-        s1.addAll(s2);
-        return s1;
+        return usedListNames;
     }
 
     @Override
-    public VisualizerTree getVisualizerTree() {
+    public List<ListExpression> getOperands() {
+        return exprs;
+    }
+
+    @Override
+    public ListExpression withOperands(List<ListExpression> operands) {
+        return new Union(operands);
+    }
+
+    @Override
+    public String getDelimiter(int index) {
+        if (index == 0) {
+            return "(";
+        } else if (index == exprs.size()) {
+            return ")";
+        }
+        return ",";
+    }
+
+    @Override
+    public VisualizerTree getVisualizerTree(List<VisualizerTree> operands) {
         final VisualizerTree tree = new VisualizerTree("∪");
-        tree.addChild(expr1.getVisualizerTree());
-        tree.addChild(expr2.getVisualizerTree());
+        for (VisualizerTree operand : operands) {
+            tree.addChild(operand);
+        }
         return tree;
     }
 
     ///////////////////// Equality and toString() methods //////////////////////
-    
+
     @Override
     public boolean equals(Object that) {
-        return that instanceof Union && sameValue((Union) that);
-    }
-    
-    private boolean sameValue(Union that) {
-        return this.expr1.equals(that.expr1) && this.expr2.equals(that.expr2);
+        return this == that
+                || that instanceof Union && Traversal.equal(this, (Union) that);
     }
-    
+
     @Override
     public int hashCode() {
-        return expr1.hashCode() + expr2.hashCode();
+        return hash;
     }
-    
+
     @Override
     public String toString() {
-        return "(" + expr1.toString() + "," + expr2.toString() + ")";
+        return Traversal.toString(this);
     }
 }
@@ -1,5 +1,7 @@
 package norn;
 
+import java.io.PrintWriter;
+import java.util.Iterator;
 import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -17,4 +19,23 @@ public class Util {
         String out = set.stream().sorted().map(Objects::toString).collect(Collectors.joining(", "));
         return out.length() != 0 ? out : "∅";
     }
+
+    /**
+     * Prints the elements of an iterator, converted to strings and joined with ", ", as the iterator
+     * produces them, so that the output starts before the last element has been produced.
+     *
+     * @param elements iterator over the elements to print, in the order to print them
+     * @param out writer to print to; prints "∅" if elements has no elements
+     */
+    public static void printJoined(Iterator<?> elements, PrintWriter out) {
+        if (!elements.hasNext()) {
+            out.print("∅");
+            return;
+        }
+        out.print(elements.next());
+        while (elements.hasNext()) {
+            out.print(", ");
+            out.print(elements.next());
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package norn;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
 public class VisualizerTree {
@@ -40,18 +42,33 @@ public class VisualizerTree {
         children.add(child);
     }
 
+    // The tree is written with an explicit stack, so arbitrarily deep trees don't overflow the thread's stack
     @Override
     public String toString() {
-        final StringBuilder sb = new StringBuilder("<li>");
-        sb.append("<p>").append(data).append("</p>");
-        if (!children.isEmpty()) {
-            sb.append("<ul>");
-            for (VisualizerTree child : children) {
-                sb.append(child.toString());
+        final StringBuilder sb = new StringBuilder();
+        final Deque<VisualizerTree> toVisit = new ArrayDeque<>(List.of(this));
+        final Deque<Integer> nextChild = new ArrayDeque<>(List.of(0));
+        while (!toVisit.isEmpty()) {
+            final VisualizerTree tree = toVisit.peek();
+            final int index = nextChild.pop();
+            if (index == 0) {
+                sb.append("<li>").append("<p>").append(tree.data).append("</p>");
+                if (!tree.children.isEmpty()) {
+                    sb.append("<ul>");
+                }
+            }
+            if (index < tree.children.size()) {
+                nextChild.push(index + 1);
+                toVisit.push(tree.children.get(index));
+                nextChild.push(0);
+            } else {
+                if (!tree.children.isEmpty()) {
+                    sb.append("</ul>");
+                }
+                sb.append("</li>");
+                toVisit.pop();
             }
-            sb.append("</ul>");
         }
-        sb.append("</li>");
         return sb.toString();
     }
 
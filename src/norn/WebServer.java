@@ -12,6 +12,7 @@ import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executors;
@@ -65,7 +66,8 @@ public class WebServer {
     
     /**
      * Evaluates and Visualizes a mailing list for a given grammar input
-     * - For the evaluation, the code functions along the spec of evaluate defined in Context/ListExpression
+     * - For the evaluation, the code functions along the spec of evaluateSorted defined in Context, and writes
+     *   the recipients to the page as they are produced
      * - For the visualization, the code will output a tree representing the recursive input generated by the parser,
      *   along with a list of all defined listnames.
      * @param exchange the exchange containing the mailing list input
@@ -84,14 +86,14 @@ public class WebServer {
 
         final String data = path.substring(base.length());
 
-        final String response;
+        final Iterator<String> response;
         final ListExpression expr;
         // write the response to the output stream using UTF-8 character encoding
         OutputStream body = exchange.getResponseBody();
         PrintWriter out = new PrintWriter(new OutputStreamWriter(body, UTF_8), true);
         try {
             expr = ListExpression.parse(data);
-            response = Util.setToOrderedString(context.evaluate(expr));
+            response = context.evaluateSorted(expr);
             exchange.sendResponseHeaders(SUCCESS_CODE, 0);
         } catch (EvaluationException e) {
             exchange.sendResponseHeaders(ERROR_CODE, 0);
@@ -100,6 +102,11 @@ public class WebServer {
             exchange.close();
             return;
         }
+        // the template's placeholders are the expression, the result and the visualization, in that order;
+        // the recipients are written as they are produced, before the visualization is built
+        final String[] template = getTemplate().split("%s", -1);
+        out.print(template[0] + data + template[1]);
+        Util.printJoined(response, out);
         final VisualizerTree tree = new VisualizerTree("Expression structure");
         tree.addChild(expr.getVisualizerTree());
         StringBuilder sb = new StringBuilder(tree.asHTML());
@@ -107,7 +114,7 @@ public class WebServer {
             final VisualizerTree definedNames = new VisualizerTree("Used listnames");
             for (ListName listName : expr.getAllListNames()) {
                 try {
-                    final Set<String> set = listName.evaluate(context);
+                    final Set<String> set = context.evaluate(listName);
                     final VisualizerTree nameTree = new VisualizerTree(listName.toString());
                     nameTree.addChild(new VisualizerTree(Util.setToOrderedString(set)));
                     definedNames.addChild(nameTree);
@@ -117,8 +124,7 @@ public class WebServer {
             }
             sb.append(definedNames.asHTML());
         }
-        String templated = String.format(getTemplate(), data, response, sb.toString());
-        out.print(templated);
+        out.print(template[2] + sb + template[3]);
         out.flush();
         // if you do not close the exchange, the response will not be sent!
         exchange.close();
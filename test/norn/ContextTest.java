@@ -1,9 +1,26 @@
 package norn;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.jupiter.api.Test;
 
@@ -17,21 +34,67 @@ public class ContextTest {
     //      getRelevantExpression()
     //          listname has been defined already, listname has not been defined yet
     //          listname's definition uses itself, doesn't use itself
+    //          listname was redefined in terms of itself 0, 1, >1 times; previous definition is a single
+    //              recipient, is not (it is kept as a prior version)
     //      updateMap()
     //          listname has been defined already, listname has not been defined yet
     //          expr contains a mail loop, doesn't contain a mail loop
     //          expr is a recursive redefinition, or is not a recursive redefinition
+    //          expr makes a loop through 1, >1 other listnames; listnames defined before, after the listnames
+    //              they use
     //      getDependencies()
     //          listname is not dependent on any listname, is only dependent on its direct
     //              children, or is dependent on listnames that are not its direct children
     //          listname is dependent on itself, not dependent on itself
+    //          listname is dependent on listnames through its previous definitions, isn't
+    //          dependencies asked for before, not since listname or one of its dependencies was redefined
+    //      evaluateListName()
+    //          listname has been evaluated before, has not been evaluated before
+    //          listname or a listname it depends on directly, indirectly was redefined since the last evaluation
+    //          listname's definition defines other listnames, doesn't define other listnames
+    //      materialized context
+    //          listname's recipients added to, removed from, both
+    //          listname is depended on directly, indirectly, through union, intersection, difference
+    //          listname's definition defines other listnames, doesn't define other listnames
+    //      getParallelStats()
+    //          0, 1, >1 parallels evaluated; parallels nested, not nested
+    //          a subexpression of a parallel throws, doesn't throw; throws while the other is still running
+    //          independent operands cheaper than the parallel threshold, at least the threshold
+    //          operands independent, not independent (an operand defines a listname)
+    //          cheapest operand of an intersection empty (the other operands are skipped), not empty
+    //      evaluate() that fails
+    //          the failed expression defined new listnames, redefined listnames, redefined listnames in terms
+    //              of themselves, removed prior versions
+    //          context materialized, not materialized
+    //          listnames not changed by the failed expression have cached recipients, don't
+    //      recipients given ids in RecipientDictionary
+    //          recipient only in queries, in a definition
+    //      getSnapshot(), getVersion()
+    //          definitions made after the snapshot was taken: none, some; failed evaluation undone after it
+    //          the context's monitor is held by a writer, isn't
+    //          read while an evaluation that fails later is defining listnames, isn't
     //      save()
     //          save a context with 0, 1, >1 definitions
+    //          save a context with listnames redefined in terms of themselves, without
     //      load()
     //          load a String that can be parsed, can't be parsed
     //              if it can be parsed, it can either be able to be evaluated or not be
-    //              able to be evaluated
+    //              able to be evaluated (the context is left unmodified)
+    //      bulkLoad()
+    //          statements: none, some, more than one task parses; parsed on one thread, on many threads;
+    //              definitions of distinct listnames, that use listnames defined later, that use their own
+    //              listname, that define listnames, of a listname defined twice, not definitions
+    //          statements can be parsed, can't be parsed; have a mail loop through new definitions only,
+    //              through current definitions too
+    //          current definitions define listnames, don't
+    //          context materialized, not materialized
     
+    private static List<String> toList(Iterator<String> recipients) {
+        final List<String> list = new ArrayList<>();
+        recipients.forEachRemaining(list::add);
+        return list;
+    }
+
     @Test
     public void testAssertionsEnabled() {
         assertThrows(AssertionError.class, () -> { assert false; },
@@ -58,6 +121,28 @@ public class ContextTest {
         assertEquals(ListExpression.parse("b@mit, c@mit"), context.getRelevantExpression(new ListName("a")));
     }
     
+    // Covers: getRelevantExpression(), getDependencies(), save()
+    //              listname redefined in terms of itself more than once, previous definition is not a single
+    //              recipient, listname dependent on listnames through its previous definitions
+    @Test
+    public void testPriorVersions() throws EvaluationException, UnableToLoadException {
+        Context context = new Context();
+        ListName a = new ListName("a");
+        context.evaluate(ListExpression.parse("a = b, c; a = (a ! d@mit), x@mit; b = d@mit, e@mit; a = a, a * e@mit"));
+        assertEquals(ListExpression.parse("(((b, c) ! d@mit), x@mit), (((b, c) ! d@mit), x@mit) * e@mit"),
+                context.getRelevantExpression(a));
+        assertEquals(Set.of(new ListName("b"), new ListName("c")), context.getDependencies(a));
+        assertEquals(Set.of("e@mit", "x@mit"), context.evaluate(a));
+        assertEquals(2, context.save().split(";").length);
+
+        Context loaded = new Context();
+        loaded.load(context.save());
+        assertEquals(context.getRelevantExpression(a), loaded.getRelevantExpression(a));
+        context.evaluate(ListExpression.parse("a = c"));
+        assertEquals(ListExpression.parse("c"), context.getRelevantExpression(a));
+        assertEquals(Set.of(new ListName("c")), context.getDependencies(a));
+    }
+
     // Covers: updateMap()
     //              listname has not yet been defined
     //              listname has been defined already
@@ -88,6 +173,84 @@ public class ContextTest {
         assertThrows(MailLoopException.class, () -> context.updateMap(b, ListExpression.parse("a")));
     }
     
+    // Covers: updateMap()
+    //              expr contains a mail loop through >1 other listnames
+    //              listnames defined before, after the listnames they use
+    @Test
+    public void testUpdateMapMailLoopDefinedOutOfOrder() throws EvaluationException {
+        Context context = new Context(true);
+        context.evaluate(ListExpression.parse("a=b; b=c; e=f@mit; c=d,e; d=x@mit; f=y@mit; e=f"));
+        ListName e = new ListName("e");
+        assertThrows(MailLoopException.class, () -> context.updateMap(e, ListExpression.parse("a")));
+        assertThrows(MailLoopException.class, () -> context.updateMap(e, ListExpression.parse("g,h,b")));
+        ListName c = new ListName("c");
+        assertThrows(MailLoopException.class, () -> context.updateMap(c, ListExpression.parse("f,a")));
+        assertEquals(ListExpression.parse("f"), context.getRelevantExpression(e));
+        assertEquals(ListExpression.parse("d,e"), context.getRelevantExpression(c));
+        assertEquals(Set.of("x@mit", "y@mit"), context.getMaterialized(new ListName("a")));
+        context.evaluate(ListExpression.parse("f=d,z@mit"));
+        assertEquals(Set.of("x@mit", "z@mit"), context.evaluate(ListExpression.parse("a")));
+        assertEquals(Set.of("x@mit", "z@mit"), context.getMaterialized(new ListName("a")));
+        assertThrows(MailLoopException.class, () -> context.updateMap(new ListName("d"),
+                ListExpression.parse("f")));
+    }
+
+    // Covers: updateMap()
+    //              expr contains a mail loop, doesn't contain a mail loop, through >1 other listnames
+    //              listnames defined before, after the listnames they use
+    @Test
+    public void testUpdateMapRandomDefinitions() throws EvaluationException {
+        final int lists = 200;
+        final Random random = new Random(0);
+        final Context context = new Context(true);
+        final Map<Integer, Set<Integer>> uses = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            final int listname = random.nextInt(lists);
+            final Set<Integer> used = new HashSet<>();
+            final StringJoiner expr = new StringJoiner(",");
+            expr.add("r" + listname + "@mit");
+            for (int j = random.nextInt(4); j > 0; j--) {
+                final int child = random.nextInt(lists);
+                if (child != listname) {
+                    used.add(child);
+                    expr.add("l" + child);
+                }
+            }
+            // expected loop: listname is reachable from one of the listnames it would use
+            final Set<Integer> reachable = new HashSet<>();
+            final List<Integer> toVisit = new ArrayList<>(used);
+            while (!toVisit.isEmpty()) {
+                final int current = toVisit.remove(toVisit.size() - 1);
+                if (reachable.add(current)) {
+                    toVisit.addAll(uses.getOrDefault(current, Set.of()));
+                }
+            }
+            final ListName l = new ListName("l" + listname);
+            if (reachable.contains(listname)) {
+                assertThrows(MailLoopException.class,
+                        () -> context.updateMap(l, ListExpression.parse(expr.toString())));
+            } else {
+                context.updateMap(l, ListExpression.parse(expr.toString()));
+                uses.put(listname, used);
+            }
+        }
+        for (int listname = 0; listname < lists; listname++) {
+            final Set<String> expected = new HashSet<>();
+            final Set<Integer> visited = new HashSet<>();
+            final List<Integer> toVisit = new ArrayList<>(List.of(listname));
+            while (!toVisit.isEmpty()) {
+                final int current = toVisit.remove(toVisit.size() - 1);
+                if (visited.add(current) && uses.containsKey(current)) {
+                    expected.add("r" + current + "@mit");
+                    toVisit.addAll(uses.get(current));
+                }
+            }
+            final ListName l = new ListName("l" + listname);
+            assertEquals(expected, context.evaluate(l));
+            assertEquals(expected, context.getMaterialized(l));
+        }
+    }
+    
     // Covers: getDependencies()
     //              listname is not dependent on any listname
     //              listname is only dependent on its direct children
@@ -120,6 +283,266 @@ public class ContextTest {
         assertEquals(Set.of(new ListName("a"), new ListName("c")), context.getDependencies(b));
     }
     
+    // Covers: getDependencies()
+    //              listname is dependent on listnames that are not its direct children
+    //              dependencies asked for before, not since listname or one of its dependencies was redefined
+    @Test
+    public void testGetDependenciesCached() throws EvaluationException {
+        Context context = new Context();
+        ListName a = new ListName("a");
+        ListName b = new ListName("b");
+        context.evaluate(ListExpression.parse("a=b,c; b=d; e=f"));
+        Set<ListName> dependencies = context.getDependencies(a);
+        assertEquals(Set.of(b, new ListName("c"), new ListName("d")), dependencies);
+        assertSame(dependencies, context.getDependencies(a));
+        assertThrows(UnsupportedOperationException.class, () -> dependencies.add(a));
+        context.evaluate(ListExpression.parse("e=g"));
+        assertSame(dependencies, context.getDependencies(a));
+        context.evaluate(ListExpression.parse("b=e"));
+        assertEquals(Set.of(b, new ListName("c"), new ListName("e"), new ListName("g")), context.getDependencies(a));
+        assertEquals(Set.of(new ListName("e"), new ListName("g")), context.getDependencies(b));
+        assertThrows(ParallelDefinitionException.class, () -> context.evaluate(ListExpression.parse("(a | g=x@mit)")));
+        assertEquals(Set.of(), context.evaluate(ListExpression.parse("(a | d=x@mit)")));
+    }
+    
+    // Covers: evaluateListName()
+    //              listname has not been evaluated before, has been evaluated before
+    //              a listname it depends on directly, indirectly was redefined since the last evaluation
+    //              listname's definition doesn't define other listnames
+    @Test
+    public void testEvaluateListNameRedefinedDependency() throws EvaluationException {
+        Context context = new Context();
+        ListName a = new ListName("a");
+        context.evaluate(ListExpression.parse("c=c@mit; b=c,b@mit; a=b*c"));
+        assertEquals(Set.of("c@mit"), context.evaluateListName(a));
+        Set<String> result = context.evaluateListName(a);
+        assertEquals(Set.of("c@mit"), result);
+        result.add("mutated@mit");
+        assertEquals(Set.of("c@mit"), context.evaluateListName(a));
+        context.evaluate(ListExpression.parse("c=c@mit,d@mit"));
+        assertEquals(Set.of("c@mit", "d@mit"), context.evaluateListName(a));
+        context.evaluate(ListExpression.parse("b=d@mit"));
+        assertEquals(Set.of("d@mit"), context.evaluateListName(a));
+    }
+
+    // Covers: evaluateListName()
+    //              listname itself was redefined since the last evaluation
+    //              listname's definition defines other listnames
+    @Test
+    public void testEvaluateListNameNestedDefinition() throws EvaluationException {
+        Context context = new Context();
+        ListName a = new ListName("a");
+        ListName b = new ListName("b");
+        context.evaluate(ListExpression.parse("a=(b=b@mit),a@mit"));
+        assertEquals(Set.of("a@mit", "b@mit"), context.evaluateListName(a));
+        context.evaluate(ListExpression.parse("b=x@mit"));
+        assertEquals(Set.of("x@mit"), context.evaluateListName(b));
+        assertEquals(Set.of("a@mit", "b@mit"), context.evaluateListName(a));
+        assertEquals(Set.of("b@mit"), context.evaluateListName(b));
+        context.evaluate(ListExpression.parse("a=y@mit"));
+        assertEquals(Set.of("y@mit"), context.evaluateListName(a));
+    }
+
+    // Covers: materialized context
+    //              listname's recipients added to, removed from, both
+    //              listname is depended on directly, indirectly, through union, intersection, difference
+    //              listname's definition doesn't define other listnames
+    @Test
+    public void testMaterializedPropagation() throws EvaluationException {
+        Context context = new Context(true);
+        context.evaluate(ListExpression.parse("staff=a@mit,b@mit,c@mit; active=a@mit,b@mit; "
+                + "left=c@mit; current=staff*active; mail=current!left; all=mail,x@mit"));
+        ListName all = new ListName("all");
+        ListName mail = new ListName("mail");
+        assertEquals(Set.of("a@mit", "b@mit"), context.getMaterialized(mail));
+        assertEquals(Set.of("a@mit", "b@mit", "x@mit"), context.getMaterialized(all));
+        context.evaluate(ListExpression.parse("active=active,c@mit,d@mit"));
+        assertEquals(Set.of("a@mit", "b@mit"), context.getMaterialized(mail));
+        context.evaluate(ListExpression.parse("left=b@mit"));
+        assertEquals(Set.of("a@mit", "c@mit"), context.getMaterialized(mail));
+        assertEquals(Set.of("a@mit", "c@mit", "x@mit"), context.getMaterialized(all));
+        context.evaluate(ListExpression.parse("staff=staff!a@mit,d@mit"));
+        assertEquals(Set.of("c@mit", "d@mit"), context.getMaterialized(mail));
+        assertEquals(Set.of("c@mit", "d@mit", "x@mit"), context.evaluate(ListExpression.parse("all")));
+        assertEquals(context.evaluate(ListExpression.parse("staff*active!left,x@mit")),
+                context.evaluate(ListExpression.parse("all")));
+    }
+
+    // Covers: materialized context
+    //              listname's definition defines other listnames
+    @Test
+    public void testMaterializedNestedDefinition() throws EvaluationException {
+        Context context = new Context(true);
+        ListName a = new ListName("a");
+        ListName c = new ListName("c");
+        context.evaluate(ListExpression.parse("a=(b=b@mit),a@mit; c=a,c@mit"));
+        assertEquals(Set.of(), context.getMaterialized(c));
+        assertEquals(Set.of("a@mit", "b@mit", "c@mit"), context.evaluate(ListExpression.parse("c")));
+        context.evaluate(ListExpression.parse("a=a@mit"));
+        assertEquals(Set.of("a@mit"), context.getMaterialized(a));
+        assertEquals(Set.of("a@mit", "c@mit"), context.getMaterialized(c));
+    }
+
+    // Covers: evaluate() that fails
+    //              the failed expression defined new listnames, redefined listnames, redefined listnames in
+    //                  terms of themselves, removed prior versions
+    //              context not materialized
+    //              listnames not changed by the failed expression have cached recipients
+    @Test
+    public void testEvaluateRollback() throws EvaluationException {
+        Context context = new Context();
+        ListName a = new ListName("a");
+        ListName b = new ListName("b");
+        ListName c = new ListName("c");
+        ListName g = new ListName("g");
+        context.evaluate(ListExpression.parse("c = c@mit; b = x@mit, c; b = b ! c, y@mit; a = b, a@mit; g = a * x@mit"));
+        context.evaluate(ListExpression.parse("f = g@mit, h@mit"));
+        ListExpression b1 = context.getRelevantExpression(b);
+        assertEquals(Set.of("a@mit", "x@mit", "y@mit"), context.evaluate(a));
+        assertEquals(Set.of("g@mit", "h@mit"), context.evaluate(new ListName("f")));
+        String saved = context.save();
+        assertThrows(MailLoopException.class, () -> context.evaluate(ListExpression.parse(
+                "d = a; b = b, d@mit; b = z@mit; c = c, e@mit; e = x@mit; c = b, e; b = c")));
+        assertEquals(saved, context.save());
+        assertEquals(b1, context.getRelevantExpression(b));
+        assertEquals(ListExpression.parse(""), context.getRelevantExpression(new ListName("d")));
+        assertEquals(Set.of(c), context.getDependencies(b));
+        assertEquals(Set.of(), context.getDependencies(new ListName("e")));
+        assertEquals(Set.of("g@mit", "h@mit"), context.getKnownRecipients(new ListName("f"), context.getSnapshot()));
+        assertEquals(null, context.getKnownRecipients(a, context.getSnapshot()));   // b was changed
+        assertEquals(Set.of("a@mit", "x@mit", "y@mit"), context.evaluate(a));
+        assertEquals(Set.of("x@mit"), context.evaluate(g));
+        context.evaluate(ListExpression.parse("c = c, x@mit"));
+        assertEquals(Set.of("a@mit", "y@mit"), context.evaluate(a));
+        assertEquals(Set.of(), context.evaluate(g));
+    }
+
+    // Covers: evaluate() that fails
+    //              the failed expression defined new listnames, redefined listnames
+    //              context materialized
+    //              listnames not changed by the failed expression don't have cached recipients
+    @Test
+    public void testEvaluateRollbackMaterialized() throws EvaluationException {
+        Context context = new Context(true);
+        ListName all = new ListName("all");
+        context.evaluate(ListExpression.parse("staff = a@mit, b@mit; left = b@mit; all = staff ! left"));
+        assertThrows(MailLoopException.class, () -> context.evaluate(ListExpression.parse(
+                "left = new; new = c@mit; staff = staff, c@mit, d@mit; new = all")));
+        assertEquals(Set.of("a@mit"), context.getMaterialized(all));
+        assertEquals(Set.of(), context.getMaterialized(new ListName("new")));
+        context.evaluate(ListExpression.parse("left = ()"));
+        assertEquals(Set.of("a@mit", "b@mit"), context.getMaterialized(all));
+    }
+
+    // Covers: recipients given ids in RecipientDictionary
+    //              recipient only in queries, in a definition
+    @Test
+    public void testQueriedRecipientsGetNoIds() throws EvaluationException {
+        Context context = new Context();
+        String unique = "ids" + System.nanoTime();
+        String queried = unique + "@queried";
+        String defined = unique + "@defined";
+        assertEquals(Set.of(queried, defined), context.evaluate(ListExpression.parse(queried + ", " + defined)));
+        assertEquals(-1, RecipientDictionary.findId(queried));
+        assertEquals(-1, RecipientDictionary.findId(defined));
+        context.evaluate(ListExpression.parse("a = " + defined + ", x@mit"));
+        assertTrue(RecipientDictionary.findId(defined) >= 0);
+        assertEquals(Set.of(queried, defined),
+                context.evaluate(ListExpression.parse("(a, " + queried + ") ! x@mit")));
+        assertEquals(List.of(defined, queried),
+                toList(context.evaluateSorted(ListExpression.parse("(a, " + queried + ") ! x@mit"))));
+        assertEquals(-1, RecipientDictionary.findId(queried));
+    }
+
+    // Covers: getSnapshot(), getVersion()
+    //              definitions made after the snapshot was taken: none, some; failed evaluation undone after it
+    @Test
+    public void testSnapshot() throws EvaluationException {
+        Context context = new Context();
+        ListName a = new ListName("a");
+        assertEquals(0, context.getVersion());
+        context.evaluate(ListExpression.parse("b = x@mit; a = b, y@mit"));
+        Snapshot snapshot = context.getSnapshot();
+        assertEquals(2, snapshot.getVersion());
+        assertEquals(snapshot, context.getSnapshot());
+        context.evaluate(ListExpression.parse("a"));
+        assertEquals(2, context.getVersion());
+
+        context.evaluate(ListExpression.parse("b = z@mit; a = a, w@mit"));
+        assertThrows(MailLoopException.class, () -> context.evaluate(ListExpression.parse("c = a; b = c")));
+        assertEquals(6, context.getVersion());
+        assertEquals(ListExpression.parse("b, y@mit"), snapshot.getRelevantExpression(a));
+        assertEquals(Set.of(new ListName("b")), snapshot.getDependencies(a));
+        assertEquals(ListExpression.parse("(b, y@mit), w@mit"), context.getRelevantExpression(a));
+        assertEquals(Set.of("x@mit", "y@mit"), new Evaluator(context, null, snapshot).evaluate(a));
+        assertEquals(Set.of("y@mit", "z@mit", "w@mit"), context.evaluate(a));
+        assertEquals(Set.of("x@mit", "y@mit"), new Evaluator(context, null, snapshot).evaluate(a));
+        assertEquals(List.of("x@mit", "y@mit"),
+                toList(new SortedEvaluator(context, snapshot).stream(ListExpression.parse("a"))));
+    }
+
+    // Covers: getSnapshot(), getVersion()
+    //              the context's monitor is held by a writer
+    @Test
+    public void testReadersDontWaitForWriters() throws Exception {
+        Context context = new Context();
+        context.evaluate(ListExpression.parse("a = x@mit, y@mit; b = a ! y@mit"));
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            synchronized (context) {
+                locked.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        locked.await();
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                assertEquals(Set.of("x@mit"), context.evaluate(ListExpression.parse("b, (a * x@mit)")));
+                assertEquals(List.of("x@mit"), toList(context.evaluateSorted(ListExpression.parse("b"))));
+                assertTrue(context.save().contains("b="));
+                assertEquals(Set.of(new ListName("a")), context.getDependencies(new ListName("b")));
+            });
+        } finally {
+            done.countDown();
+            writer.join();
+        }
+    }
+
+    // Covers: getSnapshot(), save()
+    //              read while an evaluation that fails later is defining listnames
+    @Test
+    public void testFailedEvaluationNeverPublished() throws Exception {
+        Context context = new Context();
+        ListName a = new ListName("a");
+        ListExpression failing = ListExpression.parse("a = x@y; b = (a ! a) * c; c = b");
+        AtomicBoolean finished = new AtomicBoolean(false);
+        AtomicBoolean seen = new AtomicBoolean(false);
+        Thread reader = new Thread(() -> {
+            while (!finished.get()) {
+                if (context.getSnapshot().isDefined(a) || !context.save().isEmpty()) {
+                    seen.set(true);
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 0; i < 20_000; i++) {
+                assertThrows(MailLoopException.class, () -> context.evaluate(failing));
+            }
+        } finally {
+            finished.set(true);
+            reader.join();
+        }
+        assertFalse(seen.get());
+        assertEquals("", context.save());
+    }
+
     // Covers: save()
     //              context with 0 definitions
     @Test
@@ -159,7 +582,9 @@ public class ContextTest {
     @Test
     public void testLoadParsableButNotEvaluatable() throws EvaluationException, UnableToLoadException {
         Context context = new Context();
-        assertThrows(UnableToLoadException.class, () -> context.load("a=b; b=a"));
+        context.load("c=c@mit");
+        assertThrows(UnableToLoadException.class, () -> context.load("a=b; c=c,d@mit; b=a"));
+        assertEquals("c=c@mit", context.save());
     }
     
     // Covers: load()
@@ -170,4 +595,265 @@ public class ContextTest {
         assertThrows(UnableToLoadException.class, () -> context.load("a=a@"));
     }
     
+    // Covers: getParallelStats()
+    //              0, >1 parallels evaluated, nested
+    //              a subexpression of a parallel doesn't throw
+    @Test
+    public void testParallelStatsManyParallels() throws EvaluationException {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            final Context context = new Context(false, pool);
+            assertEquals(0L, context.getParallelStats().get("forks"));
+            final StringJoiner parallels = new StringJoiner("|");
+            final StringJoiner union = new StringJoiner(",");
+            for (int i = 0; i < 200; i++) {
+                parallels.add("l" + i + "=r" + i + "@mit");
+                union.add("l" + i);
+            }
+            assertEquals(Set.of(), context.evaluate(ListExpression.parse(parallels.toString())));
+            assertEquals(200, context.evaluate(ListExpression.parse(union.toString())).size());
+            final Map<String, Long> stats = context.getParallelStats();
+            assertEquals(199L, stats.get("forks"));
+            assertTrue(stats.get("runByCaller") <= stats.get("forks"));
+            assertEquals(2L, stats.get("parallelism"));
+            assertTrue(stats.get("poolSize") <= 2);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Covers: getParallelStats()
+    //              1 parallel evaluated, not nested
+    //              a subexpression of a parallel throws
+    @Test
+    public void testParallelStatsFailure() throws EvaluationException {
+        final ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            final Context context = new Context(false, pool);
+            context.evaluate(ListExpression.parse("a=b@mit"));
+            assertThrows(MailLoopException.class, () -> context.evaluate(ListExpression.parse("c=x@mit | (b=a;a=b)")));
+            assertEquals(1L, context.getParallelStats().get("forks"));
+            assertEquals(Set.of("b@mit"), context.evaluate(ListExpression.parse("a")));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Covers: getParallelStats()
+    //              1 parallel evaluated, not nested
+    //              a subexpression of a parallel throws while the other one is still defining listnames
+    @Test
+    public void testParallelFailureWaitsForFork() throws EvaluationException {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            final StringJoiner definitions = new StringJoiner(";");
+            for (int i = 0; i < 2000; i++) {
+                definitions.add("m" + i + "=r" + i + "@mit");
+            }
+            final ListExpression expr = ListExpression.parse("(x=y; y=x) | (" + definitions + ")");
+            for (int run = 0; run < 20; run++) {
+                final Context context = new Context(false, pool);
+                context.evaluate(ListExpression.parse("a=b@mit"));
+                assertThrows(MailLoopException.class, () -> context.evaluate(expr));
+                assertEquals("a=b@mit", context.save());
+                // nothing forked by the failed evaluation is left to redefine listnames after the rollback
+                assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+                assertEquals("a=b@mit", context.save());
+                assertEquals(Set.of(), context.evaluate(ListExpression.parse("m1999")));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Covers: getParallelStats()
+    //              independent operands cheaper than the parallel threshold, at least the threshold
+    //              operands independent, not independent
+    @Test
+    public void testParallelStatsIndependentOperands() throws EvaluationException {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            final Context context = new Context(false, pool, 50);
+            final StringJoiner big = new StringJoiner(",");
+            for (int i = 0; i < 100; i++) {
+                big.add("r" + i + "@mit");
+            }
+            context.evaluate(ListExpression.parse("eng = " + big + "; sales = " + big + "; ops = x@mit"));
+            final long forks = context.getParallelStats().get("forks");
+            assertEquals(Set.of("r1@mit"), context.evaluate(ListExpression.parse("(a@mit, b@mit) * r1@mit, r1@mit")));
+            assertEquals(forks, context.getParallelStats().get("forks"));           // too cheap
+            assertEquals(Set.of("r1@mit"), context.evaluate(ListExpression.parse("eng * (r1@mit, ops)")));
+            assertEquals(forks, context.getParallelStats().get("forks"));           // only one operand is expensive
+            assertEquals(Set.of("r1@mit"), context.evaluate(ListExpression.parse("eng * (sales, ops) * (r1@mit, ops)")));
+            assertEquals(forks + 1, context.getParallelStats().get("forks"));
+            assertEquals(Set.of(), context.evaluate(ListExpression.parse("eng * (sales, ops) * (r1@mit * ops)")));
+            assertEquals(forks + 1, context.getParallelStats().get("forks"));      // the cheapest operand is empty
+            assertEquals(101, context.evaluate(ListExpression.parse("(ops = r1@mit, x@mit), eng, sales")).size());
+            assertEquals(forks + 1, context.getParallelStats().get("forks"));      // the first operand defines ops
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Load statements with bulkLoad() into one context and with load() into another, and check that both get
+    // the same definitions
+    private static Map<String, Long> assertBulkLoadSameAsLoad(String before, List<String> statements,
+            List<String> names, boolean materialized) throws EvaluationException, UnableToLoadException {
+        final Context bulk = new Context(materialized);
+        final Context sequential = new Context(materialized);
+        bulk.load(before);
+        sequential.load(before);
+        final StringJoiner joined = new StringJoiner(";");
+        for (String statement : statements) {
+            joined.add("(" + statement + ")");
+        }
+        final Map<String, Long> stats = bulk.bulkLoad(statements);
+        sequential.load(joined.toString());
+        for (String name : names) {
+            final ListName listname = new ListName(name);
+            assertEquals(sequential.evaluate(listname), bulk.evaluate(listname), name);
+            assertEquals(sequential.getRelevantExpression(listname), bulk.getRelevantExpression(listname), name);
+            assertEquals(sequential.getDependencies(listname), bulk.getDependencies(listname), name);
+            if (materialized) {
+                assertEquals(sequential.getMaterialized(listname), bulk.getMaterialized(listname), name);
+            }
+        }
+        assertEquals((long) statements.size(), stats.get("statements"));
+        for (String phase : List.of("parseNanos", "checkNanos", "installNanos")) {
+            assertTrue(stats.get(phase) >= 0, phase);
+        }
+        return stats;
+    }
+
+    // Covers: bulkLoad()
+    //              none, some statements; definitions of distinct listnames, that use listnames defined later,
+    //              that use their own listname, not definitions; current definitions don't define listnames;
+    //              materialized, not materialized
+    @Test
+    public void testBulkLoadInstalled() throws EvaluationException, UnableToLoadException {
+        final List<String> names = List.of("a", "b", "c", "d", "e");
+        for (boolean materialized : List.of(false, true)) {
+            final Context context = new Context(materialized);
+            context.load("a = x@mit, y@mit");
+            final long version = context.getVersion();
+            final Map<String, Long> stats = context.bulkLoad(List.of("b = c, a", "c = (a ! x@mit), z@mit",
+                    "a = a, w@mit", "x@mit, b", "d = b * c"));
+            assertEquals(4L, stats.get("installed"));
+            assertEquals(version + 1, context.getVersion());           // published as one snapshot
+            assertEquals(Set.of("w@mit", "x@mit", "y@mit", "z@mit"), context.evaluate(new ListName("b")));
+            assertThrows(MailLoopException.class, () -> context.evaluate(ListExpression.parse("a = d")));
+
+            final long failed = context.getVersion();
+            assertEquals(0L, context.bulkLoad(List.of()).get("statements"));
+            assertEquals(failed, context.getVersion());
+
+            assertEquals(3L, assertBulkLoadSameAsLoad("a = x@mit, y@mit; e = a",
+                    List.of("b = c, a, e", "c = (a ! x@mit), z@mit", "a = a, w@mit"), names, materialized)
+                    .get("installed"));
+        }
+    }
+
+    // Covers: bulkLoad()
+    //              definitions that define listnames, of a listname defined twice; current definitions define
+    //              listnames; a mail loop through current definitions too (but not one when loaded in order)
+    @Test
+    public void testBulkLoadEvaluated() throws EvaluationException, UnableToLoadException {
+        final List<String> names = List.of("a", "b", "c", "d", "e");
+        for (boolean materialized : List.of(false, true)) {
+            assertEquals(-1L, assertBulkLoadSameAsLoad("", List.of("a = x@mit", "b = (c = a, y@mit)", "d = c"),
+                    names, materialized).get("installed"));
+            assertEquals(-1L, assertBulkLoadSameAsLoad("", List.of("a = x@mit", "b = a", "a = y@mit"),
+                    names, materialized).get("installed"));
+            assertEquals(-1L, assertBulkLoadSameAsLoad("c = (d = a, x@mit)", List.of("a = y@mit", "b = a"),
+                    names, materialized).get("installed"));
+            assertEquals(-1L, assertBulkLoadSameAsLoad("", List.of("a = x@mit | b = y@mit", "c = a, b"),
+                    names, materialized).get("installed"));
+            assertEquals(-1L, assertBulkLoadSameAsLoad("b = a", List.of("b = x@mit", "a = b"),
+                    names, materialized).get("installed"));
+        }
+    }
+
+    // Covers: bulkLoad()
+    //              can't be parsed; mail loop through new definitions only, through current definitions too
+    @Test
+    public void testBulkLoadFailure() throws EvaluationException, UnableToLoadException {
+        for (boolean materialized : List.of(false, true)) {
+            final Context context = new Context(materialized);
+            context.load("x = a, r@mit; y = s@mit");
+            final String saved = context.save();
+            for (List<String> statements : List.of(List.of("a = b", "b = c, t@mit", "c = a"),
+                    List.of("b = u@mit", "a = x"), List.of("a = u@mit", "b = ( a"),
+                    List.of("a = (d = b)", "b = a"))) {
+                assertThrows(UnableToLoadException.class, () -> context.bulkLoad(statements));
+                assertEquals(saved, context.save());
+                assertEquals(Set.of("r@mit"), context.evaluate(new ListName("x")));
+            }
+        }
+    }
+
+    // Covers: bulkLoad()
+    //              more than one task parses
+    @Test
+    public void testBulkLoadMany() throws EvaluationException, UnableToLoadException {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final Context context = new Context(true, pool);
+            final List<String> statements = new ArrayList<>();
+            for (int i = 1; i < 5000; i++) {
+                // each listname uses the one before it, which is defined after it
+                statements.add("l" + (5000 - i) + " = l" + (4999 - i) + ", r" + i + "@mit");
+            }
+            statements.add("l0 = r0@mit");
+            assertEquals(5000L, context.bulkLoad(statements).get("installed"));
+            assertEquals(5000, context.evaluate(new ListName("l4999")).size());
+            assertEquals(5000, context.getMaterialized(new ListName("l4999")).size());
+            final List<String> broken = new ArrayList<>(statements);
+            broken.set(2500, "l2499 = (");
+            assertThrows(UnableToLoadException.class, () -> context.bulkLoad(broken));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Covers: bulkLoad()
+    //              more than one task parses, on one thread, on as many threads as there are processors
+    @Test
+    public void testBulkLoadParsingScales() throws EvaluationException, UnableToLoadException {
+        final List<String> statements = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            final StringJoiner recipients = new StringJoiner(",");
+            for (int j = 0; j < 20; j++) {
+                recipients.add("r" + i + "x" + j + "@mit");
+            }
+            statements.add("l" + i + " = (" + recipients + ") * (" + recipients + ", shared@mit)");
+        }
+        final int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        final long sequential = bestParseNanos(statements, 1);
+        final long parallel = bestParseNanos(statements, threads);
+        if (threads >= 2) {
+            // the statements are interned while they are parsed, which must not make the threads take turns
+            assertTrue(sequential > parallel * threads / 2.0,
+                    "parsing took " + sequential + "ns on 1 thread and " + parallel + "ns on " + threads);
+        }
+    }
+
+    // Get the fastest of a few bulk loads of statements, each into a new context on a pool of the given size
+    private static long bestParseNanos(List<String> statements, int threads)
+            throws EvaluationException, UnableToLoadException {
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                final Context context = new Context(false, pool);
+                final Map<String, Long> stats = context.bulkLoad(statements);
+                assertEquals((long) statements.size(), stats.get("installed"));
+                assertEquals(20, context.evaluate(new ListName("l7")).size());
+                best = Math.min(best, stats.get("parseNanos"));
+            }
+            return best;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
 }
@@ -0,0 +1,149 @@
+package norn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mit.eecs.parserlib.ParseTree;
+import edu.mit.eecs.parserlib.Parser;
+import edu.mit.eecs.parserlib.UnableToParseException;
+
+/**
+ * Reference parser for list expressions, generated by parserlib from the grammar in ListExpression.g. It is
+ * slow, but it follows the grammar literally, so ListExpressionParser is tested against it.
+ */
+class GrammarParser {
+    // the nonterminals of the grammar
+    private enum ExpressionGrammar {
+        PARALLEL, SEQUENCE, UNION, DEFINITION, DIFFERENCE, INTERSECTION, BASE, LISTNAME, RECIPIENT, 
+            WHITESPACE, EMPTY,
+    }
+    
+    private static final Parser<ExpressionGrammar> PARSER = makeParser();
+
+    /**
+     * Compile the grammar into a parser.
+     * @return parser for the grammar
+     * @throws RuntimeException if grammar file can't be read or has syntax errors
+     */
+    private static Parser<ExpressionGrammar> makeParser() {
+        try {
+            // read the grammar as a file, relative to the project root.
+            final File grammarFile = new File("src/norn/ListExpression.g");
+            return Parser.compile(grammarFile, ExpressionGrammar.PARALLEL);
+
+            // Parser.compile() throws two checked exceptions.
+            // Translate these checked exceptions into unchecked RuntimeExceptions,
+            // because these failures indicate internal bugs rather than client errors
+        } catch (IOException e) {
+            throw new RuntimeException("can't read the grammar file", e);
+        } catch (UnableToParseException e) {
+            throw new RuntimeException("the grammar has a syntax error", e);
+        }
+    }
+
+    /**
+     * Parse a string into a list expression.
+     *
+     * @param string string to parse
+     * @return ListExpression parsed from the string
+     * @throws UnableToParseException if the string doesn't match the MailingList grammar
+     */
+    static ListExpression parse(final String string) throws UnableToParseException {
+        return makeAbstractSyntaxTree(PARSER.parse(string));
+    }
+
+    /**
+     * Convert a parse tree into an abstract syntax tree.
+     *
+     * @param parseTree constructed according to the grammar in Exression.g
+     * @return abstract syntax tree corresponding to parseTree
+     */
+    private static ListExpression makeAbstractSyntaxTree(final ParseTree<ExpressionGrammar> parseTree) {
+        switch (parseTree.name()) {
+        case PARALLEL:
+            {
+                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
+                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
+                for (int i = 1; i < children.size(); i++) {
+                    expression = new Parallel(expression, makeAbstractSyntaxTree(children.get(i)));
+                }
+                return expression;
+            }
+        case SEQUENCE:
+            {
+                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
+                if (children.size() == 1) {
+                    return makeAbstractSyntaxTree(children.get(0));
+                }
+                final List<ListExpression> operands = new ArrayList<>();
+                for (ParseTree<ExpressionGrammar> child : children) {
+                    operands.add(makeAbstractSyntaxTree(child));
+                }
+                return new Sequence(operands);
+            }
+        case UNION:
+            {
+                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
+                if (children.size() == 1) {
+                    return makeAbstractSyntaxTree(children.get(0));
+                }
+                final List<ListExpression> operands = new ArrayList<>();
+                for (ParseTree<ExpressionGrammar> child : children) {
+                    operands.add(makeAbstractSyntaxTree(child));
+                }
+                return new Union(operands);
+            }
+        case DEFINITION:
+            {
+                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
+                if (children.get(0).name() == ExpressionGrammar.DIFFERENCE) {
+                    return makeAbstractSyntaxTree(children.get(0));
+                } else {
+                    return new Definition(new ListName(children.get(0).text()), makeAbstractSyntaxTree(children.get(1)));
+                }
+            }
+        case DIFFERENCE:
+            {
+                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
+                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
+                for (int i = 1; i < children.size(); ++i) {
+                    expression = new Difference(expression, makeAbstractSyntaxTree(children.get(i)));
+                }
+                return expression;
+            }
+        case INTERSECTION:
+            {
+                final List<ParseTree<ExpressionGrammar>> children = parseTree.children();
+                if (children.size() == 1) {
+                    return makeAbstractSyntaxTree(children.get(0));
+                }
+                final List<ListExpression> operands = new ArrayList<>();
+                for (ParseTree<ExpressionGrammar> child : children) {
+                    operands.add(makeAbstractSyntaxTree(child));
+                }
+                return new Intersection(operands);
+            }
+        case BASE:
+            {
+                final ParseTree<ExpressionGrammar> child = parseTree.children().get(0);
+                return makeAbstractSyntaxTree(child);
+            }
+        case RECIPIENT:
+            {
+                return new Recipient(parseTree.text().toLowerCase());
+            }
+        case LISTNAME:
+            {
+                return new ListName(parseTree.text().toLowerCase());
+            }
+        case EMPTY:
+            {
+                return new Empty();
+            }
+        default:
+            throw new AssertionError("should never get here");
+        }
+    }
+}
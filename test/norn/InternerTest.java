@@ -0,0 +1,74 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class InternerTest {
+    //  Partitioned as follows:
+    //      intern()
+    //          expression is a leaf, an operator, a definition
+    //          expression equal to one interned before, contains subtrees equal to ones interned before, neither
+    //          expression parsed, built with constructors
+    //      hashCode() of operators
+    //          same operands in a different operator, in a different order
+    //          expression tree is shallow, very deep
+
+    private static final ListName A = new ListName("a");
+    private static final ListName B = new ListName("b");
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: leaves, operators, definitions; equal to an expression interned before, containing subtrees
+    //         interned before; parsed, built with constructors
+    @Test
+    public void testIntern() {
+        final ListExpression first = ListExpression.parse("x = (a, b) * c@mit; a ! b");
+        final ListExpression second = ListExpression.parse("y = (a, b) * c@mit; a ! b");
+        assertSame(first.getOperands().get(1), second.getOperands().get(1));
+        assertSame(first.getOperands().get(0).getOperands().get(0),
+                second.getOperands().get(0).getOperands().get(0));
+        assertSame(first, ListExpression.parse(first.toString()));
+
+        final ListExpression built = new Sequence(new Definition(new ListName("x"),
+                new Intersection(new Union(A, B), new Recipient("c@mit"))), new Difference(A, B));
+        assertEquals(first, built);
+        assertSame(first, Interner.intern(built));
+        assertSame(Interner.intern(new ListName("a")), Interner.intern(new ListName("A")));
+    }
+
+    // Covers: same operands in a different operator, in a different order; shallow, very deep trees
+    @Test
+    public void testHashCode() {
+        final List<ListExpression> exprs = List.of(new Union(A, B), new Union(B, A), new Intersection(A, B),
+                new Intersection(B, A), new Difference(A, B), new Difference(B, A), new Sequence(A, B),
+                new Parallel(A, B), new Definition(A, B), new Definition(B, A));
+        final Set<Integer> hashes = new HashSet<>();
+        for (ListExpression expr : exprs) {
+            hashes.add(expr.hashCode());
+            assertEquals(expr.hashCode(), Interner.intern(expr).hashCode());
+        }
+        assertEquals(exprs.size(), hashes.size());
+        assertNotEquals(new Union(A, B), new Union(B, A));
+
+        ListExpression deep = A;
+        ListExpression same = A;
+        for (int i = 0; i < 100_000; i++) {
+            deep = new Difference(deep, new Recipient("r" + i + "@mit"));
+            same = new Difference(same, new Recipient("r" + i + "@mit"));
+        }
+        assertEquals(deep.hashCode(), same.hashCode());
+        assertNotEquals(deep.hashCode(), new Difference(deep, A).hashCode());
+    }
+}
@@ -0,0 +1,405 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+public class JournalTest {
+    //  Partitioned as follows:
+    //      open()
+    //          directory is empty, has a journal, has a snapshot and a journal, has files of an old generation
+    //          journal ends with a complete record, an incomplete record, a corrupt record
+    //      changes recorded
+    //          updateMap(), evaluation that defines listnames, failed evaluation, ListExpression.evaluate(),
+    //              bulkLoad(), loadBinary(),
+    //              import of memberships; bulk load fits in one record, doesn't, has a statement that doesn't;
+    //              bulk load installed in one step, evaluated one statement after the other
+    //          change can be written, can't be written
+    //          made by one thread, many threads at once
+    //      checkpoint()
+    //          called by the client, started after checkpointRecords records
+
+    private static final String DEFINITIONS = "a = x@mit, y@mit; b = (a * y@mit) ! z@mit; a = a, w@mit;"
+            + " c = (a | d = b)";
+
+    private static Path directory() throws IOException {
+        return Files.createTempDirectory("norn-journal");
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static Set<String> files(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).collect(Collectors.toSet());
+        }
+    }
+
+    // Get the payload lengths of the records in a journal file
+    private static List<Integer> recordLengths(Path log) throws IOException {
+        final ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(log));
+        final List<Integer> lengths = new ArrayList<>();
+        while (records.hasRemaining()) {
+            final int length = records.getInt();
+            records.position(records.position() + Integer.BYTES + length);
+            lengths.add(length);
+        }
+        return lengths;
+    }
+
+    private static void assertSameRecipients(Context expected, Context actual, String... names)
+            throws EvaluationException {
+        for (String name : names) {
+            assertEquals(expected.evaluate(new ListName(name)), actual.evaluate(new ListName(name)), name);
+        }
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: directory empty, has a journal; complete record; updateMap(), evaluation that defines listnames,
+    //         failed evaluation, bulkLoad(); one thread
+    @Test
+    public void testReplay() throws IOException, EvaluationException, UnableToLoadException {
+        final Path directory = directory();
+        try {
+            final Context original = new Context();
+            try (Journal journal = Journal.open(directory, original)) {
+                original.load(DEFINITIONS);
+                original.updateMap(new ListName("e"), ListExpression.parse("a, v@mit"));
+                assertThrows(MailLoopException.class, () -> original.evaluate(ListExpression.parse("a = e")));
+                original.evaluate(ListExpression.parse("a, b"));
+                original.bulkLoad(List.of("k = a, e", "l = k, u@mit"));
+                assertEquals(3, journal.getRecords());
+            }
+            original.evaluate(ListExpression.parse("f = a"));     // not recorded after the journal is closed
+
+            final Context recovered = new Context();
+            try (Journal journal = Journal.open(directory, recovered)) {
+                assertEquals(0, journal.getGeneration());
+                assertSameRecipients(original, recovered, "a", "b", "c", "d", "e", "k", "l");
+                assertEquals(Set.of(), recovered.evaluate(new ListName("f")));
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // Covers: ListExpression.evaluate() that defines listnames, and that fails
+    @Test
+    public void testExpressionEvaluate() throws IOException, EvaluationException, UnableToLoadException {
+        final Path directory = directory();
+        try {
+            final Context original = new Context();
+            try (Journal journal = Journal.open(directory, original)) {
+                assertEquals(Set.of("x@mit"), ListExpression.parse("a = x@mit").evaluate(original));
+                assertThrows(MailLoopException.class, () -> ListExpression.parse("b = a; a = b").evaluate(original));
+                assertEquals(1, journal.getRecords());
+            }
+            assertEquals("a=x@mit", original.save());
+            final Context recovered = reopen(directory);
+            assertSameRecipients(original, recovered, "a", "b");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // Covers: journal ends with an incomplete record, a corrupt record
+    @Test
+    public void testDamagedEnd() throws IOException, EvaluationException, UnableToLoadException {
+        final Path directory = directory();
+        try {
+            final Context original = new Context();
+            try (Journal journal = Journal.open(directory, original)) {
+                original.evaluate(ListExpression.parse("a = x@mit"));
+                original.evaluate(ListExpression.parse("b = a, y@mit"));
+                assertEquals(2, journal.getRecords());
+            }
+            final Path log = directory.resolve("journal-0.log");
+            final byte[] complete = Files.readAllBytes(log);
+
+            // half of a third record, as a crash in the middle of writing it would leave
+            final Context extended = new Context();
+            try (Journal journal = Journal.open(directory, extended)) {
+                extended.evaluate(ListExpression.parse("c = b, z@mit"));
+                assertEquals(3, journal.getRecords());
+            }
+            final byte[] extendedBytes = Files.readAllBytes(log);
+            Files.write(log, Arrays.copyOf(extendedBytes, (complete.length + extendedBytes.length) / 2));
+            final Context incomplete = new Context();
+            try (Journal journal = Journal.open(directory, incomplete)) {
+                assertSameRecipients(original, incomplete, "a", "b", "c");
+                incomplete.evaluate(ListExpression.parse("d = b"));
+                assertEquals(3, journal.getRecords());
+            }
+            assertEquals(Set.of("x@mit", "y@mit"), reopen(directory).evaluate(new ListName("d")));
+
+            // a record whose last byte changed
+            final byte[] corrupt = Files.readAllBytes(log);
+            corrupt[corrupt.length - 1] ^= 1;
+            Files.write(log, corrupt);
+            final Context recovered = reopen(directory);
+            assertSameRecipients(original, recovered, "a", "b", "d");
+            assertEquals(complete.length, Files.size(log));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static Context reopen(Path directory) throws IOException, UnableToLoadException {
+        final Context context = new Context();
+        Journal.open(directory, context).close();
+        return context;
+    }
+
+    // Covers: directory has a snapshot and a journal; checkpoint() called by the client; loadBinary()
+    @Test
+    public void testCheckpoint() throws IOException, EvaluationException, UnableToLoadException {
+        final Path directory = directory();
+        try {
+            final Context original = new Context();
+            try (Journal journal = Journal.open(directory, original)) {
+                original.load(DEFINITIONS);
+                journal.checkpoint();
+                assertEquals(1, journal.getGeneration());
+                assertEquals(0, journal.getRecords());
+                assertEquals(Set.of("snapshot-1" + SnapshotFormat.EXTENSION, "journal-1.log"), files(directory));
+                original.evaluate(ListExpression.parse("a = a, v@mit"));
+            }
+            final Context recovered = reopen(directory);
+            assertSameRecipients(original, recovered, "a", "b", "c", "d");
+
+            // a context without listnames loading a snapshot is recorded too
+            final Context saved = new Context();
+            saved.load("g = q@mit");
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            saved.saveBinary(bytes);
+            final Path other = directory();
+            try {
+                final Context loaded = new Context();
+                try (Journal journal = Journal.open(other, loaded)) {
+                    loaded.loadBinary(new ByteArrayInputStream(bytes.toByteArray()));
+                    assertEquals(1, journal.getRecords());
+                }
+                assertEquals(Set.of("q@mit"), reopen(other).evaluate(new ListName("g")));
+            } finally {
+                delete(other);
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // Covers: change can't be written; evaluation that defines listnames, loadBinary()
+    @Test
+    public void testUnwritable() throws IOException, EvaluationException, UnableToLoadException {
+        final Path directory = directory();
+        try {
+            final Context saved = new Context();
+            saved.load("g = q@mit; h = g, r@mit; g = g, s@mit");
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            saved.saveBinary(bytes);
+
+            final Context context = new Context(true);
+            final Journal journal = Journal.open(directory, context);
+            journal.close();
+            context.setJournal(journal);            // a journal whose records can't be written
+            assertThrows(UncheckedIOException.class,
+                    () -> context.loadBinary(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals("", context.save());
+            assertEquals(Set.of(), context.evaluate(new ListName("h")));
+            assertThrows(UncheckedIOException.class, () -> context.evaluate(ListExpression.parse("a = x@mit")));
+            assertEquals("", context.save());
+
+            context.setJournal(null);
+            context.loadBinary(new ByteArrayInputStream(bytes.toByteArray()));
+            assertSameRecipients(saved, context, "g", "h");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // Covers: directory has files of an old generation, as a crash after the snapshot of a checkpoint was
+    //         saved would leave
+    @Test
+    public void testOldGeneration() throws IOException, EvaluationException, UnableToLoadException {
+        final Path directory = directory();
+        try {
+            final Context original = new Context();
+            try (Journal journal = Journal.open(directory, original)) {
+                original.evaluate(ListExpression.parse("a = x@mit"));
+                journal.checkpoint();
+            }
+            Files.write(directory.resolve("journal-0.log"), Files.readAllBytes(directory.resolve("journal-1.log")));
+            final Context recovered = new Context();
+            try (Journal journal = Journal.open(directory, recovered)) {
+                original.evaluate(ListExpression.parse("a = a, y@mit"));
+                recovered.evaluate(ListExpression.parse("a = a, y@mit"));
+                assertEquals(1, journal.getGeneration());
+            }
+            assertEquals(Set.of("snapshot-1" + SnapshotFormat.EXTENSION, "journal-1.log"), files(directory));
+            assertSameRecipients(original, reopen(directory), "a");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // Covers: many threads at once; checkpoint started after checkpointRecords records
+    @Test
+    public void testConcurrentChanges() throws IOException, InterruptedException, EvaluationException,
+            UnableToLoadException {
+        final Path directory = directory();
+        try {
+            final Context original = new Context();
+            final int threads = 4;
+            final int definitions = 200;
+            try (Journal journal = Journal.open(directory, original, 1, 50)) {
+                final List<Thread> workers = new ArrayList<>();
+                final List<Throwable> failures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    final int thread = t;
+                    final Thread worker = new Thread(() -> {
+                        try {
+                            for (int i = 0; i < definitions; i++) {
+                                final String name = "t" + thread + "_" + i;
+                                if (i % 2 == 0) {
+                                    original.evaluate(ListExpression.parse(name + " = r" + i + "@mit"));
+                                } else {
+                                    original.updateMap(new ListName(name),
+                                            ListExpression.parse("t" + thread + "_" + (i - 1) + ", s@mit"));
+                                }
+                            }
+                        } catch (Throwable e) {
+                            synchronized (failures) {
+                                failures.add(e);
+                            }
+                        }
+                    });
+                    workers.add(worker);
+                    worker.start();
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                assertEquals(List.of(), failures);
+                assertTrue(journal.getGeneration() > 0);
+            }
+            final Context recovered = reopen(directory);
+            for (int t = 0; t < threads; t++) {
+                for (int i = 0; i < definitions; i++) {
+                    assertSameRecipients(original, recovered, "t" + t + "_" + i);
+                }
+            }
+            assertFalse(files(directory).contains("journal-0.log"));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // Covers: import of memberships; bulk load doesn't fit in one record, has a statement that doesn't
+    @Test
+    public void testLargeImport() throws IOException, EvaluationException, UnableToLoadException {
+        final int members = Journal.RECORD_CHARS / 10;
+        final StringBuilder text = new StringBuilder("a,x@mit\nb,y@mit\nc,z@mit\n");
+        for (int i = 0; i < members; i++) {
+            text.append("big,member").append(i).append("@mit\n");
+        }
+        final Path directory = directory();
+        final Path file = Files.createTempFile("memberships", ".csv");
+        try {
+            Files.writeString(file, text);
+            final Context original = new Context();
+            try (Journal journal = Journal.open(directory, original)) {
+                MembershipImporter.importFile(original, file);
+                // "big" takes more than RECORD_CHARS characters, so it has a record between those of "a; b" and "c"
+                assertEquals(3, journal.getRecords());
+            }
+            final Context recovered = reopen(directory);
+            assertSameRecipients(original, recovered, "a", "b", "c", "big");
+            assertEquals(members, recovered.evaluate(new ListName("big")).size());
+        } finally {
+            Files.delete(file);
+            delete(directory);
+        }
+    }
+
+    // Covers: bulkLoad(); bulk load evaluated one statement after the other, doesn't fit in one record
+    @Test
+    public void testLargeBulkLoadEvaluated() throws IOException, EvaluationException, UnableToLoadException {
+        final List<String> statements = new ArrayList<>(List.of("a = x@mit"));
+        for (int i = 0; i < 4; i++) {
+            final StringJoiner members = new StringJoiner(",", "l" + i + " = a, ", "");
+            for (int j = 0; j < Journal.RECORD_CHARS / 40; j++) {
+                members.add("member" + j + "@mit");
+            }
+            statements.add(members.toString());
+        }
+        statements.add("a = a, y@mit");      // a is defined twice, so the statements can't be installed
+        final Path directory = directory();
+        try {
+            final Context original = new Context();
+            try (Journal journal = Journal.open(directory, original)) {
+                assertEquals(-1L, original.bulkLoad(statements).get("installed"));
+                final List<Integer> lengths = recordLengths(directory.resolve("journal-0.log"));
+                assertEquals(journal.getRecords(), lengths.size());
+                assertTrue(lengths.size() > 1, "load written as one record");
+                for (int length : lengths) {
+                    assertTrue(length <= 1 + Journal.RECORD_CHARS, "record of " + length + " bytes");
+                }
+            }
+            final Context recovered = reopen(directory);
+            assertSameRecipients(original, recovered, "a", "l0", "l3");
+            assertEquals(Set.of("x@mit", "y@mit"), recovered.evaluate(new ListName("a")));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // Covers: record appended to a journal that was opened for appending after recovery
+    @Test
+    public void testAppendAfterRecovery() throws IOException, EvaluationException, UnableToLoadException {
+        final Path directory = directory();
+        try {
+            for (int i = 0; i < 3; i++) {
+                final Context context = new Context();
+                try (Journal journal = Journal.open(directory, context)) {
+                    assertEquals(i, journal.getRecords());
+                    context.evaluate(ListExpression.parse("l" + i + " = r" + i + "@mit"));
+                }
+            }
+            Files.write(directory.resolve("journal-0.log"), new byte[] { 0, 0, 0 }, StandardOpenOption.APPEND);
+            final Context recovered = reopen(directory);
+            assertEquals(Set.of("r2@mit"), recovered.evaluate(new ListName("l2")));
+        } finally {
+            delete(directory);
+        }
+    }
+}
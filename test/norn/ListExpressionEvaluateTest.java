@@ -2,14 +2,23 @@ package norn;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ListExpressionEvaluateTest {
     /*
@@ -33,12 +42,14 @@ public class ListExpressionEvaluateTest {
          Empty
          Recipient
          ListName
+         Literal set of recipients (written and parsed back as a Union)
        Union:
          Union produces 0, 1, >1 size set
        Intersection:
          Intersection produces 0, 1, >1 size set
        Difference:
          Difference produces 0, 1, >1 size set
+         First operand of difference, cheapest operand of intersection is empty
        ListName/Definition:
          ListName not previously defined
          ListName defined
@@ -68,6 +79,21 @@ public class ListExpressionEvaluateTest {
        Context Consistency:
          Error occurs in evaluation before list definition
          Error occurs in evaluation after list definition
+       Context mode:
+         Recipients of list names computed on evaluation, materialized on definition
+         Independent operands evaluated one by one, each on the pool
+         (each mode checked by the same cases, and each case also checked by evaluateSorted)
+       Sorted evaluation (evaluateSorted, checked against evaluate for expressions that define no listnames):
+         Operators merged as streams, list names streamed from definitions or from cached recipients
+         List name used more than once
+         Expression defines listnames, current definition defines listnames
+         Context redefined while the iterator is consumed
+         Expression nested deeper than SortedEvaluator.MAX_STREAM_DEPTH
+       Size:
+         Sequence of 1,000,000 statements
+         Chain of 100,000 list names, each defined as the previous one
+         Expression nested 100,000 deep
+         List redefined in terms of itself 20,000 times, doubled 1,000 times
     */
 
 
@@ -111,6 +137,18 @@ public class ListExpressionEvaluateTest {
         return context;
     }
 
+    private static List<String> sorted(Set<String> recipients) {
+        final List<String> sorted = new ArrayList<>(recipients);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static List<String> toList(Iterator<String> recipients) {
+        final List<String> list = new ArrayList<>();
+        recipients.forEachRemaining(list::add);
+        return list;
+    }
+
     private Context testSingular(String inputString, Set<String> expectedOutput) {
         return testSingular(inputString, expectedOutput, THROW_ASSERTION_ERROR);
     }
@@ -187,6 +225,39 @@ public class ListExpressionEvaluateTest {
         testSingular(" ! ", Set.of());
     }
 
+    // Constructs used: Literal
+    // Literal: evaluated alone, in an operator, as a definition, sorted, materialized, optimized, written out
+    @Test
+    public void testLiteral() throws EvaluationException {
+        final Literal literal = new Literal(Set.of("c@mit", "a@mit", "b@mit"));
+        final Set<String> expected = Set.of("a@mit", "b@mit", "c@mit");
+        assertEquals("(a@mit,b@mit,c@mit)", literal.toString());
+        assertEquals(ListExpression.parse("a@mit, b@mit, c@mit"), ListExpression.parse(literal.toString()));
+        assertEquals(literal.toString(), ListExpression.parse(literal.toString()).toString());
+        assertEquals(new Literal(new HashSet<>(expected)), literal);
+        assertEquals(new Literal(new HashSet<>(expected)).hashCode(), literal.hashCode());
+        assertFalse(literal.equals(ListExpression.parse(literal.toString())));
+        assertEquals(literal, new Union(literal, new Empty()).optimize());
+        assertTrue(literal.getVisualizerTree().asHTML().contains("<p>b@mit</p>"));
+
+        final Context context = new Context();
+        final Set<String> result = context.evaluate(literal);
+        assertEquals(expected, result);
+        result.add("d@mit");
+        assertEquals(expected, context.evaluate(literal));
+        assertEquals(List.of("a@mit", "b@mit", "c@mit"), toList(context.evaluateSorted(literal)));
+        context.evaluate(new Definition(new ListName("l"), literal));
+        assertEquals(Set.of("b@mit", "d@mit"), context.evaluate(ListExpression.parse("(l * b@mit), d@mit")));
+        assertEquals(Set.of("a@mit", "c@mit"), context.evaluate(ListExpression.parse("l ! b@mit")));
+
+        final Context materialized = new Context(true);
+        materialized.evaluate(new Definition(new ListName("l"), literal));
+        materialized.evaluate(ListExpression.parse("m = l ! a@mit"));
+        assertEquals(Set.of("b@mit", "c@mit"), materialized.getMaterialized(new ListName("m")));
+        assertTrue(literal.containsMaterialized(materialized, "c@mit"));
+        assertFalse(literal.containsMaterialized(materialized, "d@mit"));
+    }
+
     // Parallel definition: parallel definition at top level, in subexpression, with indirect reference
     // Parallel: subexpression of parallel raises exception
     @Test
@@ -247,4 +318,182 @@ public class ListExpressionEvaluateTest {
         assertEquals(Set.of("a@mit"), context.evaluate(ListExpression.parse("a")));
         assertEquals(Set.of("b@mit"), context.evaluate(ListExpression.parse("b")));
     }
+
+    // Context mode: All test cases, each cross-checked by evaluateSorted for expressions that define no listnames
+    // Difference: first operand of difference, cheapest operand of intersection is empty
+    @ParameterizedTest
+    @ValueSource(strings = { "computed", "materialized", "threshold 1" })
+    public void testContextModes(String mode) {
+        testInMode(mode, List.of("(bob@home*mary@work),(fred@school*terry@gym)", "bob@home,mary@work,fred@school"),
+                List.of(Set.of(), Set.of("bob@home", "mary@work", "fred@school")));
+        testInMode(mode, List.of("(mary@work,bob@home,fred@school)*(mary@work,fred@school)",
+                "(mary@work,bob@home,fred@school,terry@gym)!(terry@gym,fred@school)"),
+                List.of(Set.of("mary@work", "fred@school"), Set.of("mary@work", "bob@home")));
+        testInMode(mode, List.of("a = b@mit; c = (a * x@mit) ! a", "c", "(x@mit, a) * c * a", "c ! (c = a)", "c"),
+                List.of(Set.of(), Set.of(), Set.of(), Set.of(), Set.of("b@mit")));
+        testInMode(mode, List.of("a=a@mit,b@mit;", "a=a,c@mit;", "a", "a=b,a@mit", "b=b@mit", "a"),
+                List.of(Set.of(), Set.of(), Set.of("a@mit", "b@mit", "c@mit"),
+                        Set.of("a@mit"), Set.of("b@mit"), Set.of("a@mit", "b@mit")));
+        testInMode(mode, List.of("a=a@mit", "a=", "a", "a=b;b=c;a=d;c=a;d=a@mit,b@mit;c"),
+                List.of(Set.of("a@mit"), Set.of(), Set.of(), Set.of("a@mit", "b@mit")));
+        testInMode(mode, List.of("a=a@mit|b=b@mit|c=c@mit", "a,b,c", "(a ! b) * (b , c)"),
+                List.of(Set.of(), Set.of("a@mit", "b@mit", "c@mit"), Set.of()));
+    }
+
+    /**
+     * Evaluates each input string in turn in a fresh context of the given mode, and checks that
+     * evaluateSorted agrees with evaluate for each input that defines no listnames.
+     *
+     * @param mode            "computed", "materialized" or "threshold 1"
+     * @param inputStrings    Strings, each of which evaluates without an exception
+     * @param expectedOutputs
+     */
+    private static void testInMode(String mode, List<String> inputStrings, List<Set<String>> expectedOutputs) {
+        final Context context;
+        switch (mode) {
+            case "materialized":
+                context = new Context(true);
+                break;
+            case "threshold 1":
+                context = new Context(false, ForkJoinPool.commonPool(), 1);
+                break;
+            default:
+                context = new Context();
+        }
+        assert inputStrings.size() == expectedOutputs.size();
+        for (int i = 0; i < inputStrings.size(); i++) {
+            final Set<String> expected = expectedOutputs.get(i);
+            final ListExpression expr = ListExpression.parse(inputStrings.get(i));
+            try {
+                assertEquals(expected, context.evaluate(expr));
+                if (expr.getDefinedListNames().isEmpty()) {
+                    assertEquals(sorted(expected), toList(context.evaluateSorted(expr)));
+                }
+            } catch (EvaluationException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    // Size: Sequence of 1,000,000 statements
+    @Test
+    public void testLongSequence() throws EvaluationException {
+        final int n = 1_000_000;
+        final List<ListExpression> statements = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            statements.add(new Definition(new ListName("l" + (i % 1000)), new Recipient("r" + i + "@mit")));
+        }
+        statements.add(ListExpression.parse("l0,l999"));
+        final Context context = new Context();
+        assertEquals(Set.of("r999000@mit", "r999999@mit"), context.evaluate(new Sequence(statements)));
+        assertEquals(Set.of("r999500@mit"), context.evaluate(ListExpression.parse("l500")));
+    }
+
+    // Size: Chain of 100,000 list names, each defined as the previous one
+    @Test
+    public void testLongDefinitionChain() throws EvaluationException {
+        final int n = 100_000;
+        final List<ListExpression> statements = new ArrayList<>();
+        statements.add(ListExpression.parse("l0 = a@mit"));
+        for (int i = 1; i < n; i++) {
+            statements.add(new Definition(new ListName("l" + i), new ListName("l" + (i - 1))));
+        }
+        final Context context = new Context();
+        assertEquals(Set.of("a@mit"), context.evaluate(new Sequence(statements)));
+        context.evaluate(ListExpression.parse("l0 = b@mit"));       // nothing in the chain is cached anymore
+        assertEquals(Set.of("b@mit"), context.evaluate(new ListName("l" + (n - 1))));
+        assertEquals(Set.of("b@mit"), new ListName("l" + (n / 2)).evaluate(context));
+    }
+
+    // Sorted evaluation: list name used more than once, expression defines listnames, current definition
+    //                    defines listnames, context redefined while the iterator is consumed
+    @Test
+    public void testEvaluateSorted() throws EvaluationException {
+        final Context context = new Context();
+        context.evaluate(ListExpression.parse("a = c@mit, a@mit, b@mit; b = a * (b@mit, z@mit)"));
+        final Iterator<String> recipients = context.evaluateSorted(ListExpression.parse("(a, b, d@mit) ! a@mit, b"));
+        assertEquals("b@mit", recipients.next());
+        context.evaluate(ListExpression.parse("a = y@mit"));
+        assertEquals(List.of("c@mit", "d@mit"), toList(recipients));
+        assertEquals(List.of("x@mit", "y@mit"), toList(context.evaluateSorted(ListExpression.parse("a = y@mit, x@mit"))));
+        assertEquals(List.of("x@mit", "y@mit"), toList(context.evaluateSorted(ListExpression.parse("a"))));
+
+        context.evaluate(ListExpression.parse("c = (d = a); e = d, c"));
+        assertEquals(List.of("x@mit", "y@mit"), toList(context.evaluateSorted(ListExpression.parse("e * c"))));
+        assertThrows(MailLoopException.class, () -> context.evaluateSorted(ListExpression.parse("a = e")));
+        assertEquals(List.of("x@mit", "y@mit"), toList(context.evaluateSorted(ListExpression.parse("a"))));
+    }
+
+    // Size: List redefined in terms of itself 20,000 times, doubled 1,000 times, and then a failed redefinition
+    @Test
+    public void testLongRedefinitionHistory() throws EvaluationException {
+        final int n = 20_000;
+        final Context context = new Context();
+        for (int i = 0; i < n; i++) {
+            context.evaluate(ListExpression.parse("a = a, r" + i + "@mit"));
+        }
+        assertEquals(n, context.evaluate(ListExpression.parse("a")).size());
+        context.evaluate(ListExpression.parse("b = x@mit, y@mit"));
+        for (int i = 0; i < 1000; i++) {
+            context.evaluate(ListExpression.parse("b = b, b * a"));
+        }
+        assertEquals(Set.of("x@mit", "y@mit"), context.evaluateListName(new ListName("b")));   // written out,
+        assertThrows(MailLoopException.class,                                                   // b is 2^1000 long
+                () -> context.evaluate(ListExpression.parse("c = x@mit; b = b, c; c = b")));
+        assertEquals(Set.of("x@mit", "y@mit"), context.evaluate(ListExpression.parse("b")));
+        context.evaluate(ListExpression.parse("b = z@mit, c"));
+        assertEquals(Set.of("z@mit"), context.evaluate(ListExpression.parse("b")));
+        assertEquals(ListExpression.parse("z@mit, c"), context.getRelevantExpression(new ListName("b")));
+    }
+
+    // Size: Expression nested 100,000 deep, parsed expression nested 20,000 deep
+    // Sorted evaluation: expression nested deeper than SortedEvaluator.MAX_STREAM_DEPTH
+    // Materialized context
+    @Test
+    public void testDeepExpression() throws EvaluationException {
+        ListExpression expr = new ListName("a");
+        ListExpression copy = new ListName("a");
+        for (int i = 0; i < 100_000; i++) {
+            expr = new Union(new Recipient("r" + (i % 10) + "@mit"), expr);
+            copy = new Union(new Recipient("r" + (i % 10) + "@mit"), copy);
+        }
+        final Set<String> expected = new HashSet<>(Set.of("a@mit"));
+        for (int i = 0; i < 10; i++) {
+            expected.add("r" + i + "@mit");
+        }
+        final Context context = new Context();
+        context.evaluate(ListExpression.parse("a = a@mit"));
+        assertEquals(expected, expr.evaluate(context));
+        assertEquals(expected, context.evaluate(expr));
+        assertEquals(Set.of(new ListName("a")), expr.getAllListNames());
+        assertTrue(expr.toString().startsWith("(r9@mit,(r8@mit,"));
+        assertEquals(sorted(expected), toList(new SortedEvaluator(context).stream(expr)));
+        assertEquals(sorted(expected), toList(context.evaluateSorted(expr)));
+        assertEquals(expected, new Definition(new ListName("b"), expr).evaluate(context));
+        assertEquals(expected, context.evaluate(ListExpression.parse("b")));
+        assertEquals(copy, expr);
+        assertTrue(expr.getVisualizerTree().asHTML().contains("<p>r9@mit</p>"));
+        assertEquals(expected, expr.optimize().evaluate(context));
+
+        final Context materialized = new Context(true);
+        materialized.evaluate(ListExpression.parse("a = a@mit"));
+        materialized.evaluate(new Definition(new ListName("b"), expr));
+        assertEquals(expected, materialized.getMaterialized(new ListName("b")));
+        assertEquals(expected, expr.evaluateMaterialized(materialized));
+        assertTrue(expr.containsMaterialized(materialized, "a@mit"));
+        materialized.evaluate(ListExpression.parse("a = z@mit"));
+        assertTrue(materialized.getMaterialized(new ListName("b")).contains("z@mit"));
+
+        final StringBuilder parsed = new StringBuilder("c = ");
+        for (int i = 0; i < 20_000; i++) {
+            parsed.append("(r").append(i % 10).append("@mit,");
+        }
+        parsed.append("a").append(")".repeat(20_000));
+        final ListExpression definition = ListExpression.parse(parsed.toString());
+        assertEquals(expected, context.evaluate(definition));
+        materialized.evaluate(definition);
+        assertEquals(materialized.getMaterialized(new ListName("b")),
+                materialized.getMaterialized(new ListName("c")));
+        assertEquals(sorted(expected), toList(context.evaluateSorted(ListExpression.parse("c"))));
+    }
 }
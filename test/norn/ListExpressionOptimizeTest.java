@@ -0,0 +1,147 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class ListExpressionOptimizeTest {
+    /*
+     Testing strategy for optimize():
+       Empty operand: left, right; of union, intersection, difference;
+         other operand defines list names, doesn't
+       Idempotence: operands equal, operand repeated later in a chain, operands differ;
+         operand defines list names, doesn't; an operand between the copies defines list names, doesn't;
+         repeated operand uses list names, doesn't
+       Associativity: union, intersection, sequence nested on the right; difference nested on the left
+       Discarded results: sequence whose left side defines list names, doesn't;
+         parallel side that uses list names, doesn't
+       Dead definitions: overwritten definition uses no list names, uses list names;
+         redefinition uses the list name, doesn't
+       Equivalence: optimized expression evaluates to the same recipients and definitions
+       Kept as written: definition whose expression optimizes away a list name it uses (mail loop, later
+         mail loop through it); parallel side that optimizes away a list name the other side defines
+    */
+
+    /*
+     * Asserts that input optimizes to the same expression that expected parses to.
+     */
+    private static void assertOptimizesTo(String expected, String input) {
+        assertEquals(ListExpression.parse(expected), ListExpression.parse(input).optimize(),
+                input + " should optimize to " + expected);
+    }
+
+    /*
+     * Asserts that evaluating each input in turn gives the same recipients and definitions,
+     * whether or not it is optimized first.
+     */
+    private static void assertEquivalent(List<String> inputs) throws EvaluationException {
+        final Context plain = new Context();
+        final Context optimized = new Context();
+        for (String input : inputs) {
+            final ListExpression expr = ListExpression.parse(input);
+            assertEquals(expr.evaluate(plain), expr.optimize().evaluate(optimized), input);
+        }
+        for (String name : List.of("a", "b", "c", "d")) {
+            final ListName listName = new ListName(name);
+            assertEquals(listName.evaluate(plain), listName.evaluate(optimized), name);
+        }
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: Empty operand, all partitions
+    @Test
+    public void testEmptyOperands() {
+        assertOptimizesTo("a", "a,()");
+        assertOptimizesTo("a", "(),a");
+        assertOptimizesTo("a", "a!()");
+        assertOptimizesTo("()", "a*()");
+        assertOptimizesTo("()", "()*a");
+        assertOptimizesTo("()", "()!a");
+        assertOptimizesTo("(a=b@mit);()", "(a=b@mit)*()");
+        assertOptimizesTo("(a=b@mit);()", "()!(a=b@mit)");
+    }
+
+    // Covers: Idempotence, all partitions
+    @Test
+    public void testIdempotence() {
+        assertOptimizesTo("a", "a,a");
+        assertOptimizesTo("a,b@mit", "a,b@mit,a");
+        assertOptimizesTo("a*b", "a*b*a");
+        assertOptimizesTo("()", "(a,b)!(a,b)");
+        assertOptimizesTo("a,b", "a,b");
+        assertOptimizesTo("(a=b@mit),(a=b@mit)", "(a=b@mit),(a=b@mit)");
+        assertOptimizesTo("(a=b@mit)!(a=b@mit)", "(a=b@mit)!(a=b@mit)");
+        assertOptimizesTo("a,(b=q@mit),a", "a,(b=q@mit),a");
+        assertOptimizesTo("a*(b=q@mit)*a", "a*(b=q@mit)*a");
+        assertOptimizesTo("c@mit,(b=q@mit)", "c@mit,(b=q@mit),c@mit");
+    }
+
+    // Covers: Idempotence, an operand between the copies defines a list name the repeated operand depends on
+    @Test
+    public void testRepeatedAfterRedefinition() throws EvaluationException {
+        final Context context = new Context();
+        context.evaluate(ListExpression.parse("c=e@mit; b=e@mit; a=c!b"));
+        assertEquals(Set.of("e@mit", "q@mit"), context.evaluate(ListExpression.parse("a, (b = q@mit), a")));
+        context.evaluate(ListExpression.parse("b=e@mit"));
+        assertEquals(Set.of(), context.evaluate(ListExpression.parse("a * (b = q@mit) * a")));
+    }
+
+    // Covers: Kept as written, all partitions
+    @Test
+    public void testErrorsKept() throws EvaluationException {
+        final Context context = new Context();
+        context.evaluate(ListExpression.parse("a = c"));
+        assertOptimizesTo("c = (x0@m ! x0@m) * a", "c = (x0@m ! x0@m) * a");
+        assertThrows(MailLoopException.class,
+                () -> context.evaluate(ListExpression.parse("c = (x0@m ! x0@m) * a")));
+
+        context.evaluate(ListExpression.parse("d = (e ; b) ; x3@m"));
+        assertEquals(ListExpression.parse("e ; b"), context.getRelevantExpression(new ListName("d")));
+        assertThrows(MailLoopException.class, () -> context.evaluate(ListExpression.parse("e = d, x4@m")));
+
+        assertThrows(ParallelDefinitionException.class,
+                () -> context.evaluate(ListExpression.parse("(a ; x1@m) | (a = x3@m)")));
+        assertEquals(Set.of(), context.evaluate(ListExpression.parse("(x1@m ; b@m) | (a = x3@m)")));
+    }
+
+    // Covers: Associativity, all partitions
+    @Test
+    public void testAssociativity() {
+        assertOptimizesTo("a,b@mit,c", "a,(b@mit,(c,a))");
+        assertOptimizesTo("a*b*c", "a*(b*c)");
+        assertOptimizesTo("(a=a@mit);(b=b@mit);(c=c@mit)", "a=a@mit;(b=b@mit;c=c@mit)");
+        assertOptimizesTo("a!(b,c)", "a!b!c");
+        assertOptimizesTo("a!b", "a!b!b");
+    }
+
+    // Covers: Discarded results, all partitions
+    //         Dead definitions, all partitions
+    @Test
+    public void testDiscardedResultsAndDeadDefinitions() {
+        assertOptimizesTo("b", "a;b");
+        assertOptimizesTo("(a=a@mit);b", "a=a@mit;b");
+        assertOptimizesTo("(a=a@mit);()", "a=a@mit|b@mit");
+        assertOptimizesTo("(a=a@mit);()", "b@mit|a=a@mit");
+        assertOptimizesTo("(a=a@mit)|(b=a)", "a=a@mit|b=a");
+        assertOptimizesTo("a=b@mit", "a=a@mit;a=b@mit");
+        assertOptimizesTo("(c=c@mit);(a=b@mit)", "c=c@mit;a=a@mit;a=b@mit");
+        assertOptimizesTo("(a=c);(a=b@mit)", "a=c;a=b@mit");
+        assertOptimizesTo("(a=a@mit);(a=a,b@mit)", "a=a@mit;a=a,b@mit");
+    }
+
+    // Covers: Equivalence
+    @Test
+    public void testEquivalence() throws EvaluationException {
+        assertEquivalent(List.of("a=a@mit,b@mit;b=a*a;c=(a!b),(a,c@mit)", "d=(a=a,x@mit)*(),c", "a=x@mit;a=y@mit;b"));
+        assertEquivalent(List.of("a=a@mit|b=b@mit,c@mit", "c=(a!a)!b,(a,a)", "d=b!a!c,d@mit"));
+    }
+}
@@ -0,0 +1,153 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+
+public class ListExpressionParserConformanceTest {
+    //  Partitioned as follows:
+    //      ListExpressionParser.parse() compared with GrammarParser.parse() (the grammar in ListExpression.g)
+    //          input is valid, invalid
+    //          input is from ListExpressionParserTest, written by hand, generated at random
+    //      error offset
+    //          unexpected character, missing ')', unmatched ')', listname defined where it can't be, bad recipient
+    //      input size
+    //          small, deeply nested parentheses, long save string
+
+    // Some inputs written by hand, each of which is valid or invalid in a way the other parser could get wrong
+    private static final List<String> INPUTS = List.of(
+            "", " ", "\t\r\n", "()", "(())", "( )", "a", "A@B", "a.b-c_d@e.f-g_h", "a+b@c", "+a@b", "a+b", "a@",
+            "@b", "a@b@c", "a@b+c", "a @b", "a@ b", "a b", "a (b)", "(a) b", "(a)(b)", "a=", "a= ", "=", "=a",
+            "a==b", "a=b=c", "a = b = c, d", "a, b = c, d", "a ! b = c", "a * b = c", "(a ! b) = c", "a ! (b = c)",
+            "a = b | c", "a = b; c", "a = b ! c * d", "a@b = c", "a,,b", ",", ";;", "||", "!!", "**", "a!b!c",
+            "a|b|c", "(a,b),c", "a,(b,c)", "(a;b);c", "(a*b)*c", "(a!b)!c", "a!(b!c)", "(a|b)|c", "a|(b|c)",
+            "(", ")", "(a", "a)", "((a)", "(a))", "a%b", "a\fb", "a=b;b=(c=d,e@f|g)", "x=(a=b)*c", "(x=a)!b",
+            "a,b=c;d|e=f!g*h,i");
+
+    private static void assertConforms(String input) {
+        ListExpression expected;
+        try {
+            expected = GrammarParser.parse(input);
+        } catch (UnableToParseException e) {
+            expected = null;
+        }
+        try {
+            final ListExpression actual = ListExpressionParser.parse(input);
+            assertEquals(expected, actual, "parsed '" + input + "'");
+            assertEquals(expected.toString(), actual.toString(), "parsed '" + input + "'");
+        } catch (ParseException e) {
+            assertEquals(null, expected, "failed to parse '" + input + "': " + e.getMessage());
+        }
+    }
+
+    private static int errorOffset(String input) {
+        return assertThrows(ParseException.class, () -> ListExpressionParser.parse(input)).getErrorOffset();
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: inputs from ListExpressionParserTest, valid and invalid
+    @Test
+    public void testParserTestInputs() throws IOException {
+        final String source = new String(Files.readAllBytes(Paths.get("test/norn/ListExpressionParserTest.java")),
+                StandardCharsets.UTF_8);
+        final Matcher literal = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"").matcher(source);
+        int count = 0;
+        while (literal.find()) {
+            assertConforms(literal.group(1).replace("\\n", "\n").replace("\\t", "\t").replace("\\\"", "\"")
+                    .replace("\\\\", "\\"));
+            count++;
+        }
+        assertEquals(true, count > 50, "found the inputs of ListExpressionParserTest");
+    }
+
+    // Covers: inputs written by hand, valid and invalid
+    @Test
+    public void testHandWrittenInputs() {
+        for (String input : INPUTS) {
+            assertConforms(input);
+        }
+    }
+
+    // Covers: inputs generated at random from the tokens of the grammar, valid and invalid
+    @Test
+    public void testRandomInputs() {
+        final List<String> tokens = List.of("a", "B", "c.d", "e@f", "G+h@I", "=", "=", ",", ";", "|", "!", "*",
+                "(", "(", ")", ")", " ", "");
+        final Random random = new Random(0);
+        for (int i = 0; i < 20_000; i++) {
+            final StringBuilder input = new StringBuilder();
+            final int length = random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                input.append(tokens.get(random.nextInt(tokens.size())));
+            }
+            assertConforms(input.toString());
+        }
+    }
+
+    // Covers: error offset of an unexpected character, missing ')', unmatched ')', listname defined where it
+    //         can't be, bad recipient
+    @Test
+    public void testErrorOffsets() {
+        assertEquals(5, errorOffset("a, b c"));
+        assertEquals(2, errorOffset("a %"));
+        assertEquals(7, errorOffset("(a, (b)"));
+        assertEquals(4, errorOffset("a, b) | c"));
+        assertEquals(6, errorOffset("a ! b = c"));
+        assertEquals(4, errorOffset("a@b = c"));
+        assertEquals(4, errorOffset("x, a+b"));
+        assertEquals(2, errorOffset("a@"));
+        assertThrows(IllegalArgumentException.class, () -> ListExpression.parse("a ! b = c"));
+    }
+
+    // Covers: deeply nested parentheses
+    @Test
+    public void testDeepNesting() throws ParseException {
+        final int depth = 100_000;
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            input.append("(a,");
+        }
+        input.append("b");
+        for (int i = 0; i < depth; i++) {
+            input.append(")");
+        }
+        ListExpression expr = ListExpressionParser.parse(input);
+        for (int i = 0; i < depth; i++) {
+            assertEquals(new ListName("a"), expr.getOperands().get(0));
+            expr = expr.getOperands().get(1);
+        }
+        assertEquals(new ListName("b"), expr);
+    }
+
+    // Covers: long save string
+    @Test
+    public void testLongSaveString() throws ParseException {
+        final int n = 100_000;
+        final List<String> definitions = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            definitions.add("l" + i + "=(r" + i + "@mit,l" + (i + 1) + ")!x" + i + "@mit");
+        }
+        final ListExpression expr = ListExpressionParser.parse(String.join(";", definitions));
+        assertEquals(n, expr.getOperands().size());
+        assertEquals(ListExpression.parse(definitions.get(n - 1)), expr.getOperands().get(n - 1));
+    }
+}
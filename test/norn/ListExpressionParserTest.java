@@ -4,7 +4,9 @@ package norn;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class ListExpressionParserTest {
     /*
@@ -68,6 +70,7 @@ public class ListExpressionParserTest {
               contains definition
               contains parallel
               contains listname
+              chain of many operands
           sequence
               contains whitespace
               parenthesis difference
@@ -79,6 +82,7 @@ public class ListExpressionParserTest {
               contains definition
               contains parallel
               contains listname
+              chain of many operands
           parallel
               contains whitespace
               parenthesis difference
@@ -965,4 +969,34 @@ public class ListExpressionParserTest {
         assertEquals(parseExpression, genExpression);
     }
     
+    // Tests
+    //   union
+    //      chain of many operands
+    //   sequence
+    //      chain of many operands
+    @Test
+    public void testLongChains() throws ParallelDefinitionException, EvaluationException {
+        final int n = 5000;
+        final List<ListExpression> recipients = new ArrayList<>();
+        final List<ListExpression> definitions = new ArrayList<>();
+        final StringBuilder union = new StringBuilder("r0@mit");
+        final StringBuilder sequence = new StringBuilder("l0=r0@mit");
+        recipients.add(new Recipient("r0@mit"));
+        definitions.add(new Definition(new ListName("l0"), new Recipient("r0@mit")));
+        for (int i = 1; i < n; i++) {
+            union.append(",r").append(i).append("@mit");
+            sequence.append(";l").append(i).append("=r").append(i).append("@mit");
+            recipients.add(new Recipient("r" + i + "@mit"));
+            definitions.add(new Definition(new ListName("l" + i), new Recipient("r" + i + "@mit")));
+        }
+        final ListExpression parsedUnion = ListExpression.parse(union.toString());
+        assertEqualsAndHash(new Union(recipients), parsedUnion);
+        assertEquals(n, parsedUnion.evaluate(new Context()).size());
+        final ListExpression parsedSequence = ListExpression.parse(sequence.toString());
+        assertEqualsAndHash(new Sequence(definitions), parsedSequence);
+        final Context context = new Context();
+        assertEquals(Set.of("r" + (n - 1) + "@mit"), parsedSequence.evaluate(context));
+        assertEquals(Set.of("r0@mit"), new ListName("l0").evaluate(context));
+    }
+
 }
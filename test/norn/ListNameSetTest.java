@@ -0,0 +1,90 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class ListNameSetTest {
+    //  Partitioned as follows:
+    //      union()
+    //          either set is empty, has one list name, many list names
+    //          one set contains the other, neither does
+    //      list names of expressions (getDefinedListNames(), getListNamesNotDefined(), getAllListNames())
+    //          expression is a leaf, an operator, a definition; nested definitions
+    //          a list name is both defined and used, only one of those
+    //          expression tree is shallow, very deep
+    //          the set returned is modified (throws)
+
+    private static Set<ListName> names(String... names) {
+        final Set<ListName> set = new HashSet<>();
+        for (String name : names) {
+            set.add(new ListName(name));
+        }
+        return set;
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: union() with an empty set, one list name, many list names; one set contains the other, neither
+    @Test
+    public void testUnion() {
+        final Set<ListName> a = Set.of(new ListName("a"));
+        assertSame(a, ListNameSet.union(a, Set.of()));
+        assertSame(a, ListNameSet.union(Set.of(), a));
+        assertSame(a, ListNameSet.union(a, Set.of(new ListName("a"))));
+        final Set<ListName> ab = ListNameSet.union(a, Set.of(new ListName("b")));
+        assertEquals(names("a", "b"), ab);
+        assertEquals(ab, names("a", "b"));
+        assertEquals(names("a", "b").hashCode(), ab.hashCode());
+        final Set<ListName> abc = ListNameSet.union(Set.of(new ListName("c")), ab);
+        assertEquals(names("a", "b", "c"), abc);
+        assertSame(abc, ListNameSet.union(ab, abc));
+        assertEquals(names("a", "b"), ab);
+        final Set<ListName> iterated = new HashSet<>();
+        abc.forEach(iterated::add);
+        assertEquals(names("a", "b", "c"), iterated);
+        assertThrows(UnsupportedOperationException.class, () -> abc.add(new ListName("d")));
+        assertThrows(UnsupportedOperationException.class, () -> abc.clear());
+    }
+
+    // Covers: leaves, operators, definitions, nested definitions; list names defined and used, only one; the
+    //         sets returned are modified
+    @Test
+    public void testExpressionListNames() {
+        final ListExpression expr = ListExpression.parse("a = (b = c, d), e * a; f@mit ! (g | h = x@mit)");
+        assertEquals(names("a", "b", "h"), expr.getDefinedListNames());
+        assertEquals(names("a", "c", "d", "e", "g"), expr.getListNamesNotDefined());
+        assertEquals(names("a", "b", "c", "d", "e", "g", "h"), expr.getAllListNames());
+        assertEquals(Set.of(), new Recipient("x@mit").getAllListNames());
+        assertEquals(names("a"), new ListName("a").getListNamesNotDefined());
+        assertThrows(UnsupportedOperationException.class, () -> expr.getAllListNames().add(new ListName("z")));
+        assertThrows(UnsupportedOperationException.class,
+                () -> new ListName("a").getAllListNames().remove(new ListName("a")));
+    }
+
+    // Covers: very deep expression tree, with a different list name at each level
+    @Test
+    public void testDeepExpression() {
+        final int depth = 10_000;
+        ListExpression expr = new ListName("l0");
+        for (int i = 1; i < depth; i++) {
+            expr = new Difference(expr, new Definition(new ListName("d" + i), new ListName("l" + i)));
+        }
+        assertEquals(2 * depth - 1, expr.getAllListNames().size());
+        assertEquals(depth - 1, expr.getDefinedListNames().size());
+        assertEquals(depth, expr.getListNamesNotDefined().size());
+        assertTrue(expr.getListNamesNotDefined().containsAll(names("l0", "l1", "l" + (depth - 1))));
+        assertTrue(expr.getDefinedListNames().containsAll(List.of(new ListName("d1"), new ListName("d5000"))));
+    }
+}
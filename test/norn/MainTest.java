@@ -3,10 +3,13 @@ package norn;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -17,12 +20,19 @@ import norn.Main.EndOfProgram;
 
 public class MainTest {
     // Partitioned as follows:
-    //  - input starts with /save, /load, or an invalid command, or input is empty or just the expression to evaluate
+    //  - input starts with /save, /load, /import, or an invalid command, or is /stats, or input is empty or just
+    //      the expression to evaluate
     //      - /load file
     //          - file exists, does not exist
     //          - file is parsable, not parsable
+    //          - file is in the text format, the binary format
+    //          - file in the text format takes one batch of StreamingLoader, many batches
+    //      - /import file
+    //          - file exists, does not exist
+    //          - file has only memberships, has a line that isn't a membership
     //      - /save filepath
     //          - able to write file, unable to write file
+    //          - path has the extension of the binary format, doesn't
     //      - invalid command
     //      - input empty
     //      - input expression
@@ -144,6 +154,44 @@ public class MainTest {
         deleteFile("a.txt");
     }
     
+    // Covers: /save able to write file, in the binary format
+    //        /load file exists
+    //               file is parsable, in the binary format
+    @Test
+    @Tag("no-didit")
+    public void testLoadBinarySuccess() throws Main.EndOfProgram, IOException {
+        List<List<String>> evaluateList = new ArrayList<>();
+        evaluateList.add(List.of("e=e@mit", "e@mit"));
+        evaluateList.add(List.of("e=e,f@mit", "e@mit, f@mit"));
+        evaluateList.add(List.of("/save a" + SnapshotFormat.EXTENSION, "File saved."));
+        evaluateList.add(List.of("/load a" + SnapshotFormat.EXTENSION, "File loaded."));
+        evaluateList.add(List.of("e", "e@mit, f@mit"));
+        testHelper(evaluateList);
+        deleteFile("a" + SnapshotFormat.EXTENSION);
+    }
+    
+    // Covers: /load file exists
+    //               file is parsable, in the text format, takes many batches
+    @Test
+    @Tag("no-didit")
+    public void testLoadProgress() throws Main.EndOfProgram, IOException {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() <= 2 * StreamingLoader.DEFAULT_BATCH_CHARS; i++) {
+            text.append("list").append(i).append(" = member").append(i).append("@mit;\n");
+        }
+        createFile("big.txt", text.toString());
+        final Main m = new Main();
+        final StringWriter output = new StringWriter();
+        m.printReturn("/load big.txt", new PrintWriter(output));
+        final String[] lines = output.toString().split("\n");
+        assertTrue(lines.length >= 2);
+        assertTrue(lines[0].startsWith("Loaded "), lines[0]);
+        assertEquals("File loaded.", lines[lines.length - 1]);
+        assertEquals("member0@mit", m.getReturn("list0"));
+        assertThrows(Main.EndOfProgram.class, () -> m.getReturn(""));
+        deleteFile("big.txt");
+    }
+
     // Covers: /load file does not exist
     @Test
     @Tag("no-didit")
@@ -165,6 +213,40 @@ public class MainTest {
         deleteFile("file.txt");
     }
 
+    // Covers: /import file exists, does not exist
+    //                 file has only memberships, has a line that isn't a membership
+    @Test
+    @Tag("no-didit")
+    public void testImport() throws Main.EndOfProgram, IOException {
+        createFile("members.csv", "list,address\nstaff,a@mit\nstaff,B@mit\nall,c@mit\n");
+        createFile("broken.csv", "staff,a@mit\nstaff\n");
+        List<List<String>> evaluateList = new ArrayList<>();
+        evaluateList.add(List.of("everyone = staff, all, d@mit", "d@mit"));
+        evaluateList.add(List.of("/import members.csv", "File imported."));
+        evaluateList.add(List.of("everyone", "a@mit, b@mit, c@mit, d@mit"));
+        evaluateList.add(List.of("/import broken.csv", "Unable to parse file."));
+        evaluateList.add(List.of("staff", "a@mit, b@mit"));
+        evaluateList.add(List.of("/import doesntexist.csv", "Unable to load file."));
+        testHelper(evaluateList);
+        deleteFile("members.csv");
+        deleteFile("broken.csv");
+    }
+
+    // Covers: /stats
+    @Test
+    @Tag("no-didit")
+    public void testStats() throws Main.EndOfProgram, IOException {
+        Main m = new Main();
+        m.getReturn("maintest-stats = x@mit");
+        final String[] lines = m.getReturn("/stats").split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("parse cache: size: "), lines[0]);
+        assertTrue(lines[0].contains(", capacity: " + ParseCache.DEFAULT_CAPACITY + ", hits: "), lines[0]);
+        assertTrue(lines[0].contains(", evictions: "), lines[0]);
+        assertTrue(lines[1].startsWith("parallel: forks: "), lines[1]);
+        assertThrows(Main.EndOfProgram.class, () -> m.getReturn(""));
+    }
+
     // Covers: invalid command
     @Test
     @Tag("no-didit")
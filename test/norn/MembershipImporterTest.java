@@ -0,0 +1,152 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class MembershipImporterTest {
+    //  Partitioned as follows:
+    //      importFile()
+    //          file: empty, one row, many rows; has a header, doesn't; has blank lines and comments, doesn't;
+    //              separated by ',', by tabs; has spaces around fields, '\r' before '\n'; ends with '\n', doesn't
+    //          rows: of one list, of many lists; lists grouped, interleaved; duplicates, no duplicates;
+    //              in uppercase, in lowercase
+    //          chunks: one, many; chunk boundary in the middle of a line, right after '\n'
+    //          lists: not defined before, defined before, used by other lists; of one member, of many members
+    //          file can be imported, has a row that isn't a membership
+    //          context materialized, not materialized
+
+    private static final String MEMBERSHIPS = "list,address\r\n"
+            + "A, X@mit\n"
+            + "\n"
+            + "# comment\n"
+            + "b\ty@mit\n"
+            + "a,z@mit \r\n"
+            + "B,y@mit\n"
+            + "c , w@mit\n"
+            + "a,x@mit";
+
+    private static Path write(String text) throws IOException {
+        final Path path = Files.createTempFile("memberships", ".csv");
+        Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: empty file
+    @Test
+    public void testEmpty() throws IOException, UnableToLoadException {
+        final Path path = write("");
+        try {
+            final Context context = new Context();
+            final Map<String, Long> stats = MembershipImporter.importFile(context, path);
+            assertEquals(0L, stats.get("rows"));
+            assertEquals(0L, stats.get("lists"));
+            assertEquals("", context.save());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    // Covers: many rows, with a header, blank lines and comments, ',' and tabs, spaces and '\r', not ending with
+    //         '\n'; many lists, interleaved, with duplicates, in uppercase and lowercase; one chunk, many chunks;
+    //         lists defined before and used by other lists; materialized, not materialized
+    @Test
+    public void testImport() throws IOException, EvaluationException, UnableToLoadException {
+        final Path path = write(MEMBERSHIPS);
+        try {
+            for (boolean materialized : List.of(false, true)) {
+                for (int chunkBytes : List.of(1, 5, 16, MembershipImporter.DEFAULT_CHUNK_BYTES)) {
+                    final Context context = new Context(materialized);
+                    context.load("a = q@mit; d = a, b");
+                    final Map<String, Long> stats = MembershipImporter.importFile(context, path, chunkBytes);
+                    assertEquals(6L, stats.get("rows"));
+                    assertEquals(3L, stats.get("lists"));
+                    assertEquals(3L, stats.get("installed"));
+                    assertEquals((long) MEMBERSHIPS.length(), stats.get("bytes"));
+                    assertTrue(stats.get("chunks") >= 1);
+                    if (chunkBytes == MembershipImporter.DEFAULT_CHUNK_BYTES) {
+                        assertEquals(1L, stats.get("chunks"));
+                    }
+                    assertEquals(Set.of("x@mit", "z@mit"), context.evaluate(new ListName("a")));
+                    assertEquals(Set.of("y@mit"), context.evaluate(new ListName("b")));
+                    assertEquals(Set.of("w@mit"), context.evaluate(new ListName("c")));
+                    assertEquals(new Literal(Set.of("x@mit", "z@mit")),
+                            context.getRelevantExpression(new ListName("a")));
+                    assertEquals(new Recipient("w@mit"), context.getRelevantExpression(new ListName("c")));
+                    assertEquals(Set.of("x@mit", "y@mit", "z@mit"), context.evaluate(new ListName("d")));
+                    if (materialized) {
+                        assertEquals(Set.of("x@mit", "y@mit", "z@mit"),
+                                context.getMaterialized(new ListName("d")));
+                    }
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    // Covers: one row, of one list; many rows, grouped, ending with '\n'; many chunks split right after '\n'
+    @Test
+    public void testGrouped() throws IOException, EvaluationException, UnableToLoadException {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("list").append(i / 100).append(",member").append(i).append("@mit\n");
+        }
+        final Path single = write("only,one@mit");
+        final Path grouped = write(text.toString());
+        try {
+            final Context context = new Context();
+            assertEquals(1L, MembershipImporter.importFile(context, single).get("rows"));
+            assertEquals(Set.of("one@mit"), context.evaluate(new ListName("only")));
+
+            final Map<String, Long> stats = MembershipImporter.importFile(context, grouped, 64);
+            assertTrue(stats.get("chunks") > 1);
+            assertEquals(10L, stats.get("lists"));
+            for (int l = 0; l < 10; l++) {
+                final Set<String> members = context.evaluate(new ListName("list" + l));
+                assertEquals(100, members.size());
+                assertTrue(members.contains("member" + (100 * l + 99) + "@mit"));
+            }
+        } finally {
+            Files.delete(single);
+            Files.delete(grouped);
+        }
+    }
+
+    // Covers: a row that isn't a membership
+    @Test
+    public void testFailure() throws IOException, UnableToLoadException {
+        for (String text : List.of("a,x@mit\nb,nope\n", "a,x@mit\nb\n", "a,x@mit\nb c,y@mit\n",
+                "a,x@mit\na,x@mit,y@mit\n", "a,x@mit\na,x@@mit\n", "a,x@mit\na,@mit\n")) {
+            final Path path = write(text);
+            try {
+                for (int chunkBytes : List.of(1, MembershipImporter.DEFAULT_CHUNK_BYTES)) {
+                    final Context context = new Context();
+                    context.load("e = r@mit");
+                    final String saved = context.save();
+                    assertThrows(UnableToLoadException.class,
+                            () -> MembershipImporter.importFile(context, path, chunkBytes), text);
+                    assertEquals(saved, context.save());
+                }
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+}
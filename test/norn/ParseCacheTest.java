@@ -0,0 +1,140 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class ParseCacheTest {
+    //  Partitioned as follows:
+    //      parse()
+    //          input is cached, isn't cached
+    //          input is valid, invalid, longer than the maximum length
+    //          cache is below capacity, at capacity (evicts the least recently used input)
+    //          cache has one segment, many segments
+    //          called from one thread, many threads at once
+    //      getStats()
+    //      ListExpression.parse()
+    //          same input parsed twice
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: input cached, not cached; valid, invalid, too long; below capacity, at capacity; one thread
+    @Test
+    public void testParse() throws ParseException {
+        final ParseCache cache = new ParseCache(2, 10);
+        final ListExpression a = cache.parse("a, b");
+        assertEquals(new Union(new ListName("a"), new ListName("b")), a);
+        assertSame(a, cache.parse("a, b"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.parse("c");
+        cache.parse("a, b");          // "c" is now the least recently used
+        cache.parse("d");
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        cache.parse("a, b");
+        assertEquals(3, cache.getHits());
+        cache.parse("c");
+        assertEquals(2, cache.getEvictions());
+
+        assertThrows(ParseException.class, () -> cache.parse("a b"));
+        assertThrows(ParseException.class, () -> cache.parse("a b"));
+        cache.parse("x@mit, y@mit");
+        cache.parse("x@mit, y@mit");
+        assertEquals(3, cache.getHits());
+        assertEquals(8, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    // Covers: many threads at once
+    @Test
+    public void testConcurrentParse() throws InterruptedException {
+        final ParseCache cache = new ParseCache(16, 100);
+        final int threads = 8;
+        final int calls = 2000;
+        final List<Thread> workers = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            final Thread worker = new Thread(() -> {
+                try {
+                    for (int i = 0; i < calls; i++) {
+                        final int n = (i * 7 + seed) % 24;
+                        assertEquals(new Recipient("r" + n + "@mit"), cache.parse("r" + n + "@mit"));
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(List.of(), failures);
+        assertEquals(threads * calls, cache.getHits() + cache.getMisses());
+        assertEquals(16, cache.size());
+        assertTrue(cache.getEvictions() <= cache.getMisses() - 16);
+    }
+
+    // Covers: many segments, at capacity; many threads at once; getStats()
+    @Test
+    public void testSegments() throws InterruptedException {
+        final ParseCache cache = new ParseCache(1000, 100);
+        final int threads = 4;
+        final int inputs = 3000;
+        final List<Thread> workers = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Thread worker = new Thread(() -> {
+                try {
+                    for (int i = 0; i < inputs; i++) {
+                        assertEquals(new ListName("l" + i), cache.parse("l" + i));
+                        assertEquals(new ListName("hot"), cache.parse("hot"));
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(List.of(), failures);
+        assertTrue(cache.size() <= 1000, "size " + cache.size());
+        assertTrue(cache.size() > 900, "size " + cache.size());   // inputs spread over all of the segments
+        final Map<String, Long> stats = cache.getStats();
+        assertEquals(List.of("size", "capacity", "hits", "misses", "evictions"), new ArrayList<>(stats.keySet()));
+        assertEquals(1000L, stats.get("capacity"));
+        assertEquals(2L * threads * inputs, stats.get("hits") + stats.get("misses"));
+        assertTrue(stats.get("misses") >= stats.get("size") + stats.get("evictions"));
+        assertTrue(stats.get("hits") >= threads * inputs - threads, "hits " + stats.get("hits"));
+    }
+
+    // Covers: ListExpression.parse() of the same input twice
+    @Test
+    public void testListExpressionParse() {
+        final String input = "parsecachetest = a@mit, b@mit";
+        assertSame(ListExpression.parse(input), ListExpression.parse(input));
+    }
+}
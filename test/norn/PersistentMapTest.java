@@ -0,0 +1,150 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class PersistentMapTest {
+    //  Partitioned as follows:
+    //      plus(), minus(), get(), containsKey()
+    //          key is in the map, is not in the map
+    //          map is empty, has one key, many keys
+    //          keys whose hashes differ, share a prefix of bits, are equal (collision nodes)
+    //          value is null, isn't null
+    //      old versions
+    //          unchanged by plus() and minus() of later versions
+    //      forEach(), keyIterator()
+    //          map is empty, nonempty
+
+    // A key with a chosen hash code
+    private static final class Key {
+        private final String name;
+        private final int hash;
+
+        private Key(String name, int hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof Key && name.equals(((Key) that).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static <K, V> Map<K, V> toMap(PersistentMap<K, V> map) {
+        final Map<K, V> result = new HashMap<>();
+        map.forEach(result::put);
+        return result;
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: map empty, one key; key in the map, not in the map; value null, not null; forEach() on empty,
+    //         nonempty
+    @Test
+    public void testSmall() {
+        final PersistentMap<String, Integer> empty = PersistentMap.empty();
+        assertEquals(0, empty.size());
+        assertNull(empty.get("a"));
+        assertSame(empty, empty.minus("a"));
+        assertEquals(Map.of(), toMap(empty));
+        assertFalse(empty.keyIterator().hasNext());
+        assertThrows(NoSuchElementException.class, () -> empty.keyIterator().next());
+
+        final PersistentMap<String, Integer> one = empty.plus("a", 1);
+        assertEquals(1, one.size());
+        assertEquals(1, one.get("a"));
+        assertEquals(Map.of("a", 1), toMap(one));
+        assertEquals(2, one.plus("a", 2).get("a"));
+        assertEquals(1, one.plus("a", 2).size());
+        assertEquals(0, one.minus("a").size());
+        assertFalse(one.minus("a").containsKey("a"));
+
+        final PersistentMap<String, Integer> nullValue = one.plus("b", null);
+        assertTrue(nullValue.containsKey("b"));
+        assertNull(nullValue.get("b"));
+        assertEquals(-1, nullValue.getOrDefault("c", -1));
+        assertNull(nullValue.getOrDefault("b", -1));
+    }
+
+    // Covers: hashes that share a prefix of bits, are equal; old versions unchanged
+    @Test
+    public void testCollisions() {
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        final Key[] keys = {
+            new Key("a", 0), new Key("b", 0), new Key("c", 0),     // equal hashes
+            new Key("d", 1 << 31), new Key("e", 1 << 5), new Key("f", 0x7fffffff),
+        };
+        for (int i = 0; i < keys.length; i++) {
+            map = map.plus(keys[i], i);
+        }
+        final PersistentMap<Key, Integer> full = map;
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, full.get(keys[i]));
+        }
+        assertNull(full.get(new Key("g", 0)));
+        for (Key key : keys) {
+            map = map.minus(key);
+            assertFalse(map.containsKey(key));
+        }
+        assertEquals(0, map.size());
+        assertEquals(keys.length, full.size());
+        assertEquals(0, full.get(keys[0]));
+    }
+
+    // Covers: many keys, added and removed in a random order, compared with a HashMap; old versions unchanged;
+    //         keyIterator() on many keys
+    @Test
+    public void testRandom() {
+        final Random random = new Random(0);
+        PersistentMap<String, Integer> map = PersistentMap.empty();
+        final Map<String, Integer> expected = new HashMap<>();
+        PersistentMap<String, Integer> old = map;
+        Map<String, Integer> oldExpected = Map.of();
+        for (int i = 0; i < 50_000; i++) {
+            final String key = "l" + random.nextInt(10_000);
+            if (random.nextInt(3) == 0) {
+                map = map.minus(key);
+                expected.remove(key);
+            } else {
+                map = map.plus(key, i);
+                expected.put(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+            if (i % 10_000 == 0) {
+                old = map;
+                oldExpected = new HashMap<>(expected);
+            }
+        }
+        assertEquals(expected, toMap(map));
+        assertEquals(oldExpected, toMap(old));
+        final Set<String> keys = new HashSet<>();
+        map.keyIterator().forEachRemaining(keys::add);
+        assertEquals(expected.keySet(), keys);
+        for (String key : expected.keySet()) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class ProgramTest {
+    //  Tests for Compiler.compile(), Program.run() and Context.getProgram(). Every evaluation of a list name
+    //  that is cheaper than the parallel threshold in ListExpressionEvaluateTest.java also runs a Program.
+    //
+    //  Partitioned as follows:
+    //      Compiler.compile()
+    //          expression is a recipient, literal, empty, list name, union, intersection, difference, sequence,
+    //              parallel
+    //          expression defines a list name
+    //          operands nested, not nested
+    //      Program.run()
+    //          list name loaded has known recipients, is compiled, defines other list names
+    //          first operand of an intersection or difference is empty (the rest is skipped), is not empty
+    //          chain of list names 0, 1, 100,000 long
+    //      Context.getProgram()
+    //          list name not defined, defined, redefined; definition defines list names, doesn't
+
+    private static Set<String> run(String expression, Context context) throws EvaluationException {
+        return Compiler.compile(ListExpression.parse(expression)).run(context);
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: Compiler.compile() on nested operands, Program.run() on an intersection whose first operand is
+    //         not empty
+    @Test
+    public void testCompileNested() throws EvaluationException {
+        final Program program = Compiler.compile(ListExpression.parse("a * b@mit, c"));
+        assertEquals("0: load-list r0 a\n"
+                + "1: jump-if-empty r0 4\n"
+                + "2: load-recipient r1 b@mit\n"
+                + "3: intersect-into r0 r1\n"
+                + "4: load-list r1 c\n"
+                + "5: union-into r0 r1\n", program.toString());
+        assertEquals(6, program.size());
+        assertEquals(program, Compiler.compile(ListExpression.parse("a * b@mit, c")));
+
+        final Context context = new Context();
+        context.evaluate(ListExpression.parse("a = b@mit, x@mit; c = y@mit"));
+        assertEquals(Set.of("b@mit", "y@mit"), program.run(context));
+    }
+
+    // Covers: Compiler.compile() on each kind of expression, not nested
+    @Test
+    public void testCompileEachVariant() throws EvaluationException {
+        final Context context = new Context();
+        context.evaluate(ListExpression.parse("a = x@mit, y@mit"));
+        final List<String> expressions = List.of("x@mit", "", "a", "a, z@mit, w@mit", "a * y@mit * x@mit",
+                "a ! x@mit", "x@mit; z@mit; a", "a | z@mit");
+        for (String expression : expressions) {
+            final ListExpression expr = ListExpression.parse(expression);
+            assertEquals(expr.evaluate(context), Compiler.compile(expr).run(context), expression);
+        }
+        assertEquals("0: load-empty r0\n1: jump 4\n2: load-list r0 a\n3: load-recipient r1 z@mit\n",
+                Compiler.compile(ListExpression.parse("a | z@mit")).toString());
+        assertThrows(IllegalArgumentException.class, () -> Compiler.compile(ListExpression.parse("a, (b = a)")));
+
+        final ListExpression literal = new Intersection(new Literal(Set.of("x@mit", "z@mit")), new ListName("a"));
+        final Program program = Compiler.compile(literal);
+        assertEquals("0: load-recipients r0 (x@mit,z@mit)\n1: jump-if-empty r0 4\n2: load-list r1 a\n"
+                + "3: intersect-into r0 r1\n", program.toString());
+        assertEquals(Set.of("x@mit"), program.run(context));
+        assertEquals(Set.of("x@mit"), program.run(context));
+    }
+
+    // Covers: Program.run() on a list name that defines other list names, with the first operand of an
+    //         intersection or difference empty, not empty
+    @Test
+    public void testShortCircuit() throws EvaluationException {
+        final Context context = new Context();
+        context.updateMap(new ListName("b"), ListExpression.parse("c = x@mit"));
+        assertEquals(Set.of(), run("a * b", context));
+        assertEquals(Set.of(), run("a ! b", context));
+        assertEquals(Set.of(), context.evaluate(new ListName("c")));     // evaluating b would have defined c
+        assertEquals(Set.of("b@mit"), run("b@mit ! b", context));
+        assertEquals(Set.of("x@mit"), context.evaluate(new ListName("c")));
+    }
+
+    // Covers: Program.run() on a chain of 100,000 list names, with known recipients and compiled definitions
+    @Test
+    public void testLongChain() throws EvaluationException {
+        final int n = 100_000;
+        final Context context = new Context();
+        context.updateMap(new ListName("l0"), new Recipient("a@mit"));
+        for (int i = 1; i < n; i++) {
+            context.updateMap(new ListName("l" + i), new Union(new ListName("l" + (i - 1)), new Recipient("b@mit")));
+        }
+        assertEquals(Set.of("a@mit", "b@mit"), run("l" + (n - 1), context));
+        assertEquals(Set.of("a@mit", "b@mit"), run("l" + (n / 2) + " * l" + (n - 1), context));
+        context.updateMap(new ListName("l0"), new Recipient("c@mit"));
+        assertEquals(Set.of("b@mit", "c@mit"), run("l" + (n - 1), context));
+    }
+
+    // Covers: Context.getProgram()
+    @Test
+    public void testGetProgram() throws EvaluationException {
+        final Context context = new Context();
+        final ListName a = new ListName("a");
+        assertEquals(Compiler.compile(new Empty()), context.getProgram(a));
+        context.evaluate(ListExpression.parse("a = x@mit, b"));
+        final Program program = context.getProgram(a);
+        assertEquals(Compiler.compile(ListExpression.parse("x@mit, b")), program);
+        assertSame(program, context.getProgram(a));
+        context.evaluate(ListExpression.parse("b = y@mit"));
+        assertSame(program, context.getProgram(a));                      // only depends on a's definition
+        context.evaluate(ListExpression.parse("a = (b = z@mit)"));
+        assertNull(context.getProgram(a));
+        context.evaluate(ListExpression.parse("a = b"));
+        assertEquals(Compiler.compile(new ListName("b")), context.getProgram(a));
+    }
+}
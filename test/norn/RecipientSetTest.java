@@ -0,0 +1,214 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class RecipientSetTest {
+    //  Partitioned as follows:
+    //      add(), remove(), contains()
+    //          recipient is in the set, is not in the set, has never been seen by RecipientDictionary
+    //          recipient has an id, has none (add() doesn't give it one), was given one after it was added
+    //          container holds few recipients (array), many recipients (bitmap)
+    //      addAll(), retainAll(), removeAll()
+    //          argument is a RecipientSet, is another kind of collection
+    //          sets share no containers, some containers, all containers
+    //          result of an operation on a bitmap container is small enough for an array, is not
+    //          sets have recipients without ids, that have since been given ids in the other set
+    //      iterator()
+    //          set is empty, nonempty; remove() while iterating
+    //          set has recipients with ids, without ids
+
+    /*
+     * Make n distinct recipients, named prefix0@mit, prefix1@mit, ..., each with an id in RecipientDictionary
+     * as if it had been defined, so that sets of them are stored in containers
+     */
+    private static List<String> recipients(String prefix, int n) {
+        final List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            recipients.add(prefix + i + "@mit");
+            RecipientDictionary.idOf(prefix + i + "@mit");
+        }
+        return recipients;
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: add(), remove(), contains()
+    //              recipient is in the set, is not in the set, has never been seen
+    //              container holds few recipients
+    //         iterator()
+    //              set is empty, nonempty
+    @Test
+    public void testAddRemoveContains() {
+        final RecipientSet set = new RecipientSet();
+        assertTrue(set.isEmpty());
+        assertFalse(set.iterator().hasNext());
+        assertTrue(set.add("a@mit"));
+        assertFalse(set.add("a@mit"));
+        assertTrue(set.add("b@mit"));
+        assertTrue(set.contains("a@mit"));
+        assertFalse(set.contains("never-seen-before@nowhere"));
+        assertFalse(set.remove("never-seen-before@nowhere"));
+        assertEquals(Set.of("a@mit", "b@mit"), set);
+        assertTrue(set.remove("a@mit"));
+        assertFalse(set.remove("a@mit"));
+        assertEquals(Set.of("b@mit"), set);
+        assertEquals(1, set.size());
+    }
+
+    // Covers: add(), remove(), contains()
+    //              container holds many recipients
+    //         addAll(), retainAll(), removeAll()
+    //              argument is a RecipientSet
+    //              result of an operation on a bitmap container is small enough for an array, is not
+    @Test
+    public void testLargeSetOperations() {
+        final List<String> all = recipients("large", 20000);
+        final RecipientSet evens = new RecipientSet();
+        final RecipientSet firstHalf = new RecipientSet(all.subList(0, 10000));
+        final Set<String> expectedEvens = new HashSet<>();
+        for (int i = 0; i < all.size(); i += 2) {
+            evens.add(all.get(i));
+            expectedEvens.add(all.get(i));
+        }
+        assertEquals(expectedEvens, evens);
+        assertEquals(10000, firstHalf.size());
+
+        final RecipientSet union = new RecipientSet(evens);
+        union.addAll(firstHalf);
+        final Set<String> expectedUnion = new HashSet<>(expectedEvens);
+        expectedUnion.addAll(all.subList(0, 10000));
+        assertEquals(expectedUnion, union);
+
+        final RecipientSet intersection = new RecipientSet(evens);
+        intersection.retainAll(firstHalf);
+        final Set<String> expectedIntersection = new HashSet<>(expectedEvens);
+        expectedIntersection.retainAll(all.subList(0, 10000));
+        assertEquals(expectedIntersection, intersection);
+
+        final RecipientSet difference = new RecipientSet(firstHalf);
+        difference.removeAll(evens);
+        final Set<String> expectedDifference = new HashSet<>(all.subList(0, 10000));
+        expectedDifference.removeAll(expectedEvens);
+        assertEquals(expectedDifference, difference);
+
+        for (String recipient : all.subList(0, 9990)) {
+            firstHalf.remove(recipient);
+        }
+        assertEquals(new HashSet<>(all.subList(9990, 10000)), firstHalf);
+    }
+
+    // Covers: addAll(), retainAll(), removeAll()
+    //              argument is another kind of collection
+    //              sets share no containers
+    @Test
+    public void testOtherCollections() {
+        final RecipientSet set = new RecipientSet(List.of("a@mit", "b@mit", "c@mit"));
+        assertFalse(set.addAll(Set.of("a@mit")));
+        assertTrue(set.retainAll(Set.of("a@mit", "b@mit", "d@mit")));
+        assertEquals(Set.of("a@mit", "b@mit"), set);
+        assertTrue(set.removeAll(List.of("b@mit", "never-seen-either@nowhere")));
+        assertEquals(Set.of("a@mit"), set);
+        assertTrue(set.retainAll(new RecipientSet()));
+        assertTrue(set.isEmpty());
+    }
+
+    // Covers: add(), remove(), contains()
+    //              recipient has an id, has none, was given one after it was added
+    //         addAll(), retainAll(), removeAll()
+    //              sets have recipients without ids, that have since been given ids in the other set
+    //         iterator()
+    //              set has recipients with ids, without ids
+    @Test
+    public void testRecipientsWithoutIds() {
+        final String unique = "withoutids" + System.nanoTime();
+        final String x = unique + "x@nowhere";
+        final String y = unique + "y@nowhere";
+        final List<String> defined = recipients(unique, 2);
+        final RecipientSet before = new RecipientSet(List.of(x, y, defined.get(0)));
+        assertEquals(-1, RecipientDictionary.findId(x));
+        assertEquals(-1, RecipientDictionary.findId(y));
+        assertEquals(Set.of(x, y, defined.get(0)), new HashSet<>(before));
+
+        final RecipientSet after = new RecipientSet();
+        assertTrue(after.addAssigningId(x));
+        assertTrue(after.add(defined.get(1)));
+        assertTrue(RecipientDictionary.findId(x) >= 0);
+        assertTrue(before.contains(x));
+        assertFalse(before.add(x));
+        assertEquals(3, before.size());
+
+        final RecipientSet union = new RecipientSet(before);
+        assertTrue(union.addAll(after));
+        assertEquals(Set.of(x, y, defined.get(0), defined.get(1)), union);
+        assertEquals(4, union.size());
+        final RecipientSet otherUnion = new RecipientSet(after);
+        assertTrue(otherUnion.addAll(before));
+        assertEquals(union, otherUnion);
+
+        final RecipientSet intersection = new RecipientSet(before);
+        assertTrue(intersection.retainAll(after));
+        assertEquals(Set.of(x), intersection);
+        final RecipientSet otherIntersection = new RecipientSet(after);
+        assertTrue(otherIntersection.retainAll(before));
+        assertEquals(Set.of(x), otherIntersection);
+
+        final RecipientSet difference = new RecipientSet(before);
+        assertTrue(difference.removeAll(after));
+        assertEquals(Set.of(y, defined.get(0)), difference);
+        final RecipientSet otherDifference = new RecipientSet(after);
+        assertTrue(otherDifference.removeAll(before));
+        assertEquals(Set.of(defined.get(1)), otherDifference);
+
+        assertFalse(before.addAssigningId(x));
+        assertEquals(3, before.size());
+        final Iterator<String> iterator = before.iterator();
+        int seen = 0;
+        while (iterator.hasNext()) {
+            if (iterator.next().equals(y)) {
+                iterator.remove();
+            }
+            seen++;
+        }
+        assertEquals(3, seen);
+        assertEquals(Set.of(x, defined.get(0)), before);
+        assertTrue(before.remove(x));
+        assertEquals(Set.of(defined.get(0)), before);
+        assertEquals(-1, RecipientDictionary.findId(y));
+    }
+
+    // Covers: iterator()
+    //              remove() while iterating
+    @Test
+    public void testIteratorRemove() {
+        final RecipientSet set = new RecipientSet(recipients("iterate", 100));
+        final Iterator<String> iterator = set.iterator();
+        int seen = 0;
+        while (iterator.hasNext()) {
+            final String recipient = iterator.next();
+            seen++;
+            if (!recipient.startsWith("iterate1")) {
+                iterator.remove();
+            }
+        }
+        assertEquals(100, seen);
+        assertEquals(11, set.size());
+        for (String recipient : set) {
+            assertTrue(recipient.startsWith("iterate1"));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class SnapshotFormatTest {
+    //  Partitioned as follows:
+    //      write(), read()
+    //          definitions: none, some; use every kind of expression, including literals; use prior versions of
+    //              listnames; use listnames that aren't defined; define listnames inside them
+    //          expression is shallow, deep
+    //          input is a saved snapshot, one saved in format version 1, has a bad magic number or format
+    //              version, is truncated
+    //      Context.loadBinary()
+    //          context has no listnames, has listnames; is materialized, isn't
+    //          saved definitions have a loop, don't
+    //      main()
+    //          to-text, from-text
+
+    // Definitions using every kind of expression, prior versions, undefined listnames and nested definitions
+    private static final String DEFINITIONS = "a = x@mit, y@mit; b = (a * y@mit) ! z@mit; c = (a | d = b);"
+            + " a = a, w@mit; a = (a ! x@mit), v@mit; e = (f = a, u); g = ; h = (a; b)";
+
+    private static byte[] save(Context context) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        context.saveBinary(out);
+        return out.toByteArray();
+    }
+
+    private static Context load(byte[] saved, Context context) throws UnableToLoadException {
+        context.loadBinary(new ByteArrayInputStream(saved));
+        return context;
+    }
+
+    private static void assertSameRecipients(Context expected, Context actual) throws EvaluationException {
+        for (String name : List.of("a", "b", "c", "d", "e", "f", "g", "h", "u", "w", "missing")) {
+            assertEquals(expected.evaluate(new ListName(name)), actual.evaluate(new ListName(name)), name);
+            assertEquals(expected.getRelevantExpression(new ListName(name)),
+                    actual.getRelevantExpression(new ListName(name)), name);
+        }
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: no definitions; context has no listnames
+    @Test
+    public void testEmpty() throws IOException, UnableToLoadException {
+        final Context loaded = load(save(new Context()), new Context());
+        assertEquals("", loaded.save());
+        assertTrue(SnapshotFormat.isSnapshot(new ByteArrayInputStream(save(new Context()))));
+    }
+
+    // Covers: every kind of expression, prior versions, undefined listnames, nested definitions; context has
+    //         no listnames, materialized and not
+    @Test
+    public void testRestore() throws IOException, EvaluationException, UnableToLoadException {
+        for (boolean materialized : List.of(false, true)) {
+            final Context original = new Context();
+            original.load(DEFINITIONS);
+            final Context loaded = load(save(original), new Context(materialized));
+            assertSameRecipients(original, loaded);
+            assertEquals(original.getDependencies(new ListName("c")), loaded.getDependencies(new ListName("c")));
+            assertEquals(Arrays.toString(save(original)), Arrays.toString(save(loaded)));
+
+            // the restored context keeps working as the original does
+            loaded.evaluate(ListExpression.parse("a = a, t@mit"));
+            original.evaluate(ListExpression.parse("a = a, t@mit"));
+            assertSameRecipients(original, loaded);
+            assertThrows(MailLoopException.class, () -> loaded.evaluate(ListExpression.parse("a = c")));
+            if (materialized) {
+                assertEquals(Set.of("v@mit", "w@mit", "y@mit", "t@mit"), loaded.getMaterialized(new ListName("a")));
+            }
+        }
+    }
+
+    // Covers: literals; format version 1
+    @Test
+    public void testLiteral() throws IOException, EvaluationException, UnableToLoadException {
+        final Literal literal = new Literal(Set.of("x@mit", "y@mit", "z@mit"));
+        final Context original = new Context();
+        original.evaluate(new Definition(new ListName("l"), literal));
+        original.evaluate(new Definition(new ListName("m"), new Union(new Literal(Set.of("y@mit", "w@mit")),
+                new Recipient("x@mit"))));
+        original.load("n = l ! m");
+        final Context loaded = load(save(original), new Context());
+        assertEquals(literal, loaded.getRelevantExpression(new ListName("l")));
+        assertEquals(original.getRelevantExpression(new ListName("m")),
+                loaded.getRelevantExpression(new ListName("m")));
+        assertEquals(Set.of("z@mit"), loaded.evaluate(new ListName("n")));
+        assertEquals(Arrays.toString(save(original)), Arrays.toString(save(loaded)));
+
+        // a snapshot without literals reads the same in format version 1
+        final Context plain = new Context();
+        plain.load(DEFINITIONS);
+        final byte[] version1 = save(plain);
+        version1[7] = 1;
+        assertSameRecipients(plain, load(version1, new Context()));
+    }
+
+    // Covers: context has listnames
+    @Test
+    public void testMerge() throws IOException, EvaluationException, UnableToLoadException {
+        final Context original = new Context();
+        original.load(DEFINITIONS);
+        final Context loaded = new Context();
+        loaded.load("a = s@mit; k = a, r@mit");
+        load(save(original), loaded);
+        assertSameRecipients(original, loaded);
+        assertEquals(Set.of("v@mit", "w@mit", "y@mit", "r@mit"), loaded.evaluate(new ListName("k")));
+    }
+
+    // Covers: deep expression
+    @Test
+    public void testDeepExpression() throws IOException, EvaluationException, UnableToLoadException {
+        final StringBuilder input = new StringBuilder("deep = ");
+        for (int i = 0; i < 1000; i++) {
+            input.append("(r").append(i).append("@mit ! ");
+        }
+        input.append("x@mit");
+        for (int i = 0; i < 1000; i++) {
+            input.append(")");
+        }
+        final Context original = new Context();
+        original.load(input.toString());
+        final Context loaded = load(save(original), new Context());
+        assertEquals(original.getRelevantExpression(new ListName("deep")),
+                loaded.getRelevantExpression(new ListName("deep")));
+        assertEquals(Set.of("r0@mit"), loaded.evaluate(new ListName("deep")));
+    }
+
+    // Covers: bad magic number, bad format version, truncated; saved definitions have a loop
+    @Test
+    public void testInvalid() throws IOException, EvaluationException, UnableToLoadException {
+        final Context original = new Context();
+        original.load(DEFINITIONS);
+        final byte[] saved = save(original);
+        final Context context = new Context();
+        context.load("a = s@mit");
+
+        final byte[] badMagic = saved.clone();
+        badMagic[0]++;
+        assertFalse(SnapshotFormat.isSnapshot(new ByteArrayInputStream(badMagic)));
+        assertThrows(UnableToLoadException.class, () -> load(badMagic, context));
+        final byte[] badVersion = saved.clone();
+        badVersion[7]++;
+        assertThrows(UnableToLoadException.class, () -> load(badVersion, context));
+        for (int length = 0; length < saved.length; length++) {
+            final byte[] truncated = Arrays.copyOf(saved, length);
+            assertThrows(UnableToLoadException.class, () -> load(truncated, context));
+            assertThrows(UnableToLoadException.class, () -> load(truncated, new Context()));
+        }
+        assertEquals(Set.of("s@mit"), context.evaluate(new ListName("a")));
+
+        // "p" and "q" depend on each other, which no context can save
+        final Snapshot loop = new Snapshot().withDefinition(new ListName("p"), new ListName("q"))
+                .withDefinition(new ListName("q"), new ListName("p"))
+                .withChildren(new ListName("p"), Set.of(new ListName("q")))
+                .withChildren(new ListName("q"), Set.of(new ListName("p")));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SnapshotFormat.write(loop, out);
+        final Context empty = new Context();
+        assertThrows(UnableToLoadException.class, () -> load(out.toByteArray(), empty));
+        assertEquals("", empty.save());
+    }
+
+    // Covers: to-text, from-text
+    @Test
+    public void testMain() throws IOException, EvaluationException, UnableToLoadException {
+        final Path text = Files.createTempFile("norn", ".txt");
+        final Path binary = Files.createTempFile("norn", SnapshotFormat.EXTENSION);
+        final Path back = Files.createTempFile("norn", ".txt");
+        try {
+            Files.writeString(text, DEFINITIONS);
+            SnapshotFormat.main(new String[] { "from-text", text.toString(), binary.toString() });
+            SnapshotFormat.main(new String[] { "to-text", binary.toString(), back.toString() });
+            final Context original = new Context();
+            original.load(DEFINITIONS);
+            final Context fromBinary = new Context();
+            try (InputStream in = Files.newInputStream(binary)) {
+                fromBinary.loadBinary(in);
+            }
+            final Context fromText = new Context();
+            fromText.load(Files.readString(back));
+            assertSameRecipients(original, fromBinary);
+            assertSameRecipients(original, fromText);
+        } finally {
+            Files.delete(text);
+            Files.delete(binary);
+            Files.delete(back);
+        }
+    }
+}
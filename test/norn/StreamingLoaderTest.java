@@ -0,0 +1,157 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class StreamingLoaderTest {
+    //  Partitioned as follows:
+    //      load()
+    //          input: empty or blank, one statement, many statements; has ';' inside parentheses, doesn't; ends
+    //              with ';', doesn't; was written by Context.save() with prior versions
+    //          input fits in one batch, takes many batches; has a statement longer than a batch
+    //          chunk is smaller than a statement, larger than the input
+    //          input loads, can't be parsed, can't be evaluated, has '|' outside of parentheses; in the first
+    //              batch, in a later batch
+    //          size of the input is known, unknown
+
+    private static final String DEFINITIONS = "a = x@mit, y@mit; b = (a * y@mit) ! z@mit; c = (a; d = b, w@mit);"
+            + " a = a, w@mit; e = (f = a, u@mit) ; g = ; h = (a | i = b)";
+    private static final List<String> NAMES = List.of("a", "b", "c", "d", "e", "f", "g", "h", "i");
+
+    private static StreamingLoader.Progress load(Context context, String input, long size, int chunkBytes,
+            int batchChars, List<StreamingLoader.Progress> reported) throws IOException, UnableToLoadException {
+        final byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        return StreamingLoader.load(context, Channels.newChannel(new ByteArrayInputStream(bytes)), size,
+                chunkBytes, batchChars, reported::add);
+    }
+
+    private static void assertSameRecipients(Context expected, Context actual, List<String> names)
+            throws EvaluationException {
+        for (String name : names) {
+            assertEquals(expected.evaluate(new ListName(name)), actual.evaluate(new ListName(name)), name);
+        }
+    }
+
+    @Test
+    public void testAssertionsEnabled() {
+        assertThrows(AssertionError.class, () -> { assert false; },
+                "make sure assertions are enabled with VM argument '-ea'");
+    }
+
+    // Covers: empty or blank input
+    @Test
+    public void testEmpty() throws IOException, UnableToLoadException {
+        for (String input : List.of("", "  \n", " ; ;")) {
+            final Context context = new Context();
+            final List<StreamingLoader.Progress> reported = new ArrayList<>();
+            final StreamingLoader.Progress done = load(context, input, -1, 16, 16, reported);
+            assertEquals(0, done.getStatements());
+            assertEquals(0, done.getBatches());
+            assertEquals(input.length(), done.getBytesRead());
+            assertEquals(List.of(), reported);
+            assertEquals("", context.save());
+        }
+    }
+
+    // Covers: many statements, with and without ';' inside parentheses, ending with and without ';'; one batch,
+    //         many batches, statements longer than a batch; chunks smaller than a statement, larger than the input
+    @Test
+    public void testBatches() throws IOException, EvaluationException, UnableToLoadException {
+        final Context expected = new Context();
+        expected.load(DEFINITIONS);
+        for (String input : List.of(DEFINITIONS, DEFINITIONS + ";\n")) {
+            for (int chunkBytes : List.of(1, 7, 4096)) {
+                for (int batchChars : List.of(1, 20, 60, 4096)) {
+                    final Context context = new Context();
+                    final List<StreamingLoader.Progress> reported = new ArrayList<>();
+                    final StreamingLoader.Progress done = load(context, input, input.length(), chunkBytes,
+                            batchChars, reported);
+                    assertSameRecipients(expected, context, NAMES);
+                    assertEquals(7, done.getStatements());
+                    assertEquals(input.length(), done.getBytesRead());
+                    assertEquals(reported.size(), done.getBatches());
+                    assertEquals(done.getStatements(), reported.get(reported.size() - 1).getStatements());
+                    if (batchChars == 1) {
+                        assertEquals(7, done.getBatches());
+                    } else if (batchChars == 4096) {
+                        assertEquals(1, done.getBatches());
+                    }
+                    for (int i = 1; i < reported.size(); i++) {
+                        assertTrue(reported.get(i - 1).getStatements() < reported.get(i).getStatements());
+                        assertTrue(reported.get(i - 1).getBytesRead() <= reported.get(i).getBytesRead());
+                    }
+                }
+            }
+        }
+    }
+
+    // Covers: input written by Context.save() with prior versions; one statement; size unknown
+    @Test
+    public void testSaved() throws IOException, EvaluationException, UnableToLoadException {
+        final Context original = new Context();
+        original.load(DEFINITIONS + "; a = (a ! x@mit), v@mit; b = b, a");
+        final Context context = new Context();
+        load(context, original.save(), -1, 5, 10, new ArrayList<>());
+        assertSameRecipients(original, context, NAMES);
+
+        final Context single = new Context();
+        assertEquals(1, load(single, "j = k@mit", -1, 64, 64, new ArrayList<>()).getStatements());
+        assertEquals(Set.of("k@mit"), single.evaluate(new ListName("j")));
+    }
+
+    // Covers: can't be parsed, can't be evaluated; in the first batch, in a later batch
+    @Test
+    public void testFailure() throws IOException, EvaluationException, UnableToLoadException {
+        final String unparsable = "a = x@mit; b = y@mit; c = (a,; d = z@mit";
+        final String loop = "a = x@mit; b = y@mit; c = (e = f; f = e); d = z@mit";
+        for (String input : List.of(unparsable, loop)) {
+            // fits in one batch, so nothing is loaded
+            final Context whole = new Context();
+            assertThrows(UnableToLoadException.class, () -> load(whole, input, -1, 8, 4096, new ArrayList<>()));
+            assertEquals("", whole.save());
+
+            // the batches before the failing one stay loaded, and the rest is not read
+            final Context batched = new Context();
+            final List<StreamingLoader.Progress> reported = new ArrayList<>();
+            assertThrows(UnableToLoadException.class, () -> load(batched, input, -1, 8, 1, reported));
+            assertEquals(2, reported.size());
+            assertTrue(reported.get(1).getBytesRead() < input.length());
+            assertEquals(Set.of("x@mit"), batched.evaluate(new ListName("a")));
+            assertEquals(Set.of("y@mit"), batched.evaluate(new ListName("b")));
+            assertEquals(Set.of(), batched.evaluate(new ListName("d")));
+        }
+    }
+
+    // Covers: has '|' outside of parentheses; in the first batch, in a later batch
+    @Test
+    public void testTopLevelParallel() throws IOException, EvaluationException, UnableToLoadException {
+        // the whole input is one parallel, b | (a = y@mit ; b = z@mit), which load() rejects too
+        final String input = "b | a = y@mit ; b = z@mit";
+        assertThrows(UnableToLoadException.class, () -> new Context().load(input));
+        for (int batchChars : List.of(1, 4096)) {
+            final Context context = new Context();
+            assertThrows(UnableToLoadException.class,
+                    () -> load(context, input, -1, 4, batchChars, new ArrayList<>()));
+            assertEquals("", context.save());
+        }
+
+        final Context batched = new Context();
+        final List<StreamingLoader.Progress> reported = new ArrayList<>();
+        assertThrows(UnableToLoadException.class,
+                () -> load(batched, "a = x@mit; b = (c | d = w@mit); e | f = v@mit", -1, 8, 1, reported));
+        assertEquals(2, reported.size());
+        assertEquals(Set.of("x@mit"), batched.evaluate(new ListName("a")));
+        assertEquals(Set.of(), batched.evaluate(new ListName("f")));
+    }
+}